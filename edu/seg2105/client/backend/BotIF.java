@@ -0,0 +1,19 @@
+package edu.seg2105.client.backend;
+
+/**
+ * What a bot hosted by a BotRuntime does with the messages its client
+ * would display. It is told which client received the message, so that it
+ * can answer through it. It is called on an event loop thread shared with
+ * many other clients, so it must not block: slow work belongs on a thread
+ * of its own.
+ */
+public interface BotIF
+{
+  /**
+   * Called for every message the client would display.
+   *
+   * @param client The client that received the message.
+   * @param message The message.
+   */
+  public abstract void handleMessage(ChatClient client, String message);
+}
@@ -0,0 +1,175 @@
+package edu.seg2105.client.backend;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * Hosts many headless ChatClients in one program, for bots and soak tests.
+ * Their connections are multiplexed on a few shared event loops rather
+ * than each having a reader thread, so thousands of clients cost thousands
+ * of sockets, not thousands of threads. Their messages go to a BotIF
+ * instead of a console.
+ * <p>
+ * A hosted client behaves as any other: it logs in, may reconnect and
+ * keep a heartbeat, and runs the commands typed through
+ * handleMessageFromClientUI(...). Quitting, by #quit or because its
+ * connection dropped for good, only closes that client; the program goes
+ * on until it ends itself or closes the runtime.
+ * <p>
+ * Hosted clients speak the framed protocol, so the server must run the
+ * nio or virtual transport. They do not support TLS.
+ */
+public final class BotRuntime implements AutoCloseable
+{
+  //Class variables *************************************************
+
+  /**
+   * The number of loops when none is given: one per processor.
+   */
+  public static final int DEFAULT_LOOPS = Runtime.getRuntime().availableProcessors();
+
+  //Instance variables **********************************************
+
+  /**
+   * The loops serving the clients' connections.
+   */
+  private final ClientEventLoop[] loops;
+
+  /**
+   * Picks the loop for the next client, round robin.
+   */
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  /**
+   * The clients that have not quit.
+   */
+  private final Set<ChatClient> clients = ConcurrentHashMap.newKeySet();
+
+  //Constructors ****************************************************
+
+  /**
+   * Starts a runtime with DEFAULT_LOOPS loops.
+   *
+   * @exception IOException If a loop's selector cannot be opened.
+   */
+  public BotRuntime() throws IOException
+  {
+    this(DEFAULT_LOOPS);
+  }
+
+  /**
+   * Starts a runtime.
+   *
+   * @param loopCount How many event loops, each a thread, serve the clients.
+   * @exception IOException If a loop's selector cannot be opened.
+   */
+  public BotRuntime(int loopCount) throws IOException
+  {
+    if (loopCount < 1)
+      throw new IllegalArgumentException("A runtime needs at least one loop");
+    loops = new ClientEventLoop[loopCount];
+    for (int i = 0; i < loopCount; i++)
+      loops[i] = new ClientEventLoop("Bot loop " + i);
+    for (ClientEventLoop loop : loops)
+      loop.start();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts a client, which connects and logs in in the background. Until
+   * it has, what it is asked to send is sent once connected; if it cannot
+   * connect, the bot is told so and the client quits.
+   *
+   * @param loginID The login id of the client.
+   * @param host The server to connect to.
+   * @param port The port number to connect on.
+   * @param bot What to do with the messages the client receives.
+   * @param format FRAMED, or COMPRESSED to ask for compression as well.
+   * @return The client.
+   * @exception IOException If the host is unknown or no socket can be had.
+   */
+  public ChatClient connect(String loginID, String host, int port, BotIF bot, WireFormat format)
+    throws IOException
+  {
+    Recipient recipient = new Recipient(bot);
+    ClientEventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    ChatClient client = new ChatClient(loginID, host, port, recipient, this, loop, format);
+    recipient.client = client; //Before connecting, so that no message comes first
+    clients.add(client);
+    try
+    {
+      client.connectToServer();
+    }
+    catch (IOException | RuntimeException e)
+    {
+      clients.remove(client);
+      throw e;
+    }
+    return client;
+  }
+
+  /**
+   * @return The clients that have not quit. The set changes as they do.
+   */
+  public Set<ChatClient> getClients()
+  {
+    return Collections.unmodifiableSet(clients);
+  }
+
+  /**
+   * @return The number of clients that have not quit.
+   */
+  public int size()
+  {
+    return clients.size();
+  }
+
+  /**
+   * Quits every client, then stops the loops.
+   */
+  public void close()
+  {
+    for (ChatClient client : clients)
+      client.quit();
+    for (ClientEventLoop loop : loops)
+      loop.stop();
+  }
+
+  /**
+   * Called by a client when it quits.
+   *
+   * @param client The client.
+   */
+  void quitted(ChatClient client)
+  {
+    clients.remove(client);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * Passes a client's messages to its bot, with the client.
+   */
+  private static class Recipient implements ChatIF
+  {
+    private final BotIF bot;
+    volatile ChatClient client;
+
+    Recipient(BotIF bot)
+    {
+      this.bot = bot;
+    }
+
+    public void display(String message)
+    {
+      bot.handleMessage(client, message);
+    }
+  }
+}
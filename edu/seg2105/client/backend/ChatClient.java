@@ -7,6 +7,14 @@ package edu.seg2105.client.backend;
 import ocsf.client.*;
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
 
 import edu.seg2105.client.common.*;
 
@@ -20,6 +28,31 @@ import edu.seg2105.client.common.*;
  */
 public class ChatClient extends AbstractClient
 {
+  //Class variables *************************************************
+  
+  /**
+   * The most messages kept while reconnecting. Later ones are refused.
+   */
+  static final int UNSENT_LIMIT = 1000;
+  
+  /**
+   * What starts the server's message giving the client its session token.
+   */
+  static final String SESSION_PREFIX = "#session ";
+  
+  /**
+   * How long the server may be quiet, by default, before the client pings
+   * it, and how long it then has to answer, in ms.
+   */
+  public static final long DEFAULT_HEARTBEAT_IDLE_MILLIS = 30000;
+  public static final long DEFAULT_HEARTBEAT_TIMEOUT_MILLIS = 15000;
+  
+  /**
+   * How often a client with a session tells the server how far it has got,
+   * in ms. One acknowledgement covers every message before it.
+   */
+  static final long ACK_INTERVAL_MILLIS = 1000;
+  
   //Instance variables **********************************************
   
   /**
@@ -33,6 +66,114 @@ public class ChatClient extends AbstractClient
    * Known by both the server and the client.
    */
   String loginID;
+  
+  /**
+   * The connection to the server when AbstractClient's own one is not used,
+   * null otherwise.
+   */
+  final ServerLink link;
+  
+  /**
+   * The runtime hosting the client among many others, or null if the client
+   * is a program of its own, which quitting ends.
+   */
+  private final BotRuntime runtime;
+  
+  /**
+   * Set once the client has quit, so that its timers stop.
+   */
+  private volatile boolean quitted;
+  
+  /**
+   * The commands the user may type, found by name. More may be registered
+   * at any time.
+   */
+  final CommandRegistry<ChatClient> commands = new CommandRegistry<ChatClient>();
+  
+  /**
+   * Whether to reconnect when the connection drops, and how patiently.
+   */
+  private volatile ReconnectPolicy reconnect = ReconnectPolicy.NEVER;
+  
+  /**
+   * Held while writing to the server, so that what the user types and what
+   * is sent on reconnecting goes out one message at a time, in order. It
+   * also guards unsent and reconnector.
+   */
+  private final Object sendLock = new Object();
+  
+  /**
+   * Messages the user sent while the client was reconnecting.
+   */
+  private final ArrayDeque<Object> unsent = new ArrayDeque<Object>();
+  
+  /**
+   * Set from the moment the connection drops until the client has logged in
+   * again and sent what was kept meanwhile.
+   */
+  private volatile boolean reconnecting;
+  
+  /**
+   * The thread reconnecting, or null.
+   */
+  private Thread reconnector;
+  
+  /**
+   * Set once connectionEstablished() has logged in, so that a session is
+   * never asked for before the login. Guarded by sendLock.
+   */
+  private boolean loginSent;
+  
+  /**
+   * The token of the client's session on the server, or null, and the
+   * number of the last message received in the session's stream. The
+   * server numbers every message it sends through the session, and the
+   * connection delivers them in order, so counting them keeps up with it.
+   */
+  private volatile String sessionToken;
+  private volatile long received;
+  
+  /**
+   * Whether the messages received are part of the session's stream. Those
+   * sent on a new connection before the server has attached the session,
+   * such as the ones kept while the user was away, are not.
+   */
+  private volatile boolean inStream;
+  
+  /**
+   * How many of the next messages the client already received before it
+   * reconnected, to be dropped. Only used by the reader thread.
+   */
+  private long duplicates;
+  
+  /**
+   * The number last acknowledged to the server, and whether
+   * acknowledgements are being scheduled. Only used on the heartbeat
+   * wheel's thread, once scheduled.
+   */
+  private long acknowledged;
+  private volatile boolean acking;
+  
+  /**
+   * How long the server may be quiet before the client pings it, and how
+   * long it then has to answer before the connection is taken to be dead,
+   * in ms. The idle time is 0 when there is no heartbeat.
+   */
+  private volatile long heartbeatIdleMillis;
+  private volatile long heartbeatTimeoutMillis;
+  
+  /**
+   * Counts the calls to setHeartbeat(...), so that checks scheduled before
+   * the last one stop.
+   */
+  private volatile int heartbeatGeneration;
+  
+  /**
+   * When the server was last heard from, by System.nanoTime(), and the value
+   * lastHeard had when the client last pinged, only used by the checks.
+   */
+  private volatile long lastHeard = System.nanoTime();
+  private long pingedFor;
 
   
   //Constructors ****************************************************
@@ -48,15 +189,201 @@ public class ChatClient extends AbstractClient
   
   public ChatClient(String loginID, String host, int port, ChatIF clientUI) 
     throws IOException 
+  {
+    this(loginID, host, port, clientUI, new ClientOptions());
+  }
+  
+  /**
+   * Constructs an instance of the chat client.
+   *
+   * @param loginID The login id of the client.
+   * @param host The server to connect to.
+   * @param port The port number to connect on.
+   * @param clientUI The interface type variable.
+   * @param options How to connect to the server: the reader thread, wire
+   *        format, batching and TLS, and whether to reconnect and check on
+   *        the server with a heartbeat.
+   */
+  public ChatClient(String loginID, String host, int port, ChatIF clientUI,
+    ClientOptions options) 
+    throws IOException 
   {
     super(host, port); //Call the superclass constructor
     this.loginID=loginID;
     this.clientUI = clientUI;
-    openConnection();
+    this.runtime = null;
+    ThreadFactory readerThreads = options.getReaderThreads();
+    WireFormat format = options.getFormat();
+    WriteBatching batching = options.getBatching();
+    SSLContext tls = options.getTls();
+    if (readerThreads==null && format==WireFormat.LEGACY && batching.isImmediate() && tls==null)
+      link = null; //AbstractClient's own connection does the job
+    else
+      link = new SocketServerLink(this, readerThreads!=null ? readerThreads
+        : VirtualThreads.platformFactory("Server reader "), format, batching,
+        tls!=null ? tls.getSocketFactory() : SocketFactory.getDefault());
+    registerCommands();
+    connectToServer();
+    setReconnectPolicy(options.getReconnect());
+    if (options.getHeartbeatIdleMillis() > 0)
+      setHeartbeat(options.getHeartbeatIdleMillis(), options.getHeartbeatTimeoutMillis());
+  }
+  
+  /**
+   * Constructs a client hosted by a BotRuntime, whose link is served by one
+   * of the runtime's event loops. It does not connect until the runtime
+   * calls connectToServer(), and quitting only closes it.
+   *
+   * @param loginID The login id of the client.
+   * @param host The server to connect to.
+   * @param port The port number to connect on.
+   * @param clientUI Where the client's messages go, on the loop's thread.
+   * @param runtime The runtime hosting the client.
+   * @param loop The loop to serve the client's link.
+   * @param format FRAMED, or COMPRESSED to ask for compression as well.
+   */
+  ChatClient(String loginID, String host, int port, ChatIF clientUI,
+    BotRuntime runtime, ClientEventLoop loop, WireFormat format)
+  {
+    super(host, port);
+    this.loginID=loginID;
+    this.clientUI = clientUI;
+    this.runtime = runtime;
+    link = new NioServerLink(this, loop, format);
+    registerCommands();
   }
 
   
   //Instance methods ************************************************
+  
+  /**
+   * Returns the commands the user may type, so that more can be registered.
+   *
+   * @return The client's commands.
+   */
+  public CommandRegistry<ChatClient> getCommands()
+  {
+    return commands;
+  }
+  
+  /**
+   * Sets whether the client reconnects when its connection drops, rather
+   * than quitting. A client that reconnects asks the server for a session,
+   * and on reconnecting is sent what it missed; meanwhile what the user
+   * sends is kept, up to UNSENT_LIMIT messages, and sent once reconnected.
+   *
+   * @param policy How to reconnect, or ReconnectPolicy.NEVER.
+   */
+  public void setReconnectPolicy(ReconnectPolicy policy)
+  {
+    synchronized (sendLock)
+    {
+      reconnect = policy;
+      //Before the login, connectionEstablished() asks for the session itself
+      if (policy.isEnabled() && sessionToken == null && loginSent && !reconnecting
+        && isConnectedToServer())
+      {
+        try
+        {
+          write("#session");
+        }
+        catch (IOException e) {} //The connection dropping is reported by the reader
+      }
+    }
+  }
+  
+  /**
+   * @return How the client reconnects when its connection drops.
+   */
+  public ReconnectPolicy getReconnectPolicy()
+  {
+    return reconnect;
+  }
+  
+  /**
+   * Sets how long the server may be quiet before the client pings it, and
+   * how long it then has to answer. A server that does not is taken to be
+   * gone, as when the network failed without closing the socket, and the
+   * connection is treated as dropped: the client reconnects if it may,
+   * otherwise it quits. Checks for every client run on one shared timer.
+   *
+   * @param idleMillis The quiet time before a ping, or 0 for no heartbeat.
+   * @param timeoutMillis The time allowed to answer.
+   */
+  public void setHeartbeat(long idleMillis, long timeoutMillis)
+  {
+    if (idleMillis < 0 || timeoutMillis < 1)
+      throw new IllegalArgumentException("The idle time cannot be negative, nor the timeout below 1");
+    heartbeatTimeoutMillis = timeoutMillis;
+    heartbeatIdleMillis = idleMillis;
+    int generation = ++heartbeatGeneration; //Only the thread setting up the client calls this
+    if (idleMillis > 0)
+      scheduleHeartbeat(generation, TimeUnit.MILLISECONDS.toNanos(idleMillis));
+  }
+  
+  /**
+   * Opens the connection to the server, through the link if there is one.
+   * AbstractClient's openConnection() is final, hence the separate method.
+   */
+  public void connectToServer() throws IOException
+  {
+    if (link==null)
+      openConnection();
+    else
+      link.open();
+  }
+  
+  /**
+   * Closes the connection to the server, through the link if there is one.
+   */
+  public void disconnectFromServer() throws IOException
+  {
+    if (link==null)
+      closeConnection();
+    else
+      link.close();
+  }
+  
+  /**
+   * @return true if the client is connected to the server.
+   */
+  public boolean isConnectedToServer()
+  {
+    return link==null ? isConnected() : link.isOpen();
+  }
+  
+  /**
+   * Sends an object to the server, through the link if there is one. While
+   * the client is reconnecting the message is kept to be sent once it has.
+   *
+   * @param msg The message to send.
+   */
+  @Override
+  public void sendToServer(Object msg) throws IOException
+  {
+    synchronized (sendLock)
+    {
+      if (!reconnecting)
+        write(msg);
+      else if (unsent.size() < UNSENT_LIMIT)
+        unsent.add(msg);
+      else
+        clientUI.display("Not connected to the server: the message was not sent.");
+    }
+  }
+  
+  /**
+   * Writes an object to the server. Called holding sendLock.
+   *
+   * @param msg The message to send.
+   */
+  private void write(Object msg) throws IOException
+  {
+    if (link==null)
+      super.sendToServer(msg);
+    else
+      link.send(msg);
+  }
     
   /**
    * This method handles all data that comes in from the server.
@@ -65,9 +392,24 @@ public class ChatClient extends AbstractClient
    */
   public void handleMessageFromServer(Object msg) 
   {
+    lastHeard=System.nanoTime();
+    if ("#ping".equals(msg)) { //The server checking that the client is still there
+      Heartbeats.SENDER.execute(() -> sendQuietly("#pong"));
+      return;
+    }
+    if ("#pong".equals(msg))
+      return;
+    if (msg instanceof String && ((String)msg).startsWith(SESSION_PREFIX)) {
+      startStream(((String)msg).substring(SESSION_PREFIX.length()).split(" "));
+      return;
+    }
+    if (inStream)
+      received++; //Only written by the reader thread
+    if (inStream && duplicates>0) {
+      duplicates--; //Replayed, but displayed before the connection dropped
+      return;
+    }
     clientUI.display(msg.toString());
-    
-    
   }
 
   /**
@@ -78,13 +420,8 @@ public class ChatClient extends AbstractClient
   public void handleMessageFromClientUI(String message)
   {
     try
-    {   //If #login is received at any other time, the server should send an error message 
-    	//back to the client and terminate the connection. Therefore, we do not have to 
-    	//verify if the client is connected to the server.
-    	if (message.startsWith("#login")) {
-    		sendToServer(message);
-    	}
-    	else if (message.startsWith("#")) {
+    {
+    	if (CommandRegistry.isCommand(message)) {
     		handleCommand(message); //Helper method to handle the commands typed by the client
     	}
     	else sendToServer(message);
@@ -99,71 +436,13 @@ public class ChatClient extends AbstractClient
   
   /**
    * This method helps the handleMessageFromClientUI(...) method            
-   * Defines what to do if a certain command has been typed
+   * Runs the command registered in getCommands(), or sends an unknown
+   * command to the server
    * 
    * @param command The command from the UI.
    */
   public void handleCommand(String command) throws IOException, NumberFormatException {
-	  if (command.equals("#quit")) {
-		  //#quit causes the client to terminate gracefully. Make sure the connection to the server is 
-		  //terminated before exiting the program.
-		  quit();
-	  }
-	  else if (command.equals("#logoff")) {
-		  //#logoff causes the client to disconnect from the server, but not quit.  
-		  try {
-			  closeConnection();
-    	  }
-    	  catch(IOException e) {
-    		  clientUI.display ("An error occured during log off, please try again.");
-    	  }
-	  }
-	  else if (command.startsWith("#sethost")) {
-		  //#sethost <host> calls the setHost method in the client. Only allowed if the client is logged 
-		  //off; displays an error message otherwise. 
-		  if (!isConnected()) { //Checks if the client is logged off
-			  String newHost=command.substring(8);
-			  newHost=newHost.trim();
-			  //There are no constraints to the name of the host
-			  setHost(newHost);
-			  clientUI.display("You set the new host to be: "+newHost);
-		  }
-		  else {
-			  clientUI.display
-			  ("You are already logged in. To set a new host, use the #logoff command to disconnect from the server.");
-		  }
-	  }
-      else if (command.startsWith("#setport")) {
-    	  //#setport <port> Calls the setPort method in the client, with the same constraints as #sethost, 
-    	  //however, port can only be an integer
-    	  if (!isConnected()) { //Checks if the client is logged off
-			  String newPort=command.substring(8);
-			  newPort=newPort.trim();
-			  int port;
-			  try {
-				  port=Integer.parseInt(newPort); //throws NumberFormatException
-				  setPort(port);
-				  clientUI.display("You set the new port to be: "+port);
-			  }catch(NumberFormatException ne) {
-				 clientUI.display
-				 (newPort+" is not an integer. To set a new port, please try again."); 
-			  }
-		  }
-		  else {
-			  clientUI.display
-			  ("You are already logged in. To set a new port, use the #logoff command to disconnect from the server.");
-		  }
-		  
-	  }
-      else if (command.equals("#gethost")) {
-    	  //#gethost displays the current host name
-    	  clientUI.display("Current host name is: "+getHost());
-      }
-      else if (command.equals("#getport")) {
-    	  //#getport displays the current port number
-    	  clientUI.display("Current port number is: "+getPort());
-      }
-      else {
+	  if (!commands.execute(command, this)) {
     	  clientUI.display("Not a command.");
     	  try {
         	  sendToServer(command); //throws IOException
@@ -172,20 +451,124 @@ public class ChatClient extends AbstractClient
     		  clientUI.display ("Could not send message to server. Terminating client.");
     	      quit();
     	  }
-      }
+	  }
+  }
+  
+  /**
+   * Registers the commands the user may type.
+   */
+  private void registerCommands() {
+	  //#quit causes the client to terminate gracefully. Make sure the connection to the server is 
+	  //terminated before exiting the program.
+	  commands.register("quit", (args, client) -> quit());
+	  //#logoff causes the client to disconnect from the server, but not quit.  
+	  commands.register("logoff", (args, client) -> logoff());
+	  //#sethost <host> calls the setHost method in the client. Only allowed if the client is logged 
+	  //off; displays an error message otherwise. 
+	  commands.register("sethost", (args, client) -> changeHost(args));
+	  //#setport <port> Calls the setPort method in the client, with the same constraints as #sethost, 
+	  //however, port can only be an integer
+	  commands.register("setport", (args, client) -> changePort(args));
+	  //#gethost displays the current host name
+	  commands.register("gethost", (args, client) -> clientUI.display("Current host name is: "+getHost()));
+	  //#getport displays the current port number
+	  commands.register("getport", (args, client) -> clientUI.display("Current port number is: "+getPort()));
+	  //Logging in, channel commands, private messages, history and search are carried out by the server. 
+	  //If #login is sent at any other time, the server sends an error message back to the client and 
+	  //terminates the connection, so we do not have to verify if the client is connected.
+	  for (String name : new String[] {"login", "join", "leave", "channels", "msg", "history", "search"}) {
+		  commands.register(name, (args, client) -> sendToServer(args.isEmpty() ? "#"+name : "#"+name+" "+args));
+	  }
+  }
+  
+  /**
+   * Disconnects from the server without quitting, for #logoff.
+   */
+  private void logoff() {
+	  synchronized (sendLock) {
+		  reconnecting=false; //Stops reconnecting, if the connection had dropped
+		  unsent.clear();
+	  }
+	  try {
+		  disconnectFromServer();
+	  }
+	  catch(IOException e) {
+		  clientUI.display ("An error occured during log off, please try again.");
+	  }
+  }
+  
+  /**
+   * Sets the host, if the client is logged off, for #sethost.
+   *
+   * @param newHost The host typed.
+   */
+  private void changeHost(String newHost) {
+	  if (!isConnectedToServer()) { //Checks if the client is logged off
+		  //There are no constraints to the name of the host
+		  setHost(newHost);
+		  clientUI.display("You set the new host to be: "+newHost);
+	  }
+	  else {
+		  clientUI.display
+		  ("You are already logged in. To set a new host, use the #logoff command to disconnect from the server.");
+	  }
+  }
+  
+  /**
+   * Sets the port, if the client is logged off, for #setport.
+   *
+   * @param newPort The port typed.
+   */
+  private void changePort(String newPort) {
+	  if (!isConnectedToServer()) { //Checks if the client is logged off
+		  int port;
+		  try {
+			  port=Integer.parseInt(newPort); //throws NumberFormatException
+			  setPort(port);
+			  clientUI.display("You set the new port to be: "+port);
+		  }catch(NumberFormatException ne) {
+			 clientUI.display
+			 (newPort+" is not an integer. To set a new port, please try again."); 
+		  }
+	  }
+	  else {
+		  clientUI.display
+		  ("You are already logged in. To set a new port, use the #logoff command to disconnect from the server.");
+	  }
+  }
+  
+  /**
+   * Sends a message of the client's own, such as a ping, ignoring failures:
+   * a dropped connection is reported by the reader.
+   *
+   * @param msg The message.
+   */
+  private void sendQuietly(String msg) {
+	  try {
+		  sendToServer(msg);
+	  }catch(IOException e) {}
   }
   
   /**
-   * This method terminates the client.
+   * This method terminates the client. A client hosted by a BotRuntime is
+   * only closed, leaving the others and the program running.
    */
   public void quit()
   {
+    quitted = true;
+    synchronized (sendLock)
+    {
+      reconnecting = false; //Stops reconnecting, if the connection had dropped
+      unsent.clear();
+    }
     try
     {
-      closeConnection();
+      disconnectFromServer();
     }
     catch(IOException e) {}
-    System.exit(0);
+    if (runtime == null)
+      System.exit(0);
+    runtime.quitted(this);
   }
   
   /**
@@ -198,8 +581,158 @@ public class ChatClient extends AbstractClient
 	 */
     @Override
     protected void connectionException(Exception exception) {
-	    clientUI.display("Server has shut down");
-	    quit();
+    	if (!reconnect.isEnabled()) {
+    		clientUI.display("Server has shut down");
+    		quit();
+    		return;
+    	}
+    	synchronized (sendLock) {
+    		reconnecting=true;
+    		if (reconnector!=null)
+    			return; //Already reconnecting
+    		reconnector=new Thread(this::reconnect, "Reconnect");
+    		reconnector.setDaemon(true);
+    		reconnector.start();
+    	}
+    	clientUI.display("Lost the connection to the server. Reconnecting...");
+    }
+    
+    /**
+     * Runs on its own thread after the connection drops: tries to connect
+     * again, waiting longer after each failure, until the client has logged
+     * in again or the policy gives up, when the client quits.
+     */
+    private void reconnect() {
+    	ReconnectPolicy policy=reconnect;
+    	for (int attempt=0; ; attempt++) {
+    		try {
+    			Thread.sleep(policy.delayMillis(attempt));
+    		}catch(InterruptedException e) {}
+    		synchronized (sendLock) {
+    			if (!reconnecting) { //Logged in again, or logged off
+    				reconnector=null;
+    				return;
+    			}
+    		}
+    		if (attempt>=policy.getMaxAttempts())
+    			break;
+    		if (isConnectedToServer())
+    			continue; //Connected, and logging in
+    		try {
+    			connectToServer(); //connectionEstablished() then logs in again
+    		}catch(IOException e) {}
+    	}
+    	clientUI.display("Could not reconnect to the server.");
+    	quit();
+    }
+  
+    /**
+     * Takes up the stream of a session the server has attached: "<token>"
+     * for a new one, whose numbers start from 1, or "<token> <number>" for
+     * one resumed after the message of that number. A number beyond the
+     * one the client reached means messages were lost; one behind it means
+     * the messages up to it are being sent again.
+     *
+     * @param parts The token, and the number if resumed.
+     */
+    private void startStream(String[] parts) {
+    	long from=0;
+    	if (parts.length>1) {
+    		try {
+    			from=Long.parseLong(parts[1]);
+    		}catch(NumberFormatException e) {
+    			from=received; //Not this client's server: trust the count
+    		}
+    		if (from>received)
+    			clientUI.display((from-received)+" messages sent while you were away could not be replayed.");
+    	}
+    	duplicates=Math.max(0, received-from);
+    	received=from;
+    	sessionToken=parts[0];
+    	inStream=true;
+    	if (!acking) {
+    		acking=true;
+    		scheduleAcknowledgement();
+    	}
+    }
+    
+    /**
+     * Schedules the next acknowledgement on the heartbeat wheel.
+     */
+    private void scheduleAcknowledgement() {
+    	Heartbeats.WHEEL.schedule(this::acknowledge, ACK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Runs on the heartbeat wheel's thread: tells the server the number of
+     * the last message received, if it has changed, so that the server
+     * knows how far behind the client is and need keep no more. Stops once
+     * the client is closed.
+     */
+    private void acknowledge() {
+    	long number=received;
+    	if (number!=acknowledged && !reconnecting && isConnectedToServer()) {
+    		acknowledged=number;
+    		Heartbeats.SENDER.execute(() -> sendQuietly("#ack "+number));
+    	}
+    	if (!quitted && (reconnecting || isConnectedToServer()))
+    		scheduleAcknowledgement();
+    	else
+    		acking=false; //Closed: the next session starts them again
+    }
+    
+    /**
+     * Schedules the next heartbeat check.
+     *
+     * @param generation The heartbeat generation the check belongs to.
+     * @param nanos When, from now.
+     */
+    private void scheduleHeartbeat(int generation, long nanos) {
+    	Heartbeats.WHEEL.schedule(() -> checkHeartbeat(generation), nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Runs on the heartbeat wheel's thread: pings a server that has been
+     * quiet for the idle time, and gives up on one still quiet after the
+     * timeout that follows.
+     *
+     * @param generation The heartbeat generation the check belongs to.
+     */
+    private void checkHeartbeat(int generation) {
+    	if (generation!=heartbeatGeneration || quitted)
+    		return; //Replaced or turned off
+    	long idle=TimeUnit.MILLISECONDS.toNanos(heartbeatIdleMillis);
+    	long limit=TimeUnit.MILLISECONDS.toNanos(heartbeatTimeoutMillis);
+    	long heard=lastHeard;
+    	long quiet=System.nanoTime()-heard;
+    	if (reconnecting || !isConnectedToServer())
+    		scheduleHeartbeat(generation, idle); //Nothing to check until connected
+    	else if (quiet<idle)
+    		scheduleHeartbeat(generation, idle-quiet);
+    	else if (quiet<idle+limit) {
+    		if (pingedFor!=heard) {
+    			pingedFor=heard;
+    			Heartbeats.SENDER.execute(() -> sendQuietly("#ping"));
+    		}
+    		scheduleHeartbeat(generation, idle+limit-quiet);
+    	}
+    	else {
+    		lastHeard=System.nanoTime(); //So the next check waits for the new connection
+    		Heartbeats.SENDER.execute(this::serverStoppedAnswering);
+    		scheduleHeartbeat(generation, idle);
+    	}
+    }
+    
+    /**
+     * Drops a connection whose server stopped answering, then reconnects or
+     * quits as when the connection breaks.
+     */
+    private void serverStoppedAnswering() {
+    	clientUI.display("The server stopped answering.");
+    	try {
+    		disconnectFromServer();
+    	}catch(IOException e) {}
+    	connectionException(new IOException("The server stopped answering"));
     }
   
   /**
@@ -220,11 +753,52 @@ public class ChatClient extends AbstractClient
 	 */
     @Override
 	protected void connectionEstablished() {
-    	try {
-    		sendToServer("#login "+loginID);
-    	}catch(IOException e) {
-    		clientUI.display("An error occured while trying to send message to server");
+    	lastHeard=System.nanoTime();
+    	inStream=false; //Until the server attaches the session to this connection
+    	synchronized (sendLock) {
+    		try {
+    			String token=sessionToken;
+    			if (token!=null && reconnect.isEnabled()) {
+    				//Takes the session up again: the server replays what was missed
+    				write("#resume "+loginID+" "+token+" "+received);
+    			}
+    			else {
+    				write("#login "+loginID);
+    				if (reconnect.isEnabled())
+    					write("#session");
+    			}
+    			loginSent=true;
+    			while (!unsent.isEmpty()) {
+    				write(unsent.peek());
+    				unsent.remove();
+    			}
+    			if (reconnecting)
+    				clientUI.display("Reconnected to the server.");
+    			reconnecting=false;
+    		}catch(IOException e) {
+    			clientUI.display("An error occured while trying to send message to server");
+    		}
     	}
 	}
+    
+  
+  //Inner classes ***************************************************
+  
+  /**
+   * Holds the timer wheel on which every client's heartbeat is checked and
+   * acknowledgements are scheduled, and the one thread that sends pings,
+   * pongs and acknowledgements and leaves a server that stopped answering,
+   * off the wheel's and the readers' threads, since a write may block. Both
+   * are started the first time a client needs them.
+   */
+  private static final class Heartbeats
+  {
+    static final TimerWheel WHEEL = new TimerWheel("Client heartbeats");
+    static final ExecutorService SENDER = Executors.newSingleThreadExecutor(task -> {
+      Thread thread = new Thread(task, "Client heartbeat sender");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
 }
 //End of ChatClient class
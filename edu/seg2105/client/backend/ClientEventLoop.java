@@ -0,0 +1,164 @@
+package edu.seg2105.client.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread multiplexing the connections of many clients on a single
+ * Selector. Connecting, reading, the clients' handling of what they read,
+ * and all socket writes for a link happen on the loop that owns it. Other
+ * threads hand work to a loop through execute(...).
+ */
+final class ClientEventLoop implements Runnable
+{
+  //Class variables *************************************************
+
+  /**
+   * The size of the buffer each loop reads into.
+   */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  //Instance variables **********************************************
+
+  /**
+   * The selector watching this loop's links.
+   */
+  private final Selector selector;
+
+  /**
+   * Work queued by other threads, run on the next pass of the loop.
+   */
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+  /**
+   * The buffer shared by every link of this loop for socket reads.
+   */
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+  /**
+   * The thread running the loop.
+   */
+  private final Thread thread;
+
+  /**
+   * Set when the loop is to stop.
+   */
+  private volatile boolean stopped;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a loop. It does not run until start() is called.
+   *
+   * @param name The name of the loop's thread.
+   * @exception IOException If the selector cannot be opened.
+   */
+  ClientEventLoop(String name) throws IOException
+  {
+    selector = Selector.open();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts the loop's thread.
+   */
+  void start()
+  {
+    thread.start();
+  }
+
+  /**
+   * @return true if the calling thread is this loop's thread.
+   */
+  boolean inLoop()
+  {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Runs a task on this loop's thread.
+   *
+   * @param task The work to run.
+   */
+  void execute(Runnable task)
+  {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Hands a link whose socket is connecting to this loop.
+   *
+   * @param link The link.
+   * @param channel Its socket, in non-blocking mode.
+   */
+  void register(NioServerLink link, SocketChannel channel)
+  {
+    execute(() -> link.registered(selector, channel));
+  }
+
+  /**
+   * Stops the loop once its current pass and the tasks already queued are
+   * done, and closes its selector. The links are left to be closed by
+   * their clients, before stopping.
+   */
+  void stop()
+  {
+    stopped = true;
+    selector.wakeup();
+  }
+
+  /**
+   * Waits for socket readiness and dispatches it to the links.
+   */
+  public void run()
+  {
+    while (!stopped)
+    {
+      try
+      {
+        selector.select();
+      }
+      catch (IOException e)
+      {
+        continue;
+      }
+      Runnable task;
+      while ((task = tasks.poll()) != null)
+        task.run();
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext())
+      {
+        SelectionKey key = keys.next();
+        keys.remove();
+        NioServerLink link = (NioServerLink)key.attachment();
+        try
+        {
+          if (key.isValid() && key.isConnectable())
+            link.connected(key);
+          if (key.isValid() && key.isReadable())
+            link.read(key, readBuffer);
+          if (key.isValid() && key.isWritable())
+            link.flush();
+        }
+        catch (CancelledKeyException e) {} //Closed by another thread meanwhile
+      }
+    }
+    Runnable task;
+    while ((task = tasks.poll()) != null)
+      task.run(); //The closes asked for before stopping
+    try
+    {
+      selector.close();
+    }
+    catch (IOException e) {}
+  }
+}
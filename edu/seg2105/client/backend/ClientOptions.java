@@ -0,0 +1,167 @@
+package edu.seg2105.client.backend;
+
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLContext;
+
+import edu.seg2105.client.common.WireFormat;
+import edu.seg2105.client.common.WriteBatching;
+
+/**
+ * How a ChatClient connects to the server and behaves once connected.
+ * Each setter returns the options, so that they can be chained:
+ * <pre>
+ * new ChatClient("alice", "localhost", 5555, ui,
+ *   new ClientOptions().setFormat(WireFormat.FRAMED).setReconnect(ReconnectPolicy.DEFAULT));
+ * </pre>
+ * The defaults are those of the original client: the object stream on
+ * AbstractClient's own reader thread, every message written at once, in
+ * plaintext, with no reconnecting and no heartbeat.
+ */
+public final class ClientOptions
+{
+  //Instance variables **********************************************
+
+  /**
+   * The factory for the thread reading from the server, or null.
+   */
+  private ThreadFactory readerThreads;
+
+  /**
+   * The wire format to ask the server for.
+   */
+  private WireFormat format = WireFormat.LEGACY;
+
+  /**
+   * How long messages to the server may be held back.
+   */
+  private WriteBatching batching = WriteBatching.IMMEDIATE;
+
+  /**
+   * The context to connect over TLS with, or null for plaintext.
+   */
+  private SSLContext tls;
+
+  /**
+   * Whether to reconnect when the connection drops, and how patiently.
+   */
+  private ReconnectPolicy reconnect = ReconnectPolicy.NEVER;
+
+  /**
+   * How long the server may be quiet before it is pinged, 0 for no
+   * heartbeat, and how long it then has to answer, in ms.
+   */
+  private long heartbeatIdleMillis;
+  private long heartbeatTimeoutMillis = ChatClient.DEFAULT_HEARTBEAT_TIMEOUT_MILLIS;
+
+  //Instance methods ************************************************
+
+  /**
+   * @param readerThreads The factory for the thread reading from the
+   *        server, for instance of virtual threads, or null to use a
+   *        platform thread.
+   * @return These options.
+   */
+  public ClientOptions setReaderThreads(ThreadFactory readerThreads)
+  {
+    this.readerThreads = readerThreads;
+    return this;
+  }
+
+  /**
+   * @param format The wire format to ask the server for. COMPRESSED falls
+   *        back to FRAMED, and FRAMED to LEGACY, if the server does not
+   *        speak it.
+   * @return These options.
+   */
+  public ClientOptions setFormat(WireFormat format)
+  {
+    this.format = format;
+    return this;
+  }
+
+  /**
+   * @param batching How long messages to the server may be held back so
+   *        that several go out in one write.
+   * @return These options.
+   */
+  public ClientOptions setBatching(WriteBatching batching)
+  {
+    this.batching = batching;
+    return this;
+  }
+
+  /**
+   * @param tls The context to connect over TLS with, or null for
+   *        plaintext. Its session cache lets reconnections resume the TLS
+   *        session.
+   * @return These options.
+   */
+  public ClientOptions setTls(SSLContext tls)
+  {
+    this.tls = tls;
+    return this;
+  }
+
+  /**
+   * @param reconnect Whether to reconnect when the connection drops, and
+   *        how patiently.
+   * @return These options.
+   */
+  public ClientOptions setReconnect(ReconnectPolicy reconnect)
+  {
+    this.reconnect = reconnect;
+    return this;
+  }
+
+  /**
+   * @param idleMillis How long the server may be quiet before the client
+   *        pings it, or 0 for no heartbeat.
+   * @param timeoutMillis How long it then has to answer.
+   * @return These options.
+   * @see ChatClient#setHeartbeat(long, long)
+   */
+  public ClientOptions setHeartbeat(long idleMillis, long timeoutMillis)
+  {
+    if (idleMillis < 0 || timeoutMillis < 1)
+      throw new IllegalArgumentException("The idle time cannot be negative, nor the timeout below 1");
+    heartbeatIdleMillis = idleMillis;
+    heartbeatTimeoutMillis = timeoutMillis;
+    return this;
+  }
+
+  public ThreadFactory getReaderThreads()
+  {
+    return readerThreads;
+  }
+
+  public WireFormat getFormat()
+  {
+    return format;
+  }
+
+  public WriteBatching getBatching()
+  {
+    return batching;
+  }
+
+  public SSLContext getTls()
+  {
+    return tls;
+  }
+
+  public ReconnectPolicy getReconnect()
+  {
+    return reconnect;
+  }
+
+  public long getHeartbeatIdleMillis()
+  {
+    return heartbeatIdleMillis;
+  }
+
+  public long getHeartbeatTimeoutMillis()
+  {
+    return heartbeatTimeoutMillis;
+  }
+}
@@ -0,0 +1,421 @@
+package edu.seg2105.client.backend;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * A non-blocking link, served by a ClientEventLoop shared with many other
+ * links, so that a client costs a socket and a few buffers rather than a
+ * reader thread. It speaks the framed protocol only, with or without
+ * compression, so its server must run the nio or virtual transport.
+ * <p>
+ * open() only starts connecting: the hello is exchanged on the loop, which
+ * then calls the client's connectionEstablished() and, for every frame,
+ * handleMessageFromServer(...). Those hooks therefore run on the loop's
+ * thread and must not block. A server that cannot be reached, or does not
+ * answer the hello, is reported through connectionException(...).
+ * <p>
+ * Any thread may send: messages are encoded by the caller, queued, and
+ * written by the loop, so those sent while it is busy go out together.
+ */
+final class NioServerLink extends ServerLink
+{
+  //Class variables *************************************************
+
+  /**
+   * The initial size of the buffer holding a partially received frame.
+   */
+  private static final int INITIAL_INBOUND_SIZE = 256;
+
+  /**
+   * The most queued frames handed to one gathering write.
+   */
+  private static final int MAX_GATHER = 64;
+
+  //Instance variables **********************************************
+
+  /**
+   * The loop serving this link.
+   */
+  private final ClientEventLoop loop;
+
+  /**
+   * The format to ask for when connecting, FRAMED or COMPRESSED.
+   */
+  private final WireFormat preferredFormat;
+
+  /**
+   * The frames waiting to be written. Its monitor also guards the channel
+   * and flushPending.
+   */
+  private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+
+  /**
+   * The socket to the server, null when closed.
+   */
+  private volatile SocketChannel channel;
+
+  /**
+   * The registration of the socket with the loop's selector, set once
+   * registered. Only touched on the loop's thread.
+   */
+  private SelectionKey key;
+
+  /**
+   * Whether a flush has been asked of the loop and not yet run.
+   */
+  private boolean flushPending;
+
+  /**
+   * The bytes received and not yet decoded. Only touched on the loop's
+   * thread.
+   */
+  private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_INBOUND_SIZE);
+
+  /**
+   * The format the server agreed to, null until it has answered the hello.
+   */
+  private volatile WireFormat format;
+
+  /**
+   * Set when the link is being closed on purpose.
+   */
+  private volatile boolean readyToStop;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param client The client this link belongs to.
+   * @param loop The loop to serve the link.
+   * @param preferredFormat FRAMED, or COMPRESSED to ask for compression.
+   */
+  NioServerLink(ChatClient client, ClientEventLoop loop, WireFormat preferredFormat)
+  {
+    super(client);
+    if (preferredFormat != WireFormat.FRAMED && preferredFormat != WireFormat.COMPRESSED)
+      throw new IllegalArgumentException("A shared event loop only speaks the framed protocol");
+    this.loop = loop;
+    this.preferredFormat = preferredFormat;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts connecting to the client's host and port. The connection is
+   * made, or fails, later, on the loop.
+   *
+   * @exception IOException If the host is unknown or the socket cannot be
+   *            opened.
+   */
+  void open() throws IOException
+  {
+    if (isOpen())
+      return;
+    InetSocketAddress address = new InetSocketAddress(client.getHost(), client.getPort());
+    if (address.isUnresolved())
+      throw new UnknownHostException(client.getHost());
+    SocketChannel socket = SocketChannel.open();
+    try
+    {
+      socket.configureBlocking(false);
+      socket.connect(address);
+    }
+    catch (IOException ex)
+    {
+      socket.close();
+      throw ex;
+    }
+    synchronized (outbound)
+    {
+      outbound.clear();
+      outbound.add(ByteBuffer.wrap(Frame.hello(preferredFormat)));
+      flushPending = false;
+      format = null;
+      readyToStop = false;
+      channel = socket;
+    }
+    loop.register(this, socket);
+  }
+
+  void send(Object msg) throws IOException
+  {
+    //Until the server answers, an uncompressed frame is right for either format
+    WireFormat agreed = format;
+    ByteBuffer frame = Frame.fromClientText(String.valueOf(msg))
+      .encode(agreed != null ? agreed : WireFormat.FRAMED);
+    synchronized (outbound)
+    {
+      if (channel == null)
+        throw new SocketException("socket does not exist");
+      outbound.add(frame);
+      if (flushPending)
+        return; //The loop will write it with the others
+      flushPending = true;
+    }
+    if (loop.inLoop())
+      flush();
+    else
+      loop.execute(this::flush);
+  }
+
+  void close() throws IOException
+  {
+    readyToStop = true;
+    try
+    {
+      SocketChannel socket = channel;
+      if (socket != null)
+      {
+        if (loop.inLoop())
+          closeChannel(socket);
+        else
+          loop.execute(() -> closeChannel(socket)); //After the writes already asked for
+      }
+    }
+    finally
+    {
+      client.connectionClosed();
+    }
+  }
+
+  boolean isOpen()
+  {
+    return channel != null && !readyToStop;
+  }
+
+  /**
+   * Called on the loop's thread once the loop takes over a socket.
+   *
+   * @param selector The loop's selector.
+   * @param socket The socket, which may since have been replaced.
+   */
+  void registered(Selector selector, SocketChannel socket)
+  {
+    try
+    {
+      if (socket != channel)
+      {
+        socket.close(); //Closed, and perhaps reopened, before the loop got to it
+        return;
+      }
+      key = socket.register(selector, SelectionKey.OP_CONNECT, this);
+      inbound.clear();
+      if (!socket.isConnectionPending())
+        connected(key); //Connected at once, as a local connection may be
+    }
+    catch (IOException e)
+    {
+      fail(socket, e);
+    }
+  }
+
+  /**
+   * Called on the loop's thread when the connection is made or has failed.
+   * The hello, and whatever was sent meanwhile, then go out.
+   *
+   * @param ready The registration of the socket that is ready.
+   */
+  void connected(SelectionKey ready)
+  {
+    SocketChannel socket = (SocketChannel)ready.channel();
+    try
+    {
+      socket.finishConnect();
+      ready.interestOps(SelectionKey.OP_READ);
+      flush();
+    }
+    catch (IOException e)
+    {
+      fail(socket, e);
+    }
+  }
+
+  /**
+   * Called on the loop's thread when the socket is readable. Once the
+   * server has answered the hello, every complete frame received is
+   * passed to the client's handleMessageFromServer(...).
+   *
+   * @param ready The registration of the socket that is ready.
+   * @param buffer The loop's read buffer.
+   */
+  void read(SelectionKey ready, ByteBuffer buffer)
+  {
+    SocketChannel socket = (SocketChannel)ready.channel();
+    if (socket != channel)
+      return; //Closed; its registration goes with it
+    try
+    {
+      buffer.clear();
+      int read = socket.read(buffer);
+      if (read < 0)
+      {
+        throw format == null ? new EOFException("The server does not speak the framed protocol")
+          : new EOFException("Connection closed by the server");
+      }
+      buffer.flip();
+      if (inbound.remaining() < buffer.remaining())
+      {
+        ByteBuffer larger = ByteBuffer.allocate
+          (Math.max(inbound.capacity() * 2, inbound.position() + buffer.remaining()));
+        inbound.flip();
+        larger.put(inbound);
+        inbound = larger;
+      }
+      inbound.put(buffer);
+      inbound.flip();
+      try
+      {
+        if (format == null && !negotiate())
+          return;
+        Frame frame;
+        while (socket == channel && (frame = Frame.decode(inbound)) != null)
+          client.handleMessageFromServer(frame.toText());
+      }
+      finally
+      {
+        inbound.compact();
+      }
+    }
+    catch (Exception exception)
+    {
+      fail(socket, exception);
+    }
+  }
+
+  /**
+   * Reads the server's answer to the hello once it has all arrived, and
+   * tells the client it is connected.
+   *
+   * @return true if the format is now known.
+   * @exception ProtocolException If the answer is not a hello this link
+   *            asked for.
+   */
+  private boolean negotiate() throws ProtocolException
+  {
+    byte[] reply = new byte[Frame.hello().length];
+    if (inbound.remaining() < reply.length)
+      return false;
+    inbound.get(reply);
+    //The server may agree to frames without compression
+    WireFormat agreed = Frame.formatOf(reply);
+    if (agreed == null || (agreed == WireFormat.COMPRESSED && preferredFormat != WireFormat.COMPRESSED))
+      throw new ProtocolException("Unexpected reply to the protocol hello");
+    format = agreed;
+    client.connectionEstablished();
+    return true;
+  }
+
+  /**
+   * Called on the loop's thread to write as much queued data as the socket
+   * takes, in as few writes as possible. Asks the selector for write
+   * readiness if some is left over.
+   */
+  void flush()
+  {
+    SocketChannel socket;
+    synchronized (outbound)
+    {
+      flushPending = false;
+      socket = channel;
+    }
+    if (socket == null || key == null || key.channel() != socket || !socket.isConnected())
+      return; //connected() flushes once the connection is made
+    try
+    {
+      synchronized (outbound)
+      {
+        boolean full = write(socket);
+        key.interestOps(full ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+          : SelectionKey.OP_READ);
+      }
+    }
+    catch (IOException exception)
+    {
+      fail(socket, exception);
+    }
+  }
+
+  /**
+   * Writes queued frames until they are all written or the socket is
+   * full. Called while holding the queue's monitor.
+   *
+   * @param socket The socket to write to.
+   * @return true if some are left because the socket is full.
+   * @exception IOException If the socket fails.
+   */
+  private boolean write(SocketChannel socket) throws IOException
+  {
+    ByteBuffer[] batch = new ByteBuffer[Math.min(MAX_GATHER, outbound.size())];
+    while (!outbound.isEmpty())
+    {
+      int count = 0;
+      Iterator<ByteBuffer> frames = outbound.iterator();
+      while (count < batch.length && frames.hasNext())
+        batch[count++] = frames.next();
+      socket.write(batch, 0, count);
+      while (!outbound.isEmpty() && !outbound.peek().hasRemaining())
+        outbound.poll();
+      if (batch[count - 1].hasRemaining())
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Closes the socket after an error and calls the client's
+   * connectionException(...) hook, unless the link was being closed.
+   *
+   * @param socket The socket that failed.
+   * @param exception The error that ended the connection.
+   */
+  private void fail(SocketChannel socket, Exception exception)
+  {
+    if (closeChannel(socket) && !readyToStop)
+      client.connectionException(exception);
+  }
+
+  /**
+   * Closes a socket, after writing what can be written of the frames
+   * queued for it if it is still the link's.
+   *
+   * @param socket The socket.
+   * @return true if this call closed the link's socket, false if the link
+   *         had already closed it or moved on to another.
+   */
+  private boolean closeChannel(SocketChannel socket)
+  {
+    boolean current;
+    synchronized (outbound)
+    {
+      current = channel == socket;
+      if (current)
+      {
+        channel = null;
+        try
+        {
+          if (socket.isConnected())
+            write(socket); //Best effort: a #quit sent just before close() should arrive
+        }
+        catch (IOException e) {}
+        outbound.clear();
+      }
+    }
+    try
+    {
+      socket.close();
+    }
+    catch (IOException e) {}
+    return current;
+  }
+}
@@ -0,0 +1,103 @@
+package edu.seg2105.client.backend;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Whether, and how patiently, a ChatClient reconnects when its connection
+ * to the server drops. The wait before each attempt doubles from the first
+ * delay up to the longest, and each wait is jittered between half and all
+ * of its length, so that clients dropped together by a server restart do
+ * not all come back at the same instant.
+ */
+public final class ReconnectPolicy
+{
+  //Class variables *************************************************
+
+  /**
+   * Never reconnects: the client quits when its connection drops.
+   */
+  public static final ReconnectPolicy NEVER = new ReconnectPolicy(0, 0, 0);
+
+  /**
+   * Waits from half a second up to 30 seconds between attempts, and never
+   * gives up.
+   */
+  public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(500, 30000, Integer.MAX_VALUE);
+
+  //Instance variables **********************************************
+
+  /**
+   * The wait before the first attempt, and the longest wait, in ms.
+   */
+  private final long initialDelayMillis;
+  private final long maxDelayMillis;
+
+  /**
+   * How many attempts are made before giving up.
+   */
+  private final int maxAttempts;
+
+  //Constructors ****************************************************
+
+  private ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, int maxAttempts)
+  {
+    this.initialDelayMillis = initialDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.maxAttempts = maxAttempts;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return true if the client reconnects at all.
+   */
+  public boolean isEnabled()
+  {
+    return maxAttempts > 0;
+  }
+
+  /**
+   * @return How many attempts are made before giving up.
+   */
+  public int getMaxAttempts()
+  {
+    return maxAttempts;
+  }
+
+  /**
+   * Returns how long to wait before an attempt.
+   *
+   * @param attempt The attempt, from 0.
+   * @return The wait in milliseconds, jittered.
+   */
+  public long delayMillis(int attempt)
+  {
+    long delay = initialDelayMillis << Math.min(attempt, 30);
+    if (delay > maxDelayMillis || delay <= 0)
+      delay = maxDelayMillis;
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+
+  public String toString()
+  {
+    return isEnabled() ? "reconnect after " + initialDelayMillis + " to " + maxDelayMillis + " ms"
+      + (maxAttempts == Integer.MAX_VALUE ? "" : ", " + maxAttempts + " attempts") : "never reconnect";
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns a policy.
+   *
+   * @param initialDelayMillis The wait before the first attempt.
+   * @param maxDelayMillis The longest wait between attempts.
+   * @param maxAttempts How many attempts are made before giving up.
+   * @return The policy.
+   */
+  public static ReconnectPolicy backoff(long initialDelayMillis, long maxDelayMillis, int maxAttempts)
+  {
+    if (initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis || maxAttempts < 1)
+      throw new IllegalArgumentException("The delays and attempts must be positive");
+    return new ReconnectPolicy(initialDelayMillis, maxDelayMillis, maxAttempts);
+  }
+}
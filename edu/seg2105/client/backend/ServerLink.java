@@ -0,0 +1,58 @@
+package edu.seg2105.client.backend;
+
+import java.io.IOException;
+
+/**
+ * A connection to the server that a ChatClient can use in place of the one
+ * built into OCSF's AbstractClient. A link calls the client's
+ * connectionEstablished(), handleMessageFromServer(...), connectionClosed()
+ * and connectionException(...) hooks just as AbstractClient does.
+ */
+abstract class ServerLink
+{
+  //Instance variables **********************************************
+
+  /**
+   * The client this link belongs to. It also holds the host and port.
+   */
+  final ChatClient client;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param client The client this link belongs to.
+   */
+  ServerLink(ChatClient client)
+  {
+    this.client = client;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Connects to the client's current host and port.
+   *
+   * @exception IOException If the connection cannot be made.
+   */
+  abstract void open() throws IOException;
+
+  /**
+   * Sends a message to the server.
+   *
+   * @param msg The message to send.
+   * @exception IOException If the link is closed or the write fails.
+   */
+  abstract void send(Object msg) throws IOException;
+
+  /**
+   * Closes the connection and calls the client's connectionClosed() hook.
+   *
+   * @exception IOException If an error occurs while closing.
+   */
+  abstract void close() throws IOException;
+
+  /**
+   * @return true if the link is connected to the server.
+   */
+  abstract boolean isOpen();
+}
@@ -0,0 +1,359 @@
+package edu.seg2105.client.backend;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.SocketFactory;
+
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.client.common.WireFormat;
+import edu.seg2105.client.common.WriteBatching;
+
+/**
+ * A blocking link that speaks OCSF's object stream protocol, like
+ * AbstractClient, but runs its reader on a thread from a ThreadFactory.
+ * With a virtual thread factory the reader costs a few kilobytes instead of
+ * a platform thread stack.
+ * <p>
+ * The link can also ask for the framed protocol when it connects, with or
+ * without compression. If the server does not speak it, the server drops
+ * that first connection and the link connects again, asking for frames
+ * without compression, then with the object stream.
+ * <p>
+ * Under a WriteBatching window, messages are buffered and flushed together
+ * by a single flusher thread shared by all links.
+ * <p>
+ * Sockets come from a SocketFactory, which for TLS is an SSLContext's. The
+ * handshake then runs at the first write, and a reconnection to the same
+ * host and port resumes the session the context has cached.
+ */
+class SocketServerLink extends ServerLink implements Runnable
+{
+  //Class variables *************************************************
+
+  /**
+   * The size of the output buffer when not batching.
+   */
+  private static final int WRITE_BUFFER_SIZE = 8192;
+
+  /**
+   * Flushes the links whose batching window has ended.
+   */
+  private static final ScheduledExecutorService flusher =
+    Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "Server link flusher");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+  //Instance variables **********************************************
+
+  /**
+   * Creates the thread reading from the server.
+   */
+  private final ThreadFactory readerThreads;
+
+  /**
+   * The format to ask for when connecting.
+   */
+  private final WireFormat preferredFormat;
+
+  /**
+   * How long messages may be held back to be written together.
+   */
+  private final WriteBatching batching;
+
+  /**
+   * Creates the sockets to the server, plain or TLS.
+   */
+  private final SocketFactory sockets;
+
+  /**
+   * Whether a flush at the end of the batching window is pending. Only
+   * touched while holding sendLock.
+   */
+  private boolean flushScheduled;
+
+  /**
+   * Serializes writes. A lock rather than a monitor, so that a virtual
+   * thread blocked on the socket does not pin its carrier.
+   */
+  private final ReentrantLock sendLock = new ReentrantLock();
+
+  /**
+   * The socket to the server, null when closed.
+   */
+  private volatile Socket clientSocket;
+
+  /**
+   * The object stream to the server, null when closed or framed.
+   */
+  private volatile ObjectOutputStream output;
+
+  /**
+   * The object stream from the server, null when closed or framed.
+   */
+  private volatile ObjectInputStream input;
+
+  /**
+   * The socket streams when framed, null when closed or legacy.
+   */
+  private volatile OutputStream frameOutput;
+  private volatile DataInputStream frameInput;
+
+  /**
+   * FRAMED, or COMPRESSED if the server agreed to compress, while framed.
+   */
+  private volatile WireFormat frameFormat = WireFormat.FRAMED;
+
+  /**
+   * The thread reading from the server, null when closed.
+   */
+  private volatile Thread clientReader;
+
+  /**
+   * Set when the link is being closed on purpose.
+   */
+  private volatile boolean readyToStop;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param client The client this link belongs to.
+   * @param readerThreads The factory for the thread reading from the server.
+   * @param preferredFormat The format to ask for when connecting.
+   * @param batching How long messages may be held back to be written together.
+   * @param sockets The factory for the sockets to the server.
+   */
+  SocketServerLink(ChatClient client, ThreadFactory readerThreads,
+    WireFormat preferredFormat, WriteBatching batching, SocketFactory sockets)
+  {
+    super(client);
+    this.readerThreads = readerThreads;
+    this.preferredFormat = preferredFormat;
+    this.batching = batching;
+    this.sockets = sockets;
+  }
+
+  //Instance methods ************************************************
+
+  void open() throws IOException
+  {
+    if (isOpen())
+      return;
+    try
+    {
+      boolean framed = false;
+      if (preferredFormat == WireFormat.COMPRESSED)
+        framed = openFramed(WireFormat.COMPRESSED) || openFramed(WireFormat.FRAMED);
+      else if (preferredFormat == WireFormat.FRAMED)
+        framed = openFramed(WireFormat.FRAMED);
+      if (!framed)
+      {
+        clientSocket = sockets.createSocket(client.getHost(), client.getPort());
+        output = new ObjectOutputStream(bufferedOutput(clientSocket));
+        output.flush(); //The server waits for the header
+        input = new ObjectInputStream(clientSocket.getInputStream());
+      }
+    }
+    catch (IOException ex)
+    {
+      closeAll();
+      throw ex;
+    }
+    readyToStop = false;
+    clientReader = readerThreads.newThread(this);
+    clientReader.start();
+  }
+
+  void send(Object msg) throws IOException
+  {
+    sendLock.lock();
+    try
+    {
+      OutputStream frames = frameOutput;
+      ObjectOutputStream out = output;
+      if (frames != null)
+        Frame.fromClientText(String.valueOf(msg)).writeTo(frames, frameFormat);
+      else if (out != null)
+      {
+        out.writeObject(msg);
+        out.reset();
+      }
+      else
+        throw new SocketException("socket does not exist");
+      if (batching.isImmediate())
+        (frames != null ? frames : out).flush();
+      else if (!flushScheduled)
+      {
+        flushScheduled = true;
+        flusher.schedule(this::flushWindow, batching.getMaxDelayNanos(),
+          TimeUnit.NANOSECONDS);
+      }
+    }
+    finally
+    {
+      sendLock.unlock();
+    }
+  }
+
+  void close() throws IOException
+  {
+    readyToStop = true;
+    flushWindow(); //Messages sent just before closing should still arrive
+    try
+    {
+      closeAll();
+    }
+    finally
+    {
+      client.connectionClosed();
+    }
+  }
+
+  /**
+   * @return The format in use, or the preferred one when not connected.
+   */
+  WireFormat getWireFormat()
+  {
+    return frameOutput != null ? frameFormat
+      : output != null ? WireFormat.LEGACY : preferredFormat;
+  }
+
+  boolean isOpen()
+  {
+    Thread reader = clientReader;
+    return reader != null && reader.isAlive();
+  }
+
+  /**
+   * Writes the messages held back by the batching window. A failure is
+   * left for the reader to report, since the connection is then broken.
+   */
+  private void flushWindow()
+  {
+    sendLock.lock();
+    try
+    {
+      flushScheduled = false;
+      OutputStream out = frameOutput != null ? frameOutput : output;
+      if (out != null)
+        out.flush();
+    }
+    catch (IOException e) {}
+    finally
+    {
+      sendLock.unlock();
+    }
+  }
+
+  /**
+   * Returns a buffered stream to a socket, sized for the batching window.
+   *
+   * @param socket The socket to write to.
+   * @return The buffered stream.
+   * @exception IOException If the socket's stream cannot be had.
+   */
+  private OutputStream bufferedOutput(Socket socket) throws IOException
+  {
+    return new BufferedOutputStream(socket.getOutputStream(),
+      Math.max(WRITE_BUFFER_SIZE, batching.getMaxBytes()));
+  }
+
+  /**
+   * Reads messages from the server until the link is closed.
+   */
+  public void run()
+  {
+    client.connectionEstablished();
+    try
+    {
+      while (!readyToStop)
+      {
+        DataInputStream frames = frameInput;
+        ObjectInputStream in = input;
+        if (frames != null)
+          client.handleMessageFromServer(Frame.read(frames).toText());
+        else if (in != null)
+          client.handleMessageFromServer(in.readObject());
+        else
+          break;
+      }
+    }
+    catch (Exception exception)
+    {
+      if (!readyToStop)
+      {
+        closeAll();
+        client.connectionException(exception);
+      }
+    }
+    finally
+    {
+      clientReader = null;
+    }
+  }
+
+  /**
+   * Connects and asks for the framed protocol.
+   *
+   * @param format FRAMED, or COMPRESSED to ask for compression as well.
+   * @return true if the server agreed, false if it closed the connection.
+   * @exception IOException If the connection cannot be made.
+   */
+  private boolean openFramed(WireFormat format) throws IOException
+  {
+    Socket socket = sockets.createSocket(client.getHost(), client.getPort());
+    clientSocket = socket;
+    OutputStream out = bufferedOutput(socket);
+    DataInputStream in = new DataInputStream
+      (new BufferedInputStream(socket.getInputStream()));
+    out.write(Frame.hello(format));
+    out.flush();
+    byte[] reply = new byte[Frame.hello().length];
+    try
+    {
+      in.readFully(reply);
+    }
+    catch (EOFException | SocketException e)
+    {
+      closeAll(); //A legacy server, which rejected the hello
+      return false;
+    }
+    //The server may agree to frames without compression
+    WireFormat agreed = Frame.formatOf(reply);
+    if (agreed == null || (agreed == WireFormat.COMPRESSED && format != WireFormat.COMPRESSED))
+      throw new IOException("Unexpected reply to the protocol hello");
+    frameFormat = agreed;
+    frameInput = in;
+    frameOutput = out;
+    return true;
+  }
+
+  /**
+   * Closes the socket and forgets the streams.
+   */
+  private void closeAll()
+  {
+    Socket socket = clientSocket;
+    clientSocket = null;
+    output = null;
+    input = null;
+    frameOutput = null;
+    frameInput = null;
+    if (socket != null)
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e) {}
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package edu.seg2105.client.common;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The commands understood in some place, such as the server console or
+ * what a client types, found by name. A command is a line starting with #,
+ * its name running to the first white space and its arguments, trimmed,
+ * after that: "#join dev" runs the command "join" with the arguments "dev".
+ * <p>
+ * A line is parsed once and its command found with one hash lookup, and a
+ * line that is not a command is recognised by its first character alone.
+ * Commands can be registered and replaced at any time, from any thread, so
+ * new ones can be added without changing the code that dispatches them.
+ *
+ * @param <C> The context a command runs in, such as the client that sent it.
+ */
+public final class CommandRegistry<C>
+{
+  //Class variables *************************************************
+
+  /**
+   * The character every command starts with.
+   */
+  public static final char PREFIX = '#';
+
+  //Instance variables **********************************************
+
+  /**
+   * The commands, by name.
+   */
+  private final ConcurrentHashMap<String, Command<C>> commands =
+    new ConcurrentHashMap<String, Command<C>>();
+
+  //Instance methods ************************************************
+
+  /**
+   * Registers a command, replacing any of the same name.
+   *
+   * @param name The command's name, without the #.
+   * @param command What the command does.
+   * @return The command replaced, or null.
+   */
+  public Command<C> register(String name, Command<C> command)
+  {
+    if (name.isEmpty() || name.charAt(0) == PREFIX || name.chars().anyMatch(Character::isWhitespace))
+      throw new IllegalArgumentException("Invalid command name: " + name);
+    return commands.put(name, command);
+  }
+
+  /**
+   * Removes a command.
+   *
+   * @param name The command's name, without the #.
+   * @return The command removed, or null if there was none.
+   */
+  public Command<C> unregister(String name)
+  {
+    return commands.remove(name);
+  }
+
+  /**
+   * Returns a command.
+   *
+   * @param name The command's name, without the #.
+   * @return The command, or null if there is none of that name.
+   */
+  public Command<C> lookup(String name)
+  {
+    return commands.get(name);
+  }
+
+  /**
+   * @return The names of the commands, in alphabetical order.
+   */
+  public Set<String> names()
+  {
+    return new TreeSet<String>(commands.keySet());
+  }
+
+  /**
+   * Runs the command a line asks for, if it is registered.
+   *
+   * @param line The line.
+   * @param context What the command runs in.
+   * @return false if the line is not a registered command.
+   * @exception IOException If the command fails to communicate.
+   */
+  public boolean execute(String line, C context) throws IOException
+  {
+    if (!isCommand(line))
+      return false;
+    String name = nameOf(line);
+    Command<C> command = commands.get(name);
+    if (command == null)
+      return false;
+    command.execute(argumentsOf(line, name), context);
+    return true;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * @param line A line.
+   * @return true if the line is a command, registered or not.
+   */
+  public static boolean isCommand(String line)
+  {
+    return !line.isEmpty() && line.charAt(0) == PREFIX;
+  }
+
+  /**
+   * Returns the name of the command in a line.
+   *
+   * @param line A line for which isCommand(...) is true.
+   * @return The name, without the #.
+   */
+  public static String nameOf(String line)
+  {
+    int end = 1;
+    while (end < line.length() && !Character.isWhitespace(line.charAt(end)))
+      end++;
+    return line.substring(1, end);
+  }
+
+  /**
+   * Returns the arguments of the command in a line.
+   *
+   * @param line A line for which isCommand(...) is true.
+   * @param name The command's name, from nameOf(...).
+   * @return The arguments, trimmed, or "" if there are none.
+   */
+  public static String argumentsOf(String line, String name)
+  {
+    return line.substring(1 + name.length()).trim();
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * What a command does.
+   *
+   * @param <C> The context the command runs in.
+   */
+  public interface Command<C>
+  {
+    /**
+     * Runs the command.
+     *
+     * @param args The command's arguments, trimmed, or "" if there are none.
+     * @param context What the command runs in.
+     * @exception IOException If the command fails to communicate.
+     */
+    public abstract void execute(String args, C context) throws IOException;
+  }
+}
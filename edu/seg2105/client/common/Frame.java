@@ -0,0 +1,531 @@
+package edu.seg2105.client.common;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One message of the framed wire protocol: a varint length, an opcode and a
+ * UTF-8 payload. The length counts the opcode and payload bytes.
+ * <p>
+ * A client asks for the protocol by sending the object stream header
+ * followed by the preamble "SCH" and a version byte. A legacy OCSF server
+ * reads the header as usual, fails on the next byte and drops only that
+ * connection, so the client can fall back to the object stream. A server
+ * that speaks frames answers with its object stream header followed by the
+ * same preamble, and both sides switch to frames.
+ * <p>
+ * Frames carry the same Strings the object stream does. The opcode records
+ * what kind of message a String is, so that the "#login " and
+ * "SERVER MSG> " prefixes need not be sent.
+ * <p>
+ * A client that sends version 2 of the hello asks for compression as
+ * well, and a server that agrees answers with version 2. Both sides then
+ * compress the payloads of COMPRESS_THRESHOLD bytes or more with Deflate,
+ * marking the opcode with DEFLATED, if that makes them shorter.
+ */
+public final class Frame
+{
+  //Class variables *************************************************
+
+  /**
+   * A client logging in. The payload is the login id.
+   */
+  public static final byte LOGIN = 1;
+
+  /**
+   * A chat line, from a client or relayed by the server.
+   */
+  public static final byte CHAT = 2;
+
+  /**
+   * A command from a client. The payload is the command without its '#'.
+   */
+  public static final byte COMMAND = 3;
+
+  /**
+   * A message from the server. The payload is the text after "SERVER MSG> ".
+   */
+  public static final byte SERVER_MSG = 4;
+
+  /**
+   * The longest frame accepted, to bound what a peer can make us buffer.
+   */
+  public static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+  /**
+   * Set in the opcode of a frame whose payload is compressed. The payload
+   * is then the varint length of the UTF-8 text followed by the text
+   * compressed with Deflate.
+   */
+  public static final byte DEFLATED = (byte)0x80;
+
+  /**
+   * The shortest payload, in UTF-8 bytes, that is compressed. Most chat
+   * lines are shorter and would gain a few bytes at best.
+   */
+  public static final int COMPRESS_THRESHOLD = 256;
+
+  /**
+   * The Deflate level. Chat text compresses nearly as well at the fastest
+   * level as at the default one, for a fraction of the time.
+   */
+  private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+  /**
+   * The object stream header followed by the framed protocol preamble.
+   */
+  private static final byte[] HELLO =
+    {(byte)0xac, (byte)0xed, 0x00, 0x05, 'S', 'C', 'H', 1};
+
+  /**
+   * The hello's last byte: the version asking for frames, and the one
+   * asking for compressed frames.
+   */
+  private static final byte FRAMED_VERSION = 1;
+  private static final byte COMPRESSED_VERSION = 2;
+
+  /**
+   * The number of object stream header bytes at the start of HELLO.
+   */
+  private static final int HEADER_LENGTH = 4;
+
+  private static final String LOGIN_PREFIX = "#login";
+  private static final String SERVER_PREFIX = "SERVER MSG> ";
+
+  /**
+   * Deflaters and Inflaters not in use. Each holds native memory, so they
+   * are reused rather than made for each frame, and pooled rather than
+   * kept per thread, since there may be a reader thread per client.
+   */
+  private static final ConcurrentLinkedQueue<Deflater> deflaters =
+    new ConcurrentLinkedQueue<Deflater>();
+  private static final ConcurrentLinkedQueue<Inflater> inflaters =
+    new ConcurrentLinkedQueue<Inflater>();
+
+  //Instance variables **********************************************
+
+  /**
+   * What kind of message this is.
+   */
+  public final byte opcode;
+
+  /**
+   * The text of the message.
+   */
+  public final String payload;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param opcode What kind of message this is.
+   * @param payload The text of the message.
+   */
+  public Frame(byte opcode, String payload)
+  {
+    this.opcode = opcode;
+    this.payload = payload;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Returns the String this frame stands for, as it would have been sent
+   * over the object stream.
+   *
+   * @return The message text, with its prefix restored.
+   */
+  public String toText()
+  {
+    switch (opcode)
+    {
+      case LOGIN:
+        return LOGIN_PREFIX + " " + payload;
+      case COMMAND:
+        return "#" + payload;
+      case SERVER_MSG:
+        return SERVER_PREFIX + payload;
+      default:
+        return payload;
+    }
+  }
+
+  /**
+   * Encodes the frame, uncompressed.
+   *
+   * @return A buffer holding the frame, ready to be written.
+   */
+  public ByteBuffer encode()
+  {
+    return encode(WireFormat.FRAMED);
+  }
+
+  /**
+   * Encodes the frame for a peer speaking a format.
+   *
+   * @param format FRAMED, or COMPRESSED to compress a long payload.
+   * @return A buffer holding the frame, ready to be written.
+   */
+  public ByteBuffer encode(WireFormat format)
+  {
+    byte[] text = payload.getBytes(StandardCharsets.UTF_8);
+    if (format == WireFormat.COMPRESSED && text.length >= COMPRESS_THRESHOLD)
+    {
+      ByteBuffer compressed = encodeDeflated(text);
+      if (compressed != null)
+        return compressed;
+    }
+    int length = 1 + text.length;
+    ByteBuffer out = ByteBuffer.allocate(varintSize(length) + length);
+    putVarint(out, length);
+    out.put(opcode);
+    out.put(text);
+    out.flip();
+    return out;
+  }
+
+  /**
+   * Writes the frame to a stream. The stream is not flushed.
+   *
+   * @param out The stream to write to.
+   * @exception IOException If the write fails.
+   */
+  public void writeTo(OutputStream out) throws IOException
+  {
+    writeTo(out, WireFormat.FRAMED);
+  }
+
+  /**
+   * Writes the frame to a stream, for a peer speaking a format. The stream
+   * is not flushed.
+   *
+   * @param out The stream to write to.
+   * @param format FRAMED, or COMPRESSED to compress a long payload.
+   * @exception IOException If the write fails.
+   */
+  public void writeTo(OutputStream out, WireFormat format) throws IOException
+  {
+    ByteBuffer frame = encode(format);
+    out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+  }
+
+  public String toString()
+  {
+    return toText();
+  }
+
+  /**
+   * Encodes the frame with its payload compressed.
+   *
+   * @param text The payload in UTF-8.
+   * @return A buffer holding the frame, or null if compressing did not
+   *         make it shorter.
+   */
+  private ByteBuffer encodeDeflated(byte[] text)
+  {
+    Deflater deflater = deflaters.poll();
+    if (deflater == null)
+      deflater = new Deflater(COMPRESSION_LEVEL);
+    try
+    {
+      deflater.setInput(text);
+      deflater.finish();
+      byte[] compressed = new byte[text.length]; //Longer would not be worth it
+      int size = 0;
+      while (!deflater.finished() && size < compressed.length)
+        size += deflater.deflate(compressed, size, compressed.length - size);
+      int length = 1 + varintSize(text.length) + size;
+      if (!deflater.finished() || length >= 1 + text.length)
+        return null;
+      ByteBuffer out = ByteBuffer.allocate(varintSize(length) + length);
+      putVarint(out, length);
+      out.put((byte)(opcode | DEFLATED));
+      putVarint(out, text.length);
+      out.put(compressed, 0, size);
+      out.flip();
+      return out;
+    }
+    finally
+    {
+      deflater.reset();
+      deflaters.offer(deflater);
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the bytes that open a framed connection, sent by the client
+   * and echoed by the server.
+   *
+   * @return A new array holding the hello.
+   */
+  public static byte[] hello()
+  {
+    return HELLO.clone();
+  }
+
+  /**
+   * Returns the hello that asks for a format.
+   *
+   * @param format FRAMED, or COMPRESSED to ask for compression as well.
+   * @return A new array holding the hello.
+   */
+  public static byte[] hello(WireFormat format)
+  {
+    byte[] hello = HELLO.clone();
+    hello[hello.length - 1] =
+      format == WireFormat.COMPRESSED ? COMPRESSED_VERSION : FRAMED_VERSION;
+    return hello;
+  }
+
+  /**
+   * Tells which format a hello asks for.
+   *
+   * @param hello The bytes received, as long as the hello.
+   * @return FRAMED or COMPRESSED, or null if the bytes are not a hello of
+   *         a version this side speaks.
+   */
+  public static WireFormat formatOf(byte[] hello)
+  {
+    int last = HELLO.length - 1;
+    if (hello.length != HELLO.length
+      || !Arrays.equals(Arrays.copyOf(hello, last), Arrays.copyOf(HELLO, last)))
+      return null;
+    switch (hello[last])
+    {
+      case FRAMED_VERSION:
+        return WireFormat.FRAMED;
+      case COMPRESSED_VERSION:
+        return WireFormat.COMPRESSED;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the preamble that follows the object stream header in the hello.
+   *
+   * @return A new array holding the preamble.
+   */
+  public static byte[] preamble()
+  {
+    return preamble(WireFormat.FRAMED);
+  }
+
+  /**
+   * Returns the preamble that agrees to a format.
+   *
+   * @param format FRAMED, or COMPRESSED to agree to compression as well.
+   * @return A new array holding the preamble.
+   */
+  public static byte[] preamble(WireFormat format)
+  {
+    return Arrays.copyOfRange(hello(format), HEADER_LENGTH, HELLO.length);
+  }
+
+  /**
+   * Returns the frame for a String a client sends to the server.
+   *
+   * @param text The message from the client.
+   * @return The frame carrying it.
+   */
+  public static Frame fromClientText(String text)
+  {
+    if (text.startsWith(LOGIN_PREFIX))
+      return new Frame(LOGIN, text.substring(LOGIN_PREFIX.length()).trim());
+    if (text.startsWith("#"))
+      return new Frame(COMMAND, text.substring(1));
+    return new Frame(CHAT, text);
+  }
+
+  /**
+   * Returns the frame for a String the server sends to a client.
+   *
+   * @param text The message from the server.
+   * @return The frame carrying it.
+   */
+  public static Frame fromServerText(String text)
+  {
+    if (text.startsWith(SERVER_PREFIX))
+      return new Frame(SERVER_MSG, text.substring(SERVER_PREFIX.length()));
+    return new Frame(CHAT, text);
+  }
+
+  /**
+   * Decodes the next frame from a buffer. If the buffer does not hold a
+   * complete frame, its position is left unchanged.
+   *
+   * @param in The bytes received so far, ready to be read.
+   * @return The next frame, or null if more bytes are needed.
+   * @exception ProtocolException If the frame is malformed or too long.
+   */
+  public static Frame decode(ByteBuffer in) throws ProtocolException
+  {
+    int start = in.position();
+    int length = 0;
+    for (int shift = 0; ; shift += 7)
+    {
+      if (!in.hasRemaining())
+      {
+        in.position(start);
+        return null;
+      }
+      byte b = in.get();
+      length |= (b & 0x7f) << shift;
+      if (b >= 0)
+        break;
+      if (shift >= 21)
+        throw new ProtocolException("Frame length too long");
+    }
+    checkLength(length);
+    if (in.remaining() < length)
+    {
+      in.position(start);
+      return null;
+    }
+    byte opcode = in.get();
+    Frame frame;
+    if (in.hasArray())
+    {
+      frame = of(opcode, in.array(), in.arrayOffset() + in.position(), length - 1);
+      in.position(in.position() + length - 1);
+    }
+    else
+    {
+      byte[] bytes = new byte[length - 1];
+      in.get(bytes);
+      frame = of(opcode, bytes, 0, bytes.length);
+    }
+    return frame;
+  }
+
+  /**
+   * Reads the next frame from a stream, blocking until it has arrived.
+   *
+   * @param in The stream to read from.
+   * @return The frame read.
+   * @exception EOFException If the stream ends.
+   * @exception IOException If the read fails or the frame is malformed.
+   */
+  public static Frame read(DataInputStream in) throws IOException
+  {
+    int length = 0;
+    for (int shift = 0; ; shift += 7)
+    {
+      byte b = in.readByte();
+      length |= (b & 0x7f) << shift;
+      if (b >= 0)
+        break;
+      if (shift >= 21)
+        throw new ProtocolException("Frame length too long");
+    }
+    checkLength(length);
+    byte opcode = in.readByte();
+    byte[] payload = new byte[length - 1];
+    in.readFully(payload);
+    return of(opcode, payload, 0, payload.length);
+  }
+
+  /**
+   * Returns the number of bytes the varint form of a length takes.
+   *
+   * @param value The length, not negative.
+   * @return The size of its encoding.
+   */
+  public static int varintSize(int value)
+  {
+    int size = 1;
+    while ((value >>>= 7) != 0)
+      size++;
+    return size;
+  }
+
+  /**
+   * Writes a length as a varint: 7 bits per byte, low bits first, with the
+   * top bit set on every byte but the last.
+   *
+   * @param out The buffer to write to.
+   * @param value The length, not negative.
+   */
+  public static void putVarint(ByteBuffer out, int value)
+  {
+    while ((value & ~0x7f) != 0)
+    {
+      out.put((byte)((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte)value);
+  }
+
+  /**
+   * Makes the frame for the bytes of a payload received, uncompressing it
+   * if it is compressed.
+   *
+   * @param opcode The opcode received.
+   * @param bytes Holds the payload.
+   * @param offset Where the payload starts.
+   * @param length The length of the payload.
+   * @return The frame.
+   * @exception ProtocolException If a compressed payload is malformed.
+   */
+  private static Frame of(byte opcode, byte[] bytes, int offset, int length)
+    throws ProtocolException
+  {
+    if ((opcode & DEFLATED) == 0)
+      return new Frame(opcode, new String(bytes, offset, length, StandardCharsets.UTF_8));
+
+    ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+    int size = 0;
+    for (int shift = 0; ; shift += 7)
+    {
+      if (!in.hasRemaining() || shift > 21)
+        throw new ProtocolException("Malformed compressed payload");
+      byte b = in.get();
+      size |= (b & 0x7f) << shift;
+      if (b >= 0)
+        break;
+    }
+    if (size > MAX_LENGTH)
+      throw new ProtocolException("Compressed payload too long");
+    byte[] text = new byte[size];
+    Inflater inflater = inflaters.poll();
+    if (inflater == null)
+      inflater = new Inflater();
+    try
+    {
+      inflater.setInput(bytes, in.position(), in.remaining());
+      int inflated = 0;
+      while (inflated < size && !inflater.finished() && !inflater.needsInput()
+        && !inflater.needsDictionary())
+        inflated += inflater.inflate(text, inflated, size - inflated);
+      if (inflated != size || !inflater.finished())
+        throw new ProtocolException("Compressed payload of the wrong length");
+    }
+    catch (DataFormatException e)
+    {
+      throw new ProtocolException("Malformed compressed payload");
+    }
+    finally
+    {
+      inflater.reset();
+      inflaters.offer(inflater);
+    }
+    return new Frame((byte)(opcode & ~DEFLATED), new String(text, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Rejects frame lengths that cannot hold an opcode or are too long.
+   */
+  private static void checkLength(int length) throws ProtocolException
+  {
+    if (length < 1 || length > MAX_LENGTH)
+      throw new ProtocolException("Invalid frame length " + length);
+  }
+}
@@ -0,0 +1,206 @@
+package edu.seg2105.client.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs many timeouts on one thread, as a hashed timing wheel: a ring of
+ * slots, each one tick long, that the thread visits in turn, running the
+ * timeouts due in the slot it reaches. A timeout further away than one
+ * turn of the wheel waits in its slot for the turns left.
+ * <p>
+ * Scheduling and cancelling take constant time whatever the number of
+ * timeouts, and thousands of connections, each with a timeout, cost one
+ * thread rather than one each. In exchange a timeout runs up to one tick
+ * late. New timeouts are handed to the wheel's thread through a queue, so
+ * only that thread touches the slots; a cancelled timeout is dropped when
+ * its slot is next visited.
+ * <p>
+ * Timeouts run on the wheel's thread, so they must be short: anything that
+ * may block belongs on another thread.
+ */
+public final class TimerWheel
+{
+  //Class variables *************************************************
+
+  /**
+   * The default length of a tick, and number of slots: 100 ms and 512, so
+   * one turn takes 51.2 s.
+   */
+  public static final long DEFAULT_TICK_MILLIS = 100;
+  public static final int DEFAULT_SLOTS = 512;
+
+  //Instance variables **********************************************
+
+  /**
+   * The length of a tick, in nanoseconds.
+   */
+  private final long tickNanos;
+
+  /**
+   * The slots. Only the wheel's thread touches them.
+   */
+  private final List<ArrayList<Timeout>> slots;
+
+  /**
+   * Timeouts scheduled but not yet put in their slots.
+   */
+  private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+  /**
+   * When the wheel started, by System.nanoTime(). Deadlines are counted
+   * in ticks from then.
+   */
+  private final long start = System.nanoTime();
+
+  /**
+   * The thread turning the wheel.
+   */
+  private final Thread worker;
+
+  /**
+   * Set once the wheel is stopped.
+   */
+  private volatile boolean closed;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a wheel with the default tick and slots, and starts its thread.
+   *
+   * @param name The name of the wheel's thread.
+   */
+  public TimerWheel(String name)
+  {
+    this(name, DEFAULT_TICK_MILLIS, DEFAULT_SLOTS);
+  }
+
+  /**
+   * Creates a wheel and starts its thread, which does not keep the JVM
+   * running.
+   *
+   * @param name The name of the wheel's thread.
+   * @param tickMillis The length of a tick.
+   * @param slots The number of slots, a power of two.
+   */
+  public TimerWheel(String name, long tickMillis, int slots)
+  {
+    if (tickMillis < 1 || slots < 1 || Integer.bitCount(slots) != 1)
+      throw new IllegalArgumentException("The tick must be positive and the slots a power of two");
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.slots = new ArrayList<>(slots);
+    for (int i = 0; i < slots; i++)
+      this.slots.add(new ArrayList<Timeout>());
+    worker = new Thread(this::run, name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Schedules a task.
+   *
+   * @param task What to run, on the wheel's thread.
+   * @param delay How long from now to run it.
+   * @param unit The unit of the delay.
+   * @return The timeout, which can be cancelled.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+  {
+    Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+    if (!closed)
+      added.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * Stops the wheel. Timeouts not yet run never are.
+   */
+  public void close()
+  {
+    closed = true;
+    LockSupport.unpark(worker);
+  }
+
+  /**
+   * Runs on the wheel's thread: waits for each tick, puts new timeouts in
+   * their slots, then runs those due in the slot of the tick.
+   */
+  private void run()
+  {
+    int mask = slots.size() - 1;
+    long tick = 0;
+    while (!closed)
+    {
+      long wait;
+      while ((wait = start + (tick + 1) * tickNanos - System.nanoTime()) > 0 && !closed)
+        LockSupport.parkNanos(this, wait);
+
+      Timeout timeout;
+      while ((timeout = added.poll()) != null)
+      {
+        if (timeout.cancelled)
+          continue;
+        long due = Math.max((timeout.deadline - start) / tickNanos, tick); //Late ones run now
+        timeout.rounds = (due - tick) / slots.size();
+        slots.get((int)(due & mask)).add(timeout);
+      }
+
+      ArrayList<Timeout> slot = slots.get((int)(tick & mask));
+      for (int i = slot.size() - 1; i >= 0; i--)
+      {
+        timeout = slot.get(i);
+        if (!timeout.cancelled && timeout.rounds-- > 0)
+          continue;
+        slot.set(i, slot.get(slot.size() - 1)); //Order within a slot does not matter
+        slot.remove(slot.size() - 1);
+        if (!timeout.cancelled)
+        {
+          try
+          {
+            timeout.task.run();
+          }
+          catch (RuntimeException e) {} //A failed task must not stop the wheel
+        }
+      }
+      tick++;
+    }
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A scheduled task.
+   */
+  public static final class Timeout
+  {
+    private final Runnable task;
+    private final long deadline;
+
+    /**
+     * The turns of the wheel left before the task is due. Only the wheel's
+     * thread uses it.
+     */
+    private long rounds;
+
+    private volatile boolean cancelled;
+
+    private Timeout(Runnable task, long deadline)
+    {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Stops the task from running, if it has not run yet.
+     */
+    public void cancel()
+    {
+      cancelled = true;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package edu.seg2105.client.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that block on client and server sockets. On Java 21
+ * and later these are virtual threads, so an idle connection costs a few
+ * kilobytes of heap instead of a platform thread stack. On older JVMs
+ * platform threads are used instead. The Java 21 API is reached through
+ * reflection so the code still compiles and runs on earlier JDKs.
+ */
+public final class VirtualThreads
+{
+  //Class variables *************************************************
+
+  /**
+   * Thread.ofVirtual(), or null if this JVM has no virtual threads.
+   */
+  private static final Method OF_VIRTUAL = lookupOfVirtual();
+
+  //Constructors ****************************************************
+
+  private VirtualThreads() {}
+
+  //Class methods ***************************************************
+
+  /**
+   * @return true if this JVM can create virtual threads.
+   */
+  public static boolean isAvailable()
+  {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Returns a factory creating virtual threads named prefix0, prefix1 and
+   * so on, or platform threads if virtual threads are not available.
+   *
+   * @param prefix The start of every thread name.
+   * @return The thread factory.
+   */
+  public static ThreadFactory factory(String prefix)
+  {
+    if (OF_VIRTUAL != null)
+    {
+      try
+      {
+        //Look the methods up on the public Thread.Builder interface, since the
+        //builder's own class is not accessible
+        Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+        Object builder = OF_VIRTUAL.invoke(null);
+        builder = builderType.getMethod("name", String.class, long.class)
+          .invoke(builder, prefix, 0L);
+        return (ThreadFactory)builderType.getMethod("factory").invoke(builder);
+      }
+      catch (ReflectiveOperationException | RuntimeException e) {} //Fall through
+    }
+    return platformFactory(prefix);
+  }
+
+  /**
+   * Returns a factory creating platform threads named prefix0, prefix1 and
+   * so on, as OCSF does.
+   *
+   * @param prefix The start of every thread name.
+   * @return The thread factory.
+   */
+  public static ThreadFactory platformFactory(String prefix)
+  {
+    AtomicInteger count = new AtomicInteger();
+    return task -> new Thread(task, prefix + count.getAndIncrement());
+  }
+
+  /**
+   * Finds Thread.ofVirtual() and checks that it works, since a JVM running
+   * virtual threads as a disabled preview feature throws when it is called.
+   */
+  private static Method lookupOfVirtual()
+  {
+    try
+    {
+      Method ofVirtual = Thread.class.getMethod("ofVirtual");
+      ofVirtual.invoke(null);
+      return ofVirtual;
+    }
+    catch (ReflectiveOperationException | RuntimeException e)
+    {
+      return null;
+    }
+  }
+}
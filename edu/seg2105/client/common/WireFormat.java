@@ -0,0 +1,24 @@
+package edu.seg2105.client.common;
+
+/**
+ * The encodings a client and the server can exchange messages in.
+ */
+public enum WireFormat
+{
+  /**
+   * OCSF's format: a Java object stream of serialized Strings.
+   */
+  LEGACY,
+
+  /**
+   * Length-prefixed binary frames, see Frame. Negotiated when the
+   * connection opens; servers that do not know it fall back to LEGACY.
+   */
+  FRAMED,
+
+  /**
+   * FRAMED, with long payloads compressed. Servers that do not know it
+   * fall back to FRAMED, or LEGACY.
+   */
+  COMPRESSED
+}
@@ -0,0 +1,93 @@
+package edu.seg2105.client.common;
+
+/**
+ * How long messages bound for one connection may be held back so that
+ * several go out in a single socket write. Under a window, buffered
+ * messages are written once the oldest has waited the maximum delay or the
+ * maximum number of bytes has built up, whichever comes first. IMMEDIATE
+ * never holds a message back: the writer only combines messages that are
+ * already waiting.
+ */
+public final class WriteBatching
+{
+  //Class variables *************************************************
+
+  /**
+   * Writes every message as soon as possible, for the lowest latency.
+   */
+  public static final WriteBatching IMMEDIATE = new WriteBatching(0, 0);
+
+  /**
+   * A window of 1 ms or 16 KB, which cuts the writes of a burst to a
+   * fraction without a delay anyone chatting would notice.
+   */
+  public static final WriteBatching DEFAULT_WINDOW = new WriteBatching(1000, 16 * 1024);
+
+  //Instance variables **********************************************
+
+  /**
+   * The longest a message may wait, in microseconds.
+   */
+  private final long maxDelayMicros;
+
+  /**
+   * The most bytes held back before writing.
+   */
+  private final int maxBytes;
+
+  //Constructors ****************************************************
+
+  private WriteBatching(long maxDelayMicros, int maxBytes)
+  {
+    this.maxDelayMicros = maxDelayMicros;
+    this.maxBytes = maxBytes;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return true if messages are never held back.
+   */
+  public boolean isImmediate()
+  {
+    return maxDelayMicros == 0;
+  }
+
+  /**
+   * @return The longest a message may wait, in nanoseconds.
+   */
+  public long getMaxDelayNanos()
+  {
+    return maxDelayMicros * 1000;
+  }
+
+  /**
+   * @return The most bytes held back before writing.
+   */
+  public int getMaxBytes()
+  {
+    return maxBytes;
+  }
+
+  public String toString()
+  {
+    return isImmediate() ? "immediate"
+      : "batched (" + maxDelayMicros + " us or " + maxBytes + " bytes)";
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns a batching window.
+   *
+   * @param maxDelayMicros The longest a message may wait, in microseconds.
+   * @param maxBytes The most bytes held back before writing.
+   * @return The window.
+   */
+  public static WriteBatching window(long maxDelayMicros, int maxBytes)
+  {
+    if (maxDelayMicros < 1 || maxBytes < 1)
+      throw new IllegalArgumentException("The window must be positive");
+    return new WriteBatching(maxDelayMicros, maxBytes);
+  }
+}
@@ -6,7 +6,11 @@ package edu.seg2105.client.ui;
 import java.io.*;
 import java.util.Scanner;
 
+import javax.net.ssl.SSLContext;
+
 import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.backend.ClientOptions;
+import edu.seg2105.client.backend.ReconnectPolicy;
 import edu.seg2105.client.common.*;
 
 /**
@@ -51,10 +55,23 @@ public class ClientConsole implements ChatIF
    * @param port The port to connect on.
    */
   public ClientConsole(String loginID, String host, int port) 
+  {
+    this(loginID, host, port, new ClientOptions());
+  }
+  
+  /**
+   * Constructs an instance of the ClientConsole UI.
+   *
+   * @param loginID The login id of the client.
+   * @param host The host to connect to.
+   * @param port The port to connect on.
+   * @param options How to connect to the server.
+   */
+  public ClientConsole(String loginID, String host, int port, ClientOptions options) 
   {
     try 
     {
-      client= new ChatClient(loginID, host, port, this);
+      client= new ChatClient(loginID, host, port, this, options);
       
       
     } 
@@ -112,37 +129,90 @@ public class ClientConsole implements ChatIF
   /**
    * This method is responsible for the creation of the Client UI.
    *
-   * @param args[0] The host to connect to.
+   * @param args[0] The login id.
+   * @param args[1...] Flags: "--host" and "--port" followed by the server
+   *        to connect to, localhost:5555 by default, "--virtual" to read
+   *        from the server on a virtual thread, "--framed" to ask for the
+   *        framed wire protocol, "--compress" to ask for it with long
+   *        messages compressed, "--batch" to write messages sent in quick
+   *        succession together, "--reconnect" to reconnect and resume the
+   *        session if the connection drops, "--heartbeat" to ping a quiet
+   *        server and drop the connection if it does not answer, "--tls" to
+   *        connect over TLS, trusting the certificates of the
+   *        javax.net.ssl.trustStore system property or else the JDK's.
    */
   public static void main(String[] args) 
   {
-	String loginID="";  
-    String host="";
-    int port=0;
-    try {
+    if (args.length == 0 || args[0].startsWith("--")) {
     	//We assume that there is no restriction to what the login id is
-    	loginID=args[0];
-    }catch(ArrayIndexOutOfBoundsException e) {
-    	//quit the client
     	System.out.println("ERROR - No login ID specified.  Connection aborted.");
     	System.exit(0);
     	return;
     }
-    try
-    {	
-      host=args[1];
-      port=Integer.parseInt(args[2]); //Convert it to an int
+    String loginID=args[0];
+    String host="localhost";
+    int port=DEFAULT_PORT;
+    ClientOptions options=new ClientOptions();
+    for (int i=1; i<args.length; i++) {
+    	switch (args[i].toLowerCase()) {
+    		case "--host":
+    			host=value(args, i++);
+    			break;
+    		case "--port":
+    			try {
+    				port=Integer.parseInt(value(args, i++));
+    			}catch(NumberFormatException e) {
+    				System.out.println(args[i]+" is not a port. Using "+DEFAULT_PORT+".");
+    			}
+    			break;
+    		case "--virtual":
+    			options.setReaderThreads(VirtualThreads.factory("Server reader "));
+    			break;
+    		case "--framed":
+    			options.setFormat(WireFormat.FRAMED);
+    			break;
+    		case "--compress":
+    			options.setFormat(WireFormat.COMPRESSED);
+    			break;
+    		case "--batch":
+    			options.setBatching(WriteBatching.DEFAULT_WINDOW);
+    			break;
+    		case "--reconnect":
+    			options.setReconnect(ReconnectPolicy.DEFAULT);
+    			break;
+    		case "--heartbeat":
+    			options.setHeartbeat(ChatClient.DEFAULT_HEARTBEAT_IDLE_MILLIS, ChatClient.DEFAULT_HEARTBEAT_TIMEOUT_MILLIS);
+    			break;
+    		case "--tls":
+    			try {
+    				options.setTls(SSLContext.getDefault());
+    			} catch (java.security.NoSuchAlgorithmException e) {
+    				System.out.println("ERROR - TLS is not available: "+e.getMessage());
+    				System.exit(1);
+    			}
+    			break;
+    		default:
+    			System.out.println("Unknown option "+args[i]+" ignored.");
+    	}
     }
-    catch(ArrayIndexOutOfBoundsException e)
-    {
-      host = "localhost";
-      port=DEFAULT_PORT;
-    }
-    catch(NumberFormatException ne) {
-    	port=DEFAULT_PORT;
-    }
-    ClientConsole chat= new ClientConsole(loginID, host, port);
+    ClientConsole chat= new ClientConsole(loginID, host, port, options);
     chat.accept();  //Wait for console data
   }
+  
+  /**
+   * Returns the value following a flag, quitting if there is none.
+   *
+   * @param args The command line.
+   * @param i The position of the flag.
+   * @return The value.
+   */
+  private static String value(String[] args, int i)
+  {
+    if (i + 1 >= args.length) {
+    	System.out.println("ERROR - "+args[i]+" needs a value.  Connection aborted.");
+    	System.exit(1);
+    }
+    return args[i + 1];
+  }
 }
 //End of ConsoleChat class
@@ -0,0 +1,131 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which clients are in which channel. Every client is in exactly one
+ * channel, the lobby until it joins another, and a message is only routed
+ * to the members of its sender's channel.
+ * <p>
+ * A channel exists while it has members: it is created by the first join
+ * and dropped with its last member, so many small channels cost no more
+ * than their members. Membership changes go through the map's atomic
+ * compute methods, so a channel being emptied and joined at the same time
+ * never loses a member. Routing only reads.
+ */
+final class ChannelIndex
+{
+  //Class variables *************************************************
+
+  /**
+   * The channel clients are in until they join another.
+   */
+  static final String LOBBY = "lobby";
+
+  /**
+   * The key under which each client's channel is saved in its info.
+   */
+  static final String channelKey = "channel";
+
+  //Instance variables **********************************************
+
+  /**
+   * The members of every channel that has any.
+   */
+  private final ConcurrentHashMap<String, Set<ClientConnection>> channels =
+    new ConcurrentHashMap<String, Set<ClientConnection>>();
+
+  //Instance methods ************************************************
+
+  /**
+   * Moves a client to a channel, out of the one it was in.
+   *
+   * @param client The client.
+   * @param channel The channel to join.
+   * @return The channel the client was in, or null if none.
+   */
+  String join(ClientConnection client, String channel)
+  {
+    String previous = leave(client);
+    channels.compute(channel, (name, members) -> {
+      if (members == null)
+        members = ConcurrentHashMap.newKeySet();
+      members.add(client);
+      return members;
+    });
+    client.setInfo(channelKey, channel);
+    return previous;
+  }
+
+  /**
+   * Takes a client out of its channel.
+   *
+   * @param client The client.
+   * @return The channel the client was in, or null if none.
+   */
+  String leave(ClientConnection client)
+  {
+    String channel = channelOf(client);
+    if (channel == null)
+      return null;
+    client.setInfo(channelKey, null);
+    channels.computeIfPresent(channel, (name, members) -> {
+      members.remove(client);
+      return members.isEmpty() ? null : members;
+    });
+    return channel;
+  }
+
+  /**
+   * @param client A client.
+   * @return The client's channel, or null if it is in none.
+   */
+  String channelOf(ClientConnection client)
+  {
+    return (String)client.getInfo(channelKey);
+  }
+
+  /**
+   * Returns the members of a channel. The collection is live: it may
+   * change while being iterated, but iterating never fails.
+   *
+   * @param channel The channel.
+   * @return Its members, empty if the channel does not exist.
+   */
+  Collection<ClientConnection> members(String channel)
+  {
+    Set<ClientConnection> members = channels.get(channel);
+    return members == null ? Collections.<ClientConnection>emptySet() : members;
+  }
+
+  /**
+   * @return The number of channels that have members.
+   */
+  int size()
+  {
+    return channels.size();
+  }
+
+  /**
+   * Returns channels and their member counts, in name order.
+   *
+   * @param limit The most channels to list.
+   * @return The channels, at most limit of them.
+   */
+  Map<String, Integer> list(int limit)
+  {
+    TreeMap<String, Integer> list = new TreeMap<String, Integer>();
+    for (Map.Entry<String, Set<ClientConnection>> channel : channels.entrySet())
+    {
+      list.put(channel.getKey(), channel.getValue().size());
+      if (list.size() > limit)
+        list.pollLastEntry();
+    }
+    return list;
+  }
+}
@@ -0,0 +1,87 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * A connection to a single client as seen by EchoServer, whichever transport
+ * carries it. It mirrors the parts of OCSF's ConnectionToClient that the chat
+ * logic relies on, so the same handlers serve clients accepted by OCSF or by
+ * the non-blocking transport.
+ * <p>
+ * Sending never waits for the client: messages go to a bounded outbound
+ * queue that a writer drains, and the server's OverflowPolicy decides what
+ * happens when a client falls behind.
+ */
+public interface ClientConnection
+{
+  /**
+   * Sends an object to the client.
+   *
+   * @param msg The message to be sent.
+   * @exception IOException If the connection is closed or the write fails.
+   */
+  public abstract void sendToClient(Object msg) throws IOException;
+
+  /**
+   * Sends a message that is being sent to many clients. Transports that
+   * write raw bytes reuse its encoding rather than encoding it again.
+   *
+   * @param msg The message to be sent.
+   * @exception IOException If the connection is closed or the write fails.
+   */
+  public abstract void sendEncoded(EncodedMessage msg) throws IOException;
+
+  /**
+   * Closes the connection. The server's clientDisconnected(...) hook
+   * is called once the connection is closed.
+   *
+   * @exception IOException If an error occurs while closing the socket.
+   */
+  public abstract void close() throws IOException;
+
+  /**
+   * Returns the address of the client.
+   *
+   * @return The client's Internet address.
+   */
+  public abstract InetAddress getInetAddress();
+
+  /**
+   * Saves information about this client, such as its login id.
+   *
+   * @param infoType The key under which the information is saved.
+   * @param info The information to save.
+   */
+  public abstract void setInfo(String infoType, Object info);
+
+  /**
+   * Returns information saved about this client.
+   *
+   * @param infoType The key under which the information was saved.
+   * @return The saved information, or null if there is none.
+   */
+  public abstract Object getInfo(String infoType);
+
+  /**
+   * @return The number of messages waiting to be written to the client.
+   */
+  public abstract int getQueueDepth();
+
+  /**
+   * @return The largest number of messages that have waited at once.
+   */
+  public abstract int getPeakQueueDepth();
+
+  /**
+   * @return The number of messages discarded because the client fell behind.
+   */
+  public abstract long getDroppedMessages();
+
+  /**
+   * @return The wire format the client speaks, or null until it is known.
+   */
+  public abstract WireFormat getWireFormat();
+}
@@ -0,0 +1,821 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.seg2105.client.backend.ReconnectPolicy;
+import edu.seg2105.client.common.VirtualThreads;
+
+/**
+ * One EchoServer's place in a cluster of servers that share their chat,
+ * server messages, private messages and logins, so that clients connected
+ * to different servers talk as if they were on one.
+ * <p>
+ * Each node listens on a cluster port of its own and dials each of its
+ * peers, redialling with backoff when a link drops. A node only writes to
+ * the links it dialled and only reads from those it accepted, so each pair
+ * of peers has one link each way and neither has to decide which to keep.
+ * <p>
+ * A node numbers the messages it originates, per start of the node. A
+ * node receiving a message it has not seen handles it and forwards it to
+ * its other peers; one it has seen, by the SequenceWindow of its origin, is
+ * dropped. Each node thus handles and forwards each message at most once,
+ * whether the peers form a full mesh, where nothing needs forwarding but
+ * each message arrives several times, or a chain.
+ * <p>
+ * Nothing is kept for a peer that is down: messages sent meanwhile never
+ * reach its clients. Logins are announced as they happen and again to
+ * each peer as it links, along with the users the node knows to be on
+ * other nodes, whose logins the peer may have missed while not linked to
+ * anything that passed them on. When the link from a peer drops, its users are
+ * forgotten, and the other nodes are told so that those not linked to it
+ * themselves forget them too.
+ */
+final class ClusterNode
+{
+  //Class variables *************************************************
+
+  /**
+   * The kinds of records on a link. HELLO is exchanged once, as a link
+   * opens; the others are relayed messages. KNOWN is a user the sender
+   * knows to be logged in on another node, sent as a link opens.
+   */
+  private static final byte HELLO = 1;
+  private static final byte CHAT = 2;
+  private static final byte NOTICE = 3;
+  private static final byte PRIVATE = 4;
+  private static final byte LOGIN = 5;
+  private static final byte LOGOUT = 6;
+  private static final byte LEFT = 7;
+  private static final byte KNOWN = 8;
+
+  /**
+   * The largest record accepted from a peer.
+   */
+  private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * How many records may wait for a peer before the oldest are dropped.
+   */
+  private static final int PEER_QUEUE_CAPACITY = 8192;
+
+  /**
+   * How long to wait for a peer to accept a connection, in milliseconds.
+   */
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * How long to wait between attempts to dial a peer.
+   */
+  private static final ReconnectPolicy REDIAL = ReconnectPolicy.backoff(500, 10000, Integer.MAX_VALUE);
+
+  //Instance variables **********************************************
+
+  /**
+   * The server whose clients this node serves.
+   */
+  private final EchoServer server;
+
+  /**
+   * The name of this node, unique in the cluster.
+   */
+  private final String nodeId;
+
+  /**
+   * This start of the node, so that peers tell its messages from those of
+   * an earlier start.
+   */
+  private final long epoch = System.currentTimeMillis();
+
+  /**
+   * The sequence number of the last message this node originated.
+   */
+  private final AtomicLong lastSeq = new AtomicLong();
+
+  /**
+   * The socket accepting links from peers.
+   */
+  private final ServerSocket listener;
+
+  /**
+   * The peers this node dials.
+   */
+  private final List<Peer> peers = new ArrayList<Peer>();
+
+  /**
+   * The link from each peer, by node id, the latest if it dialled twice.
+   */
+  private final ConcurrentHashMap<String, Socket> linksFrom = new ConcurrentHashMap<String, Socket>();
+
+  /**
+   * The messages seen from each node, by node id.
+   */
+  private final ConcurrentHashMap<String, SequenceWindow> windows = new ConcurrentHashMap<String, SequenceWindow>();
+
+  /**
+   * The users logged in on other nodes: by login id, the nodes each is
+   * logged in on, the first by name keeping them. Two nodes only claim a
+   * user at once until the other's claim reaches them; their claims can
+   * reach a third node in either order, and it must not take the loser's
+   * logout for the winner's. Each set is replaced, never changed.
+   */
+  private final ConcurrentHashMap<String, TreeSet<String>> remoteLogins = new ConcurrentHashMap<String, TreeSet<String>>();
+
+  /**
+   * Creates the threads accepting, reading and writing the links.
+   */
+  private final ThreadFactory threads = VirtualThreads.factory("Cluster link ");
+
+  /**
+   * Counts of the messages originated, received new, received again and
+   * forwarded.
+   */
+  private final AtomicLong originated = new AtomicLong();
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong forwarded = new AtomicLong();
+
+  /**
+   * Set once the node has left the cluster.
+   */
+  private volatile boolean closed;
+
+  //Constructors ****************************************************
+
+  /**
+   * Opens the node's cluster port. Nothing is relayed until start().
+   *
+   * @param server The server whose clients this node serves.
+   * @param nodeId The node's name, unique in the cluster.
+   * @param port The port peers dial this node on.
+   * @param peerAddresses The cluster ports of the peers this node dials.
+   * @exception IOException If the port cannot be opened.
+   */
+  ClusterNode(EchoServer server, String nodeId, int port, List<InetSocketAddress> peerAddresses)
+    throws IOException
+  {
+    this.server = server;
+    this.nodeId = nodeId;
+    this.listener = new ServerSocket(port);
+    for (InetSocketAddress address : peerAddresses)
+      peers.add(new Peer(address));
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts accepting links and dialling the peers.
+   */
+  void start()
+  {
+    threads.newThread(this::accept).start();
+    for (Peer peer : peers)
+      threads.newThread(peer).start();
+  }
+
+  /**
+   * Leaves the cluster, closing every link. The other nodes forget this
+   * node's users as their links from it drop.
+   */
+  void close()
+  {
+    closed = true;
+    try
+    {
+      listener.close();
+    }
+    catch (IOException e) {}
+    for (Peer peer : peers)
+      peer.close();
+    for (Socket socket : linksFrom.values())
+      closeQuietly(socket);
+  }
+
+  /**
+   * @return The node's name.
+   */
+  String getNodeId()
+  {
+    return nodeId;
+  }
+
+  /**
+   * Sends a chat or server message to the clients of the other nodes.
+   *
+   * @param channel The channel it is for, or null for every client.
+   * @param text The message.
+   * @param journaled true if it is kept in the journals, as chat is, false
+   *        for notices such as a user joining a channel.
+   */
+  void relayChat(String channel, String text, boolean journaled)
+  {
+    originate(journaled ? CHAT : NOTICE, channel == null ? "" : channel, text);
+  }
+
+  /**
+   * Sends a private message to a user on another node. Only that node
+   * delivers it; the others only forward it.
+   *
+   * @param to The recipient's login id.
+   * @param text The message as the recipient is to receive it.
+   * @return false if the recipient is not known to be on another node.
+   */
+  boolean relayPrivate(String to, String text)
+  {
+    String node = locate(to);
+    if (node == null)
+      return false;
+    originate(PRIVATE, node, to, text);
+    return true;
+  }
+
+  /**
+   * Tells the other nodes that a user has logged in here, so that the id
+   * cannot be used on them.
+   *
+   * @param loginID The user.
+   */
+  void loggedIn(String loginID)
+  {
+    originate(LOGIN, loginID);
+  }
+
+  /**
+   * Tells the other nodes that a user logged in here has gone.
+   *
+   * @param loginID The user.
+   */
+  void loggedOut(String loginID)
+  {
+    originate(LOGOUT, loginID);
+  }
+
+  /**
+   * @param loginID A login id.
+   * @return The node the user is logged in on, or null if none other than
+   *         this one.
+   */
+  String locate(String loginID)
+  {
+    TreeSet<String> nodes = remoteLogins.get(loginID);
+    return nodes == null ? null : nodes.first();
+  }
+
+  /**
+   * @return The users logged in on other nodes, by login id, with their nodes.
+   */
+  Map<String, String> remoteUsers()
+  {
+    TreeMap<String, String> users = new TreeMap<String, String>();
+    for (Map.Entry<String, TreeSet<String>> user : remoteLogins.entrySet())
+      users.put(user.getKey(), user.getValue().first());
+    return users;
+  }
+
+  /**
+   * Describes the node, its links and what it has relayed, for #cluster.
+   *
+   * @return The lines to show.
+   */
+  List<String> status()
+  {
+    List<String> lines = new ArrayList<String>();
+    int linked = 0;
+    for (Peer peer : peers)
+    {
+      if (peer.queue != null)
+        linked++;
+    }
+    lines.add("Node " + nodeId + " on port " + listener.getLocalPort() + ": linked to " + linked
+      + " of " + peers.size() + " peers, linked from " + linksFrom.size() + ", "
+      + remoteLogins.size() + " users on other nodes.");
+    for (Peer peer : peers)
+      lines.add(peer.toString());
+    lines.add("Messages: " + originated.get() + " originated, " + received.get() + " received, "
+      + duplicates.get() + " duplicates dropped, " + forwarded.get() + " forwarded.");
+    return lines;
+  }
+
+  /**
+   * Numbers a message from this node and sends it to every linked peer.
+   *
+   * @param type The kind of record.
+   * @param fields Its fields.
+   */
+  private void originate(byte type, String... fields)
+  {
+    if (closed)
+      return;
+    originated.incrementAndGet();
+    byte[] record = encode(type, nodeId, epoch, lastSeq.incrementAndGet(), fields);
+    for (Peer peer : peers)
+      peer.send(record);
+  }
+
+  /**
+   * Runs on the listener thread: accepts links until the node is closed,
+   * starting a reader for each.
+   */
+  private void accept()
+  {
+    try
+    {
+      while (true)
+      {
+        Socket socket = listener.accept();
+        threads.newThread(() -> read(socket)).start();
+      }
+    }
+    catch (IOException e)
+    {
+      if (!closed)
+        server.getLog().log(LogLevel.ERROR, "The cluster port has failed: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Runs on a link's reader thread: answers the dialling peer's hello,
+   * then handles and forwards each message new to this node until the link
+   * drops, when the users logged in on that peer are forgotten.
+   *
+   * @param socket The accepted link.
+   */
+  private void read(Socket socket)
+  {
+    String from = null;
+    try
+    {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      from = hello(in, out);
+      Socket previous = linksFrom.put(from, socket);
+      if (previous != null)
+        closeQuietly(previous); //The peer redialled before the old link was seen to drop
+      server.getLog().log(LogLevel.INFO, "Cluster node {} has linked to this node.", from);
+      while (true)
+      {
+        byte[] record = readRecord(in);
+        DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = fields.readByte();
+        String origin = readString(fields);
+        long originEpoch = fields.readLong();
+        long seq = fields.readLong();
+        if (origin.equals(nodeId) || !window(origin, originEpoch).accept(originEpoch, seq))
+        {
+          duplicates.incrementAndGet();
+          continue;
+        }
+        received.incrementAndGet();
+        handle(type, origin, fields);
+        forward(record, from, origin);
+      }
+    }
+    catch (IOException e)
+    {
+      if (!closed && from != null)
+        server.getLog().log(LogLevel.WARN, "The link from cluster node {} has dropped: {}", from,
+          e instanceof EOFException ? "closed by the other node" : e.getMessage());
+      else if (!closed)
+        server.getLog().log(LogLevel.WARN, "A cluster link from {} was refused: {}",
+          socket.getInetAddress(), e.getMessage());
+    }
+    finally
+    {
+      closeQuietly(socket);
+      if (from != null && linksFrom.remove(from, socket))
+      {
+        forget(from);
+        originate(LEFT, from);
+      }
+    }
+  }
+
+  /**
+   * Handles a message new to this node.
+   *
+   * @param type The kind of record.
+   * @param origin The node it came from first.
+   * @param fields Its fields.
+   * @exception IOException If the fields are cut short.
+   */
+  private void handle(byte type, String origin, DataInputStream fields) throws IOException
+  {
+    switch (type)
+    {
+      case CHAT:
+      case NOTICE:
+        String channel = readString(fields);
+        server.relayed(channel.isEmpty() ? null : channel, readString(fields), type == CHAT);
+        break;
+      case PRIVATE:
+        if (!readString(fields).equals(nodeId))
+          break; //For a user on another node
+        String to = readString(fields);
+        server.relayedPrivate(to, readString(fields));
+        break;
+      case LOGIN:
+        loggedInOn(readString(fields), origin);
+        break;
+      case KNOWN:
+        String user = readString(fields);
+        String on = readString(fields);
+        if (!on.equals(nodeId))
+          loggedInOn(user, on);
+        break;
+      case LOGOUT:
+        release(readString(fields), origin);
+        break;
+      case LEFT:
+        String node = readString(fields);
+        if (!node.equals(nodeId) && !linksFrom.containsKey(node))
+          forget(node); //Gone, unless still linked here
+        break;
+      default: //From a newer node: passed on all the same
+    }
+  }
+
+  /**
+   * Passes a message on to the peers other than the one it came from and
+   * the one it came from first.
+   *
+   * @param record The message.
+   * @param from The node it came from.
+   * @param origin The node it came from first.
+   */
+  private void forward(byte[] record, String from, String origin)
+  {
+    for (Peer peer : peers)
+    {
+      String id = peer.peerId;
+      if (id != null && !id.equals(from) && !id.equals(origin) && peer.send(record))
+        forwarded.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the window of the messages seen from a node. A node that has
+   * started again is a new epoch, and the users logged in on it before
+   * are forgotten.
+   *
+   * @param origin The node.
+   * @param originEpoch The epoch of a message from it.
+   * @return The window.
+   */
+  private SequenceWindow window(String origin, long originEpoch)
+  {
+    SequenceWindow window = windows.computeIfAbsent(origin, node -> new SequenceWindow(originEpoch));
+    if (originEpoch > window.epoch())
+      forget(origin);
+    return window;
+  }
+
+  /**
+   * Handles a user logging in on another node. A user logged in on two
+   * nodes at once is kept by the node whose name sorts first.
+   *
+   * @param loginID The user.
+   * @param node The node.
+   */
+  private void loggedInOn(String loginID, String node)
+  {
+    if (server.logins.lookup(loginID) == null || node.compareTo(nodeId) < 0)
+    {
+      claim(loginID, node);
+      server.loginTaken(loginID, node);
+    }
+  }
+
+  /**
+   * Records that a user is logged in on another node.
+   *
+   * @param loginID The user.
+   * @param node The node.
+   */
+  private void claim(String loginID, String node)
+  {
+    remoteLogins.compute(loginID, (id, nodes) -> {
+      TreeSet<String> claimed = nodes == null ? new TreeSet<String>() : new TreeSet<String>(nodes);
+      claimed.add(node);
+      return claimed;
+    });
+  }
+
+  /**
+   * Records that a user is no longer logged in on another node.
+   *
+   * @param loginID The user.
+   * @param node The node.
+   */
+  private void release(String loginID, String node)
+  {
+    remoteLogins.computeIfPresent(loginID, (id, nodes) -> {
+      if (!nodes.contains(node))
+        return nodes;
+      TreeSet<String> claimed = new TreeSet<String>(nodes);
+      claimed.remove(node);
+      return claimed.isEmpty() ? null : claimed;
+    });
+  }
+
+  /**
+   * Forgets the users logged in on a node that has gone.
+   *
+   * @param node The node.
+   */
+  private void forget(String node)
+  {
+    for (String loginID : remoteLogins.keySet())
+      release(loginID, node);
+  }
+
+  /**
+   * Exchanges hellos on a new link: each side sends its name and epoch.
+   *
+   * @param in The link's input.
+   * @param out The link's output.
+   * @return The name of the node at the other end.
+   * @exception IOException If the link fails, or the other end is not a
+   *            cluster node or has this node's name.
+   */
+  private String hello(DataInputStream in, DataOutputStream out) throws IOException
+  {
+    writeRecord(out, encode(HELLO, nodeId, epoch, 0));
+    out.flush();
+    DataInputStream fields = new DataInputStream(new ByteArrayInputStream(readRecord(in)));
+    if (fields.readByte() != HELLO)
+      throw new ProtocolException("No hello from the other node");
+    String peerId = readString(fields);
+    if (peerId.equals(nodeId))
+      throw new ProtocolException("The other node is also called " + nodeId);
+    return peerId;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Encodes a record: its kind, the node it comes from first, that node's
+   * epoch and the sequence number there, then its fields.
+   *
+   * @return The record.
+   */
+  private static byte[] encode(byte type, String origin, long epoch, long seq, String... fields)
+  {
+    try
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(type);
+      writeString(out, origin);
+      out.writeLong(epoch);
+      out.writeLong(seq);
+      for (String field : fields)
+        writeString(out, field);
+      return bytes.toByteArray();
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e); //Not from a byte array
+    }
+  }
+
+  /**
+   * Writes a record, preceded by its length.
+   */
+  private static void writeRecord(DataOutputStream out, byte[] record) throws IOException
+  {
+    out.writeInt(record.length);
+    out.write(record);
+  }
+
+  /**
+   * Reads a record written by writeRecord(...).
+   *
+   * @exception IOException If the link fails or the record is too large.
+   */
+  private static byte[] readRecord(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_RECORD_BYTES)
+      throw new ProtocolException("A record of " + length + " bytes");
+    byte[] record = new byte[length];
+    in.readFully(record);
+    return record;
+  }
+
+  /**
+   * Writes a string as its length and UTF-8 bytes, unlike writeUTF(...)
+   * not limited to 64 KB.
+   */
+  private static void writeString(DataOutputStream out, String s) throws IOException
+  {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by writeString(...).
+   */
+  private static String readString(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0 || length > in.available())
+      throw new ProtocolException("A string of " + length + " bytes");
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Closes a socket, ignoring failures.
+   */
+  private static void closeQuietly(Socket socket)
+  {
+    try
+    {
+      socket.close();
+    }
+    catch (IOException e) {}
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A peer this node dials, and writes to. Its thread dials until the
+   * link opens, writes queued messages until it drops, and dials again.
+   */
+  private class Peer implements Runnable
+  {
+    /**
+     * The peer's cluster port.
+     */
+    private final InetSocketAddress address;
+
+    /**
+     * The messages waiting to be written, null while not linked, when
+     * messages for the peer are dropped.
+     */
+    private volatile OutboundQueue<byte[]> queue;
+
+    /**
+     * The peer's name, once a link has opened.
+     */
+    private volatile String peerId;
+
+    /**
+     * The open link, null while dialling.
+     */
+    private volatile Socket socket;
+
+    /**
+     * The attempts made since the link was last open.
+     */
+    private volatile int attempts;
+
+    Peer(InetSocketAddress address)
+    {
+      this.address = address;
+    }
+
+    /**
+     * Queues a message for the peer, if linked.
+     *
+     * @param record The message.
+     * @return true if it was queued.
+     */
+    boolean send(byte[] record)
+    {
+      OutboundQueue<byte[]> current = queue;
+      return current != null && current.offer(record, false);
+    }
+
+    /**
+     * Closes the link and stops dialling.
+     */
+    void close()
+    {
+      OutboundQueue<byte[]> current = queue;
+      if (current != null)
+        current.close();
+      Socket link = socket;
+      if (link != null)
+        closeQuietly(link);
+    }
+
+    public String toString()
+    {
+      OutboundQueue<byte[]> current = queue;
+      String name = address.getHostString() + ":" + address.getPort();
+      if (current == null)
+        return "  " + name + ": not linked, " + attempts + " attempts to dial.";
+      return "  " + name + " (" + peerId + "): linked, " + current.depth() + " queued, "
+        + current.dropped() + " dropped.";
+    }
+
+    /**
+     * Dials the peer, and writes to it, until the node is closed.
+     */
+    public void run()
+    {
+      while (!closed)
+      {
+        try (Socket link = new Socket())
+        {
+          link.connect(address, CONNECT_TIMEOUT_MILLIS);
+          link.setTcpNoDelay(true);
+          link.setKeepAlive(true);
+          socket = link;
+          if (closed)
+            return;
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(link.getOutputStream()));
+          DataInputStream in = new DataInputStream(new BufferedInputStream(link.getInputStream()));
+          peerId = hello(in, out);
+          write(link, in, out);
+        }
+        catch (IOException e)
+        {
+          if (!closed && attempts == 0)
+            server.getLog().log(LogLevel.WARN, "The link to cluster node at {} is down: {}",
+              address, e.getMessage());
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+        finally
+        {
+          socket = null;
+          OutboundQueue<byte[]> current = queue;
+          queue = null;
+          if (current != null)
+            current.close();
+        }
+        try
+        {
+          Thread.sleep(REDIAL.delayMillis(++attempts));
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Writes messages to an open link until it drops. This node's users,
+     * and those it knows on other nodes, are sent first. The peer writes
+     * nothing after its hello, so the link is also read, to see it close at
+     * once rather than at the next write.
+     *
+     * @exception IOException If the link fails.
+     * @exception InterruptedException If the thread is interrupted.
+     */
+    private void write(Socket link, DataInputStream in, DataOutputStream out)
+      throws IOException, InterruptedException
+    {
+      OutboundQueue<byte[]> current = new OutboundQueue<byte[]>(PEER_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+      queue = current;
+      attempts = 0;
+      server.getLog().log(LogLevel.INFO, "Linked to cluster node {} at {}.", peerId, address);
+      threads.newThread(() -> {
+        try
+        {
+          while (in.read() >= 0);
+        }
+        catch (IOException e) {}
+        current.close(); //Wakes the writer, which finds the link closed
+      }).start();
+      for (String loginID : server.logins.loginIDs())
+        current.offer(encode(LOGIN, nodeId, epoch, lastSeq.incrementAndGet(), loginID), false);
+      for (Map.Entry<String, String> user : remoteUsers().entrySet())
+      {
+        if (!user.getValue().equals(peerId))
+          current.offer(encode(KNOWN, nodeId, epoch, lastSeq.incrementAndGet(), user.getKey(),
+            user.getValue()), false);
+      }
+
+      byte[] record = current.take();
+      while (record != null)
+      {
+        writeRecord(out, record);
+        record = current.poll();
+        if (record == null)
+        {
+          out.flush();
+          record = current.take();
+        }
+      }
+      if (!closed)
+        throw new EOFException("Closed by the other node");
+    }
+  }
+}
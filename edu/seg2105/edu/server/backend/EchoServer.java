@@ -5,8 +5,28 @@ package edu.seg2105.edu.server.backend;
 
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLContext;
 
 import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.client.common.CommandRegistry;
+import edu.seg2105.client.common.CommandRegistry.Command;
+import edu.seg2105.client.common.TimerWheel;
+import edu.seg2105.client.common.VirtualThreads;
+import edu.seg2105.client.common.WireFormat;
+import edu.seg2105.client.common.WriteBatching;
 import ocsf.server.*;
 
 /**
@@ -20,6 +40,69 @@ import ocsf.server.*;
  */
 public class EchoServer extends AbstractServer 
 {
+  //Class variables *************************************************
+  
+  /**
+   * The default number of messages a client's outbound queue holds before
+   * the overflow policy applies.
+   */
+  final public static int DEFAULT_OUTBOUND_CAPACITY = 1024;
+  
+  /**
+   * What a channel name may be made of, and how long it may be.
+   */
+  static final String channelNamePattern="[A-Za-z0-9_-]{1,32}";
+  
+  /**
+   * The most channels listed by #channels.
+   */
+  static final int channelListLimit=50;
+  
+  /**
+   * The most messages #history replays, and how many it replays by default.
+   */
+  static final int historyLimit=500;
+  static final int historyDefault=20;
+  
+  /**
+   * The most messages #search returns, the newest that match.
+   */
+  static final int searchLimit=50;
+  
+  /**
+   * The messages a second each user, and each address, may send by default,
+   * and for how many seconds of that rate a burst may run.
+   */
+  final public static double DEFAULT_LOGIN_RATE = 10;
+  final public static double DEFAULT_ADDRESS_RATE = 100;
+  static final int burstSeconds=2;
+  
+  /**
+   * The least time between two notices to a client sending too quickly.
+   */
+  static final long floodNoticeNanos=1000000000L;
+  
+  /**
+   * How long a client whose connection dropped may take up its session
+   * again by default, and the most channel messages replayed when it does.
+   */
+  final public static long DEFAULT_RESUME_SECONDS = 300;
+  static final int resumeReplayLimit=1000;
+  
+  /**
+   * How long a client may be quiet by default before it is pinged, and how
+   * long it then has to answer before it is disconnected.
+   */
+  final public static long DEFAULT_HEARTBEAT_IDLE_SECONDS = 30;
+  final public static long DEFAULT_HEARTBEAT_TIMEOUT_SECONDS = 15;
+  
+  /**
+   * How many threads route clients' messages by default, and how many
+   * deliver what they send.
+   */
+  final public static int DEFAULT_ROUTE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+  final public static int DEFAULT_DELIVERY_THREADS = Runtime.getRuntime().availableProcessors();
+  
   //Instance variables **********************************************	
   /**
     * The interface type variable.  It allows the implementation of 
@@ -28,72 +111,1219 @@ public class EchoServer extends AbstractServer
   ChatIF serverUI;
   
   /**
-    * The type of key that we specified for the login of clients to the server.
-    * Advantage is that it avoids typo mistakes when reusing the methods getInfo
-    * and setInfo from ConnectionToClient. Also, we do not want it to be hard-coded.
-	*/
-  static final String loginKey="loginID";
+    * The type of key that we specified for the login of clients to the server.
+    * Advantage is that it avoids typo mistakes when reusing the methods getInfo
+    * and setInfo from ConnectionToClient. Also, we do not want it to be hard-coded.
+	*/
+  static final String loginKey="loginID";
+  
+  /**
+    * The key under which a client's info holds when it was last told that it
+    * sends too quickly, as System.nanoTime().
+	*/
+  static final String floodNoticeKey="floodNotice";
+  
+  /**
+    * The key under which a client's info holds its ResumableSession, if it
+    * asked for one.
+	*/
+  static final String sessionKey="session";
+  
+  /**
+    * The key under which a client's info holds its Heartbeat.
+	*/
+  static final String heartbeatKey="heartbeat";
+  
+  /**
+    * The key under which a client's info is marked once its disconnect has
+    * been handled, so that what is handled after it cannot register it again.
+	*/
+  static final String goneKey="gone";
+  
+  /**
+    * The engine that accepts clients and carries their messages. The chat logic
+    * below only deals with ClientConnection, so it runs the same on every engine.
+	*/
+  final ServerTransport transport;
+  
+  /**
+    * The bound of each client's outbound queue, and what to do when a client
+    * falls so far behind that its queue fills.
+	*/
+  private volatile int outboundCapacity = DEFAULT_OUTBOUND_CAPACITY;
+  private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+  
+  /**
+    * How long messages to a client may be held back to be written together.
+	*/
+  private volatile WriteBatching writeBatching = WriteBatching.IMMEDIATE;
+  
+  /**
+    * Where the server's certificate and TLS session cache come from, or null
+    * to accept plaintext connections.
+	*/
+  private volatile SSLContext tlsContext;
+  
+  /**
+    * The members of every channel. Chat messages only go to the members of
+    * their sender's channel.
+	*/
+  final ChannelIndex channels = new ChannelIndex();
+  
+  /**
+    * The connection of every logged-in user. A login id is only accepted once.
+	*/
+  final LoginRegistry logins = new LoginRegistry();
+  
+  /**
+    * Where connection events and, at the TRACE level, every message received
+    * are logged, without holding up the thread that handles them.
+	*/
+  private volatile ServerLog log = new ServerLog(LogLevel.TRACE);
+  
+  /**
+    * Where chat messages are kept for #history, or null to keep nothing.
+	*/
+  private volatile MessageJournal journal;
+  
+  /**
+    * Where private messages to users who are not logged in are kept until
+    * they log in, or null to refuse such messages.
+	*/
+  private volatile OfflineInbox inbox;
+  
+  /**
+    * Counts of the messages and bytes carried, and how long each kind of
+    * operation takes, shown by #stats.
+	*/
+  final ServerMetrics metrics = new ServerMetrics();
+  
+  /**
+    * How fast each user, and each address, may send messages, or null for no
+    * limit, and what is done with a client that sends faster. Checked before
+    * each message is handled, so a flood never reaches the other clients.
+	*/
+  private volatile RateLimiter<String> loginLimit = rateLimit(DEFAULT_LOGIN_RATE);
+  private volatile RateLimiter<InetAddress> addressLimit = rateLimit(DEFAULT_ADDRESS_RATE);
+  private volatile FloodAction floodAction = FloodAction.THROTTLE;
+  
+  /**
+    * The sessions clients may take up again after their connection drops.
+	*/
+  final SessionRegistry sessions = new SessionRegistry(DEFAULT_RESUME_SECONDS);
+  
+  /**
+    * The one timer wheel on which every client's Heartbeat is checked, and
+    * the rate limits swept, and the intervals heartbeats are checked
+    * against, 0 when heartbeats are off.
+	*/
+  final TimerWheel heartbeats = new TimerWheel("Heartbeat wheel");
+  volatile long heartbeatIdleNanos = TimeUnit.SECONDS.toNanos(DEFAULT_HEARTBEAT_IDLE_SECONDS);
+  volatile long heartbeatTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_HEARTBEAT_TIMEOUT_SECONDS);
+  
+  /**
+    * The one thread on which clients that stopped answering are
+    * disconnected, off the wheel's thread, and clients closed by pipeline
+    * workers, since closing may wait for a writer.
+	*/
+  private final ExecutorService reaper = Executors.newSingleThreadExecutor(task -> {
+	  Thread thread=new Thread(task, "Reaper");
+	  thread.setDaemon(true);
+	  return thread;
+  });
+  
+  /**
+    * The server's link to the other servers of its cluster, or null when it
+    * runs alone.
+	*/
+  private volatile ClusterNode cluster;
+  
+  /**
+   * The stages clients' messages are handled and delivered on, off the
+   * transport's threads, or null to do both on the thread that read each,
+   * as before the server first listens. The threads the stages are to
+   * have, 0 for none.
+	*/
+  private volatile MessagePipeline pipeline;
+  private int routeThreads = DEFAULT_ROUTE_THREADS;
+  private int deliveryThreads = DEFAULT_DELIVERY_THREADS;
+  private final Object pipelineLock = new Object();
+  
+  /**
+    * The commands clients may send, and those typed at the server console,
+    * found by name. More may be registered while the server runs.
+	*/
+  final CommandRegistry<ClientConnection> clientCommands = new CommandRegistry<ClientConnection>();
+  final CommandRegistry<ChatIF> consoleCommands = new CommandRegistry<ChatIF>();
+  
+  //Constructors ****************************************************
+  
+  /**
+   * Constructs an instance of the echo server running on OCSF's
+   * thread-per-client engine.
+   *
+   * @param port The port number to connect on.
+   * @param serverUI The interface type variable.
+   */
+  public EchoServer(int port, ChatIF serverUI){
+    this(port, serverUI, TransportMode.OCSF);
+  }
+  
+  /**
+   * Constructs an instance of the echo server.
+   *
+   * @param port The port number to connect on.
+   * @param serverUI The interface type variable.
+   * @param mode The engine to run client connections on.
+   */
+  public EchoServer(int port, ChatIF serverUI, TransportMode mode){
+    super(port);
+    this.serverUI = serverUI;
+    switch (mode) {
+    	case NIO:
+    		transport=new NioServerTransport(this, NioServerTransport.DEFAULT_EVENT_LOOPS);
+    		break;
+    	case VIRTUAL:
+    		transport=new ThreadPerClientTransport(this, VirtualThreads.factory("Client "));
+    		break;
+    	default:
+    		transport=new OcsfTransport(this);
+    }
+    registerClientCommands();
+    registerConsoleCommands();
+    heartbeats.schedule(this::sweepRateLimits, RateLimiter.SWEEP_NANOS, TimeUnit.NANOSECONDS);
+  }
+
+  
+  //Instance methods ************************************************
+  
+  /**
+   * Returns the engine carrying client connections. Use it rather than the
+   * OCSF superclass to listen, stop listening or close, since the server may
+   * not be running on OCSF.
+   *
+   * @return The transport of this server.
+   */
+  public ServerTransport getTransport() {
+	  return transport;
+  }
+  
+  /**
+   * Sets how many messages may wait for each client, and what happens to a
+   * client that falls further behind. Applies to clients that connect later.
+   *
+   * @param capacity The most messages queued per client.
+   * @param policy What to do when a client's queue is full.
+   */
+  public void setOutboundQueue(int capacity, OverflowPolicy policy) {
+	  if (capacity < 1)
+		  throw new IllegalArgumentException("The capacity must be positive");
+	  outboundCapacity = capacity;
+	  overflowPolicy = policy;
+  }
+  
+  /**
+   * Sets how long messages to a client may be held back so that several go
+   * out in one socket write. Takes effect at once on the nio and virtual
+   * transports; OCSF writes each message as it is sent.
+   *
+   * @param batching The batching window, or WriteBatching.IMMEDIATE.
+   */
+  public void setWriteBatching(WriteBatching batching) {
+	  writeBatching = batching;
+  }
+  
+  /**
+   * @return How long messages to a client may be held back.
+   */
+  public WriteBatching getWriteBatching() {
+	  return writeBatching;
+  }
+  
+  /**
+   * Has clients connect over TLS, with the certificate of the given context.
+   * Its session cache lets clients that reconnect resume their sessions.
+   * Applies to clients that connect later, so it is best set before
+   * listening. Only the nio and virtual transports support TLS.
+   *
+   * @param context The server's SSLContext, or null for plaintext.
+   */
+  public void setTlsContext(SSLContext context) {
+	  tlsContext = context;
+  }
+  
+  /**
+   * @return The server's SSLContext, or null if clients connect in plaintext.
+   */
+  public SSLContext getTlsContext() {
+	  return tlsContext;
+  }
+  
+  /**
+   * Replaces the server's log, closing the one it had. By default the server
+   * logs to the console at the TRACE level.
+   *
+   * @param log The new log.
+   */
+  public void setLog(ServerLog log) {
+	  ServerLog previous = this.log;
+	  this.log = log;
+	  previous.close();
+  }
+  
+  /**
+   * Sets the journal chat messages are kept in, closing the one the server
+   * had. Without a journal nothing is kept and #history finds nothing.
+   *
+   * @param journal The journal, or null to keep nothing.
+   */
+  public void setJournal(MessageJournal journal) {
+	  MessageJournal previous = this.journal;
+	  this.journal = journal;
+	  if (previous != null)
+		  previous.close();
+  }
+  
+  /**
+   * Sets where private messages to users who are not logged in are kept.
+   * Without one, such messages are refused.
+   *
+   * @param inbox The offline inboxes, or null.
+   */
+  public void setOfflineInbox(OfflineInbox inbox) {
+	  this.inbox = inbox;
+  }
+  
+  /**
+   * Sets how fast clients may send messages, and what is done with those that
+   * send faster. By default each user may send DEFAULT_LOGIN_RATE messages a
+   * second and each address DEFAULT_ADDRESS_RATE, in bursts of twice that,
+   * and faster messages are throttled. Takes effect at once.
+   *
+   * @param perLogin The limit for each logged-in user, or null for none.
+   * @param perAddress The limit for each client address, or null for none.
+   * @param action What to do with a message over either limit.
+   */
+  public void setRateLimits(RateLimiter<String> perLogin, RateLimiter<InetAddress> perAddress,
+    FloodAction action) {
+	  loginLimit = perLogin;
+	  addressLimit = perAddress;
+	  floodAction = action;
+  }
+  
+  /**
+   * Sets how long a client whose connection dropped may take up its session
+   * again with #resume, DEFAULT_RESUME_SECONDS by default.
+   *
+   * @param seconds The window, or 0 to let no session be taken up.
+   */
+  public void setResumeWindow(long seconds) {
+	  if (seconds < 0)
+		  throw new IllegalArgumentException("The window cannot be negative");
+	  sessions.setWindow(seconds);
+  }
+  
+  /**
+   * Sets how long a client may be quiet before the server pings it, and how
+   * long it then has to answer before it is disconnected. Takes effect at
+   * each client's next check.
+   *
+   * @param idleSeconds The quiet time before a ping, or 0 for no heartbeat.
+   * @param timeoutSeconds The time allowed to answer.
+   */
+  public void setHeartbeat(long idleSeconds, long timeoutSeconds) {
+	  if (idleSeconds < 0 || timeoutSeconds < 1)
+		  throw new IllegalArgumentException("The idle time cannot be negative, nor the timeout below 1");
+	  heartbeatTimeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+	  heartbeatIdleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+  }
+  
+  /**
+   * Sets how many threads handle clients' messages and how many deliver the
+   * messages they cause, DEFAULT_ROUTE_THREADS and DEFAULT_DELIVERY_THREADS
+   * by default. The transport's threads then only read and decode. Each
+   * client's messages are still handled in the order it sent them, and the
+   * messages to each client sent in the order they were sent. The threads
+   * are started when the server starts listening, or at once if it already
+   * has. Best set before listening.
+   *
+   * @param routeThreads The threads handling messages, or 0, with
+   *        deliveryThreads 0, to handle and deliver each message on the
+   *        thread that read it.
+   * @param deliveryThreads The threads delivering messages.
+   */
+  public void setPipeline(int routeThreads, int deliveryThreads) {
+	  if ((routeThreads==0)!=(deliveryThreads==0))
+		  throw new IllegalArgumentException("Either both stages have threads or neither does");
+	  MessagePipeline previous;
+	  synchronized (pipelineLock) {
+		  this.routeThreads=routeThreads;
+		  this.deliveryThreads=deliveryThreads;
+		  previous=pipeline;
+		  if (previous!=null || transport.isListening())
+			  pipeline=routeThreads==0 ? null : new MessagePipeline(routeThreads, deliveryThreads);
+	  }
+	  if (previous!=null)
+		  previous.close(); //Finishes what it was given
+  }
+  
+  /**
+   * Joins a cluster of servers that share their chat, server messages,
+   * private messages and logins. This server takes links from its peers on
+   * its own cluster port and dials each of the given peers, and the peers
+   * dial it in turn; messages are forwarded by each server at most once,
+   * so the peers need not all be linked to each other.
+   *
+   * @param nodeId This server's name, unique in the cluster.
+   * @param clusterPort The port the peers dial this server on.
+   * @param peers The cluster ports of the servers to dial.
+   * @exception IOException If the cluster port cannot be opened.
+   */
+  public synchronized void joinCluster(String nodeId, int clusterPort, List<InetSocketAddress> peers)
+    throws IOException {
+	  if (cluster!=null)
+		  throw new IllegalStateException("Already in a cluster as "+cluster.getNodeId());
+	  ClusterNode node=new ClusterNode(this, nodeId, clusterPort, peers);
+	  cluster=node;
+	  node.start();
+  }
+  
+  /**
+   * Leaves the cluster, if the server is in one. Its users are then
+   * forgotten by the other servers, and theirs by this one.
+   */
+  public synchronized void leaveCluster() {
+	  ClusterNode node=cluster;
+	  cluster=null;
+	  if (node!=null)
+		  node.close();
+  }
+  
+  /**
+   * @return The server's log, whose level may be changed at any time.
+   */
+  public ServerLog getLog() {
+	  return log;
+  }
+  
+  /**
+   * @return The server's metrics.
+   */
+  public ServerMetrics getMetrics() {
+	  return metrics;
+  }
+  
+  /**
+   * Returns the commands clients may send, so that more can be registered.
+   * A command's handler runs on the client's route thread, or without a
+   * pipeline on the thread that received it.
+   *
+   * @return The client commands.
+   */
+  public CommandRegistry<ClientConnection> getClientCommands() {
+	  return clientCommands;
+  }
+  
+  /**
+   * Returns the commands that may be typed at the server console, so that
+   * more can be registered.
+   *
+   * @return The console commands.
+   */
+  public CommandRegistry<ChatIF> getConsoleCommands() {
+	  return consoleCommands;
+  }
+  
+  /**
+   * Creates the outbound queue for a new client, as configured.
+   *
+   * @return A new, empty queue.
+   */
+  <E> OutboundQueue<E> newOutboundQueue() {
+	  return new OutboundQueue<E>(outboundCapacity, overflowPolicy);
+  }
+  
+  /**
+   * Implements the OCSF hook by passing the message on to the
+   * transport-independent handler below.
+   *
+   * @param msg The message received from the client.
+   * @param client The connection from which the message originated.
+   */
+  public void handleMessageFromClient
+    (Object msg, ConnectionToClient client)
+  {
+	handleMessageFromClient(msg, ocsfConnection(client));
+  }
+  
+  /**
+   * This method handles any messages received from the client. A command
+   * is run by the handler registered for it in getClientCommands(); any
+   * other line, including an unknown command, is chat for the sender's
+   * channel. With a pipeline, this is done on the client's route thread,
+   * after its earlier messages.
+   *
+   * @param msg The message received from the client.
+   * @param client The connection from which the message originated.
+   */
+  public void handleMessageFromClient
+    (Object msg, ClientConnection client)
+  { 
+	long start=System.nanoTime();
+	metrics.messageIn();
+	Heartbeat heartbeat=(Heartbeat) client.getInfo(heartbeatKey);
+	if (heartbeat!=null)
+		heartbeat.heard(start);
+	MessagePipeline pipeline=this.pipeline;
+	if (pipeline==null)
+		route(msg, client, start);
+	else
+		pipeline.route(client, () -> route(msg, client, start));
+  }
+  
+  /**
+   * Handles a message from a client: runs its command or sends it as chat.
+   *
+   * @param msg The message received from the client.
+   * @param client The connection from which the message originated.
+   * @param start When it was received, as System.nanoTime().
+   */
+  private void route(Object msg, ClientConnection client, long start) {
+	if (client.getInfo(goneKey)!=null)
+		return; //Read as another thread closed the connection, after its disconnect was handled
+	log.log(LogLevel.TRACE, "Message received: {} from {}.", msg, client.getInfo(loginKey));
+	String msgStr=(String) msg;
+	String name=null;
+	Command<ClientConnection> command=null;
+	if (CommandRegistry.isCommand(msgStr)) {
+		name=CommandRegistry.nameOf(msgStr);
+		command=clientCommands.lookup(name);
+	}
+	//Logging in is left out so that a client over its address's limit is still told why
+	if (!"login".equals(name) && !"resume".equals(name) && !withinRateLimits(client)) {
+		metrics.record(ServerMetrics.Operation.REFUSED, start);
+	}
+	else if (command!=null) {
+		try {
+			command.execute(CommandRegistry.argumentsOf(msgStr, name), client);
+		}catch(IOException e) {
+			serverUI.display("An error occured: Could not send message to client");
+		}
+		metrics.recordCommand(name, start);
+	}
+	else {
+		String prefix=(String) client.getInfo(loginKey);
+		String channel=channels.channelOf(client);
+		if (channel==null)
+			channel=ChannelIndex.LOBBY;
+		String text=channel.equals(ChannelIndex.LOBBY) ? prefix+"> "+msg : "["+channel+"] "+prefix+"> "+msg;
+		publish(channel, text);
+		metrics.record(ServerMetrics.Operation.CHAT, start);
+	}
+  }
+  
+  /**
+   * Registers the commands clients may send.
+   */
+  private void registerClientCommands() {
+	  //#login <loginID> identifies the client, once, as it connects
+	  clientCommands.register("login", this::login);
+	  //#session asks for a token to take the session up again should the connection drop
+	  clientCommands.register("session", (args, client) -> {
+		  answersPings(client);
+		  startSession(client);
+	  });
+	  //#resume <loginID> <token> <received> logs in again, replaying what the client missed
+	  clientCommands.register("resume", (args, client) -> {
+		  answersPings(client);
+		  resume(args, client);
+	  });
+	  //#ack <number> says the client received every message of its session up to that number
+	  clientCommands.register("ack", (args, client) -> {
+		  answersPings(client);
+		  acknowledge(args, client);
+	  });
+	  //#ping asks the server to answer "#pong"; #pong answers the server's "#ping". Both only
+	  //show that the client is still there
+	  clientCommands.register("ping", (args, client) -> {
+		  answersPings(client);
+		  client.sendToClient("#pong");
+	  });
+	  clientCommands.register("pong", (args, client) -> answersPings(client));
+	  //#msg <user> <text> sends a private message to one user
+	  clientCommands.register("msg", this::sendPrivateMessage);
+	  //#join <channel> moves the client to a channel, creating it if needed
+	  clientCommands.register("join", this::joinChannel);
+	  //#leave takes the client back to the lobby
+	  clientCommands.register("leave", (args, client) -> leaveChannel(client));
+	  //#channels lists the channels that have members
+	  clientCommands.register("channels", (args, client) -> listChannels(client));
+	  //#history <n> replays the last n messages of the client's channel
+	  clientCommands.register("history", this::sendHistory);
+	  //#search <words> finds the latest messages of the client's channel containing all the words
+	  clientCommands.register("search", this::search);
+  }
+  
+  /**
+   * Logs a client in, unless it is already logged in or the login id is
+   * too short or in use, in which case the client is disconnected.
+   *
+   * @param loginID The login id.
+   * @param client The client logging in.
+   */
+  private void login(String loginID, ClientConnection client) {
+	//Check if the client is already connected to the server
+	if (client.getInfo(loginKey)!=null) {
+		try {
+			client.sendToClient("Error: You are already connected to the server. Terminating the connection.");
+		}catch(IOException e) {
+			serverUI.display("An error occured: Could not send message to client");
+		}
+		try {
+			client.close();
+		}catch(IOException e) {
+			serverUI.display("An error occured: Could not disconnect client");
+		}
+		return;
+	}
+	//The loginID cannot be of length below 3 characters, close the client 
+	//if the condition is not met
+	if (loginID.length()<3) {
+		try {
+			client.sendToClient("Error: Login id should have a minimum length of 3.");
+			client.close(); //Closes the connection to the client
+		}catch(IOException e) {
+			serverUI.display("An error occured: Could not disconnect client");
+		}
+	}
+	//The loginID cannot be in use on another connection, here or on another server of the cluster
+	else if (!logins.register(loginID, client) || !registerInCluster(loginID, client)) {
+		try {
+			client.sendToClient("Error: "+loginID+" is already logged in. Terminating the connection.");
+			client.close();
+		}catch(IOException e) {
+			serverUI.display("An error occured: Could not disconnect client");
+		}
+	}
+	else {
+		client.setInfo(loginKey, loginID);
+		log.log(LogLevel.INFO, "{} has logged on.", loginID);
+		deliverInbox(loginID, client);
+	}
+  }
+  
+  /**
+   * Checks that a user just registered here is not logged in on another
+   * server of the cluster, and tells the other servers it now is here.
+   *
+   * @param loginID The login id.
+   * @param client The connection it was registered for.
+   * @return false if the user is logged in elsewhere, in which case the
+   *         registration is undone.
+   */
+  private boolean registerInCluster(String loginID, ClientConnection client) {
+	  ClusterNode node=cluster;
+	  if (node==null)
+		  return true;
+	  if (node.locate(loginID)!=null) {
+		  logins.unregister(loginID, client);
+		  return false;
+	  }
+	  node.loggedIn(loginID);
+	  return true;
+  }
+  
+  /**
+   * Removes a user's login as their connection goes, and tells the other
+   * servers of the cluster.
+   *
+   * @param client The connection going.
+   */
+  private void unregisterLogin(ClientConnection client) {
+	  String loginID=(String) client.getInfo(loginKey);
+	  ClusterNode node=cluster;
+	  if (logins.unregister(loginID, client) && node!=null)
+		  node.loggedOut(loginID);
+  }
+  
+  /**
+   * Gives a logged-in client a session it can take up again with #resume,
+   * replacing any it had. The client is sent "#session <token>", and the
+   * messages sent through the session are numbered from 1.
+   *
+   * @param client The client asking.
+   */
+  private void startSession(ClientConnection client) {
+	  String loginID=(String) client.getInfo(loginKey);
+	  if (loginID==null) {
+		  sendQuietly(client, "Error: Log in before asking for a session.");
+		  return;
+	  }
+	  ResumableSession previous=(ResumableSession) client.getInfo(sessionKey);
+	  if (previous!=null)
+		  sessions.remove(previous);
+	  ResumableSession session=sessions.open(loginID, outboundCapacity);
+	  try {
+		  session.attach(client, sessions.renew(session, null), -1);
+		  client.setInfo(sessionKey, session);
+	  }catch(IOException e) {
+		  sessions.remove(session);
+	  }
+  }
+  
+  /**
+   * Logs a client in again after its connection dropped. If it presents the
+   * token of a session that has not expired, it goes back to its channel
+   * and is sent what it missed: the messages sent to it before the drop
+   * that it did not receive, then those sent to its channel since, from
+   * the journal. Otherwise it is logged in afresh, with a new session.
+   *
+   * @param args The login id, the token and the number of the last message
+   *        the client received in the session's stream.
+   * @param client The client reconnecting.
+   */
+  private void resume(String args, ClientConnection client) {
+	  String[] parts=args.split("\\s+");
+	  long received=-1;
+	  if (parts.length==3) {
+		  try {
+			  received=Long.parseLong(parts[2]);
+		  }catch(NumberFormatException e) {}
+	  }
+	  if (received<0) {
+		  try {
+			  client.sendToClient("Error: Use #resume <login id> <token> <messages received>.");
+			  client.close();
+		  }catch(IOException e) {
+			  serverUI.display("An error occured: Could not disconnect client");
+		  }
+		  return;
+	  }
+	  String loginID=parts[0];
+	  String token=parts[1];
+	  ResumableSession session=client.getInfo(loginKey)==null ? sessions.lookup(token, loginID) : null;
+	  ClientConnection previous=session==null ? null : session.getConnection();
+	  if (previous!=null) {
+		  //The old connection is dead but not yet found to be: the token proves who is back
+		  parkSession(previous);
+		  previous.setInfo(sessionKey, null);
+		  channels.leave(previous);
+		  unregisterLogin(previous);
+		  try {
+			  previous.close();
+		  }catch(IOException e) {}
+	  }
+	  login(loginID, client);
+	  if (client.getInfo(loginKey)==null)
+		  return; //Refused, and disconnected
+	  if (session==null) {
+		  sendQuietly(client, "Your session could not be resumed. Messages sent while you were away may be missing.");
+		  startSession(client);
+		  return;
+	  }
+	  
+	  String channel=session.getChannel()==null ? ChannelIndex.LOBBY : session.getChannel();
+	  long offset=session.getJournalOffset();
+	  long replayed;
+	  try {
+		  replayed=session.attach(client, sessions.renew(session, token), received);
+		  client.setInfo(sessionKey, session);
+	  }catch(IOException e) {
+		  return; //Dropped again; still parked
+	  }
+	  if (!channel.equals(ChannelIndex.LOBBY))
+		  channels.join(client, channel); //Quietly: nobody was told it had left
+	  log.log(LogLevel.INFO, "{} has resumed their session, {} messages replayed.", loginID, replayed);
+	  try {
+		  MessageJournal journal=this.journal;
+		  if (journal!=null && offset>=0) {
+			  List<String> since=journal.since(channel, offset, resumeReplayLimit);
+			  if (since.size()==resumeReplayLimit)
+				  deliver(client, "Only the last "+resumeReplayLimit+" messages of "+channel+" are replayed.");
+			  deliverAll(client, since);
+		  }
+	  }catch(IOException e) {
+		  log.log(LogLevel.ERROR, "Could not replay the messages {} missed: {}", loginID, e.getMessage());
+	  }
+  }
+  
+  /**
+   * Records how far a client with a session has got in its stream. Clients
+   * acknowledge now and then rather than each message, so the number
+   * covers every message up to it.
+   *
+   * @param args The number of the last message received.
+   * @param client The client acknowledging.
+   */
+  private void acknowledge(String args, ClientConnection client) {
+	  ResumableSession session=(ResumableSession) client.getInfo(sessionKey);
+	  long number=-1;
+	  try {
+		  number=Long.parseLong(args.trim());
+	  }catch(NumberFormatException e) {}
+	  if (session==null)
+		  sendQuietly(client, "Error: Ask for a session before acknowledging messages.");
+	  else if (!session.acknowledge(client, number))
+		  log.log(LogLevel.WARN, "{} acknowledged message {}, which was never sent.", client.getInfo(loginKey), args.trim());
+  }
+  
+  /**
+   * Parks a client's session, if it has one, as its connection goes: it
+   * remembers the client's channel and how far the journal had got.
+   *
+   * @param client The client whose connection is going.
+   */
+  private void parkSession(ClientConnection client) {
+	  ResumableSession session=(ResumableSession) client.getInfo(sessionKey);
+	  if (session==null)
+		  return;
+	  MessageJournal journal=this.journal;
+	  session.park(channels.channelOf(client), journal==null ? -1 : journal.end(), System.nanoTime());
+  }
+  
+  /**
+   * Asks a client that has been quiet whether it is still there. Called by
+   * its Heartbeat.
+   *
+   * @param client The client.
+   */
+  void ping(ClientConnection client) {
+	  try {
+		  client.sendToClient("#ping"); //Not through a session: the client does not count it
+	  }catch(IOException e) {} //The transport reports the broken connection
+  }
+  
+  /**
+   * Has a client's Heartbeat ping it, the client having used a command
+   * only clients that answer pings send.
+   *
+   * @param client The client.
+   */
+  private void answersPings(ClientConnection client) {
+	  Heartbeat heartbeat=(Heartbeat) client.getInfo(heartbeatKey);
+	  if (heartbeat!=null)
+		  heartbeat.answering();
+  }
+  
+  /**
+   * Disconnects a client that stopped answering. Called by its Heartbeat.
+   *
+   * @param client The client.
+   * @param quietNanos How long it has been quiet.
+   */
+  void reap(ClientConnection client, long quietNanos) {
+	  Object who=client.getInfo(loginKey)!=null ? client.getInfo(loginKey) : client.getInetAddress();
+	  log.log(LogLevel.WARN, "{} has not answered for {} s and is being disconnected.", who,
+		  TimeUnit.NANOSECONDS.toSeconds(quietNanos));
+	  metrics.timedOut();
+	  reaper.execute(() -> {
+		  try {
+			  client.close(); //The transport then calls clientDisconnected(...)
+		  }catch(IOException e) {
+			  log.log(LogLevel.ERROR, "Could not disconnect {}: {}", who, e.getMessage());
+		  }
+	  });
+  }
+  
+  /**
+   * @return false on a pipeline worker, which must not wait for room in a
+   *         client's queue or for its writer, since every client of its
+   *         stage would wait with it.
+   */
+  boolean mayWait() {
+	  MessagePipeline pipeline=this.pipeline;
+	  return pipeline==null || !pipeline.inWorker();
+  }
+  
+  /**
+   * Runs a task that may wait on a client, such as closing it once its
+   * writer has sent what is queued: at once, or on the reaper thread when
+   * called from a pipeline worker.
+   *
+   * @param task The task to run.
+   */
+  void runMayWait(Runnable task) {
+	  if (mayWait()) {
+		  task.run();
+		  return;
+	  }
+	  try {
+		  reaper.execute(task);
+	  }catch(RejectedExecutionException e) {
+		  task.run(); //The server is quitting
+	  }
+  }
+  
+  /**
+   * Disconnects a client that has not said which wire format it speaks by
+   * the time a quiet client would have been. Until it has, it is not
+   * reported to clientConnected(...) and has no Heartbeat. Called by the
+   * transports that wait for the client's first bytes.
+   *
+   * @param client The client.
+   * @param negotiated Whether it has said which wire format it speaks.
+   */
+  void expectNegotiation(ClientConnection client, BooleanSupplier negotiated) {
+	  long idle=heartbeatIdleNanos;
+	  if (idle==0)
+		  return;
+	  long nanos=idle+heartbeatTimeoutNanos;
+	  heartbeats.schedule(() -> {
+		  if (!negotiated.getAsBoolean())
+			  reap(client, nanos);
+	  }, nanos, TimeUnit.NANOSECONDS);
+  }
+  
+  /**
+   * Checks a message against its sender's rate limits, by login id and by
+   * address, and deals with a sender over either as the flood action says.
+   *
+   * @param client The sender.
+   * @return true if the message is to be handled.
+   */
+  private boolean withinRateLimits(ClientConnection client) {
+	  RateLimiter<String> perLogin=loginLimit;
+	  RateLimiter<InetAddress> perAddress=addressLimit;
+	  String loginID=(String) client.getInfo(loginKey);
+	  InetAddress address=client.getInetAddress();
+	  long now=System.nanoTime();
+	  if ((perLogin==null || loginID==null || perLogin.tryAcquire(loginID, now))
+		  && (perAddress==null || address==null || perAddress.tryAcquire(address, now)))
+		  return true;
+	  
+	  metrics.overLimit();
+	  Object sender=loginID!=null ? loginID : address;
+	  switch (floodAction) {
+		  case WARN:
+			  noticeFlood(client, sender, "Warning: You are sending messages too quickly.", now);
+			  return true;
+		  case THROTTLE:
+			  noticeFlood(client, sender, "You are sending messages too quickly. Messages are not being sent.", now);
+			  return false;
+		  default:
+			  log.log(LogLevel.WARN, "{} was disconnected for sending messages too quickly.", sender);
+			  try {
+				  client.sendToClient("Error: You are sending messages too quickly. Terminating the connection.");
+				  client.close();
+			  }catch(IOException e) {
+				  serverUI.display("An error occured: Could not disconnect client");
+			  }
+			  return false;
+	  }
+  }
+  
+  /**
+   * Runs on the heartbeat wheel's thread every RateLimiter.SWEEP_NANOS:
+   * drops the rate limits' buckets that have refilled, so that the message
+   * path never has to.
+   */
+  private void sweepRateLimits() {
+	  long now=System.nanoTime();
+	  RateLimiter<String> perLogin=loginLimit;
+	  RateLimiter<InetAddress> perAddress=addressLimit;
+	  if (perLogin!=null)
+		  perLogin.sweep(now);
+	  if (perAddress!=null)
+		  perAddress.sweep(now);
+	  heartbeats.schedule(this::sweepRateLimits, RateLimiter.SWEEP_NANOS, TimeUnit.NANOSECONDS);
+  }
+  
+  /**
+   * Tells a client, and the log, that it is sending too quickly, unless it
+   * was told less than floodNoticeNanos ago. A flood is thus answered with a
+   * trickle of notices rather than one per message.
+   */
+  private void noticeFlood(ClientConnection client, Object sender, String notice, long now) {
+	  Long last=(Long) client.getInfo(floodNoticeKey);
+	  if (last!=null && now-last<floodNoticeNanos)
+		  return;
+	  client.setInfo(floodNoticeKey, now);
+	  log.log(LogLevel.WARN, "{} is sending messages too quickly.", sender);
+	  sendQuietly(client, notice);
+  }
+  
+  /**
+   * Moves a client to a channel and tells the members of both channels.
+   *
+   * @param channel The channel to join.
+   * @param client The client moving.
+   */
+  private void joinChannel(String channel, ClientConnection client) {
+	  if (!channel.matches(channelNamePattern)) {
+		  sendQuietly(client, "Error: A channel name is 1 to 32 letters, digits, - or _.");
+		  return;
+	  }
+	  if (channel.equals(channels.channelOf(client))) {
+		  sendQuietly(client, "You are already in "+channel+".");
+		  return;
+	  }
+	  String loginID=(String) client.getInfo(loginKey);
+	  String previous=channels.join(client, channel);
+	  if (previous!=null)
+		  sendToChannel(previous, loginID+" has left "+previous+".");
+	  sendToChannel(channel, loginID+" has joined "+channel+"."); //Also tells the client it worked
+  }
+  
+  /**
+   * Sends a private message from one user to another, echoing it to the sender.
+   *
+   * @param command What follows #msg: the recipient's login id and the text.
+   * @param client The client sending the message.
+   */
+  private void sendPrivateMessage(String command, ClientConnection client) {
+	  String loginID=(String) client.getInfo(loginKey);
+	  int space=command.indexOf(' ');
+	  if (loginID==null) {
+		  sendQuietly(client, "Error: Log in before sending private messages.");
+		  return;
+	  }
+	  if (space<0) {
+		  sendQuietly(client, "Error: Use #msg <user> <text>.");
+		  return;
+	  }
+	  String to=command.substring(0, space);
+	  String text=loginID+" (to "+to+")> "+command.substring(space+1).trim();
+	  ClientConnection recipient=logins.lookup(to);
+	  ClusterNode node=cluster;
+	  if (recipient==null && node!=null && node.relayPrivate(to, text)) {
+		  sendQuietly(client, text); //The recipient is logged in on another server
+		  return;
+	  }
+	  OfflineInbox inbox=this.inbox;
+	  if (recipient==null && inbox!=null) {
+		  //Kept for the recipient's next login, unless they logged in meanwhile
+		  try {
+			  switch (inbox.store(to, text, logins)) {
+				  case STORED:
+					  sendQuietly(client, to+" is offline. The message will be delivered when "+to+" logs in.");
+					  return;
+				  case ONLINE:
+					  recipient=logins.lookup(to);
+					  break;
+				  default: //Never logged in: refused below
+			  }
+		  }catch(IOException e) {
+			  log.log(LogLevel.ERROR, "Could not keep a message for {}: {}", to, e.getMessage());
+		  }
+	  }
+	  if (recipient==null) {
+		  sendQuietly(client, "Error: "+to+" is not logged in.");
+		  return;
+	  }
+	  sendQuietly(recipient, text);
+	  if (recipient!=client)
+		  sendQuietly(client, text);
+  }
+  
+  /**
+   * Takes a client back to the lobby.
+   *
+   * @param client The client leaving its channel.
+   */
+  private void leaveChannel(ClientConnection client) {
+	  if (ChannelIndex.LOBBY.equals(channels.channelOf(client)))
+		  sendQuietly(client, "You are already in the lobby.");
+	  else
+		  joinChannel(ChannelIndex.LOBBY, client);
+  }
+  
+  /**
+   * Sends a client the channels that have members, with their member counts.
+   *
+   * @param client The client asking.
+   */
+  private void listChannels(ClientConnection client) {
+	  int total=channels.size();
+	  StringBuilder list=new StringBuilder("Channels:");
+	  for (Map.Entry<String, Integer> channel : channels.list(channelListLimit).entrySet())
+		  list.append(' ').append(channel.getKey()).append(" (").append(channel.getValue()).append(')');
+	  if (total>channelListLimit)
+		  list.append(" and ").append(total-channelListLimit).append(" more");
+	  sendQuietly(client, list.toString());
+  }
+  
+  /**
+   * Replays the last messages of a client's channel, and those sent to
+   * everyone, from the journal.
+   *
+   * @param count How many messages to replay, or empty for the default.
+   * @param client The client asking.
+   */
+  private void sendHistory(String count, ClientConnection client) {
+	  int n=historyDefault;
+	  if (!count.isEmpty()) {
+		  try {
+			  n=Integer.parseInt(count);
+		  }catch(NumberFormatException e) {
+			  n=0;
+		  }
+		  if (n<1 || n>historyLimit) {
+			  sendQuietly(client, "Error: Use #history <n>, with n from 1 to "+historyLimit+".");
+			  return;
+		  }
+	  }
+	  MessageJournal journal=this.journal;
+	  if (journal==null) {
+		  sendQuietly(client, "No history is kept on this server.");
+		  return;
+	  }
+	  String channel=channels.channelOf(client);
+	  try {
+		  deliverAll(client, journal.history(channel==null ? ChannelIndex.LOBBY : channel, n));
+	  }catch(IOException e) {
+		  log.log(LogLevel.ERROR, "Could not read the journal: {}", e.getMessage());
+		  sendQuietly(client, "Error: History is unavailable.");
+	  }
+  }
+  
+  /**
+   * Sends a client the latest messages of its channel, and those sent to
+   * everyone, that contain every word asked for, found through the
+   * journal's index.
+   *
+   * @param words The words, in any case.
+   * @param client The client asking.
+   */
+  private void search(String words, ClientConnection client) {
+	  String query=words.trim();
+	  if (query.isEmpty()) {
+		  sendQuietly(client, "Error: Use #search <words>.");
+		  return;
+	  }
+	  MessageJournal journal=this.journal;
+	  if (journal==null) {
+		  sendQuietly(client, "No history is kept on this server.");
+		  return;
+	  }
+	  String channel=channels.channelOf(client);
+	  try {
+		  List<String> found=journal.search(channel==null ? ChannelIndex.LOBBY : channel, query, searchLimit);
+		  if (found.isEmpty()) {
+			  sendQuietly(client, "No messages match "+query+".");
+			  return;
+		  }
+		  sendQuietly(client, "Messages matching "+query+" ("+found.size()+"):");
+		  deliverAll(client, found);
+	  }catch(IOException e) {
+		  log.log(LogLevel.ERROR, "Could not read the journal: {}", e.getMessage());
+		  sendQuietly(client, "Error: Search is unavailable.");
+	  }
+  }
+  
+  /**
+   * Sends a user who has just logged in the private messages kept for
+   * them while they were away, all at once.
+   *
+   * @param loginID The user.
+   * @param client The connection they logged in on.
+   */
+  private void deliverInbox(String loginID, ClientConnection client) {
+	  OfflineInbox inbox=this.inbox;
+	  if (inbox==null)
+		  return;
+	  try {
+		  List<String> messages=inbox.drain(loginID);
+		  if (messages.isEmpty())
+			  return;
+		  sendQuietly(client, "While you were away ("+messages.size()+" messages):");
+		  deliverAll(client, messages);
+	  }catch(IOException e) {
+		  log.log(LogLevel.ERROR, "Could not deliver the inbox of {}: {}", loginID, e.getMessage());
+	  }
+  }
+  
+  /**
+   * Keeps a chat message in the journal, if there is one and the message
+   * is not too long for it.
+   *
+   * @param channel The channel it was sent to, or MessageJournal.EVERYONE.
+   * @param text The message as its recipients received it.
+   */
+  private void record(String channel, String text) {
+	  MessageJournal journal=this.journal;
+	  if (journal!=null && !journal.append(channel, text)) {
+		  if (journal.getFailure()!=null) {
+			  this.journal=null; //Reported once; nothing more is kept
+			  log.log(LogLevel.ERROR, "The journal has stopped: {}", journal.getFailure().getMessage());
+		  }
+		  else if (!MessageJournal.fits(channel, text))
+			  log.log(LogLevel.WARN, "A message of {} characters is too long to keep in the journal.", text.length());
+	  }
+  }
   
-  //Constructors ****************************************************
+  /**
+   * Sends a client a run of messages, such as a history replay. A client
+   * that asked for compression is sent them as one message of several
+   * lines, which is compressed as a whole, where each line on its own would
+   * mostly be too short to be.
+   *
+   * @param client The client.
+   * @param messages The messages, oldest first.
+   * @exception IOException If the messages cannot be sent.
+   */
+  private void deliverAll(ClientConnection client, List<String> messages) throws IOException {
+	  if (messages.size()>1 && client.getWireFormat()==WireFormat.COMPRESSED) {
+		  deliver(client, String.join("\n", messages));
+		  return;
+	  }
+	  for (String text : messages)
+		  deliver(client, text);
+  }
   
   /**
-   * Constructs an instance of the echo server.
+   * Sends a message to one client, through its session if it has one, so
+   * that the message can be replayed should the connection drop. With a
+   * pipeline, a message to a client other than the one whose message is
+   * being handled is left to the client's delivery thread, and a failure
+   * to send it is only reported by the transport.
    *
-   * @param port The port number to connect on.
-   * @param serverUI The interface type variable.
+   * @param client The client.
+   * @param msg The message, which may be an EncodedMessage.
+   * @exception IOException If the message cannot be sent.
    */
-  public EchoServer(int port, ChatIF serverUI){
-    super(port);
-    this.serverUI = serverUI;
+  private void deliver(ClientConnection client, Object msg) throws IOException {
+	  MessagePipeline pipeline=this.pipeline;
+	  if (pipeline==null || pipeline.sendsAtOnce(client)) {
+		  sendNow(client, msg);
+		  return;
+	  }
+	  pipeline.deliver(client, () -> {
+		  try {
+			  sendNow(client, msg);
+		  }catch(IOException e) {} //The transport reports the broken connection
+	  });
   }
-
   
-  //Instance methods ************************************************
+  /**
+   * Sends a message to one client on the calling thread, through its
+   * session if it has one.
+   *
+   * @param client The client.
+   * @param msg The message, which may be an EncodedMessage.
+   * @exception IOException If the message cannot be sent.
+   */
+  private void sendNow(ClientConnection client, Object msg) throws IOException {
+	  ResumableSession session=(ResumableSession) client.getInfo(sessionKey);
+	  if (session!=null)
+		  session.send(client, msg);
+	  else if (msg instanceof EncodedMessage)
+		  client.sendEncoded((EncodedMessage) msg);
+	  else
+		  client.sendToClient(msg);
+  }
   
   /**
-   * This method handles any messages received from the client.
+   * Sends a message to one client, reporting a failure on the server console.
    *
-   * @param msg The message received from the client.
-   * @param client The connection from which the message originated.
+   * @param client The client.
+   * @param msg The message.
    */
-  public void handleMessageFromClient
-    (Object msg, ConnectionToClient client)
-  { 
-	System.out.println("Message received: " + msg + " from " + client.getInfo(loginKey)+".");
-	String msgStr=(String) msg;
-	if (msgStr.startsWith("#login")) {
-		String loginID=msgStr.substring(6).trim();
-		//Check if the client is already connected to the server
-		if (client.getInfo(loginKey)!=null) {
-			try {
-				client.sendToClient("Error: You are already connected to the server. Terminating the connection.");
-			}catch(IOException e) {
-				serverUI.display("An error occured: Could not send message to client");
-			}
-			try {
-				client.close();
-			}catch(IOException e) {
-				serverUI.display("An error occured: Could not disconnect client");
-			}
-			return;
-		}
-		//The loginID cannot be of length below 3 characters, close the client 
-		//if the condition is not met
-		if (loginID.length()<3) {
-			try {
-				client.sendToClient("Error: Login id should have a minimum length of 3.");
-				client.close(); //Closes the connection to the client
-			}catch(IOException e) {
-				serverUI.display("An error occured: Could not disconnect client");
-			}
-		}
-		else
-			client.setInfo(loginKey, loginID);
-		    System.out.println(loginID+" has logged on.");
-	} else {
-		String prefix=(String) client.getInfo(loginKey);
-	    this.sendToAllClients(prefix+"> "+msg);
-	} 
+  private void sendQuietly(ClientConnection client, String msg) {
+	  try {
+		  deliver(client, msg);
+	  }catch(IOException e) {
+		  serverUI.display("An error occured: Could not send message to client");
+	  }
   }
   
   /**
@@ -108,7 +1338,7 @@ public class EchoServer extends AbstractServer
 	    	}
 	    	else {
 	    		serverUI.display(message);
-	    		sendToAllClients("SERVER MSG> "+message); //Does not throw exception but the method it calls does
+	    		publish(null, "SERVER MSG> "+message); //Does not throw exception but the method it calls does
 	    	}		
 	  }catch(Exception e) {
 		  serverUI.display("Could not send message to connected clients.");
@@ -117,73 +1347,295 @@ public class EchoServer extends AbstractServer
   
   /**
    * This method helps the handleMessageFromServerUI(...) method            
-   * Defines what to do if a certain command has been typed
+   * Runs the command registered in getConsoleCommands(), or sends an
+   * unknown command to the clients as a message
    * 
    * @param command The command from the UI.
    */
   public void handleCommand(String command) throws Exception, NumberFormatException, IOException{
-	  if (command.equals("#quit")) {
-		  //#quit causes the server to quit gracefully
-		  quit(); 
-	  }
-	  else if(command.equals("#stop")) {
-		  //#stop causes the server to stop listening for new clients
-		  stopListening();
-	  }
-	  else if(command.equals("#close")) {
-		  //#close causes the server not only to stop listening for new clients, but also to disconnect 
-		  //all existing clients
-		  stopListening(); //Stops listening to clients
-		  try {
-			  close(); //Disconnects all existing clients //throws IOException
-		  }catch(IOException e) {
-			  serverUI.display("An error occured: Could not disconnect all existing clients. Try again.");
-		  }		  
-	  }
-	  else if(command.startsWith("#setport")) {
-		  //#setport <port> calls the setPort method in the server: only allowed if the server is closed
-		  if (!isListening() && getNumberOfClients()==0) {
-			  //If the server is not listening and has no connected clients, meaning that it is closed
-			  String newPort=command.substring(8);
-			  newPort=newPort.trim();
-			  int port;
+	  long start=System.nanoTime();
+	  try {
+		  if (!consoleCommands.execute(command, serverUI)) {
+			  serverUI.display("Not a command.");
+			  serverUI.display(command);
 			  try {
-				  port=Integer.parseInt(newPort); //throws NumberFormatException
-				  setPort(port);
-				  serverUI.display("You set the new port to be: "+port);
-			  }catch(NumberFormatException ne) {
-				 serverUI.display
-				 (newPort+" is not an integer. To set a new port, please try again."); 
+		    	  publish(null, "SERVER MSG> "+command);
+			  }catch(Exception e) {
+				  serverUI.display("Could not send message to connected clients.");
 			  }
 		  }
-		  else {
-			  serverUI.display
-			  ("Server is not closed. To set a new port, use the #close command to close the server.");
+	  } finally {
+		  metrics.record(ServerMetrics.Operation.SERVER_COMMAND, start);
+	  }
+  }
+  
+  /**
+   * Registers the commands of the server console.
+   */
+  private void registerConsoleCommands() {
+	  //#quit causes the server to quit gracefully
+	  consoleCommands.register("quit", (args, ui) -> quit());
+	  //#stop causes the server to stop listening for new clients
+	  consoleCommands.register("stop", (args, ui) -> transport.stopListening());
+	  //#close causes the server not only to stop listening for new clients, but also to disconnect 
+	  //all existing clients
+	  consoleCommands.register("close", (args, ui) -> close(ui));
+	  //#setport <port> calls the setPort method in the server: only allowed if the server is closed
+	  consoleCommands.register("setport", this::changePort);
+	  //#start causes the server to start listening for new clients: only valid if the server is stopped
+	  consoleCommands.register("start", (args, ui) -> start(ui));
+	  //#getport displays the current port number
+	  consoleCommands.register("getport", (args, ui) -> ui.display("Current port number is: "+getPort()));
+	  //#queues displays how far behind each client is
+	  consoleCommands.register("queues", (args, ui) -> showQueues(ui));
+	  //#who lists the logged-in users and their channels
+	  consoleCommands.register("who", (args, ui) -> showUsers(ui));
+	  //#kick <user> disconnects a user
+	  consoleCommands.register("kick", this::kick);
+	  //#log <level> changes what is logged: #log info turns off the message trace
+	  consoleCommands.register("log", this::setLogLevel);
+	  //#ratelimit <per user> <per address> [warn|throttle|disconnect] sets the messages a second
+	  //clients may send, or off for no limit
+	  consoleCommands.register("ratelimit", this::changeRateLimits);
+	  //#heartbeat <idle seconds> <timeout seconds> sets when quiet clients are pinged and then
+	  //disconnected, or off for never
+	  consoleCommands.register("heartbeat", this::changeHeartbeat);
+	  //#stats shows the server's metrics; #stats <file> writes them for Prometheus instead
+	  consoleCommands.register("stats", this::showStats);
+	  //#cluster shows the server's links to the other servers of its cluster
+	  consoleCommands.register("cluster", (args, ui) -> showCluster(ui));
+  }
+  
+  /**
+   * Stops listening and disconnects every client, for #close.
+   *
+   * @param ui Where to report.
+   */
+  private void close(ChatIF ui) {
+	  transport.stopListening(); //Stops listening to clients
+	  try {
+		  transport.close(); //Disconnects all existing clients //throws IOException
+	  }catch(IOException e) {
+		  ui.display("An error occured: Could not disconnect all existing clients. Try again.");
+	  }
+  }
+  
+  /**
+   * Sets the port, if the server is closed, for #setport.
+   *
+   * @param newPort The port typed.
+   * @param ui Where to report.
+   */
+  private void changePort(String newPort, ChatIF ui) {
+	  if (!transport.isListening() && transport.getNumberOfClients()==0) {
+		  //If the server is not listening and has no connected clients, meaning that it is closed
+		  int port;
+		  try {
+			  port=Integer.parseInt(newPort); //throws NumberFormatException
+			  setPort(port);
+			  ui.display("You set the new port to be: "+port);
+		  }catch(NumberFormatException ne) {
+			 ui.display
+			 (newPort+" is not an integer. To set a new port, please try again."); 
 		  }
 	  }
-	  else if(command.equals("#start")) {
-		  //#start causes the server to start listening for new clients: only valid if the server is stopped
-		  if (isListening()) {
-			  serverUI.display("Server is already listening for new clients.");
-			  return;
+	  else {
+		  ui.display
+		  ("Server is not closed. To set a new port, use the #close command to close the server.");
+	  }
+  }
+  
+  /**
+   * Starts listening, if the server is stopped, for #start.
+   *
+   * @param ui Where to report.
+   */
+  private void start(ChatIF ui) {
+	  if (transport.isListening()) {
+		  ui.display("Server is already listening for new clients.");
+		  return;
+	  }
+	  try {
+		  transport.listen();
+	  }catch(IOException e) {
+		  ui.display("An error occured while trying to listen for new clients. Please try again.");
+	  }
+  }
+  
+  /**
+   * Shows how far behind each client is, for #queues: what is queued to
+   * it and, if it has a session, how many messages it has not yet
+   * acknowledged receiving. With a pipeline, what waits in each stage is
+   * shown first.
+   *
+   * @param ui Where to show it.
+   */
+  private void showQueues(ChatIF ui) {
+	  MessagePipeline pipeline=this.pipeline;
+	  if (pipeline!=null)
+		  ui.display("Pipeline: "+pipeline.routeDepth()+" messages waiting for "+pipeline.routeThreads()
+			  +" route threads, "+pipeline.deliveryDepth()+" sends for "+pipeline.deliveryThreads()+" delivery threads.");
+	  ui.display("Outbound queues ("+overflowPolicy+", capacity "+outboundCapacity+"):");
+	  for (ClientConnection client : transport.getClientConnections()) {
+		  ResumableSession session=(ResumableSession) client.getInfo(sessionKey);
+		  ui.display(client.getInfo(loginKey)+": "+client.getQueueDepth()+" queued, peak "
+			  +client.getPeakQueueDepth()+", "+client.getDroppedMessages()+" dropped"
+			  +(session==null ? "" : ", "+session.unacknowledged()+" unacknowledged"));
+	  }
+  }
+  
+  /**
+   * Lists the logged-in users with their channels, for #who.
+   *
+   * @param ui Where to list them.
+   */
+  private void showUsers(ChatIF ui) {
+	  ui.display(logins.size()+" users logged in, "+transport.getNumberOfClients()+" clients connected:");
+	  for (String loginID : logins.loginIDs()) {
+		  ClientConnection client=logins.lookup(loginID);
+		  if (client==null)
+			  continue; //Logged off since the list was taken
+		  String channel=channels.channelOf(client);
+		  ui.display(loginID+" in "+(channel==null ? ChannelIndex.LOBBY : channel)
+			  +", from "+client.getInetAddress().getHostAddress());
+	  }
+	  ClusterNode node=cluster;
+	  if (node!=null) {
+		  for (Map.Entry<String, String> user : node.remoteUsers().entrySet())
+			  ui.display(user.getKey()+" on "+user.getValue());
+	  }
+  }
+  
+  /**
+   * Shows the server's links to the rest of its cluster, for #cluster.
+   *
+   * @param ui Where to show them.
+   */
+  private void showCluster(ChatIF ui) {
+	  ClusterNode node=cluster;
+	  if (node==null) {
+		  ui.display("This server is not in a cluster.");
+		  return;
+	  }
+	  for (String line : node.status())
+		  ui.display(line);
+  }
+  
+  /**
+   * Disconnects a user, for #kick.
+   *
+   * @param loginID The user's login id.
+   * @param ui Where to report.
+   */
+  private void kick(String loginID, ChatIF ui) {
+	  if (loginID.isEmpty()) {
+		  ui.display("Use #kick <user>.");
+		  return;
+	  }
+	  ClientConnection client=logins.lookup(loginID);
+	  if (client==null) {
+		  ui.display(loginID+" is not logged in.");
+		  return;
+	  }
+	  try {
+		  client.sendToClient("You have been disconnected by the server."); //Before closing, not queued behind it
+	  }catch(IOException e) {}
+	  ResumableSession session=(ResumableSession) client.getInfo(sessionKey);
+	  if (session!=null) {
+		  client.setInfo(sessionKey, null); //Not to be taken up again
+		  sessions.remove(session);
+	  }
+	  try {
+		  client.close();
+		  ui.display(loginID+" has been disconnected.");
+	  }catch(IOException e) {
+		  ui.display("An error occured: Could not disconnect "+loginID+".");
+	  }
+  }
+  
+  /**
+   * Changes the level of the log, and shows it, for #log.
+   *
+   * @param level The level typed, or "" to only show it.
+   * @param ui Where to report.
+   */
+  private void setLogLevel(String level, ChatIF ui) {
+	  if (!level.isEmpty()) {
+		  try {
+			  log.setLevel(LogLevel.valueOf(level.toUpperCase()));
+		  }catch(IllegalArgumentException e) {
+			  ui.display(level+" is not a log level. Use trace, info, warn, error or off.");
 		  }
+	  }
+	  ui.display("Logging at level "+log.getLevel()+", "+log.getDropped()+" entries dropped.");
+  }
+  
+  /**
+   * Changes the rate limits, and shows them, for #ratelimit.
+   *
+   * @param limits The limits typed, or "" to only show them.
+   * @param ui Where to report.
+   */
+  private void changeRateLimits(String limits, ChatIF ui) {
+	  String[] args=limits.split("\\s+");
+	  if (args.length>=2) {
 		  try {
-			  listen();
-		  }catch(IOException e) {
-				  serverUI.display("An error occured while trying to listen for new clients. Please try again.");
+			  setRateLimits(args[0].equals("off") ? null : EchoServer.<String>rateLimit(Double.parseDouble(args[0])),
+				  args[1].equals("off") ? null : EchoServer.<InetAddress>rateLimit(Double.parseDouble(args[1])),
+				  args.length>2 ? FloodAction.valueOf(args[2].toUpperCase()) : floodAction);
+		  }catch(IllegalArgumentException e) {
+			  ui.display("Use #ratelimit <per user> <per address> [warn|throttle|disconnect],"
+				  +" with positive rates or off.");
 		  }
 	  }
-	  else if(command.equals("#getport")) {
-		  //#getport displays the current port number
-		  serverUI.display("Current port number is: "+getPort());
+	  else if (!args[0].isEmpty()) {
+		  ui.display("Use #ratelimit <per user> <per address> [warn|throttle|disconnect].");
+	  }
+	  ui.display("Rate limits: "+(loginLimit==null ? "none" : loginLimit)+" per user, "
+		  +(addressLimit==null ? "none" : addressLimit)+" per address; "+floodAction+" beyond them.");
+  }
+  
+  /**
+   * Changes the heartbeat, and shows it, for #heartbeat.
+   *
+   * @param intervals The intervals typed, or "" to only show them.
+   * @param ui Where to report.
+   */
+  private void changeHeartbeat(String intervals, ChatIF ui) {
+	  String[] args=intervals.split("\\s+");
+	  try {
+		  if (args[0].equals("off"))
+			  setHeartbeat(0, TimeUnit.NANOSECONDS.toSeconds(heartbeatTimeoutNanos));
+		  else if (args.length==2)
+			  setHeartbeat(Long.parseLong(args[0]), Long.parseLong(args[1]));
+		  else if (!args[0].isEmpty())
+			  ui.display("Use #heartbeat <idle seconds> <timeout seconds>, or #heartbeat off.");
+	  }catch(IllegalArgumentException e) {
+		  ui.display("Use #heartbeat <idle seconds> <timeout seconds>, with a positive timeout.");
+	  }
+	  long idle=TimeUnit.NANOSECONDS.toSeconds(heartbeatIdleNanos);
+	  ui.display(idle==0 ? "Heartbeat off: quiet clients are never disconnected."
+		  : "Heartbeat: quiet clients are pinged after "+idle+" s and disconnected "
+			  +TimeUnit.NANOSECONDS.toSeconds(heartbeatTimeoutNanos)+" s later.");
+  }
+  
+  /**
+   * Shows the server's metrics, or writes them to a file, for #stats.
+   *
+   * @param file The file to write, or "" to show them.
+   * @param ui Where to report.
+   */
+  private void showStats(String file, ChatIF ui) {
+	  if (file.isEmpty()) {
+		  for (String line : metrics.summary(transport.getNumberOfClients(), logins.size()))
+			  ui.display(line);
 	  }
 	  else {
-		  serverUI.display("Not a command.");
-		  serverUI.display(command);
 		  try {
-	    	  sendToAllClients("SERVER MSG> "+command);
-		  }catch(Exception e) {
-			  serverUI.display("Could not send message to connected clients.");
+			  metrics.writePrometheus(Paths.get(file), transport.getNumberOfClients(), logins.size());
+			  ui.display("Metrics written to "+file+".");
+		  }catch(IOException e) {
+			  ui.display("An error occured: Could not write the metrics to "+file+": "+e.getMessage());
 		  }
 	  }
   }
@@ -195,20 +1647,199 @@ public class EchoServer extends AbstractServer
   {
     try
     {
-      close();
+      transport.close();
     }
     catch(IOException e) {}
+    MessagePipeline pipeline = this.pipeline;
+    if (pipeline != null)
+      pipeline.close(); //Handles and delivers what was already read
+    heartbeats.close();
+    reaper.shutdown();
+    leaveCluster();
+    setJournal(null); //Flushes what is still queued
+    log.close(); //Writes out what is still queued
     System.exit(0);
   }
     
+  /**
+   * This method overrides the one in the superclass.  Sends a message
+   * to every connected client, whichever transport carries them, and in a
+   * cluster to the clients of the other servers.  The message is encoded
+   * once per wire format and the bytes are shared by every recipient.
+   *
+   * @param msg The message to send.
+   */
+  @Override
+  public void sendToAllClients(Object msg)
+  {
+    sendToLocalClients(msg);
+    relay(null, msg, false);
+  }
+  
+  /**
+   * Sends a message to the members of one channel only, on every server
+   * of the cluster. Like sendToAllClients(...), the message is encoded
+   * once per wire format.
+   *
+   * @param channel The channel.
+   * @param msg The message to send.
+   */
+  public void sendToChannel(String channel, Object msg)
+  {
+    sendToLocalChannel(channel, msg);
+    relay(channel, msg, false);
+  }
+  
+  /**
+   * Keeps a chat or server message in the journal and sends it, here and
+   * to the other servers of the cluster, which keep it in theirs.
+   *
+   * @param channel The channel, or null for every client.
+   * @param text The message.
+   */
+  private void publish(String channel, String text)
+  {
+    record(channel == null ? MessageJournal.EVERYONE : channel, text);
+    if (channel == null)
+      sendToLocalClients(text);
+    else
+      sendToLocalChannel(channel, text);
+    relay(channel, text, true);
+  }
+  
+  /**
+   * Sends a message to the other servers of the cluster, if there are any.
+   * Only text is relayed.
+   */
+  private void relay(String channel, Object msg, boolean journaled)
+  {
+    ClusterNode node = cluster;
+    if (node != null && msg instanceof String)
+      node.relayChat(channel, (String) msg, journaled);
+  }
+  
+  /**
+   * Called by the cluster for a chat or server message from another
+   * server: keeps it in the journal if it is chat, and sends it to the
+   * clients here.
+   *
+   * @param channel The channel, or null for every client.
+   * @param text The message.
+   * @param journaled Whether it is kept in the journal.
+   */
+  void relayed(String channel, String text, boolean journaled)
+  {
+    if (journaled)
+      record(channel == null ? MessageJournal.EVERYONE : channel, text);
+    if (channel == null)
+      sendToLocalClients(text);
+    else
+      sendToLocalChannel(channel, text);
+  }
+  
+  /**
+   * Called by the cluster for a private message from another server to a
+   * user that server believes is logged in here.
+   *
+   * @param to The recipient.
+   * @param text The message.
+   */
+  void relayedPrivate(String to, String text)
+  {
+    ClientConnection recipient = logins.lookup(to);
+    if (recipient == null)
+      log.log(LogLevel.WARN, "A private message for {} from another server was lost: they are not logged in here.", to);
+    else
+      sendQuietly(recipient, text);
+  }
+  
+  /**
+   * Called by the cluster when a user has logged in on another server. If
+   * the user was also logged in here, the other server keeps them and they
+   * are disconnected here.
+   *
+   * @param loginID The user.
+   * @param nodeId The server they logged in on.
+   */
+  void loginTaken(String loginID, String nodeId)
+  {
+    ClientConnection client = logins.lookup(loginID);
+    if (client == null)
+      return;
+    log.log(LogLevel.WARN, "{} also logged in on {} and is being disconnected here.", loginID, nodeId);
+    try
+    {
+      client.sendToClient("Error: "+loginID+" is already logged in. Terminating the connection.");
+      client.close();
+    }
+    catch (IOException e)
+    {
+      serverUI.display("An error occured: Could not disconnect client");
+    }
+  }
+  
+  /**
+   * Sends a message to every client connected to this server.
+   *
+   * @param msg The message to send.
+   */
+  private void sendToLocalClients(Object msg)
+  {
+    long start = System.nanoTime();
+    fanOut(transport.getClientConnections(), new EncodedMessage(msg));
+    metrics.record(ServerMetrics.Operation.BROADCAST, start);
+  }
+  
+  /**
+   * Sends a message to the members of one channel connected to this server.
+   *
+   * @param channel The channel.
+   * @param msg The message to send.
+   */
+  private void sendToLocalChannel(String channel, Object msg)
+  {
+    fanOut(channels.members(channel), new EncodedMessage(msg));
+  }
+  
+  /**
+   * Sends an encoded message to many clients. With a pipeline, the sends
+   * are shared among the delivery threads.
+   *
+   * @param recipients The clients.
+   * @param encoded The message.
+   */
+  private void fanOut(Collection<ClientConnection> recipients, EncodedMessage encoded)
+  {
+    boolean resumable = !sessions.isEmpty(); //Otherwise no client has a session to look up
+    Consumer<ClientConnection> send = client -> {
+      try
+      {
+        if (resumable)
+          sendNow(client, encoded);
+        else
+          client.sendEncoded(encoded);
+      }
+      catch (Exception ex) {}
+    };
+    MessagePipeline pipeline = this.pipeline;
+    if (pipeline == null)
+      recipients.forEach(send);
+    else
+      pipeline.deliverToAll(recipients, send);
+  }
+  
   /**
    * This method overrides the one in the superclass.  Called
    * when the server starts listening for connections.
    */
   protected void serverStarted()
   {
-    System.out.println
-      ("Server listening for connections on port " + getPort());
+    synchronized (pipelineLock)
+    {
+      if (pipeline == null && routeThreads > 0)
+        pipeline = new MessagePipeline(routeThreads, deliveryThreads);
+    }
+    log.log(LogLevel.INFO, "Server listening for connections on port {}", getPort());
   }
   
   /**
@@ -217,45 +1848,162 @@ public class EchoServer extends AbstractServer
    */
   protected void serverStopped()
   {
-    System.out.println
-      ("Server has stopped listening for connections.");
+    log.log(LogLevel.INFO, "Server has stopped listening for connections.");
   }
   
   /**
    * Implements hook method in the superclass. run() method in ConnectionToClient calls
    * clientConnected(...) method below.
-   * 
-   * Prints out a nice message whenever a client connects.
    **/
   @Override
   protected void clientConnected(ConnectionToClient client){
-	  System.out.println("A new client has connected to the server.");
+	  clientConnected(((OcsfTransport) transport).connected(client));
+  }
+  
+  /**
+   * Called by the transport when a client connects.
+   * 
+   * Prints out a nice message whenever a client connects.
+   **/
+  protected void clientConnected(ClientConnection client){
+	  MessagePipeline pipeline=this.pipeline;
+	  if (pipeline==null)
+		  connected(client, System.nanoTime());
+	  else
+		  pipeline.route(client, () -> connected(client, System.nanoTime())); //Before its first messages
+  }
+  
+  /**
+   * Puts a client that connected in the lobby and starts checking on it,
+   * unless it already went, as when it was closed by another thread before
+   * the transport could report it.
+   *
+   * @param client The client.
+   * @param start When it was reported, as System.nanoTime().
+   */
+  private void connected(ClientConnection client, long start) {
+	  if (client.getInfo(goneKey)!=null)
+		  return;
+	  channels.join(client, ChannelIndex.LOBBY);
+	  Heartbeat heartbeat=new Heartbeat(this, client);
+	  client.setInfo(heartbeatKey, heartbeat);
+	  heartbeat.start();
+	  log.log(LogLevel.INFO, "A new client has connected to the server.");
+	  metrics.record(ServerMetrics.Operation.CONNECT, start);
   }
   
   /**
    * Implements hook method in the superclass. close() method in ConnectionToClient calls
    * clientDisconnected(...) method below. 
-   * 
-   * Prints out a nice message whenever a client disconnects.
    **/
   @Override
-  synchronized protected void clientDisconnected(ConnectionToClient client) {
-		// Since we don't track which ID belongs to this client directly,
-		// remove by value.
-	  System.out.println(client.getInfo(loginKey)+" has disconnected.");
-	  super.clientDisconnected(client); //Since we do not have access to the private instance clientConnections
+  protected void clientDisconnected(ConnectionToClient client) {
+	  //Not synchronized: that would queue every disconnect of a reconnect storm on the
+	  //server's monitor, which OCSF also holds while handling each message
+	  clientDisconnected(ocsfConnection(client));
+	  ((OcsfTransport) transport).forget(client);
 	}
   
+  /**
+   * Called by the transport when a client's connection is closed.
+   * 
+   * Prints out a nice message whenever a client disconnects.
+   **/
+  protected void clientDisconnected(ClientConnection client) {
+	  MessagePipeline pipeline=this.pipeline;
+	  if (pipeline==null)
+		  disconnected(client);
+	  else
+		  pipeline.route(client, () -> disconnected(client)); //After its last messages
+  }
+  
+  /**
+   * Forgets a client whose connection was closed.
+   *
+   * @param client The client.
+   */
+  private void disconnected(ClientConnection client) {
+	  long start=System.nanoTime();
+	  client.setInfo(goneKey, Boolean.TRUE);
+	  parkSession(client);
+	  stopHeartbeat(client);
+	  channels.leave(client);
+	  unregisterLogin(client);
+	  log.log(LogLevel.INFO, "{} has disconnected.", client.getInfo(loginKey));
+	  metrics.record(ServerMetrics.Operation.DISCONNECT, start);
+  }
+  
   /**
    * Implements hook method in the superclass. Called by the OCSF framework when a client
    * disconnects abruptly. 
+   **/
+  @Override
+  protected void clientException(ConnectionToClient client, Throwable exception) {
+	  clientException(ocsfConnection(client), exception);
+	  ((OcsfTransport) transport).forget(client);
+  }
+  
+  /**
+   * Called by the transport when a client's connection fails. 
    * 
    * Prints out a nice message whenever a client disconnects unexpectedly.
    **/
-  @Override
-  synchronized protected void clientException(ConnectionToClient client, Throwable exception) {
-	  System.out.println(client.getInfo(loginKey)+" has disconnected unexpectedly: "+exception.getMessage());
-	  super.clientDisconnected(client); //Since we do not have access to the private instance clientConnections
+  protected void clientException(ClientConnection client, Throwable exception) {
+	  MessagePipeline pipeline=this.pipeline;
+	  if (pipeline==null)
+		  failed(client, exception);
+	  else
+		  pipeline.route(client, () -> failed(client, exception)); //After its last messages
+  }
+  
+  /**
+   * Forgets a client whose connection failed.
+   *
+   * @param client The client.
+   * @param exception What ended the connection.
+   */
+  private void failed(ClientConnection client, Throwable exception) {
+	  long start=System.nanoTime();
+	  client.setInfo(goneKey, Boolean.TRUE);
+	  parkSession(client);
+	  stopHeartbeat(client);
+	  channels.leave(client);
+	  unregisterLogin(client);
+	  log.log(LogLevel.WARN, "{} has disconnected unexpectedly: {}", client.getInfo(loginKey), exception.getMessage());
+	  metrics.connectionError();
+	  metrics.record(ServerMetrics.Operation.DISCONNECT, start);
+  }
+  
+  /**
+   * Stops checking a client whose connection has closed.
+   *
+   * @param client The client.
+   */
+  private void stopHeartbeat(ClientConnection client) {
+	  Heartbeat heartbeat=(Heartbeat) client.getInfo(heartbeatKey);
+	  if (heartbeat!=null)
+		  heartbeat.stop();
+  }
+  
+  /**
+   * Creates a rate limit allowing bursts of burstSeconds' worth of messages.
+   *
+   * @param rate The messages allowed per second.
+   * @return The limit.
+   */
+  static <K> RateLimiter<K> rateLimit(double rate) {
+	  return new RateLimiter<K>(rate, (int) Math.max(1, Math.ceil(rate*burstSeconds)));
+  }
+  
+  /**
+   * Returns the ClientConnection for one of OCSF's connection threads. OCSF only
+   * calls its hooks when the server runs on the OCSF transport.
+   *
+   * @param client The OCSF connection.
+   * @return The connection as seen by the chat logic.
+   */
+  private ClientConnection ocsfConnection(ConnectionToClient client) {
+	  return ((OcsfTransport) transport).connectionFor(client);
   }
 }
 //End of EchoServer class
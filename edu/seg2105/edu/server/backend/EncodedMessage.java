@@ -0,0 +1,95 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * A message to be sent to many clients, encoded at most once per wire
+ * format. Every recipient speaking the same format is handed a view of the
+ * same bytes, so a broadcast to thousands of clients costs one encoding
+ * rather than one per client, and a long message is compressed once for
+ * all the clients that asked for compression.
+ */
+public final class EncodedMessage
+{
+  //Class variables *************************************************
+
+  /**
+   * Encoders for each format. Encoding keeps no state, so they are shared.
+   */
+  private static final MessageCodec LEGACY_ENCODER = new ObjectStreamCodec();
+  private static final MessageCodec FRAMED_ENCODER = new FramedCodec(WireFormat.FRAMED);
+  private static final MessageCodec COMPRESSED_ENCODER = new FramedCodec(WireFormat.COMPRESSED);
+
+  //Instance variables **********************************************
+
+  /**
+   * The message itself, for transports that cannot send raw bytes.
+   */
+  private final Object message;
+
+  /**
+   * The encodings made so far, null until first needed.
+   */
+  private volatile ByteBuffer legacy;
+  private volatile ByteBuffer framed;
+  private volatile ByteBuffer compressed;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param message The message to send.
+   */
+  public EncodedMessage(Object message)
+  {
+    this.message = message;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The message itself.
+   */
+  public Object getMessage()
+  {
+    return message;
+  }
+
+  /**
+   * Returns the message encoded in a format, encoding it on first use.
+   * The bytes are shared: the caller gets its own position and limit but
+   * must not modify the content.
+   *
+   * @param format The format the recipient speaks.
+   * @return A buffer holding the encoded message, ready to be written.
+   * @exception IOException If the message cannot be encoded.
+   */
+  ByteBuffer encoded(WireFormat format) throws IOException
+  {
+    if (format == WireFormat.FRAMED)
+    {
+      ByteBuffer bytes = framed;
+      if (bytes == null)
+        framed = bytes = FRAMED_ENCODER.encode(message);
+      return bytes.duplicate();
+    }
+    if (format == WireFormat.COMPRESSED)
+    {
+      ByteBuffer bytes = compressed;
+      if (bytes == null)
+        compressed = bytes = COMPRESSED_ENCODER.encode(message);
+      return bytes.duplicate();
+    }
+    ByteBuffer bytes = legacy;
+    if (bytes == null)
+      legacy = bytes = LEGACY_ENCODER.encode(message);
+    return bytes.duplicate();
+  }
+
+  public String toString()
+  {
+    return String.valueOf(message);
+  }
+}
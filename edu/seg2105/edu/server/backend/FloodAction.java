@@ -0,0 +1,24 @@
+package edu.seg2105.edu.server.backend;
+
+/**
+ * What the server does with a message from a client that is sending faster
+ * than its rate limits allow.
+ */
+public enum FloodAction
+{
+  /**
+   * Handles the message as usual, but warns the client and logs it.
+   */
+  WARN,
+
+  /**
+   * Discards the message and tells the client it was not sent. The client
+   * may go on once it slows down.
+   */
+  THROTTLE,
+
+  /**
+   * Disconnects the client.
+   */
+  DISCONNECT
+}
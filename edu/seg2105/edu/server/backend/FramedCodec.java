@@ -0,0 +1,91 @@
+package edu.seg2105.edu.server.backend;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * The codec for clients that negotiated the framed protocol, with or
+ * without compression. Incoming frames are turned back into the Strings
+ * EchoServer handles, so the chat logic does not depend on the wire format.
+ */
+final class FramedCodec implements MessageCodec
+{
+  //Class variables *************************************************
+
+  /**
+   * The number of bytes needed to tell which format a client speaks: the
+   * object stream header every client sends and the byte after it.
+   */
+  static final int DETECT_LENGTH = 5;
+
+  //Instance variables **********************************************
+
+  /**
+   * FRAMED, or COMPRESSED if long payloads are compressed.
+   */
+  private final WireFormat format;
+
+  /**
+   * Whether the client's hello has been read.
+   */
+  private boolean helloRead;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param format FRAMED, or COMPRESSED if the client asked for compression.
+   */
+  FramedCodec(WireFormat format)
+  {
+    this.format = format;
+  }
+
+  //Instance methods ************************************************
+
+  public Object decode(ByteBuffer in) throws ProtocolException
+  {
+    if (!helloRead)
+    {
+      byte[] expected = Frame.hello(format);
+      if (in.remaining() < expected.length)
+        return null;
+      byte[] hello = new byte[expected.length];
+      in.get(hello);
+      if (!Arrays.equals(hello, expected))
+        throw new ProtocolException("Unsupported protocol version");
+      helloRead = true;
+    }
+    Frame frame = Frame.decode(in);
+    return frame == null ? null : frame.toText();
+  }
+
+  public ByteBuffer encode(Object msg)
+  {
+    return Frame.fromServerText(String.valueOf(msg)).encode(format);
+  }
+
+  public WireFormat getWireFormat()
+  {
+    return format;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Tells which format a client speaks. A legacy client sends nothing after
+   * its stream header until it has the server's, and its first record never
+   * starts with the preamble, so the byte after the header decides.
+   *
+   * @param firstBytes The first DETECT_LENGTH bytes the client sent.
+   * @return The format the client speaks.
+   */
+  static WireFormat detect(byte[] firstBytes)
+  {
+    return firstBytes[DETECT_LENGTH - 1] == Frame.preamble()[0]
+      ? WireFormat.FRAMED : WireFormat.LEGACY;
+  }
+}
@@ -0,0 +1,145 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.seg2105.client.common.TimerWheel;
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * Watches one client for silence. Hearing from the client only notes the
+ * time, so the check costs nothing per message; the check itself runs on
+ * the server's timer wheel when the client would first have been quiet
+ * for too long, and reschedules itself if it has been heard from since.
+ * <p>
+ * A client quiet for the server's idle time is sent "#ping", which a
+ * ChatClient answers with "#pong". One still quiet after the timeout that
+ * follows is taken to be gone, as when it vanished without closing its
+ * socket, and is disconnected.
+ * <p>
+ * Only clients known to answer are pinged: those speaking the framed
+ * protocol, and those that have used the commands of heartbeats or
+ * sessions. A client of the original object stream would show "#ping" to
+ * its user and never answer, so it is left to TCP keepalive instead.
+ */
+final class Heartbeat implements Runnable
+{
+  //Instance variables **********************************************
+
+  private final EchoServer server;
+  private final ClientConnection client;
+
+  /**
+   * When the client was last heard from, by System.nanoTime().
+   */
+  private volatile long lastHeard;
+
+  /**
+   * The lastHeard the client was pinged after. Only used by the wheel.
+   */
+  private long pingedFor;
+
+  /**
+   * The next check, and whether checking has stopped.
+   */
+  private volatile TimerWheel.Timeout next;
+  private volatile boolean stopped;
+
+  /**
+   * Set once the client is known to answer pings.
+   */
+  private volatile boolean answering;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param server The server, which holds the wheel and the intervals.
+   * @param client The client to watch.
+   */
+  Heartbeat(EchoServer server, ClientConnection client)
+  {
+    this.server = server;
+    this.client = client;
+    this.lastHeard = System.nanoTime();
+    this.pingedFor = lastHeard - 1;
+    WireFormat format = client.getWireFormat();
+    this.answering = format != null && format != WireFormat.LEGACY;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Notes that the client was heard from.
+   *
+   * @param now The value of System.nanoTime().
+   */
+  void heard(long now)
+  {
+    lastHeard = now;
+  }
+
+  /**
+   * Notes that the client answers pings, having used a command only
+   * clients that do send.
+   */
+  void answering()
+  {
+    answering = true;
+  }
+
+  /**
+   * Schedules the first check.
+   */
+  void start()
+  {
+    schedule(server.heartbeatIdleNanos);
+  }
+
+  /**
+   * Stops checking, as the connection has closed.
+   */
+  void stop()
+  {
+    stopped = true;
+    TimerWheel.Timeout timeout = next;
+    if (timeout != null)
+      timeout.cancel();
+  }
+
+  /**
+   * Checks the client, on the wheel's thread.
+   */
+  public void run()
+  {
+    if (stopped)
+      return;
+    long idle = server.heartbeatIdleNanos;
+    long limit = server.heartbeatTimeoutNanos;
+    if (idle == 0 || !answering)
+    {
+      //Off, or not to be pinged, for now
+      schedule(idle == 0 ? TimeUnit.SECONDS.toNanos(EchoServer.DEFAULT_HEARTBEAT_IDLE_SECONDS) : idle);
+      return;
+    }
+    long heard = lastHeard;
+    long quiet = System.nanoTime() - heard;
+    if (quiet < idle)
+      schedule(idle - quiet);
+    else if (quiet < idle + limit)
+    {
+      if (pingedFor != heard)
+      {
+        pingedFor = heard;
+        server.ping(client);
+      }
+      schedule(idle + limit - quiet);
+    }
+    else
+      server.reap(client, quiet);
+  }
+
+  private void schedule(long nanos)
+  {
+    if (!stopped)
+      next = server.heartbeats.schedule(this, nanos, TimeUnit.NANOSECONDS);
+  }
+}
@@ -0,0 +1,140 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, laid out as HdrHistogram does:
+ * every power of two is split into SUB_BUCKETS linear buckets, so any
+ * value is counted within about 6% of itself, from one nanosecond to
+ * centuries, in a fixed array. Recording is a few arithmetic instructions
+ * and an atomic increment, and never allocates or takes a lock.
+ * <p>
+ * Readers see an approximately consistent view: values recorded while a
+ * percentile is computed may or may not be counted.
+ */
+final class LatencyHistogram
+{
+  //Class variables *************************************************
+
+  /**
+   * The linear buckets per power of two, as a power of two.
+   */
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * Enough buckets for every positive long.
+   */
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  //Instance variables **********************************************
+
+  /**
+   * The number of values in each bucket.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  /**
+   * The number of values recorded, and their total.
+   */
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * The largest value recorded.
+   */
+  private final AtomicLong max = new AtomicLong();
+
+  //Instance methods ************************************************
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos The duration in nanoseconds. Negative values count as 0.
+   */
+  void record(long nanos)
+  {
+    if (nanos < 0)
+      nanos = 0;
+    counts.incrementAndGet(indexOf(nanos));
+    count.increment();
+    sum.add(nanos);
+    long largest;
+    while (nanos > (largest = max.get()) && !max.compareAndSet(largest, nanos));
+  }
+
+  /**
+   * @return The number of values recorded.
+   */
+  long count()
+  {
+    return count.sum();
+  }
+
+  /**
+   * @return The total of the values recorded, in nanoseconds.
+   */
+  long sum()
+  {
+    return sum.sum();
+  }
+
+  /**
+   * @return The largest value recorded, in nanoseconds.
+   */
+  long max()
+  {
+    return max.get();
+  }
+
+  /**
+   * Returns the value below which a share of the recorded values fall.
+   *
+   * @param percentile The share, from 0 to 100.
+   * @return The highest value counted in the same bucket as that value,
+   *         in nanoseconds, or 0 if nothing has been recorded.
+   */
+  long percentile(double percentile)
+  {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      total += counts.get(i);
+    if (total == 0)
+      return 0;
+    long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += counts.get(i);
+      if (seen >= rank)
+        return Math.min(highestIn(i), max());
+    }
+    return max();
+  }
+
+  /**
+   * Returns the bucket counting a value.
+   */
+  private static int indexOf(long value)
+  {
+    if (value < SUB_BUCKETS)
+      return (int)value;
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  /**
+   * Returns the largest value a bucket counts.
+   */
+  private static long highestIn(int index)
+  {
+    if (index < SUB_BUCKETS)
+      return index;
+    int shift = index / SUB_BUCKETS - 1;
+    long lowest = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,34 @@
+package edu.seg2105.edu.server.backend;
+
+/**
+ * How important a ServerLog entry is. A log records the entries at or above
+ * its level and ignores the rest.
+ */
+public enum LogLevel
+{
+  /**
+   * Every message received from a client.
+   */
+  TRACE,
+
+  /**
+   * Clients connecting, logging in and disconnecting, and the server
+   * starting and stopping.
+   */
+  INFO,
+
+  /**
+   * Connections that failed.
+   */
+  WARN,
+
+  /**
+   * Faults in the server itself.
+   */
+  ERROR,
+
+  /**
+   * Records nothing.
+   */
+  OFF
+}
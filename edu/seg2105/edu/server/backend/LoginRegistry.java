@@ -0,0 +1,73 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which connection each logged-in user is on. Finding a user's connection
+ * is a map lookup rather than a scan of every client's info, and since a
+ * login id can only be registered once, a second login with the same id
+ * from another socket is turned away.
+ */
+final class LoginRegistry
+{
+  //Instance variables **********************************************
+
+  /**
+   * The connection of every logged-in user, by login id.
+   */
+  private final ConcurrentHashMap<String, ClientConnection> logins =
+    new ConcurrentHashMap<String, ClientConnection>();
+
+  //Instance methods ************************************************
+
+  /**
+   * Registers a login, unless the id is already in use.
+   *
+   * @param loginID The login id.
+   * @param client The connection logging in.
+   * @return true if the login was registered, false if the id is taken.
+   */
+  boolean register(String loginID, ClientConnection client)
+  {
+    return logins.putIfAbsent(loginID, client) == null;
+  }
+
+  /**
+   * Removes a login, if it still belongs to the given connection.
+   *
+   * @param loginID The login id, or null if the client never logged in.
+   * @param client The connection that is going away.
+   * @return true if the login was removed.
+   */
+  boolean unregister(String loginID, ClientConnection client)
+  {
+    return loginID != null && logins.remove(loginID, client);
+  }
+
+  /**
+   * @param loginID A login id.
+   * @return The connection of the user, or null if not logged in.
+   */
+  ClientConnection lookup(String loginID)
+  {
+    return logins.get(loginID);
+  }
+
+  /**
+   * @return The login ids of the logged-in users, in alphabetical order.
+   */
+  Set<String> loginIDs()
+  {
+    return new TreeSet<String>(logins.keySet());
+  }
+
+  /**
+   * @return The number of logged-in users.
+   */
+  int size()
+  {
+    return logins.size();
+  }
+}
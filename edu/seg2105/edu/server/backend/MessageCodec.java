@@ -0,0 +1,38 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * Turns the bytes of one client connection into messages and back, for the
+ * non-blocking transport. There is one codec per connection, since decoding
+ * may keep state between messages.
+ */
+interface MessageCodec
+{
+  /**
+   * Decodes the next message from the buffer. If the buffer does not hold
+   * a complete message, its position is left unchanged.
+   *
+   * @param in The bytes received so far, ready to be read.
+   * @return The next message, or null if more bytes are needed.
+   * @exception IOException If the bytes cannot be decoded.
+   */
+  public abstract Object decode(ByteBuffer in) throws IOException;
+
+  /**
+   * Encodes a message for the client.
+   *
+   * @param msg The message to encode.
+   * @return A buffer holding the encoded message, ready to be written.
+   * @exception IOException If the message cannot be encoded.
+   */
+  public abstract ByteBuffer encode(Object msg) throws IOException;
+
+  /**
+   * @return The wire format this codec speaks.
+   */
+  public abstract WireFormat getWireFormat();
+}
@@ -0,0 +1,998 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32C;
+
+/**
+ * A durable journal of the chat, kept as append-only segment files in one
+ * directory. Each segment is named after the offset of its first message
+ * and is sealed once it reaches a set size, when a new one is started.
+ * <p>
+ * Appending only queues the message. A committer thread takes everything
+ * queued, writes it with one write and makes it durable with one fsync, so
+ * however many clients are chatting, the disk sees one flush per batch
+ * rather than one per message. A message is on disk within one flush of
+ * being sent to its channel.
+ * <p>
+ * Next to each segment is a sparse index: an entry for every few kilobytes
+ * of messages, giving the offset and position of the first message after
+ * the mark. Reading history maps the segments read-only and walks the
+ * index's blocks back from the newest, decoding only the messages of the
+ * channel asked for, so no segment is ever read onto the heap.
+ * <p>
+ * Every message is stored as its length, a CRC-32C of the rest, the time,
+ * the channel and the text. Opening a journal checks the messages after
+ * the last index entry of each segment and cuts off one left half-written
+ * by a crash.
+ * <p>
+ * A SearchIndex follows the journal, indexing each message once it is
+ * flushed, so that search(...) reads only the messages it finds.
+ */
+public final class MessageJournal implements Closeable
+{
+  //Class variables *************************************************
+
+  /**
+   * The size at which a segment is sealed.
+   */
+  static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+  /**
+   * The distance between index entries, in bytes of messages.
+   */
+  static final int INDEX_INTERVAL_BYTES = 4096;
+
+  /**
+   * The most messages waiting for the committer. Senders wait for room
+   * rather than lose a message if the disk falls this far behind.
+   */
+  private static final int QUEUE_CAPACITY = 65536;
+
+  /**
+   * How far back history is searched for a channel's messages, in bytes.
+   */
+  static final int HISTORY_SCAN_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * The bytes before a message's body: its length and CRC.
+   */
+  private static final int HEADER_BYTES = 8;
+
+  /**
+   * The longest body a message may have: longer ones are not kept, and
+   * reading a segment back takes a longer length for a torn write.
+   */
+  static final int MAX_BODY_BYTES = 1024 * 1024;
+
+  /**
+   * The channel recorded for messages sent to every client.
+   */
+  static final String EVERYONE = "";
+
+  /**
+   * Queued by close() to wake the committer.
+   */
+  private static final Pending CLOSE = new Pending(0, EVERYONE, "");
+
+  private static final String LOG_SUFFIX = ".log";
+  private static final String INDEX_SUFFIX = ".idx";
+
+  //Instance variables **********************************************
+
+  /**
+   * The directory holding the segments.
+   */
+  private final Path directory;
+
+  /**
+   * The size at which this journal seals a segment.
+   */
+  private final int segmentBytes;
+
+  /**
+   * The segments, oldest first. Replaced, never changed, when a segment
+   * is added.
+   */
+  private volatile Segment[] segments;
+
+  /**
+   * Messages waiting for the committer.
+   */
+  private final BlockingQueue<Pending> queue =
+    new ArrayBlockingQueue<Pending>(QUEUE_CAPACITY);
+
+  /**
+   * The thread writing and flushing queued messages.
+   */
+  private final Thread committer;
+
+  /**
+   * The error that stopped the committer, if any.
+   */
+  private volatile IOException failure;
+
+  /**
+   * Set once the journal is closing.
+   */
+  private volatile boolean closed;
+
+  /**
+   * The offset the next message queued will have. Only changed under the
+   * journal's lock, together with queueing, so that offsets follow the
+   * order in which the committer writes the messages.
+   */
+  private volatile long appended;
+
+  /**
+   * The index of the words of the messages.
+   */
+  private final SearchIndex index;
+
+  //Constructors ****************************************************
+
+  /**
+   * Opens the journal in a directory, creating the directory if needed and
+   * recovering what a previous server left.
+   *
+   * @param directory The directory of the segments.
+   * @exception IOException If the journal cannot be opened.
+   */
+  public MessageJournal(Path directory) throws IOException
+  {
+    this(directory, SEGMENT_BYTES);
+  }
+
+  /**
+   * @param directory The directory of the segments.
+   * @param segmentBytes The size at which to seal a segment.
+   * @exception IOException If the journal cannot be opened.
+   */
+  MessageJournal(Path directory, int segmentBytes) throws IOException
+  {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    Files.createDirectories(directory);
+    segments = recover();
+    Segment last = segments[segments.length - 1];
+    appended = last.baseOffset + last.count;
+    committer = new Thread(this::commit, "Journal committer");
+    committer.setDaemon(true);
+    index = new SearchIndex(this, Math.max(0, appended - SearchIndex.MAX_MESSAGES));
+    committer.start();
+    index.start();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Queues a message for the journal. It is written and flushed by the
+   * committer, together with whatever else is queued by then.
+   *
+   * @param channel The channel the message was sent to, or EVERYONE.
+   * @param text The message as its recipients received it.
+   * @return false if the journal is closed or has failed, or the message
+   *         is too long to keep.
+   */
+  boolean append(String channel, String text)
+  {
+    if (closed || failure != null || !fits(channel, text))
+      return false;
+    try
+    {
+      synchronized (this)
+      {
+        queue.put(new Pending(System.currentTimeMillis(), channel, text));
+        appended++;
+      }
+      return true;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Returns the last messages sent to a channel, together with those sent
+   * to everyone, oldest first. Only the most recent HISTORY_SCAN_BYTES of
+   * the journal are searched.
+   *
+   * @param channel The channel.
+   * @param count The most messages to return.
+   * @return The messages, as their recipients received them.
+   * @exception IOException If the journal cannot be read.
+   */
+  List<String> history(String channel, int count) throws IOException
+  {
+    ArrayDeque<String> found = new ArrayDeque<String>();
+    byte[] wanted = channel.getBytes(StandardCharsets.UTF_8);
+    ArrayList<String> block = new ArrayList<String>();
+    long scanned = 0;
+    Segment[] all = segments;
+    for (int s = all.length - 1; s >= 0 && found.size() < count; s--)
+    {
+      Segment segment = all[s];
+      int entries = segment.indexCount; //Read before the size, which it never passes
+      int size = segment.size;
+      int[] positions = segment.positions;
+      ByteBuffer mapped = segment.map(size);
+      int end = size;
+      for (int i = entries - 1; i >= 0 && found.size() < count; i--)
+      {
+        int start = positions[i];
+        block.clear();
+        decode(mapped, start, end, wanted, block);
+        for (int b = block.size() - 1; b >= 0 && found.size() < count; b--)
+          found.addFirst(block.get(b));
+        scanned += end - start;
+        end = start;
+        if (scanned >= HISTORY_SCAN_BYTES)
+          return new ArrayList<String>(found);
+      }
+    }
+    return new ArrayList<String>(found);
+  }
+
+  /**
+   * @return The offset the next message appended will have.
+   */
+  long end()
+  {
+    return appended;
+  }
+
+  /**
+   * Returns the messages sent to a channel, together with those sent to
+   * everyone, from an offset on, oldest first. Only messages already
+   * flushed are found.
+   *
+   * @param channel The channel.
+   * @param offset The offset of the first message wanted, as given by end().
+   * @param count The most messages to return: the newest are kept.
+   * @return The messages, as their recipients received them.
+   * @exception IOException If the journal cannot be read.
+   */
+  List<String> since(String channel, long offset, int count) throws IOException
+  {
+    ArrayDeque<String> found = new ArrayDeque<String>();
+    byte[] wanted = channel.getBytes(StandardCharsets.UTF_8);
+    Segment[] all = segments;
+    int first = all.length - 1;
+    while (first > 0 && all[first].baseOffset > offset)
+      first--;
+    for (int s = first; s < all.length; s++)
+    {
+      Segment segment = all[s];
+      int entries = segment.indexCount; //Read before the size, which it never passes
+      int size = segment.size;
+      long skip = offset - segment.baseOffset;
+      int entry = segment.entryAt(entries, skip);
+      int position = entry < 0 ? 0 : segment.positions[entry];
+      long current = entry < 0 ? 0 : segment.offsets[entry];
+      ByteBuffer mapped = segment.map(size);
+      while (position < size)
+      {
+        int next = position + HEADER_BYTES + mapped.getInt(position);
+        if (current++ >= skip)
+        {
+          int channelStart = position + HEADER_BYTES + 8 + 2;
+          int channelLength = mapped.getShort(channelStart - 2);
+          if (channelLength == 0 || matches(mapped, channelStart, wanted))
+          {
+            found.addLast(string(mapped, channelStart + channelLength, next));
+            if (found.size() > count)
+              found.removeFirst();
+          }
+        }
+        position = next;
+      }
+    }
+    return new ArrayList<String>(found);
+  }
+
+  /**
+   * Finds the newest messages containing every word of a query, sent to a
+   * channel or to everyone, through the index: only the messages found
+   * are read. Messages are found once indexed, shortly after they are
+   * flushed.
+   *
+   * @param channel The channel.
+   * @param query The words, in any case, separated by anything but letters
+   *        and digits.
+   * @param count The most messages to return.
+   * @return The messages, oldest first, as their recipients received them.
+   * @exception IOException If the journal cannot be read.
+   */
+  List<String> search(String channel, String query, int count) throws IOException
+  {
+    return read(index.search(channel, query, count));
+  }
+
+  /**
+   * @return The index of the journal's words.
+   */
+  SearchIndex getIndex()
+  {
+    return index;
+  }
+
+  /**
+   * Passes the flushed messages from an offset on to a visitor, oldest
+   * first. Used by the index to follow the journal.
+   *
+   * @param offset The offset of the first message wanted.
+   * @param visitor What to pass them to.
+   * @return The offset after the last message passed, or the offset given
+   *         if there was none.
+   * @exception IOException If the journal cannot be read.
+   */
+  long scan(long offset, Visitor visitor) throws IOException
+  {
+    long reached = offset;
+    Segment[] all = segments;
+    int first = all.length - 1;
+    while (first > 0 && all[first].baseOffset > offset)
+      first--;
+    for (int s = first; s < all.length; s++)
+    {
+      Segment segment = all[s];
+      int entries = segment.indexCount; //Read before the size, which it never passes
+      int size = segment.size;
+      if (segment.baseOffset + segment.count <= reached)
+        continue; //Nothing new, so not mapped
+      long skip = reached - segment.baseOffset;
+      int entry = segment.entryAt(entries, skip);
+      int position = entry < 0 ? 0 : segment.positions[entry];
+      long current = entry < 0 ? 0 : segment.offsets[entry];
+      ByteBuffer mapped = segment.map(size);
+      while (position < size)
+      {
+        int next = position + HEADER_BYTES + mapped.getInt(position);
+        if (current >= skip)
+        {
+          int channelStart = position + HEADER_BYTES + 8 + 2;
+          int channelEnd = channelStart + mapped.getShort(channelStart - 2);
+          visitor.message(segment.baseOffset + current, string(mapped, channelStart, channelEnd),
+            string(mapped, channelEnd, next));
+        }
+        current++;
+        position = next;
+      }
+      reached = Math.max(reached, segment.baseOffset + current);
+    }
+    return reached;
+  }
+
+  /**
+   * Reads flushed messages by their offsets, each from the index entry
+   * before it.
+   *
+   * @param offsets The offsets, in ascending order.
+   * @return The messages' text, in the same order.
+   * @exception IOException If the journal cannot be read.
+   */
+  List<String> read(long[] offsets) throws IOException
+  {
+    ArrayList<String> found = new ArrayList<String>(offsets.length);
+    Segment[] all = segments;
+    Segment segment = null;
+    ByteBuffer mapped = null;
+    int entries = 0;
+    int size = 0;
+    int s = 0;
+    for (long offset : offsets)
+    {
+      while (s + 1 < all.length && all[s + 1].baseOffset <= offset)
+        s++;
+      if (all[s] != segment)
+      {
+        segment = all[s];
+        entries = segment.indexCount; //Read before the size, which it never passes
+        size = segment.size;
+        mapped = segment.map(size);
+      }
+      long skip = offset - segment.baseOffset;
+      int entry = segment.entryAt(entries, skip);
+      int position = entry < 0 ? 0 : segment.positions[entry];
+      long current = entry < 0 ? 0 : segment.offsets[entry];
+      while (position < size && current < skip)
+      {
+        position += HEADER_BYTES + mapped.getInt(position);
+        current++;
+      }
+      if (position < size && current == skip)
+      {
+        int channelStart = position + HEADER_BYTES + 8 + 2;
+        int textStart = channelStart + mapped.getShort(channelStart - 2);
+        found.add(string(mapped, textStart, position + HEADER_BYTES + mapped.getInt(position)));
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return The error that stopped the journal, or null if it is working.
+   */
+  IOException getFailure()
+  {
+    return failure;
+  }
+
+  /**
+   * Writes and flushes what is queued, then closes the segments.
+   */
+  public void close()
+  {
+    closed = true;
+    try
+    {
+      queue.put(CLOSE); //Wakes the committer to finish
+      committer.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    index.close();
+  }
+
+  /**
+   * Tells whether a message's body is at most MAX_BODY_BYTES long, without
+   * encoding it unless it could be longer.
+   *
+   * @param channel The channel it was sent to, or EVERYONE.
+   * @param text The message.
+   * @return true if the journal can keep the message.
+   */
+  static boolean fits(String channel, String text)
+  {
+    long chars = (long)channel.length() + text.length();
+    if (10 + chars * 3 <= MAX_BODY_BYTES)
+      return true; //No char takes more than three bytes
+    return 10 + utf8Length(channel) + utf8Length(text) <= MAX_BODY_BYTES;
+  }
+
+  /**
+   * Returns at least the number of bytes the UTF-8 form of a String takes:
+   * exactly, unless it holds unpaired surrogates.
+   */
+  private static long utf8Length(String s)
+  {
+    long length = 0;
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      length += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+    }
+    return length;
+  }
+
+  /**
+   * Decodes the messages between two positions of a mapped segment,
+   * keeping the text of those sent to the wanted channel or to everyone.
+   */
+  private static void decode(ByteBuffer mapped, int position, int end,
+    byte[] wanted, List<String> into)
+  {
+    while (position < end)
+    {
+      int length = mapped.getInt(position);
+      int channelStart = position + HEADER_BYTES + 8 + 2;
+      int channelLength = mapped.getShort(channelStart - 2);
+      int textStart = channelStart + channelLength;
+      int next = position + HEADER_BYTES + length;
+      if (channelLength == 0 || matches(mapped, channelStart, wanted))
+        into.add(string(mapped, textStart, next));
+      position = next;
+    }
+  }
+
+  /**
+   * Decodes the UTF-8 text between two positions of a mapped segment.
+   */
+  private static String string(ByteBuffer mapped, int start, int end)
+  {
+    byte[] bytes = new byte[end - start];
+    mapped.duplicate().position(start).get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Compares a channel in a mapped segment with the wanted one, without
+   * decoding it.
+   */
+  private static boolean matches(ByteBuffer mapped, int start, byte[] wanted)
+  {
+    if (mapped.getShort(start - 2) != wanted.length)
+      return false;
+    for (int i = 0; i < wanted.length; i++)
+    {
+      if (mapped.get(start + i) != wanted[i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Runs on the committer thread: writes whatever is queued with one write
+   * and one flush, until the journal is closed and the queue is empty.
+   */
+  private void commit()
+  {
+    ArrayList<Pending> batch = new ArrayList<Pending>();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+    CRC32C crc = new CRC32C();
+    try
+    {
+      while (true)
+      {
+        if (queue.isEmpty() && closed)
+          break;
+        try
+        {
+          batch.add(queue.take());
+        }
+        catch (InterruptedException e)
+        {
+          continue;
+        }
+        queue.drainTo(batch);
+
+        Segment segment = active();
+        for (Pending pending : batch)
+        {
+          if (pending == CLOSE)
+            continue;
+          byte[] channel = pending.channel.getBytes(StandardCharsets.UTF_8);
+          byte[] text = pending.text.getBytes(StandardCharsets.UTF_8);
+          int body = 8 + 2 + channel.length + text.length;
+          int record = HEADER_BYTES + body;
+          if (segment.count + segment.pending > 0
+            && segment.written + buffer.position() + record > segmentBytes)
+          {
+            segment.write(buffer);
+            segment = roll(segment);
+          }
+          if (buffer.remaining() < record)
+          {
+            segment.write(buffer);
+            if (buffer.capacity() < record)
+              buffer = ByteBuffer.allocateDirect(record);
+          }
+          segment.mark(segment.written + buffer.position());
+          int start = buffer.position();
+          buffer.putInt(body).putInt(0).putLong(pending.time)
+            .putShort((short)channel.length).put(channel).put(text);
+          crc.reset();
+          ByteBuffer written = buffer.duplicate();
+          written.position(start + HEADER_BYTES).limit(start + record);
+          crc.update(written);
+          buffer.putInt(start + 4, (int)crc.getValue());
+        }
+        segment.write(buffer);
+        segment.flush();
+        index.wake();
+        batch.clear();
+      }
+    }
+    catch (IOException e)
+    {
+      failure = e;
+      queue.clear();
+    }
+    for (Segment segment : segments)
+      segment.closeChannels();
+  }
+
+  /**
+   * @return The segment being appended to.
+   */
+  private Segment active()
+  {
+    Segment[] all = segments;
+    return all[all.length - 1];
+  }
+
+  /**
+   * Seals a full segment and starts the next. Called by the committer.
+   *
+   * @param full The segment being sealed.
+   * @return The new segment.
+   */
+  private Segment roll(Segment full) throws IOException
+  {
+    full.flush();
+    full.seal();
+    Segment next = Segment.create(directory, full.baseOffset + full.count);
+    Segment[] all = segments;
+    Segment[] more = Arrays.copyOf(all, all.length + 1);
+    more[all.length] = next;
+    segments = more;
+    return next;
+  }
+
+  /**
+   * Opens the segments in the directory, checking the end of each and
+   * cutting off a message left half-written. Starts the first segment of
+   * a new journal.
+   */
+  private Segment[] recover() throws IOException
+  {
+    TreeMap<Long, Path> found = new TreeMap<Long, Path>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX))
+    {
+      for (Path file : files)
+      {
+        String name = file.getFileName().toString();
+        try
+        {
+          found.put(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())), file);
+        }
+        catch (NumberFormatException e) {} //Not a segment
+      }
+    }
+    if (found.isEmpty())
+      return new Segment[] {Segment.create(directory, 0)};
+
+    ArrayList<Segment> opened = new ArrayList<Segment>();
+    Long last = found.lastKey();
+    for (Map.Entry<Long, Path> entry : found.entrySet())
+    {
+      boolean active = entry.getKey().equals(last);
+      opened.add(Segment.recover(directory, entry.getKey(), active));
+    }
+    return opened.toArray(new Segment[0]);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * Receives the messages read by scan(...).
+   */
+  interface Visitor
+  {
+    /**
+     * @param offset The message's offset.
+     * @param channel The channel it was sent to, or EVERYONE.
+     * @param text The message as its recipients received it.
+     */
+    void message(long offset, String channel, String text);
+  }
+
+  /**
+   * A message waiting for the committer.
+   */
+  private static final class Pending
+  {
+    final long time;
+    final String channel;
+    final String text;
+
+    Pending(long time, String channel, String text)
+    {
+      this.time = time;
+      this.channel = channel;
+      this.text = text;
+    }
+  }
+
+  /**
+   * One segment file and its sparse index. Only the committer changes a
+   * segment; readers see the messages and index entries it has flushed.
+   */
+  private static final class Segment
+  {
+    /**
+     * The offset of the segment's first message.
+     */
+    final long baseOffset;
+
+    private final Path logFile;
+    private final Path indexFile;
+
+    /**
+     * The channels of the segment and its index while it is being written,
+     * null once sealed.
+     */
+    private FileChannel log;
+    private FileChannel index;
+
+    /**
+     * The number of flushed messages, and the bytes they take.
+     */
+    volatile int count;
+    volatile int size;
+
+    /**
+     * The bytes written, flushed or not, and the messages among them not
+     * yet flushed. Only used by the committer.
+     */
+    int written;
+    int pending;
+
+    /**
+     * The index: the offset, relative to the segment's, and the position
+     * of the first message of each block. Entries up to indexCount have
+     * been flushed.
+     */
+    volatile int[] offsets = new int[64];
+    volatile int[] positions = new int[64];
+    volatile int indexCount;
+    private int indexed;
+
+    /**
+     * The position of the last index entry, flushed or not.
+     */
+    private int lastMark = -INDEX_INTERVAL_BYTES;
+
+    /**
+     * The whole segment mapped, once sealed.
+     */
+    private MappedByteBuffer mapped;
+
+    /**
+     * The segment mapped as far as it had been flushed when last read,
+     * while it is being written.
+     */
+    private MappedByteBuffer activeMapped;
+
+    private Segment(Path directory, long baseOffset)
+    {
+      this.baseOffset = baseOffset;
+      String name = String.format("%020d", baseOffset);
+      logFile = directory.resolve(name + LOG_SUFFIX);
+      indexFile = directory.resolve(name + INDEX_SUFFIX);
+    }
+
+    /**
+     * Starts a new, empty segment.
+     */
+    static Segment create(Path directory, long baseOffset) throws IOException
+    {
+      Segment segment = new Segment(directory, baseOffset);
+      segment.openChannels();
+      segment.log.truncate(0);
+      segment.index.truncate(0);
+      return segment;
+    }
+
+    /**
+     * Opens an existing segment, loading its index and checking the
+     * messages after the last entry.
+     *
+     * @param active Whether the segment is the one to append to.
+     */
+    static Segment recover(Path directory, long baseOffset, boolean active)
+      throws IOException
+    {
+      Segment segment = new Segment(directory, baseOffset);
+      segment.openChannels();
+      long fileSize = segment.log.size();
+
+      ByteBuffer entries = ByteBuffer.allocate((int)Math.min(segment.index.size(), Integer.MAX_VALUE));
+      segment.index.read(entries, 0);
+      entries.flip();
+      int start = 0;
+      int startOffset = 0;
+      while (entries.remaining() >= 8)
+      {
+        int offset = entries.getInt();
+        int position = entries.getInt();
+        if (position >= fileSize || position < start || (segment.indexed > 0 && offset <= startOffset))
+          break;
+        segment.addEntry(offset, position);
+        start = position;
+        startOffset = offset;
+      }
+      if (segment.indexed > 0)
+        segment.indexed--; //The last block is checked again, and re-indexed
+      segment.lastMark = segment.indexed == 0 ? -INDEX_INTERVAL_BYTES : segment.positions[segment.indexed - 1];
+      if (segment.indexed == 0)
+      {
+        start = 0;
+        startOffset = 0;
+      }
+
+      MappedByteBuffer file = segment.log.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+      CRC32C crc = new CRC32C();
+      int position = start;
+      segment.count = startOffset;
+      while (position + HEADER_BYTES <= fileSize)
+      {
+        int length = file.getInt(position);
+        if (length < 10 || length > MAX_BODY_BYTES || position + HEADER_BYTES + (long)length > fileSize)
+          break;
+        ByteBuffer body = file.duplicate();
+        body.position(position + HEADER_BYTES).limit(position + HEADER_BYTES + length);
+        crc.reset();
+        crc.update(body);
+        if ((int)crc.getValue() != file.getInt(position + 4))
+          break;
+        segment.mark(position);
+        position += HEADER_BYTES + length;
+      }
+      segment.count += segment.pending;
+      segment.pending = 0;
+      segment.size = position;
+      segment.written = position;
+      segment.indexCount = segment.indexed;
+
+      if (position < fileSize)
+        segment.log.truncate(position); //A message half-written by a crash
+      segment.index.truncate(0);
+      ByteBuffer rewrite = ByteBuffer.allocate(segment.indexed * 8);
+      for (int i = 0; i < segment.indexed; i++)
+        rewrite.putInt(segment.offsets[i]).putInt(segment.positions[i]);
+      rewrite.flip();
+      segment.index.write(rewrite, 0);
+      segment.index.position(segment.index.size());
+      segment.log.position(position);
+      if (!active)
+        segment.seal();
+      return segment;
+    }
+
+    private void openChannels() throws IOException
+    {
+      log = FileChannel.open(logFile, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+      index = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Notes that a message starts at a position, adding an index entry if
+     * the last is far enough behind. Called by the committer before the
+     * message is written.
+     */
+    void mark(int position)
+    {
+      if (position - lastMark >= INDEX_INTERVAL_BYTES)
+      {
+        addEntry(count + pending, position);
+        lastMark = position;
+      }
+      pending++;
+    }
+
+    /**
+     * Finds the last of the first entries of the index at or before an
+     * offset relative to the segment's.
+     *
+     * @param entries The number of entries to search, as read before the
+     *        segment's size.
+     * @param skip The relative offset.
+     * @return The entry, or -1 if the offset is before the first.
+     */
+    int entryAt(int entries, long skip)
+    {
+      int[] offsets = this.offsets;
+      int low = 0;
+      int high = entries - 1;
+      while (low <= high)
+      {
+        int middle = (low + high) >>> 1;
+        if (offsets[middle] <= skip)
+          low = middle + 1;
+        else
+          high = middle - 1;
+      }
+      return high;
+    }
+
+    private void addEntry(int offset, int position)
+    {
+      if (indexed == positions.length)
+      {
+        int[] moreOffsets = Arrays.copyOf(offsets, indexed * 2);
+        int[] morePositions = Arrays.copyOf(positions, indexed * 2);
+        offsets = moreOffsets;
+        positions = morePositions;
+      }
+      offsets[indexed] = offset;
+      positions[indexed] = position;
+      indexed++;
+    }
+
+    /**
+     * Writes out a buffer of encoded messages, emptying it.
+     */
+    void write(ByteBuffer buffer) throws IOException
+    {
+      buffer.flip();
+      while (buffer.hasRemaining())
+        written += log.write(buffer);
+      buffer.clear();
+    }
+
+    /**
+     * Makes everything written durable, then lets readers see it: the
+     * messages first, then the index entries pointing at them.
+     */
+    void flush() throws IOException
+    {
+      if (pending == 0)
+        return;
+      log.force(false);
+      int flushedEntries = indexCount;
+      if (indexed > flushedEntries)
+      {
+        ByteBuffer entries = ByteBuffer.allocate((indexed - flushedEntries) * 8);
+        for (int i = flushedEntries; i < indexed; i++)
+          entries.putInt(offsets[i]).putInt(positions[i]);
+        entries.flip();
+        while (entries.hasRemaining())
+          index.write(entries);
+      }
+      count += pending;
+      pending = 0;
+      size = written;
+      indexCount = indexed;
+    }
+
+    /**
+     * Stops appending to the segment. Its index is made durable with it.
+     */
+    synchronized void seal() throws IOException
+    {
+      index.force(false);
+      closeChannels();
+    }
+
+    /**
+     * Returns the flushed messages of the segment mapped read-only. While
+     * the segment is being written the mapping is kept, and only replaced
+     * when more has been flushed than it covers.
+     *
+     * @param size The bytes needed, as read with the index. More may be
+     *        mapped.
+     */
+    synchronized ByteBuffer map(int size) throws IOException
+    {
+      if (mapped != null)
+        return mapped;
+      if (log != null)
+      {
+        if (activeMapped == null || activeMapped.capacity() < size)
+          activeMapped = log.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return activeMapped;
+      }
+      if (activeMapped != null && activeMapped.capacity() >= this.size)
+      {
+        mapped = activeMapped; //Sealed since, and already mapped whole
+        activeMapped = null;
+        return mapped;
+      }
+      activeMapped = null;
+      try (FileChannel file = FileChannel.open(logFile, StandardOpenOption.READ))
+      {
+        mapped = file.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+        return mapped;
+      }
+    }
+
+    synchronized void closeChannels()
+    {
+      try
+      {
+        if (log != null)
+          log.close();
+        if (index != null)
+          index.close();
+      }
+      catch (IOException e) {}
+      log = null;
+      index = null;
+    }
+  }
+}
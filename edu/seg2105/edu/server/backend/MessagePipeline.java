@@ -0,0 +1,282 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The stages between a client's message arriving and the messages it
+ * causes reaching their recipients, each on threads of its own, joined by
+ * bounded StageRings.
+ * <p>
+ * A transport's reader only decodes a message and hands it to the route
+ * stage, so reading never waits for delivery. The route stage runs the
+ * server's handling of the message: the command, the rate limit, the
+ * journal. The delivery stage writes to the recipients' outbound queues,
+ * a broadcast being split among all its workers so that a large fan-out
+ * runs on several cores at once.
+ * <p>
+ * Each stage has several workers, and each client is always served by the
+ * same worker of a stage, chosen by its identity. A client's messages are
+ * therefore handled in the order they arrived, and the messages sent to a
+ * client are written in the order they were sent, as when one thread did
+ * everything; only different clients go on in parallel.
+ * <p>
+ * A worker never waits for room in a ring, since it could be the one to
+ * make it: if the ring it hands work to is full, the work goes to that
+ * ring's overflow, which only the ring's own worker runs, after what the
+ * ring already holds. Any other thread waits, which slows the readers down
+ * to what the stages can take. No thread ever runs another worker's tasks,
+ * so a client's tasks never run two at a time or out of order.
+ * <p>
+ * What the route stage sends to the client whose message it is handling,
+ * whether a reply or that client's copy of a broadcast, is sent at once,
+ * so that it goes out before the replies to the client's next messages.
+ * What it sends to other clients goes through the delivery stage.
+ */
+final class MessagePipeline
+{
+  //Class variables *************************************************
+
+  /**
+   * How many tasks each worker's ring holds.
+   */
+  static final int RING_CAPACITY = 16384;
+
+  /**
+   * How long closing waits for each worker to finish what it was given.
+   */
+  private static final long CLOSE_WAIT_MILLIS = 1000;
+
+  //Instance variables **********************************************
+
+  /**
+   * The workers of each stage.
+   */
+  private final StageRing[] routers;
+  private final StageRing[] deliverers;
+
+  /**
+   * The client whose message the calling route worker is handling, if it
+   * is one.
+   */
+  private final ThreadLocal<ClientConnection> routing = new ThreadLocal<ClientConnection>();
+
+  //Constructors ****************************************************
+
+  /**
+   * Starts the workers of both stages.
+   *
+   * @param routeThreads How many workers route messages.
+   * @param deliveryThreads How many workers deliver them.
+   */
+  MessagePipeline(int routeThreads, int deliveryThreads)
+  {
+    if (routeThreads < 1 || deliveryThreads < 1)
+      throw new IllegalArgumentException("Each stage needs at least one thread");
+    routers = new StageRing[routeThreads];
+    for (int i = 0; i < routeThreads; i++)
+      routers[i] = new StageRing("Route " + i, RING_CAPACITY);
+    deliverers = new StageRing[deliveryThreads];
+    for (int i = 0; i < deliveryThreads; i++)
+      deliverers[i] = new StageRing("Deliver " + i, RING_CAPACITY);
+    for (StageRing ring : routers)
+      ring.start();
+    for (StageRing ring : deliverers)
+      ring.start();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Hands the handling of something a client did to the route stage,
+   * after whatever that client did before.
+   *
+   * @param client The client.
+   * @param task The handling.
+   */
+  void route(ClientConnection client, Runnable task)
+  {
+    hand(routers[stripe(client, routers.length)], () -> {
+      ClientConnection previous = routing.get(); //Run by the caller once the pipeline stopped
+      routing.set(client);
+      try
+      {
+        task.run();
+      }
+      finally
+      {
+        routing.set(previous);
+      }
+    });
+  }
+
+  /**
+   * Hands a send to one client to the delivery stage, after what was sent
+   * to that client before. The client's delivery worker, and the route
+   * worker handling the client's message, send at once.
+   *
+   * @param client The recipient.
+   * @param task The send.
+   */
+  void deliver(ClientConnection client, Runnable task)
+  {
+    if (sendsAtOnce(client))
+      task.run();
+    else
+      hand(deliverers[stripe(client, deliverers.length)], task);
+  }
+
+  /**
+   * @param client A recipient.
+   * @return true if what the calling thread sends to the client is sent at
+   *         once: it is the client's delivery worker, or the route worker
+   *         handling the client's message.
+   */
+  boolean sendsAtOnce(ClientConnection client)
+  {
+    return routing.get() == client || deliverers[stripe(client, deliverers.length)].inWorker();
+  }
+
+  /**
+   * Hands a send to many clients to the delivery stage, each worker
+   * sending to the recipients it serves. The client whose message the
+   * caller is handling, if it is one of them, is sent to at once.
+   *
+   * @param recipients The recipients, taken as they are now.
+   * @param send Sends to one recipient.
+   */
+  void deliverToAll(Collection<ClientConnection> recipients, Consumer<ClientConnection> send)
+  {
+    ClientConnection origin = routing.get();
+    int count = deliverers.length;
+    List<List<ClientConnection>> shares = new ArrayList<List<ClientConnection>>(count);
+    for (int i = 0; i < count; i++)
+      shares.add(new ArrayList<ClientConnection>(recipients.size() / count + 1));
+    boolean toOrigin = false;
+    for (ClientConnection client : recipients)
+    {
+      if (client == origin)
+        toOrigin = true;
+      else
+        shares.get(stripe(client, count)).add(client);
+    }
+    if (toOrigin)
+      send.accept(origin);
+    for (int i = 0; i < count; i++)
+    {
+      List<ClientConnection> share = shares.get(i);
+      if (!share.isEmpty())
+        hand(deliverers[i], () -> share.forEach(send));
+    }
+  }
+
+  /**
+   * @return true if the calling thread is a worker of either stage.
+   */
+  boolean inWorker()
+  {
+    for (StageRing ring : routers)
+    {
+      if (ring.inWorker())
+        return true;
+    }
+    for (StageRing ring : deliverers)
+    {
+      if (ring.inWorker())
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return The number of tasks waiting in the route stage, and in the
+   *         delivery stage.
+   */
+  int routeDepth()
+  {
+    return depth(routers);
+  }
+
+  int deliveryDepth()
+  {
+    return depth(deliverers);
+  }
+
+  /**
+   * @return The number of workers of each stage.
+   */
+  int routeThreads()
+  {
+    return routers.length;
+  }
+
+  int deliveryThreads()
+  {
+    return deliverers.length;
+  }
+
+  /**
+   * Lets the route stage finish what it was given, then the delivery
+   * stage, and stops them. What is handed over once a worker has stopped
+   * is run by the caller.
+   */
+  void close()
+  {
+    close(routers);
+    close(deliverers);
+  }
+
+  /**
+   * Adds a task to a worker's ring, or its overflow if the ring is full and
+   * the caller is a worker, which must not wait. Only once the worker has
+   * stopped, the pipeline being closed, does the caller run the task.
+   *
+   * @param ring The ring.
+   * @param task The task.
+   */
+  private void hand(StageRing ring, Runnable task)
+  {
+    if (!ring.offer(task, !inWorker()))
+      task.run();
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Picks the worker serving a client.
+   *
+   * @param client The client.
+   * @param workers The number of workers.
+   * @return The index of the worker.
+   */
+  private static int stripe(ClientConnection client, int workers)
+  {
+    int hash = System.identityHashCode(client);
+    return ((hash ^ (hash >>> 16)) & 0x7fffffff) % workers;
+  }
+
+  private static int depth(StageRing[] rings)
+  {
+    int depth = 0;
+    for (StageRing ring : rings)
+      depth += ring.depth();
+    return depth;
+  }
+
+  private static void close(StageRing[] rings)
+  {
+    for (StageRing ring : rings)
+      ring.close();
+    try
+    {
+      for (StageRing ring : rings)
+        ring.join(CLOSE_WAIT_MILLIS);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
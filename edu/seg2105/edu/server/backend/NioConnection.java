@@ -0,0 +1,531 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.client.common.WireFormat;
+import edu.seg2105.client.common.WriteBatching;
+
+/**
+ * A client connection served by an NioEventLoop. Any thread may send to the
+ * client: messages are encoded by the caller, put in the connection's
+ * bounded OutboundQueue, and written by the owning loop whenever the socket
+ * can take them.
+ * <p>
+ * The client's first bytes tell whether it speaks OCSF's object stream or
+ * the framed protocol. Until they arrive the connection is not reported to
+ * the server and takes no messages.
+ * <p>
+ * When the server has an SSLContext, every byte goes through a TlsChannel,
+ * and the first bytes are those the client sends once the handshake is
+ * done.
+ */
+class NioConnection implements ClientConnection
+{
+  //Class variables *************************************************
+
+  /**
+   * The initial size of the buffer holding a partially received message.
+   */
+  private static final int INITIAL_INBOUND_SIZE = 256;
+
+  /**
+   * The most bytes held waiting to be decoded: a message of the largest
+   * length either codec accepts, its header, and a read's worth of the
+   * next. A client that needs more is sending garbage and is dropped.
+   */
+  private static final int MAX_INBOUND_SIZE = Frame.MAX_LENGTH + 64 * 1024;
+
+  /**
+   * The most queued messages handed to one gathering write.
+   */
+  private static final int MAX_GATHER = 64;
+
+  //Instance variables **********************************************
+
+  /**
+   * The socket to the client.
+   */
+  private final SocketChannel channel;
+
+  /**
+   * Encrypts and decrypts what goes through the socket, or null without TLS.
+   */
+  private final TlsChannel tls;
+
+  /**
+   * The transport that accepted the connection.
+   */
+  private final NioServerTransport transport;
+
+  /**
+   * The loop that reads from and writes to this connection.
+   */
+  private final NioEventLoop loop;
+
+  /**
+   * The address of the client, kept so it is still known after closing.
+   */
+  private final InetAddress address;
+
+  /**
+   * Decodes and encodes messages in the client's format, null until the
+   * format is known.
+   */
+  private volatile MessageCodec codec;
+
+  /**
+   * Information saved about the client, such as its login id.
+   */
+  private final ConcurrentHashMap<String, Object> savedInfo =
+    new ConcurrentHashMap<String, Object>();
+
+  /**
+   * Encoded messages waiting to be written. Its monitor is held while the
+   * loop writes, so that closing does not write at the same time.
+   */
+  private final OutboundQueue<ByteBuffer> outbound;
+
+  /**
+   * Messages taken from the queue for a gathering write, from writeStart
+   * up to writeEnd, the first possibly partly written. Only touched while
+   * holding the queue's monitor.
+   */
+  private final ByteBuffer[] writing = new ByteBuffer[MAX_GATHER];
+  private int writeStart;
+  private int writeEnd;
+
+  /**
+   * The bytes queued since the last flush, for the batching window.
+   */
+  private final AtomicInteger unflushedBytes = new AtomicInteger();
+
+  /**
+   * Whether a flush at the end of the batching window is pending.
+   */
+  private final AtomicBoolean windowScheduled = new AtomicBoolean();
+
+  /**
+   * Whether a flush has been handed to the loop and has not yet run.
+   */
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+  /**
+   * Whether the connection has been closed.
+   */
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * Bytes received but not yet decoded into a message.
+   */
+  private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_INBOUND_SIZE);
+
+  /**
+   * The registration with the loop's selector, set once registered.
+   */
+  private SelectionKey key;
+
+  //Constructors ****************************************************
+
+  /**
+   * Sets up a connection for an accepted socket.
+   *
+   * @param channel The accepted socket.
+   * @param transport The transport that accepted it.
+   * @param loop The loop that will serve it.
+   * @exception IOException If the socket cannot be made non-blocking, or
+   *            TLS cannot be started on it.
+   */
+  NioConnection(SocketChannel channel, NioServerTransport transport,
+    NioEventLoop loop) throws IOException
+  {
+    this.channel = channel;
+    this.transport = transport;
+    this.loop = loop;
+    this.address = channel.socket().getInetAddress();
+    this.outbound = transport.server.newOutboundQueue();
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    channel.socket().setKeepAlive(true); //Finds the legacy clients that vanish, which are never pinged
+    javax.net.ssl.SSLContext context = transport.server.getTlsContext();
+    this.tls = context == null ? null : new TlsChannel(channel, context);
+    //Legacy clients wait for the header before sending their first message,
+    //so it goes out before the format is known. Framed clients expect it too.
+    outbound.offerControl(ObjectStreamCodec.header());
+  }
+
+  //Instance methods ************************************************
+
+  public void sendToClient(Object msg) throws IOException
+  {
+    MessageCodec encoder = codec;
+    if (closed.get() || encoder == null)
+      throw new SocketException("socket does not exist");
+    enqueue(encoder.encode(msg));
+    transport.server.metrics.messageOut();
+  }
+
+  /**
+   * Queues a view of the message's shared encoding, so no bytes are copied.
+   */
+  public void sendEncoded(EncodedMessage msg) throws IOException
+  {
+    MessageCodec encoder = codec;
+    if (closed.get() || encoder == null)
+      throw new SocketException("socket does not exist");
+    enqueue(msg.encoded(encoder.getWireFormat()));
+    transport.server.metrics.messageOut();
+  }
+
+  /**
+   * @return true once the client's format is known and it can take messages.
+   */
+  boolean isReady()
+  {
+    return codec != null && !closed.get();
+  }
+
+  /**
+   * Closes the connection and calls the server's clientDisconnected(...)
+   * hook. Messages already queued are written first if the socket can
+   * take them without blocking.
+   */
+  public void close() throws IOException
+  {
+    if (closeChannel())
+      transport.server.clientDisconnected(this);
+  }
+
+  /**
+   * @return true once the client has said which wire format it speaks.
+   */
+  boolean isNegotiated()
+  {
+    return codec != null;
+  }
+
+  public int getQueueDepth()
+  {
+    return outbound.depth();
+  }
+
+  public int getPeakQueueDepth()
+  {
+    return outbound.peakDepth();
+  }
+
+  public long getDroppedMessages()
+  {
+    return outbound.dropped();
+  }
+
+  public WireFormat getWireFormat()
+  {
+    MessageCodec current = codec;
+    return current == null ? null : current.getWireFormat();
+  }
+
+  public InetAddress getInetAddress()
+  {
+    return address;
+  }
+
+  public void setInfo(String infoType, Object info)
+  {
+    if (info == null)
+      savedInfo.remove(infoType);
+    else
+      savedInfo.put(infoType, info);
+  }
+
+  public Object getInfo(String infoType)
+  {
+    return savedInfo.get(infoType);
+  }
+
+  public String toString()
+  {
+    return address.getHostName() + " (" + address.getHostAddress() + ")";
+  }
+
+  /**
+   * Queues an encoded message and makes sure the loop will write it. Event
+   * loop threads and pipeline workers never wait for room, since every
+   * client of their loop or stage would wait with them.
+   *
+   * @param frame The encoded message.
+   * @exception IOException If the connection is closed, or was closed
+   *            because the client fell too far behind.
+   */
+  private void enqueue(ByteBuffer frame) throws IOException
+  {
+    if (!outbound.offer(frame,
+      !NioEventLoop.isLoopThread() && transport.server.mayWait()))
+    {
+      IOException exception = new SocketException(closed.get()
+        ? "socket does not exist" : "Client is not reading: outbound queue full");
+      fail(exception);
+      throw exception;
+    }
+    WriteBatching batching = transport.server.getWriteBatching();
+    if (batching.isImmediate()
+      || unflushedBytes.addAndGet(frame.remaining()) >= batching.getMaxBytes())
+      scheduleFlush();
+    else if (windowScheduled.compareAndSet(false, true))
+      loop.schedule(() -> {
+        windowScheduled.set(false);
+        flush();
+      }, batching.getMaxDelayNanos());
+  }
+
+  /**
+   * Makes sure the loop will write whatever has been queued, as soon as
+   * it can.
+   */
+  private void scheduleFlush()
+  {
+    if (loop.inLoop())
+      flush();
+    else if (flushScheduled.compareAndSet(false, true))
+      loop.execute(() -> {
+        flushScheduled.set(false);
+        flush();
+      });
+  }
+
+  /**
+   * Called on the loop's thread once the loop takes over the connection.
+   *
+   * @param selector The loop's selector.
+   */
+  void registered(Selector selector)
+  {
+    try
+    {
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+    catch (ClosedChannelException e)
+    {
+      return; //Closed before the loop got to it
+    }
+    flush();
+  }
+
+  /**
+   * Called on the loop's thread when the socket is readable. Every complete
+   * message received is passed to the server's handleMessageFromClient(...).
+   *
+   * @param buffer The loop's read buffer.
+   */
+  void read(ByteBuffer buffer)
+  {
+    try
+    {
+      buffer.clear();
+      int read = tls == null ? channel.read(buffer) : tls.read(buffer);
+      if (tls != null)
+        flush(); //Whatever the handshake has to say
+      if (read < 0)
+        throw new EOFException("Connection closed by client");
+      transport.server.metrics.bytesIn(read);
+      buffer.flip();
+      if (inbound.remaining() < buffer.remaining())
+      {
+        int needed = inbound.position() + buffer.remaining();
+        if (needed > MAX_INBOUND_SIZE)
+          throw new ProtocolException("Message too long");
+        ByteBuffer larger = ByteBuffer.allocate
+          (Math.min(Math.max(inbound.capacity() * 2, needed), MAX_INBOUND_SIZE));
+        inbound.flip();
+        larger.put(inbound);
+        inbound = larger;
+      }
+      inbound.put(buffer);
+      inbound.flip();
+      try
+      {
+        if (codec == null && !negotiate())
+          return;
+        Object msg;
+        while (!closed.get() && (msg = codec.decode(inbound)) != null)
+          transport.server.handleMessageFromClient(msg, this);
+      }
+      finally
+      {
+        inbound.compact();
+      }
+    }
+    catch (Exception exception)
+    {
+      fail(exception);
+    }
+  }
+
+  /**
+   * Picks the codec once the client's first bytes have arrived, and reports
+   * the client to the server. Framed clients are answered with the preamble
+   * agreeing to the version of their hello.
+   *
+   * @return true if the format is now known.
+   * @exception ProtocolException If the hello is of an unknown version.
+   */
+  private boolean negotiate() throws ProtocolException
+  {
+    if (inbound.remaining() < FramedCodec.DETECT_LENGTH)
+      return false;
+    byte[] first = new byte[FramedCodec.DETECT_LENGTH];
+    for (int i = 0; i < first.length; i++)
+      first[i] = inbound.get(inbound.position() + i);
+    if (FramedCodec.detect(first) == WireFormat.FRAMED)
+    {
+      byte[] hello = new byte[Frame.hello().length];
+      if (inbound.remaining() < hello.length)
+        return false;
+      for (int i = 0; i < hello.length; i++)
+        hello[i] = inbound.get(inbound.position() + i);
+      WireFormat format = Frame.formatOf(hello);
+      if (format == null)
+        throw new ProtocolException("Unsupported protocol version");
+      outbound.offerControl(ByteBuffer.wrap(Frame.preamble(format)));
+      scheduleFlush();
+      codec = new FramedCodec(format);
+    }
+    else
+      codec = new ObjectStreamCodec();
+    transport.server.clientConnected(this);
+    return true;
+  }
+
+  /**
+   * Called on the loop's thread to write as much queued data as the socket
+   * takes. Queued messages are gathered into as few writes as possible.
+   * Asks the selector for write readiness if some is left over.
+   */
+  void flush()
+  {
+    if (key == null || closed.get())
+      return;
+    unflushedBytes.set(0);
+    try
+    {
+      synchronized (outbound)
+      {
+        while (gather())
+        {
+          transport.server.metrics.bytesOut(write());
+          while (writeStart < writeEnd && !writing[writeStart].hasRemaining())
+            writing[writeStart++] = null;
+          if (writeStart < writeEnd)
+            break; //The socket is full, or the handshake is not done
+        }
+        //Under TLS, plaintext left during the handshake waits for the reads
+        //that move it along, rather than for the socket
+        boolean waiting = writeStart < writeEnd && (tls == null || !tls.isHandshaking())
+          || tls != null && !tls.flush();
+        key.interestOps(waiting ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+          : SelectionKey.OP_READ);
+      }
+    }
+    catch (IOException exception)
+    {
+      fail(exception);
+    }
+  }
+
+  /**
+   * Writes the messages gathered, through TLS if there is any. Called while
+   * holding the queue's monitor.
+   *
+   * @return The number of bytes taken from the messages.
+   * @exception IOException If the socket fails.
+   */
+  private long write() throws IOException
+  {
+    int length = writeEnd - writeStart;
+    return tls == null ? channel.write(writing, writeStart, length)
+      : tls.write(writing, writeStart, length);
+  }
+
+  /**
+   * Tops up the messages to write from the queue. Called while holding
+   * the queue's monitor.
+   *
+   * @return true if there is anything to write.
+   */
+  private boolean gather()
+  {
+    if (writeStart == writeEnd)
+      writeStart = writeEnd = 0;
+    else if (writeEnd == writing.length)
+    {
+      System.arraycopy(writing, writeStart, writing, 0, writeEnd - writeStart);
+      Arrays.fill(writing, writeEnd - writeStart, writeEnd, null);
+      writeEnd -= writeStart;
+      writeStart = 0;
+    }
+    ByteBuffer frame;
+    while (writeEnd < writing.length && (frame = outbound.poll()) != null)
+      writing[writeEnd++] = frame;
+    return writeStart < writeEnd;
+  }
+
+  /**
+   * Closes the connection after an error and calls the server's
+   * clientException(...) hook, as ConnectionToClient does.
+   *
+   * @param exception The error that ended the connection.
+   */
+  private void fail(Exception exception)
+  {
+    if (closeChannel())
+      transport.server.clientException(this, exception);
+  }
+
+  /**
+   * Closes the socket the first time it is called.
+   *
+   * @return true if this call closed the connection.
+   */
+  private boolean closeChannel()
+  {
+    if (!closed.compareAndSet(false, true))
+      return false;
+    transport.removed(this);
+    synchronized (outbound)
+    {
+      try
+      {
+        //Best effort: an error sent just before close() should arrive
+        long written;
+        while (gather() && (written = write()) > 0)
+        {
+          transport.server.metrics.bytesOut(written);
+          while (writeStart < writeEnd && !writing[writeStart].hasRemaining())
+            writing[writeStart++] = null;
+        }
+      }
+      catch (IOException e) {}
+      if (tls != null)
+        tls.close();
+      Arrays.fill(writing, null);
+      writeStart = writeEnd = 0;
+      outbound.close();
+    }
+    try
+    {
+      channel.close();
+    }
+    catch (IOException e) {}
+    return true;
+  }
+}
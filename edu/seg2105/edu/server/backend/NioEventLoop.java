@@ -0,0 +1,235 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One thread multiplexing many client connections on a single Selector.
+ * Reads, the server's message handling for those reads, and all socket
+ * writes for a connection happen on the loop that owns it. Other threads
+ * hand work to a loop through execute(...).
+ */
+final class NioEventLoop implements Runnable
+{
+  //Class variables *************************************************
+
+  /**
+   * The size of the buffer each loop reads into.
+   */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The loop running on the current thread, if any.
+   */
+  private static final ThreadLocal<NioEventLoop> current = new ThreadLocal<NioEventLoop>();
+
+  //Instance variables **********************************************
+
+  /**
+   * The selector watching this loop's connections.
+   */
+  private final Selector selector;
+
+  /**
+   * Work queued by other threads, run on the next pass of the loop.
+   */
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+  /**
+   * Work to run once a delay has passed, soonest first. Only touched on
+   * the loop's thread.
+   */
+  private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+  /**
+   * The buffer shared by every connection of this loop for socket reads.
+   */
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+  /**
+   * The thread running the loop.
+   */
+  private final Thread thread;
+
+  /**
+   * The server whose log reports tasks that fail.
+   */
+  private final EchoServer server;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a loop. It does not run until start() is called.
+   *
+   * @param name The name of the loop's thread.
+   * @param server The server whose log reports tasks that fail.
+   * @exception IOException If the selector cannot be opened.
+   */
+  NioEventLoop(String name, EchoServer server) throws IOException
+  {
+    this.server = server;
+    selector = Selector.open();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts the loop's thread.
+   */
+  void start()
+  {
+    thread.start();
+  }
+
+  /**
+   * @return true if the calling thread is this loop's thread.
+   */
+  boolean inLoop()
+  {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * @return true if the calling thread runs any event loop, and so must
+   *         never wait.
+   */
+  static boolean isLoopThread()
+  {
+    return current.get() != null;
+  }
+
+  /**
+   * Runs a task on this loop's thread.
+   *
+   * @param task The work to run.
+   */
+  void execute(Runnable task)
+  {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Runs a task on this loop's thread once a delay has passed.
+   *
+   * @param task The work to run.
+   * @param delayNanos The delay, in nanoseconds.
+   */
+  void schedule(Runnable task, long delayNanos)
+  {
+    Timer timer = new Timer(System.nanoTime() + delayNanos, task);
+    if (inLoop())
+      timers.add(timer);
+    else
+      execute(() -> timers.add(timer));
+  }
+
+  /**
+   * Hands a newly accepted connection to this loop.
+   *
+   * @param connection The connection to start reading from.
+   */
+  void register(NioConnection connection)
+  {
+    execute(() -> connection.registered(selector));
+  }
+
+  /**
+   * Waits for socket readiness and dispatches it to the connections.
+   */
+  public void run()
+  {
+    current.set(this);
+    while (true)
+    {
+      try
+      {
+        Timer next = timers.peek();
+        if (next == null)
+          selector.select();
+        else
+        {
+          long wait = next.deadline - System.nanoTime();
+          if (wait <= 0)
+            selector.selectNow();
+          else
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+        }
+      }
+      catch (IOException e)
+      {
+        continue;
+      }
+      Runnable task;
+      while ((task = tasks.poll()) != null)
+        runTask(task);
+      long now = System.nanoTime();
+      while (!timers.isEmpty() && timers.peek().deadline - now <= 0)
+        runTask(timers.poll().task);
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext())
+      {
+        SelectionKey key = keys.next();
+        keys.remove();
+        NioConnection connection = (NioConnection)key.attachment();
+        try
+        {
+          if (key.isValid() && key.isReadable())
+            connection.read(readBuffer);
+          if (key.isValid() && key.isWritable())
+            connection.flush();
+        }
+        catch (CancelledKeyException e) {} //Closed by another thread meanwhile
+      }
+    }
+  }
+
+  /**
+   * Runs a queued task or timer, logging rather than letting through what
+   * it throws, which would end the loop and every connection on it.
+   *
+   * @param task The work to run.
+   */
+  private void runTask(Runnable task)
+  {
+    try
+    {
+      task.run();
+    }
+    catch (Throwable e)
+    {
+      server.getLog().log(LogLevel.ERROR, "A task failed on {}: {}", thread.getName(), e);
+    }
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A task waiting for its deadline.
+   */
+  private static class Timer implements Comparable<Timer>
+  {
+    final long deadline;
+    final Runnable task;
+
+    Timer(long deadline, Runnable task)
+    {
+      this.deadline = deadline;
+      this.task = task;
+    }
+
+    public int compareTo(Timer other)
+    {
+      return Long.compare(deadline - other.deadline, 0);
+    }
+  }
+}
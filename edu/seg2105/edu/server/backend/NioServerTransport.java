@@ -0,0 +1,205 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A non-blocking transport for EchoServer. An acceptor thread hands each new
+ * socket to one of a small fixed pool of NioEventLoops, so the number of
+ * threads no longer grows with the number of clients as it does with OCSF's
+ * ConnectionToClient threads.
+ * <p>
+ * Clients may speak OCSF's wire format, so the existing ChatClient connects
+ * unchanged, or negotiate the framed protocol. Unlike OCSF, which handles
+ * one message at a time for the whole server, messages from clients on
+ * different loops are handled concurrently.
+ */
+public class NioServerTransport implements ServerTransport
+{
+  //Class variables *************************************************
+
+  /**
+   * The default number of event loops: one per available processor.
+   */
+  final public static int DEFAULT_EVENT_LOOPS =
+    Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The maximum queue length for incoming connection requests.
+   */
+  private static final int BACKLOG = 1024;
+
+  //Instance variables **********************************************
+
+  /**
+   * The server whose hooks are called for connection events and messages.
+   */
+  final EchoServer server;
+
+  /**
+   * The number of event loops to run.
+   */
+  private final int eventLoops;
+
+  /**
+   * The event loops, created the first time the server listens.
+   */
+  private NioEventLoop[] loops;
+
+  /**
+   * Every open connection.
+   */
+  private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The socket accepting new clients, null when not listening.
+   */
+  private volatile ServerSocketChannel serverChannel;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a transport for a server. Nothing is started until listen().
+   *
+   * @param server The server to run.
+   * @param eventLoops The number of event loop threads.
+   */
+  public NioServerTransport(EchoServer server, int eventLoops)
+  {
+    if (eventLoops < 1)
+      throw new IllegalArgumentException("At least one event loop is needed");
+    this.server = server;
+    this.eventLoops = eventLoops;
+  }
+
+  //Instance methods ************************************************
+
+  public synchronized void listen() throws IOException
+  {
+    if (isListening())
+      return;
+    if (loops == null)
+    {
+      NioEventLoop[] created = new NioEventLoop[eventLoops];
+      for (int i = 0; i < created.length; i++)
+        created[i] = new NioEventLoop("NIO event loop " + i, server);
+      for (NioEventLoop loop : created)
+        loop.start();
+      loops = created;
+    }
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    try
+    {
+      channel.bind(new InetSocketAddress(server.getPort()), BACKLOG);
+    }
+    catch (IOException e)
+    {
+      channel.close();
+      throw e;
+    }
+    serverChannel = channel;
+    new Thread(() -> accept(channel), "NIO acceptor").start();
+  }
+
+  public synchronized void stopListening()
+  {
+    ServerSocketChannel channel = serverChannel;
+    serverChannel = null;
+    if (channel != null)
+    {
+      try
+      {
+        channel.close(); //Wakes the acceptor, which then reports serverStopped()
+      }
+      catch (IOException e) {}
+    }
+  }
+
+  public void close() throws IOException
+  {
+    stopListening();
+    for (NioConnection connection : connections.toArray(new NioConnection[0]))
+    {
+      try
+      {
+        connection.close();
+      }
+      catch (Exception ex) {}
+    }
+  }
+
+  public boolean isListening()
+  {
+    return serverChannel != null;
+  }
+
+  public int getNumberOfClients()
+  {
+    return connections.size();
+  }
+
+  public Collection<ClientConnection> getClientConnections()
+  {
+    ArrayList<ClientConnection> clients = new ArrayList<ClientConnection>(connections.size());
+    for (NioConnection connection : connections)
+    {
+      if (connection.isReady())
+        clients.add(connection);
+    }
+    return clients;
+  }
+
+  /**
+   * Forgets a connection that has closed.
+   *
+   * @param connection The closed connection.
+   */
+  void removed(NioConnection connection)
+  {
+    connections.remove(connection);
+  }
+
+  /**
+   * Runs on the acceptor thread: accepts clients until the server socket
+   * is closed, spreading them over the loops in turn.
+   *
+   * @param channel The listening socket.
+   */
+  private void accept(ServerSocketChannel channel)
+  {
+    server.serverStarted();
+    int next = 0;
+    try
+    {
+      while (true)
+      {
+        SocketChannel socket = channel.accept();
+        NioEventLoop loop = loops[next];
+        next = (next + 1) % loops.length;
+        try
+        {
+          NioConnection connection = new NioConnection(socket, this, loop);
+          connections.add(connection);
+          loop.register(connection);
+          server.expectNegotiation(connection, connection::isNegotiated);
+        }
+        catch (IOException e)
+        {
+          socket.close();
+        }
+      }
+    }
+    catch (ClosedChannelException e) {} //stopListening() closed the socket
+    catch (IOException e)
+    {
+      server.serverUI.display("An error occured while accepting clients: " + e.getMessage());
+      stopListening();
+    }
+    server.serverStopped();
+  }
+}
@@ -0,0 +1,241 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * Reads and writes OCSF's wire format without blocking. OCSF connects an
+ * ObjectOutputStream to an ObjectInputStream and calls reset() after every
+ * object, so each message is a self-contained TC_STRING record followed by
+ * TC_RESET. That lets the transports frame and build messages by hand
+ * instead of keeping an object stream per socket, which would build any
+ * class a client names.
+ * <p>
+ * Only String messages can be decoded, which is all ChatClient sends, and
+ * only up to Frame.MAX_LENGTH bytes, as framed messages. Any Serializable
+ * object can be encoded.
+ */
+final class ObjectStreamCodec implements MessageCodec
+{
+  //Class variables *************************************************
+
+  /**
+   * Type codes and handle base from java.io.ObjectStreamConstants.
+   */
+  private static final byte TC_REFERENCE = 0x71;
+  private static final byte TC_STRING = 0x74;
+  private static final byte TC_RESET = 0x79;
+  private static final byte TC_LONGSTRING = 0x7C;
+  private static final int BASE_WIRE_HANDLE = 0x7e0000;
+
+  /**
+   * The stream header each side writes when its ObjectOutputStream is created.
+   */
+  private static final byte[] HEADER = {(byte)0xac, (byte)0xed, 0x00, 0x05};
+
+  //Instance variables **********************************************
+
+  /**
+   * Whether the peer's stream header has been read.
+   */
+  private boolean headerRead;
+
+  /**
+   * Strings received since the last TC_RESET, indexed by their wire handle.
+   */
+  private final ArrayList<String> handles = new ArrayList<String>();
+
+  //Instance methods ************************************************
+
+  /**
+   * Decodes the next object from the buffer. If the buffer does not hold
+   * a complete object, its position is left unchanged.
+   *
+   * @param in The bytes received so far, ready to be read.
+   * @return The next message, or null if more bytes are needed.
+   * @exception StreamCorruptedException If the bytes are not a valid
+   *            stream of Strings.
+   */
+  public Object decode(ByteBuffer in) throws StreamCorruptedException
+  {
+    while (true)
+    {
+      int start = in.position();
+      if (!headerRead)
+      {
+        if (in.remaining() < HEADER.length)
+          return null;
+        for (int i = 0; i < HEADER.length; i++)
+        {
+          if (in.get() != HEADER[i])
+            throw new StreamCorruptedException("Invalid stream header");
+        }
+        headerRead = true;
+        continue;
+      }
+      if (!in.hasRemaining())
+        return null;
+      byte code = in.get();
+      switch (code)
+      {
+        case TC_RESET:
+          handles.clear();
+          continue;
+        case TC_REFERENCE:
+          if (in.remaining() < 4)
+            break;
+          int handle = in.getInt() - BASE_WIRE_HANDLE;
+          if (handle < 0 || handle >= handles.size())
+            throw new StreamCorruptedException("Invalid handle " + handle);
+          return handles.get(handle);
+        case TC_STRING:
+        case TC_LONGSTRING:
+          if (in.remaining() < (code == TC_STRING ? 2 : 8))
+            break;
+          long length = code == TC_STRING ? in.getShort() & 0xffff : in.getLong();
+          if (length < 0 || length > Frame.MAX_LENGTH)
+            throw new StreamCorruptedException("Invalid string length " + length);
+          if (in.remaining() < length)
+            break;
+          String s = readModifiedUtf8(in, (int)length);
+          handles.add(s);
+          return s;
+        default:
+          throw new StreamCorruptedException
+            ("Unsupported type code " + Integer.toHexString(code & 0xff));
+      }
+      in.position(start); //Incomplete record, wait for more bytes
+      return null;
+    }
+  }
+
+  /**
+   * Encodes one message the way ConnectionToClient.sendToClient(...) does:
+   * the object followed by TC_RESET. The result does not depend on what was
+   * sent before.
+   *
+   * @param msg The message to encode.
+   * @return A buffer holding the encoded message, ready to be written.
+   * @exception IOException If the message cannot be serialized.
+   */
+  public ByteBuffer encode(Object msg) throws IOException
+  {
+    if (msg instanceof String)
+      return encodeString((String)msg);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    output.writeObject(msg);
+    output.reset();
+    output.flush();
+    //Strip the header: the client read it when the connection opened
+    return ByteBuffer.wrap(bytes.toByteArray(), HEADER.length,
+      bytes.size() - HEADER.length).slice();
+  }
+
+  public WireFormat getWireFormat()
+  {
+    return WireFormat.LEGACY;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the stream header the server must send as soon as a client
+   * connects, since the client's ObjectInputStream waits for it.
+   *
+   * @return A new buffer holding the header.
+   */
+  static ByteBuffer header()
+  {
+    return ByteBuffer.wrap(HEADER.clone());
+  }
+
+  /**
+   * Encodes a String as TC_STRING or TC_LONGSTRING followed by TC_RESET.
+   */
+  private static ByteBuffer encodeString(String s)
+  {
+    int length = modifiedUtf8Length(s);
+    boolean longString = length > 0xffff;
+    ByteBuffer out = ByteBuffer.allocate((longString ? 9 : 3) + length + 1);
+    if (longString)
+    {
+      out.put(TC_LONGSTRING);
+      out.putLong(length);
+    }
+    else
+    {
+      out.put(TC_STRING);
+      out.putShort((short)length);
+    }
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007f)
+        out.put((byte)c);
+      else if (c <= 0x07ff)
+      {
+        out.put((byte)(0xc0 | (c >> 6)));
+        out.put((byte)(0x80 | (c & 0x3f)));
+      }
+      else
+      {
+        out.put((byte)(0xe0 | (c >> 12)));
+        out.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+        out.put((byte)(0x80 | (c & 0x3f)));
+      }
+    }
+    out.put(TC_RESET);
+    out.flip();
+    return out;
+  }
+
+  /**
+   * Returns the number of bytes the modified UTF-8 form of a String takes.
+   */
+  private static int modifiedUtf8Length(String s)
+  {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007f)
+        length += 1;
+      else if (c <= 0x07ff)
+        length += 2;
+      else
+        length += 3;
+    }
+    return length;
+  }
+
+  /**
+   * Reads a String written in the modified UTF-8 of DataOutput.writeUTF(...).
+   */
+  private static String readModifiedUtf8(ByteBuffer in, int length)
+    throws StreamCorruptedException
+  {
+    char[] chars = new char[length];
+    int count = 0;
+    int end = in.position() + length;
+    while (in.position() < end)
+    {
+      int b = in.get() & 0xff;
+      if (b < 0x80)
+        chars[count++] = (char)b;
+      else if ((b & 0xe0) == 0xc0 && in.position() < end)
+        chars[count++] = (char)(((b & 0x1f) << 6) | (in.get() & 0x3f));
+      else if ((b & 0xf0) == 0xe0 && in.position() + 1 < end)
+        chars[count++] = (char)(((b & 0x0f) << 12)
+          | ((in.get() & 0x3f) << 6) | (in.get() & 0x3f));
+      else
+        throw new StreamCorruptedException("Malformed string");
+    }
+    return new String(chars, 0, count);
+  }
+}
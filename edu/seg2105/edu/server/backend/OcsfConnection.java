@@ -0,0 +1,217 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.seg2105.client.common.WireFormat;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * Presents one of OCSF's ConnectionToClient threads as a ClientConnection.
+ * ConnectionToClient writes on the sender's thread, so messages are queued
+ * and handed to it by a writer thread of our own, started on first use.
+ */
+class OcsfConnection implements ClientConnection
+{
+  //Class variables *************************************************
+
+  /**
+   * The group of the writer threads. AbstractServer counts every thread in
+   * its client thread group as a client, and a thread joins the group of
+   * the thread that creates it, so writers get a group of their own
+   * outside the server's.
+   */
+  private static final ThreadGroup writers = new ThreadGroup(rootGroup(), "OCSF writers");
+
+  //Instance variables **********************************************
+
+  /**
+   * The OCSF connection thread being wrapped.
+   */
+  final ConnectionToClient client;
+
+  /**
+   * Messages waiting for the writer thread.
+   */
+  private final OutboundQueue<Object> outbound;
+
+  /**
+   * The server, where the messages sent are counted.
+   */
+  private final EchoServer server;
+
+  /**
+   * Whether the writer thread has been started.
+   */
+  private final AtomicBoolean writerStarted = new AtomicBoolean();
+
+  /**
+   * The writer thread, null until started.
+   */
+  private volatile Thread writer;
+
+  /**
+   * Set once OCSF has closed the connection.
+   */
+  private volatile boolean closed;
+
+  //Constructors ****************************************************
+
+  /**
+   * Wraps an OCSF connection.
+   *
+   * @param client The connection thread for the client.
+   * @param outbound The queue for messages to the client.
+   * @param server The server, where the messages sent are counted.
+   */
+  OcsfConnection(ConnectionToClient client, OutboundQueue<Object> outbound, EchoServer server)
+  {
+    this.client = client;
+    this.outbound = outbound;
+    this.server = server;
+  }
+
+  //Instance methods ************************************************
+
+  public void sendToClient(Object msg) throws IOException
+  {
+    if (!outbound.offer(msg, server.mayWait()))
+    {
+      if (closed || !client.isAlive())
+        throw new SocketException("socket does not exist");
+      client.close();
+      throw new SocketException("Client is not reading: outbound queue full");
+    }
+    server.metrics.messageOut();
+    if (writerStarted.compareAndSet(false, true))
+    {
+      Thread thread = new Thread(writers, this::write, "Writer for " + client);
+      thread.setDaemon(true);
+      writer = thread;
+      thread.start();
+    }
+  }
+
+  /**
+   * OCSF only writes through its own object stream, so the message is
+   * serialized again for this client.
+   */
+  public void sendEncoded(EncodedMessage msg) throws IOException
+  {
+    sendToClient(msg.getMessage());
+  }
+
+  /**
+   * Closes the connection once the writer has sent what is queued, or
+   * after a short wait if the client is not reading. A pipeline worker
+   * leaves the wait to the server's reaper thread.
+   */
+  public void close() throws IOException
+  {
+    outbound.shutdown();
+    Thread thread = writer;
+    if (thread == null || thread == Thread.currentThread())
+    {
+      client.close();
+      return;
+    }
+    server.runMayWait(() -> {
+      try
+      {
+        thread.join(OutboundQueue.CLOSE_LINGER_MILLIS);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      try
+      {
+        client.close();
+      }
+      catch (IOException e) {}
+    });
+  }
+
+  public int getQueueDepth()
+  {
+    return outbound.depth();
+  }
+
+  public int getPeakQueueDepth()
+  {
+    return outbound.peakDepth();
+  }
+
+  public long getDroppedMessages()
+  {
+    return outbound.dropped();
+  }
+
+  public WireFormat getWireFormat()
+  {
+    return WireFormat.LEGACY;
+  }
+
+  public InetAddress getInetAddress()
+  {
+    return client.getInetAddress();
+  }
+
+  public void setInfo(String infoType, Object info)
+  {
+    client.setInfo(infoType, info);
+  }
+
+  public Object getInfo(String infoType)
+  {
+    return client.getInfo(infoType);
+  }
+
+  public String toString()
+  {
+    return client.toString();
+  }
+
+  /**
+   * Stops the writer once OCSF has closed the connection.
+   */
+  void closed()
+  {
+    closed = true;
+    outbound.close();
+  }
+
+  /**
+   * Runs on the writer thread: hands queued messages to OCSF until the
+   * connection closes. A failed write ends the writer, and OCSF's reader
+   * reports the broken connection.
+   */
+  private void write()
+  {
+    try
+    {
+      Object msg;
+      while ((msg = outbound.take()) != null)
+        client.sendToClient(msg);
+    }
+    catch (Exception exception)
+    {
+      outbound.close();
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * @return The thread group at the top of the current thread's tree.
+   */
+  private static ThreadGroup rootGroup()
+  {
+    ThreadGroup group = Thread.currentThread().getThreadGroup();
+    while (group.getParent() != null)
+      group = group.getParent();
+    return group;
+  }
+}
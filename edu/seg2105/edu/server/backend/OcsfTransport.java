@@ -0,0 +1,140 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ocsf.server.ConnectionToClient;
+
+/**
+ * The original engine: OCSF's AbstractServer, which EchoServer extends,
+ * running one ConnectionToClient thread per client.
+ * <p>
+ * Connected clients are tracked in a concurrent map rather than by
+ * enumerating AbstractServer's client thread group, which takes the
+ * server's monitor and copies the group on every broadcast. Connects,
+ * disconnects and broadcasts then never wait for one another.
+ */
+class OcsfTransport implements ServerTransport
+{
+  //Class variables *************************************************
+
+  /**
+   * The key under which an OCSF connection's info holds its wrapper.
+   */
+  private static final String connectionKey = "connection";
+
+  //Instance variables **********************************************
+
+  /**
+   * The server whose OCSF superclass accepts the clients.
+   */
+  private final EchoServer server;
+
+  /**
+   * The wrapper handed to the chat logic for each connected OCSF client, so
+   * that a client is always seen as the same ClientConnection.
+   */
+  private final ConcurrentHashMap<ConnectionToClient, OcsfConnection> connections =
+    new ConcurrentHashMap<ConnectionToClient, OcsfConnection>();
+
+  //Constructors ****************************************************
+
+  /**
+   * @param server The server this transport runs.
+   */
+  OcsfTransport(EchoServer server)
+  {
+    this.server = server;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts tracking a client that has connected.
+   *
+   * @param client The OCSF connection.
+   * @return The wrapper for the connection.
+   */
+  ClientConnection connected(ConnectionToClient client)
+  {
+    return connections.computeIfAbsent(client, c -> {
+      OcsfConnection connection = new OcsfConnection(c, server.<Object>newOutboundQueue(), server);
+      c.setInfo(connectionKey, connection);
+      return connection;
+    });
+  }
+
+  /**
+   * Returns the ClientConnection wrapping an OCSF connection. A connection
+   * already forgotten, whose last message is still being handled as it is
+   * closed by another thread, keeps its wrapper, now closed, so that the
+   * message is handled after its disconnect rather than beside it; one
+   * never reported connected gets a closed wrapper of its own rather than
+   * being tracked again.
+   *
+   * @param client The OCSF connection.
+   * @return The wrapper for the connection.
+   */
+  ClientConnection connectionFor(ConnectionToClient client)
+  {
+    OcsfConnection connection = connections.get(client);
+    if (connection == null)
+      connection = (OcsfConnection)client.getInfo(connectionKey);
+    if (connection == null)
+    {
+      connection = new OcsfConnection(client, server.<Object>newOutboundQueue(), server);
+      connection.closed();
+    }
+    return connection;
+  }
+
+  /**
+   * Drops the wrapper of a connection that has closed, stopping its writer.
+   *
+   * @param client The OCSF connection.
+   */
+  void forget(ConnectionToClient client)
+  {
+    OcsfConnection connection = connections.remove(client);
+    if (connection != null)
+      connection.closed();
+  }
+
+  /**
+   * Starts OCSF listening. OCSF opens its own plain sockets, so it refuses
+   * to listen for a server that expects TLS.
+   */
+  public void listen() throws IOException
+  {
+    if (server.getTlsContext() != null)
+      throw new IOException("The ocsf transport does not support TLS");
+    server.listen();
+  }
+
+  public void stopListening()
+  {
+    server.stopListening();
+  }
+
+  public void close() throws IOException
+  {
+    server.close();
+  }
+
+  public boolean isListening()
+  {
+    return server.isListening();
+  }
+
+  public int getNumberOfClients()
+  {
+    return connections.size();
+  }
+
+  public Collection<ClientConnection> getClientConnections()
+  {
+    return new ArrayList<ClientConnection>(connections.values());
+  }
+}
@@ -0,0 +1,279 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Private messages kept for users who are not logged in, delivered when
+ * they next log in. A user can only be sent messages once they have
+ * logged in at least once, which is when their inbox is created.
+ * <p>
+ * Every inbox is a file, written through as each message arrives, so
+ * nothing is lost when the server stops. The files are spread over 256
+ * directories so that none grows too large with many users. Only the
+ * inboxes used most recently are also held in memory, a bounded number
+ * per stripe; the others are evicted, least recently used first, and read
+ * back from disk if needed. Memory therefore stays the same however many
+ * users there are.
+ * <p>
+ * An inbox holds at most INBOX_LIMIT messages; beyond that the oldest are
+ * dropped.
+ */
+public final class OfflineInbox
+{
+  //Class variables *************************************************
+
+  /**
+   * The most messages an inbox holds.
+   */
+  static final int INBOX_LIMIT = 100;
+
+  /**
+   * The default number of inboxes held in memory.
+   */
+  public static final int DEFAULT_CACHED_INBOXES = 1024;
+
+  /**
+   * The number of independently locked parts of the cache.
+   */
+  private static final int STRIPES = 64;
+
+  /**
+   * The login ids longer than this, in bytes, are hashed for their file
+   * name.
+   */
+  private static final int MAX_NAME_BYTES = 100;
+
+  private static final String SUFFIX = ".inbox";
+
+  /**
+   * What became of a message stored with store(...).
+   */
+  enum Outcome
+  {
+    /**
+     * Kept for the user's next login.
+     */
+    STORED,
+
+    /**
+     * Not kept: the user has logged in meanwhile.
+     */
+    ONLINE,
+
+    /**
+     * Not kept: the user has never logged in.
+     */
+    UNKNOWN
+  }
+
+  //Instance variables **********************************************
+
+  /**
+   * The directory holding the inboxes.
+   */
+  private final Path directory;
+
+  /**
+   * The cached inboxes, each part holding those of the users that hash
+   * to it.
+   */
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  //Constructors ****************************************************
+
+  /**
+   * Opens the inboxes in a directory, creating it if needed.
+   *
+   * @param directory The directory of the inboxes.
+   * @param cachedInboxes The most inboxes to hold in memory.
+   * @exception IOException If the directory cannot be created.
+   */
+  public OfflineInbox(Path directory, int cachedInboxes) throws IOException
+  {
+    this.directory = directory;
+    Files.createDirectories(directory);
+    int perStripe = Math.max(1, cachedInboxes / STRIPES);
+    for (int i = 0; i < STRIPES; i++)
+      stripes[i] = new Stripe(perStripe);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Keeps a message for a user who is not logged in. The check that the
+   * user is still not logged in is made under the same lock as draining
+   * their inbox at login, so a message is never left behind by a login
+   * happening at the same time.
+   *
+   * @param loginID The user.
+   * @param msg The message.
+   * @param logins Who is logged in.
+   * @return What became of the message.
+   * @exception IOException If the inbox cannot be written.
+   */
+  Outcome store(String loginID, String msg, LoginRegistry logins) throws IOException
+  {
+    Stripe stripe = stripeOf(loginID);
+    synchronized (stripe)
+    {
+      if (logins.lookup(loginID) != null)
+        return Outcome.ONLINE;
+      Path file = fileOf(loginID);
+      ArrayDeque<String> inbox = stripe.get(loginID);
+      if (inbox == null)
+      {
+        if (!Files.exists(file))
+          return Outcome.UNKNOWN;
+        inbox = read(file);
+        stripe.put(loginID, inbox);
+      }
+      inbox.add(msg);
+      if (inbox.size() > INBOX_LIMIT)
+      {
+        while (inbox.size() > INBOX_LIMIT)
+          inbox.poll();
+        rewrite(file, inbox);
+      }
+      else
+      {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(file, StandardOpenOption.APPEND))))
+        {
+          writeMessage(out, msg);
+        }
+      }
+      return Outcome.STORED;
+    }
+  }
+
+  /**
+   * Empties a user's inbox as they log in, creating it on their first
+   * login. To be called once the user is in the login registry.
+   *
+   * @param loginID The user.
+   * @return The messages kept for the user, oldest first.
+   * @exception IOException If the inbox cannot be read or emptied.
+   */
+  List<String> drain(String loginID) throws IOException
+  {
+    Stripe stripe = stripeOf(loginID);
+    synchronized (stripe)
+    {
+      Path file = fileOf(loginID);
+      ArrayDeque<String> inbox = stripe.remove(loginID);
+      if (inbox == null)
+        inbox = Files.exists(file) ? read(file) : new ArrayDeque<String>();
+      Files.createDirectories(file.getParent());
+      Files.write(file, new byte[0]); //Created or emptied
+      return new ArrayList<String>(inbox);
+    }
+  }
+
+  private Stripe stripeOf(String loginID)
+  {
+    return stripes[(loginID.hashCode() & 0x7fffffff) % STRIPES];
+  }
+
+  /**
+   * Returns the file of a user's inbox. The name is the login id in hex,
+   * so any id makes a safe file name, in a directory chosen by its hash.
+   */
+  private Path fileOf(String loginID)
+  {
+    byte[] name = loginID.getBytes(StandardCharsets.UTF_8);
+    String prefix = "";
+    if (name.length > MAX_NAME_BYTES)
+    {
+      try
+      {
+        name = MessageDigest.getInstance("SHA-256").digest(name);
+        prefix = "h";
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+        throw new IllegalStateException(e); //Every JVM has SHA-256
+      }
+    }
+    StringBuilder file = new StringBuilder(prefix);
+    for (byte b : name)
+      file.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    String bucket = String.format("%02x", loginID.hashCode() & 0xff);
+    return directory.resolve(bucket).resolve(file.append(SUFFIX).toString());
+  }
+
+  /**
+   * Reads an inbox file. A message cut short by a crash ends it.
+   */
+  private static ArrayDeque<String> read(Path file) throws IOException
+  {
+    ArrayDeque<String> inbox = new ArrayDeque<String>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+    {
+      while (true)
+      {
+        byte[] msg = new byte[in.readInt()];
+        in.readFully(msg);
+        inbox.add(new String(msg, StandardCharsets.UTF_8));
+        if (inbox.size() > INBOX_LIMIT)
+          inbox.poll();
+      }
+    }
+    catch (EOFException e) {} //The end of the inbox
+    return inbox;
+  }
+
+  /**
+   * Replaces an inbox file with the given messages, all at once.
+   */
+  private static void rewrite(Path file, Collection<String> inbox) throws IOException
+  {
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      Files.newOutputStream(temporary))))
+    {
+      for (String msg : inbox)
+        writeMessage(out, msg);
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void writeMessage(DataOutputStream out, String msg) throws IOException
+  {
+    byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * One part of the cache: the most recently used inboxes of the users
+   * that hash to it, in access order. Locked as a whole.
+   */
+  private static final class Stripe extends LinkedHashMap<String, ArrayDeque<String>>
+  {
+    private static final long serialVersionUID = 1L; //LinkedHashMap is Serializable; stripes never are
+
+    private final int capacity;
+
+    Stripe(int capacity)
+    {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    /**
+     * Evicts the least recently used inbox once the stripe is full. Every
+     * inbox is already on disk, so it is simply dropped.
+     */
+    protected boolean removeEldestEntry(Map.Entry<String, ArrayDeque<String>> eldest)
+    {
+      return size() > capacity;
+    }
+  }
+}
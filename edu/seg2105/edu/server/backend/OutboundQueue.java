@@ -0,0 +1,374 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The messages waiting to be written to one client. Senders only add to the
+ * queue, and the connection's writer takes from it, so a client that reads
+ * slowly delays nobody but itself. The queue is bounded, and an
+ * OverflowPolicy decides what happens when it fills.
+ * <p>
+ * Protocol bytes such as stream headers may be queued ahead of the first
+ * message with offerControl(...). They are never dropped and do not count
+ * towards the bound.
+ *
+ * @param <E> The type of the queued messages.
+ */
+final class OutboundQueue<E>
+{
+  //Class variables *************************************************
+
+  /**
+   * How long a sender waits for room under OverflowPolicy.BLOCK before
+   * the client is given up on.
+   */
+  static final long BLOCK_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * How long closing a connection waits for its queued messages to be
+   * written, so that an error sent just before closing still arrives.
+   */
+  static final long CLOSE_LINGER_MILLIS = 1000;
+
+  //Instance variables **********************************************
+
+  /**
+   * The most messages held before the policy applies.
+   */
+  private final int capacity;
+
+  /**
+   * What to do when the queue is full.
+   */
+  private final OverflowPolicy policy;
+
+  /**
+   * The queued items, oldest first.
+   */
+  private final ArrayDeque<E> items = new ArrayDeque<E>();
+
+  /**
+   * The number of control items at the head of the queue.
+   */
+  private int control;
+
+  /**
+   * Guards the queue. A lock rather than a monitor, so that a virtual
+   * thread waiting for room does not pin its carrier.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  /**
+   * The largest number of messages queued at once.
+   */
+  private int peak;
+
+  /**
+   * The number of messages discarded under OverflowPolicy.DROP_OLDEST.
+   */
+  private long dropped;
+
+  /**
+   * Set once the connection is closing: no more messages are accepted, but
+   * those already queued are still written.
+   */
+  private boolean shutdown;
+
+  /**
+   * Set once the connection has closed.
+   */
+  private boolean closed;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param capacity The most messages held before the policy applies.
+   * @param policy What to do when the queue is full.
+   */
+  OutboundQueue(int capacity, OverflowPolicy policy)
+  {
+    if (capacity < 1)
+      throw new IllegalArgumentException("The capacity must be positive");
+    this.capacity = capacity;
+    this.policy = policy;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Queues a message, applying the overflow policy if the queue is full.
+   *
+   * @param msg The message to queue.
+   * @param mayWait false if the calling thread must not wait for room, in
+   *        which case a full queue under BLOCK is as under DISCONNECT.
+   * @return false if the client is too slow and should be disconnected,
+   *         or the queue is closed.
+   */
+  boolean offer(E msg, boolean mayWait)
+  {
+    lock.lock();
+    try
+    {
+      if (closed || shutdown)
+        return false;
+      if (items.size() - control >= capacity)
+      {
+        switch (policy)
+        {
+          case DROP_OLDEST:
+            dropOldest();
+            break;
+          case BLOCK:
+            if (!mayWait || !awaitRoom())
+              return false; //A thread that must not wait gives the client up at once
+            break;
+          default:
+            return false;
+        }
+        if (closed || shutdown)
+          return false;
+      }
+      items.add(msg);
+      peak = Math.max(peak, items.size() - control);
+      notEmpty.signal();
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queues protocol bytes that must reach the client. Only to be called
+   * before any message has been queued.
+   *
+   * @param item The bytes to queue.
+   */
+  void offerControl(E item)
+  {
+    lock.lock();
+    try
+    {
+      items.add(item);
+      control++;
+      notEmpty.signal();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes the oldest item without waiting.
+   *
+   * @return The item, or null if the queue is empty.
+   */
+  E poll()
+  {
+    lock.lock();
+    try
+    {
+      return take(items.poll());
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes the oldest item, waiting for one if the queue is empty.
+   *
+   * @return The item, or null once the queue is closed, or shut down and
+   *         empty.
+   * @exception InterruptedException If the thread is interrupted while waiting.
+   */
+  E take() throws InterruptedException
+  {
+    lock.lock();
+    try
+    {
+      while (items.isEmpty() && !closed && !shutdown)
+        notEmpty.await();
+      return closed ? null : take(items.poll());
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes the oldest item, waiting a limited time for one if the queue is
+   * empty.
+   *
+   * @param timeoutNanos The longest to wait, in nanoseconds.
+   * @return The item, or null if none came in time or the queue is closed,
+   *         or shut down and empty.
+   * @exception InterruptedException If the thread is interrupted while waiting.
+   */
+  E poll(long timeoutNanos) throws InterruptedException
+  {
+    lock.lock();
+    try
+    {
+      while (items.isEmpty() && !closed && !shutdown && timeoutNanos > 0)
+        timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+      return closed ? null : take(items.poll());
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Refuses further messages but lets the writer take those already
+   * queued, after which take() returns null.
+   */
+  void shutdown()
+  {
+    lock.lock();
+    try
+    {
+      shutdown = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Discards everything queued and wakes any waiting thread. Later offers
+   * are refused.
+   */
+  void close()
+  {
+    lock.lock();
+    try
+    {
+      closed = true;
+      items.clear();
+      control = 0;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of messages waiting to be written.
+   */
+  int depth()
+  {
+    lock.lock();
+    try
+    {
+      return items.size() - control;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The largest number of messages that have waited at once.
+   */
+  int peakDepth()
+  {
+    lock.lock();
+    try
+    {
+      return peak;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of messages discarded to make room.
+   */
+  long dropped()
+  {
+    lock.lock();
+    try
+    {
+      return dropped;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Accounts for an item leaving the head of the queue. Called with the
+   * lock held.
+   */
+  private E take(E item)
+  {
+    if (item != null)
+    {
+      if (control > 0)
+        control--;
+      else
+        notFull.signal();
+    }
+    return item;
+  }
+
+  /**
+   * Discards the oldest message, leaving control items in place. Called
+   * with the lock held.
+   */
+  private void dropOldest()
+  {
+    Iterator<E> it = items.iterator();
+    for (int i = 0; i <= control; i++)
+      it.next();
+    it.remove();
+    dropped++;
+  }
+
+  /**
+   * Waits until there is room for a message. Called with the lock held.
+   *
+   * @return false if no room was made in time.
+   */
+  private boolean awaitRoom()
+  {
+    long nanos = TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT_MILLIS);
+    try
+    {
+      while (items.size() - control >= capacity && !closed && !shutdown)
+      {
+        if (nanos <= 0)
+          return false;
+        nanos = notFull.awaitNanos(nanos);
+      }
+      return true;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package edu.seg2105.edu.server.backend;
+
+/**
+ * What a client's outbound queue does with a message when the client is
+ * not reading fast enough and the queue is full.
+ */
+public enum OverflowPolicy
+{
+  /**
+   * Discards the oldest queued message to make room. The client misses
+   * messages but stays connected.
+   */
+  DROP_OLDEST,
+
+  /**
+   * Disconnects the client, which may connect again once it catches up.
+   */
+  DISCONNECT,
+
+  /**
+   * Makes the sender wait for room, for at most a few seconds before the
+   * client is disconnected. Threads that must not wait, such as event
+   * loops and pipeline workers, disconnect the client at once instead, so
+   * that the queue never grows past its bound.
+   */
+  BLOCK
+}
@@ -0,0 +1,150 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket per key, for instance per login id or per address, that
+ * lets a burst of messages through at once and then a steady rate.
+ * <p>
+ * Each bucket is held as a single time, the one at which it would be full
+ * again (the "generic cell rate algorithm" form of a token bucket), so a
+ * message is checked with one map lookup and one compare-and-set, without
+ * locks, whichever threads check the same key. A full bucket is the same as
+ * a new one, so the owner calls sweep(...) every SWEEP_NANOS, off the
+ * message path, to drop the buckets that have refilled, and the map only
+ * holds the keys that sent recently.
+ *
+ * @param <K> The type of the keys.
+ */
+public final class RateLimiter<K>
+{
+  //Class variables *************************************************
+
+  /**
+   * How often buckets that have refilled should be dropped.
+   */
+  static final long SWEEP_NANOS = 10000000000L;
+
+  /**
+   * The time of a bucket being dropped, never that of a live one. A
+   * message that finds it starts a new bucket.
+   */
+  private static final long DEAD = Long.MIN_VALUE;
+
+  //Instance variables **********************************************
+
+  /**
+   * The messages allowed per second once a burst is spent.
+   */
+  private final double rate;
+
+  /**
+   * The messages allowed at once by a full bucket.
+   */
+  private final int burst;
+
+  /**
+   * The time one token takes to come back, in nanoseconds.
+   */
+  private final long interval;
+
+  /**
+   * The time of each key's bucket at which it is full again. A message
+   * adds interval to it, and is refused if that would put it more than a
+   * whole bucket's worth of time ahead of now.
+   */
+  private final ConcurrentHashMap<K, AtomicLong> buckets = new ConcurrentHashMap<K, AtomicLong>();
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a rate limiter.
+   *
+   * @param rate The messages allowed per second once a burst is spent.
+   * @param burst The messages allowed at once after a quiet spell.
+   */
+  public RateLimiter(double rate, int burst)
+  {
+    if (!(rate > 0) || burst < 1)
+      throw new IllegalArgumentException("The rate and burst must be positive");
+    this.rate = rate;
+    this.burst = burst;
+    this.interval = Math.max(1, (long)(1e9 / rate));
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The messages allowed per second once a burst is spent.
+   */
+  public double getRate()
+  {
+    return rate;
+  }
+
+  /**
+   * @return The messages allowed at once after a quiet spell.
+   */
+  public int getBurst()
+  {
+    return burst;
+  }
+
+  /**
+   * Takes a token from a key's bucket if there is one.
+   *
+   * @param key The key.
+   * @param now The value of System.nanoTime().
+   * @return true if the message is within the limit.
+   */
+  boolean tryAcquire(K key, long now)
+  {
+    while (true)
+    {
+      AtomicLong bucket = buckets.get(key);
+      if (bucket == null)
+        bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+      long full;
+      long next;
+      do
+      {
+        full = bucket.get();
+        if (full == DEAD)
+          break;
+        next = (full - now < 0 ? now : full) + interval;
+        if (next - now > interval * burst)
+          return false;
+      }
+      while (!bucket.compareAndSet(full, next));
+      if (full != DEAD)
+        return true;
+      buckets.remove(key, bucket); //Swept meanwhile: it was full, so start a new one
+    }
+  }
+
+  /**
+   * Drops the buckets that have refilled. Each is first marked dead, so
+   * that a message taking from it meanwhile either comes first and keeps
+   * it, or finds it dead and starts a new one; no charge is lost.
+   *
+   * @param now The value of System.nanoTime().
+   */
+  void sweep(long now)
+  {
+    buckets.forEach((key, bucket) -> {
+      long full = bucket.get();
+      if (full != DEAD && full - now <= 0 && bucket.compareAndSet(full, DEAD))
+        buckets.remove(key, bucket);
+    });
+  }
+
+  /**
+   * @return The limit as rate/s with its burst, for display.
+   */
+  public String toString()
+  {
+    String perSecond = rate == Math.rint(rate) ? Long.toString((long)rate) : Double.toString(rate);
+    return perSecond + "/s (burst " + burst + ")";
+  }
+}
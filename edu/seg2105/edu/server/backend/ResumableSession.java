@@ -0,0 +1,240 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+
+/**
+ * The part of a user's stay that survives a dropped connection: who they
+ * are, the token that lets them take the session up again, and the last
+ * messages sent to them.
+ * <p>
+ * Every message sent through a session is given the next sequence number
+ * of the session's stream, from 1 for as long as the session lasts. The
+ * number is not sent with the message: the client counts what it
+ * receives, and the connection delivers in order, so the two agree. It is
+ * only sent where they could disagree, when the session is attached. The
+ * client acknowledges the number it has reached now and then, rather than
+ * each message, and what it has acknowledged need no longer be kept.
+ * <p>
+ * A client that reconnects says the number it reached. The messages it is
+ * missing from the ones sent before the drop are replayed from here, under
+ * their own numbers; those sent to its channel after the drop are replayed
+ * from the journal, from the offset it had reached when the session was
+ * parked.
+ * <p>
+ * Sending through a session numbers, records and sends the message under
+ * its lock, so the numbers follow the order in which the client receives
+ * them.
+ */
+final class ResumableSession
+{
+  //Instance variables **********************************************
+
+  /**
+   * The user the session belongs to.
+   */
+  final String loginID;
+
+  /**
+   * What the client presents to take the session up again. A new one is
+   * issued each time it is taken up.
+   */
+  private String token;
+
+  /**
+   * The last messages sent, by their number modulo the length. Those
+   * acknowledged are cleared.
+   */
+  private final Object[] recent;
+
+  /**
+   * The number of the last message sent.
+   */
+  private long sent;
+
+  /**
+   * The number of the last message the client acknowledged.
+   */
+  private long acknowledged;
+
+  /**
+   * The connection the session is on, or null while it is parked.
+   */
+  private ClientConnection connection;
+
+  /**
+   * While parked: the client's channel, the journal's end offset, or -1
+   * without a journal, and when it was parked, by System.nanoTime().
+   */
+  private String channel;
+  private long journalOffset;
+  private long parkedAt;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param loginID The user.
+   * @param token The first token.
+   * @param capacity How many of the last messages sent are kept.
+   */
+  ResumableSession(String loginID, String token, int capacity)
+  {
+    this.loginID = loginID;
+    this.token = token;
+    this.recent = new Object[capacity];
+    this.parkedAt = System.nanoTime(); //Not yet attached, which counts as parked
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The token that takes up the session.
+   */
+  synchronized String getToken()
+  {
+    return token;
+  }
+
+  /**
+   * Puts the session on a connection, telling the client its token, then
+   * sending it again the messages it missed that are still kept. A new
+   * client is sent "#session <token>"; one taking the session up again is
+   * also told the number its stream goes on from, "#session <token>
+   * <number>", the messages sent again coming after it.
+   * <p>
+   * The number is the one the client reached, unless the messages after it
+   * are no longer kept, in which case it is further on and the client can
+   * tell how many it missed, or the client reached further than the server
+   * sent, in which case it is behind and the client can tell the ones it
+   * already has.
+   *
+   * @param client The connection.
+   * @param newToken The token to issue.
+   * @param received The number of the last message the client received,
+   *        or -1 if it is new.
+   * @return The number of messages sent again.
+   * @exception IOException If the token or a message cannot be sent.
+   */
+  synchronized long attach(ClientConnection client, String newToken, long received)
+    throws IOException
+  {
+    long from = sent;
+    if (received >= 0)
+      from = Math.min(sent, Math.max(received, Math.max(acknowledged, sent - recent.length)));
+    token = newToken;
+    connection = client;
+    client.sendToClient(received < 0 ? "#session " + newToken : "#session " + newToken + " " + from);
+    for (long n = from + 1; n <= sent; n++)
+    {
+      Object msg = recent[(int)(n % recent.length)];
+      if (msg instanceof EncodedMessage)
+        client.sendEncoded((EncodedMessage)msg);
+      else
+        client.sendToClient(msg);
+    }
+    return sent - from;
+  }
+
+  /**
+   * Records that the client received every message up to a number, and
+   * stops keeping them.
+   *
+   * @param client The connection the acknowledgement came on.
+   * @param number The number of the last message received.
+   * @return false if the number was never sent, true otherwise.
+   */
+  synchronized boolean acknowledge(ClientConnection client, long number)
+  {
+    if (number > sent || number < 0)
+      return false;
+    if (connection != client || number <= acknowledged)
+      return true; //From a connection since replaced, or overtaken
+    for (long n = Math.max(acknowledged, sent - recent.length) + 1; n <= number; n++)
+      recent[(int)(n % recent.length)] = null;
+    acknowledged = number;
+    return true;
+  }
+
+  /**
+   * @return How many messages have been sent that the client has not yet
+   *         acknowledged.
+   */
+  synchronized long unacknowledged()
+  {
+    return sent - acknowledged;
+  }
+
+  /**
+   * Sends a message to the session's client, keeping it to be replayed.
+   * A message sent after the session was parked is dropped: its client is
+   * gone, and what it missed in its channel is found in the journal.
+   *
+   * @param client The connection to send on.
+   * @param msg The message, a String or an EncodedMessage.
+   * @exception IOException If the message cannot be sent.
+   */
+  synchronized void send(ClientConnection client, Object msg) throws IOException
+  {
+    if (connection != client)
+      return;
+    recent[(int)(++sent % recent.length)] = msg;
+    if (msg instanceof EncodedMessage)
+      client.sendEncoded((EncodedMessage)msg);
+    else
+      client.sendToClient(msg);
+  }
+
+  /**
+   * Takes the session off its connection until it is taken up again or
+   * expires.
+   *
+   * @param channel The channel the client was in.
+   * @param journalOffset The journal's end offset, or -1 without a journal.
+   * @param now The value of System.nanoTime().
+   * @return The connection the session was on, or null if already parked.
+   */
+  synchronized ClientConnection park(String channel, long journalOffset, long now)
+  {
+    ClientConnection previous = connection;
+    if (previous == null)
+      return null;
+    connection = null;
+    this.channel = channel;
+    this.journalOffset = journalOffset;
+    parkedAt = now;
+    return previous;
+  }
+
+  /**
+   * @return The connection the session is on, or null while parked.
+   */
+  synchronized ClientConnection getConnection()
+  {
+    return connection;
+  }
+
+  /**
+   * @return The channel the client was in when the session was parked.
+   */
+  synchronized String getChannel()
+  {
+    return channel;
+  }
+
+  /**
+   * @return The journal's end offset when the session was parked, or -1.
+   */
+  synchronized long getJournalOffset()
+  {
+    return journalOffset;
+  }
+
+  /**
+   * @param now The value of System.nanoTime().
+   * @param windowNanos How long a parked session is kept.
+   * @return true if the session has been parked for longer than the window.
+   */
+  synchronized boolean isExpired(long now, long windowNanos)
+  {
+    return connection == null && now - parkedAt > windowNanos;
+  }
+}
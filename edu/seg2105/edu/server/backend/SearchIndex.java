@@ -0,0 +1,615 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * An inverted index of the messages of a MessageJournal, for #search: for
+ * each word, the offsets of the messages containing it, so that a search
+ * reads only the messages it finds rather than scanning the journal.
+ * <p>
+ * The index follows the journal on a thread of its own, reading messages
+ * once they are flushed, so the threads sending chat do no indexing and a
+ * restarted server rebuilds the index from the segments on disk. New
+ * postings go to an in-memory buffer which, once it holds BUFFER_MESSAGES
+ * messages, is frozen into an immutable segment: its words sorted, and
+ * the postings of all its words in one int array, as offsets relative to
+ * the segment's first message rather than boxed longs. Another thread
+ * merges every MERGE_FACTOR segments of a size into one, so a search
+ * looks in a few segments however long the server has run.
+ * <p>
+ * Words are runs of letters and digits, compared ignoring case; every
+ * message is also indexed under its channel. A search finds the newest
+ * messages containing every word asked for, sent to the channel asked for
+ * or to everyone. Only the last MAX_MESSAGES messages are kept indexed.
+ */
+final class SearchIndex
+{
+  //Class variables *************************************************
+
+  /**
+   * The messages indexed in the buffer before it is frozen into a segment.
+   */
+  static final int BUFFER_MESSAGES = 65536;
+
+  /**
+   * How many segments of a size are merged into one, and the most
+   * messages a merged segment may hold.
+   */
+  static final int MERGE_FACTOR = 4;
+  static final int MAX_SEGMENT_MESSAGES = 1024 * 1024;
+
+  /**
+   * The most messages kept indexed. The oldest segments are dropped
+   * beyond it.
+   */
+  static final long MAX_MESSAGES = 4 * 1024 * 1024;
+
+  /**
+   * Longer words are not indexed.
+   */
+  static final int MAX_WORD_CHARS = 64;
+
+  /**
+   * How long the indexer waits between reads of the journal, so that each
+   * read finds a batch of messages rather than one.
+   */
+  private static final long READ_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  /**
+   * The start of the entry under which a message's channel is indexed. It
+   * is not a letter or digit, so no word has it.
+   */
+  private static final String CHANNEL_PREFIX = "\u0000";
+
+  //Instance variables **********************************************
+
+  /**
+   * The journal indexed.
+   */
+  private final MessageJournal journal;
+
+  /**
+   * The frozen segments, oldest first. Replaced, never changed, under the
+   * index's lock.
+   */
+  private volatile Segment[] segments = new Segment[0];
+
+  /**
+   * The postings not yet frozen. Guarded by the index's lock.
+   */
+  private Buffer buffer;
+
+  /**
+   * The offset of the next message to index.
+   */
+  private volatile long indexed;
+
+  /**
+   * The words of the message being indexed. Only used by the indexer.
+   */
+  private final ArrayList<String> words = new ArrayList<String>();
+
+  /**
+   * The threads reading the journal and merging segments.
+   */
+  private final Thread indexer;
+  private final Thread merger;
+
+  /**
+   * Set once the index is closing.
+   */
+  private volatile boolean closed;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates an index of a journal. It is built once start() is called.
+   *
+   * @param journal The journal.
+   * @param from The offset of the first message to index.
+   */
+  SearchIndex(MessageJournal journal, long from)
+  {
+    this.journal = journal;
+    indexed = from;
+    buffer = new Buffer(from);
+    indexer = new Thread(this::follow, "Search indexer");
+    indexer.setDaemon(true);
+    merger = new Thread(this::merge, "Search merger");
+    merger.setDaemon(true);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts indexing the journal, from the offset given, and following it.
+   */
+  void start()
+  {
+    indexer.start();
+    merger.start();
+  }
+
+  /**
+   * Tells the indexer the journal has flushed more messages.
+   */
+  void wake()
+  {
+    LockSupport.unpark(indexer);
+  }
+
+  /**
+   * @return The offset of the next message to be indexed.
+   */
+  long getIndexed()
+  {
+    return indexed;
+  }
+
+  /**
+   * @return The number of frozen segments, after any merging.
+   */
+  int getSegmentCount()
+  {
+    return segments.length;
+  }
+
+  /**
+   * Finds the newest messages containing every word of a query, sent to a
+   * channel or to everyone.
+   *
+   * @param channel The channel.
+   * @param query The words, separated by anything but letters and digits.
+   * @param count The most messages to find.
+   * @return The offsets of the messages found, oldest first.
+   */
+  long[] search(String channel, String query, int count)
+  {
+    LinkedHashSet<String> unique = new LinkedHashSet<String>();
+    words(query, unique);
+    if (unique.isEmpty() || count < 1)
+      return new long[0];
+    String[] wanted = unique.toArray(new String[0]);
+    String channelKey = CHANNEL_PREFIX + channel;
+    long[] found = new long[count];
+    int n;
+    Segment[] frozen;
+    synchronized (this)
+    {
+      frozen = segments; //With the buffer, so that no message is in neither
+      n = collect(buffer.base, buffer::slice, wanted, channelKey, found, 0);
+    }
+    for (int s = frozen.length - 1; s >= 0 && n < count; s--)
+      n = collect(frozen[s].base, frozen[s]::slice, wanted, channelKey, found, n);
+    long[] oldestFirst = new long[n];
+    for (int i = 0; i < n; i++)
+      oldestFirst[i] = found[n - 1 - i];
+    return oldestFirst;
+  }
+
+  /**
+   * Stops indexing and merging.
+   */
+  void close()
+  {
+    closed = true;
+    LockSupport.unpark(indexer);
+    synchronized (this)
+    {
+      notifyAll();
+    }
+    try
+    {
+      indexer.join();
+      merger.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Runs on the indexer thread: indexes what the journal has flushed, then
+   * waits for more, until the index is closed or the journal fails.
+   */
+  private void follow()
+  {
+    while (!closed)
+    {
+      long from = indexed;
+      try
+      {
+        indexed = journal.scan(from, this::add);
+      }
+      catch (IOException e)
+      {
+        return; //The journal reports its own failures
+      }
+      if (indexed == from)
+      {
+        LockSupport.park(this); //Until the journal flushes, or the index closes
+        continue;
+      }
+      long until = System.nanoTime() + READ_INTERVAL_NANOS;
+      for (long left = READ_INTERVAL_NANOS; left > 0 && !closed; left = until - System.nanoTime())
+        LockSupport.parkNanos(this, left);
+    }
+  }
+
+  /**
+   * Indexes one message. Called by the indexer, for each message in turn.
+   *
+   * @param offset The message's offset in the journal.
+   * @param channel Its channel, or MessageJournal.EVERYONE.
+   * @param text The message.
+   */
+  private void add(long offset, String channel, String text)
+  {
+    words.clear();
+    words(text, words);
+    synchronized (this)
+    {
+      Buffer current = buffer;
+      for (String word : words)
+        current.add(word, offset);
+      current.add(CHANNEL_PREFIX + channel, offset);
+      current.messages++;
+      if (current.messages >= BUFFER_MESSAGES)
+      {
+        segments = drop(append(segments, current.freeze()));
+        buffer = new Buffer(offset + 1);
+        notifyAll(); //The merger may have a merge to do
+      }
+    }
+  }
+
+  /**
+   * Runs on the merger thread: merges segments of a size as they appear,
+   * until the index is closed.
+   */
+  private void merge()
+  {
+    while (true)
+    {
+      Segment[] run;
+      synchronized (this)
+      {
+        while ((run = mergeable(segments)) == null && !closed)
+        {
+          try
+          {
+            wait();
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+        }
+        if (closed)
+          return;
+      }
+      Segment merged = Segment.merge(run);
+      synchronized (this)
+      {
+        Segment[] all = segments;
+        int first = Arrays.asList(all).indexOf(run[0]);
+        if (first >= 0) //Unless dropped meanwhile for being the oldest
+        {
+          Segment[] replaced = new Segment[all.length - run.length + 1];
+          System.arraycopy(all, 0, replaced, 0, first);
+          replaced[first] = merged;
+          System.arraycopy(all, first + run.length, replaced, first + 1, all.length - first - run.length);
+          segments = replaced;
+        }
+      }
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Adds the words of a text to a collection, in lower case.
+   *
+   * @param text The text.
+   * @param into Where to add them.
+   */
+  static void words(String text, Collection<String> into)
+  {
+    int length = text.length();
+    int i = 0;
+    while (i < length)
+    {
+      while (i < length && !Character.isLetterOrDigit(text.charAt(i)))
+        i++;
+      int start = i;
+      while (i < length && Character.isLetterOrDigit(text.charAt(i)))
+        i++;
+      if (i > start && i - start <= MAX_WORD_CHARS)
+        into.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+    }
+  }
+
+  /**
+   * Finds, newest first, the messages of one buffer or segment that
+   * contain every wanted word and were sent to the channel or to everyone.
+   * The rarest word's postings are walked, and the others searched for
+   * each of its messages.
+   *
+   * @param base The offset the postings are relative to.
+   * @param postings Gives the postings of an entry, or null if it has none.
+   * @param wanted The words.
+   * @param channelKey The entry of the channel.
+   * @param found Where to add the offsets of the messages found.
+   * @param n How many are already in found, which is filled up to its length.
+   * @return How many are in found.
+   */
+  private static int collect(long base, Function<String, Slice> postings,
+    String[] wanted, String channelKey, long[] found, int n)
+  {
+    Slice[] slices = new Slice[wanted.length];
+    int rarest = 0;
+    for (int i = 0; i < wanted.length; i++)
+    {
+      slices[i] = postings.apply(wanted[i]);
+      if (slices[i] == null)
+        return n;
+      if (slices[i].size() < slices[rarest].size())
+        rarest = i;
+    }
+    Slice inChannel = postings.apply(channelKey);
+    Slice toEveryone = postings.apply(CHANNEL_PREFIX + MessageJournal.EVERYONE);
+    Slice walked = slices[rarest];
+    for (int p = walked.to - 1; p >= walked.from && n < found.length; p--)
+    {
+      int message = walked.items[p];
+      boolean all = (inChannel != null && inChannel.contains(message))
+        || (toEveryone != null && toEveryone.contains(message));
+      for (int i = 0; all && i < slices.length; i++)
+        all = i == rarest || slices[i].contains(message);
+      if (all)
+        found[n++] = base + message;
+    }
+    return n;
+  }
+
+  /**
+   * Returns the newest run of MERGE_FACTOR segments of the same size
+   * class, or null if there is none worth merging.
+   */
+  private static Segment[] mergeable(Segment[] all)
+  {
+    for (int first = all.length - MERGE_FACTOR; first >= 0; first--)
+    {
+      int sizeClass = all[first].sizeClass();
+      long messages = 0;
+      boolean same = true;
+      for (int i = first; i < first + MERGE_FACTOR && same; i++)
+      {
+        same = all[i].sizeClass() == sizeClass;
+        messages += all[i].messages;
+      }
+      if (same && messages <= MAX_SEGMENT_MESSAGES)
+        return Arrays.copyOfRange(all, first, first + MERGE_FACTOR);
+    }
+    return null;
+  }
+
+  private static Segment[] append(Segment[] all, Segment segment)
+  {
+    Segment[] more = Arrays.copyOf(all, all.length + 1);
+    more[all.length] = segment;
+    return more;
+  }
+
+  /**
+   * Drops the oldest segments while more than MAX_MESSAGES are indexed.
+   */
+  private static Segment[] drop(Segment[] all)
+  {
+    long messages = 0;
+    for (Segment segment : all)
+      messages += segment.messages;
+    int first = 0;
+    while (messages > MAX_MESSAGES && first < all.length - 1)
+      messages -= all[first++].messages;
+    return first == 0 ? all : Arrays.copyOfRange(all, first, all.length);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * Part of an int array: the postings of one entry.
+   */
+  private static final class Slice
+  {
+    final int[] items;
+    final int from;
+    final int to;
+
+    Slice(int[] items, int from, int to)
+    {
+      this.items = items;
+      this.from = from;
+      this.to = to;
+    }
+
+    int size()
+    {
+      return to - from;
+    }
+
+    boolean contains(int message)
+    {
+      return Arrays.binarySearch(items, from, to, message) >= 0;
+    }
+  }
+
+  /**
+   * The postings of the newest messages, as they are indexed: for each
+   * entry, a growing int array of offsets relative to the buffer's first.
+   */
+  private static final class Buffer
+  {
+    final long base;
+    int messages;
+    private final HashMap<String, Postings> postings = new HashMap<String, Postings>();
+
+    Buffer(long base)
+    {
+      this.base = base;
+    }
+
+    void add(String entry, long offset)
+    {
+      int message = (int)(offset - base);
+      Postings entryPostings = postings.get(entry);
+      if (entryPostings == null)
+      {
+        entryPostings = new Postings();
+        postings.put(entry, entryPostings);
+      }
+      else if (entryPostings.items[entryPostings.size - 1] == message)
+        return; //A word the message repeats
+      if (entryPostings.size == entryPostings.items.length)
+        entryPostings.items = Arrays.copyOf(entryPostings.items, entryPostings.size * 2);
+      entryPostings.items[entryPostings.size++] = message;
+    }
+
+    Slice slice(String entry)
+    {
+      Postings entryPostings = postings.get(entry);
+      return entryPostings == null ? null : new Slice(entryPostings.items, 0, entryPostings.size);
+    }
+
+    /**
+     * @return A segment of the buffer's postings.
+     */
+    Segment freeze()
+    {
+      String[] entries = postings.keySet().toArray(new String[0]);
+      Arrays.sort(entries);
+      int[] starts = new int[entries.length + 1];
+      int total = 0;
+      for (int i = 0; i < entries.length; i++)
+      {
+        starts[i] = total;
+        total += postings.get(entries[i]).size;
+      }
+      starts[entries.length] = total;
+      int[] all = new int[total];
+      for (int i = 0; i < entries.length; i++)
+        System.arraycopy(postings.get(entries[i]).items, 0, all, starts[i], starts[i + 1] - starts[i]);
+      return new Segment(base, messages, entries, starts, all);
+    }
+  }
+
+  /**
+   * The postings of one entry of the buffer, the first size items.
+   */
+  private static final class Postings
+  {
+    int[] items = new int[4];
+    int size;
+  }
+
+  /**
+   * The frozen postings of a run of messages: the entries sorted, and the
+   * postings of entry i in postings[starts[i]] to postings[starts[i + 1]],
+   * relative to the offset of the run's first message.
+   */
+  private static final class Segment
+  {
+    final long base;
+    final int messages;
+    private final String[] entries;
+    private final int[] starts;
+    private final int[] postings;
+
+    Segment(long base, int messages, String[] entries, int[] starts, int[] postings)
+    {
+      this.base = base;
+      this.messages = messages;
+      this.entries = entries;
+      this.starts = starts;
+      this.postings = postings;
+    }
+
+    Slice slice(String entry)
+    {
+      int i = Arrays.binarySearch(entries, entry);
+      return i < 0 ? null : new Slice(postings, starts[i], starts[i + 1]);
+    }
+
+    /**
+     * @return 0 for a segment of up to BUFFER_MESSAGES messages, 1 for up
+     *         to MERGE_FACTOR times that, and so on.
+     */
+    int sizeClass()
+    {
+      int sizeClass = 0;
+      for (long limit = BUFFER_MESSAGES; messages > limit; limit *= MERGE_FACTOR)
+        sizeClass++;
+      return sizeClass;
+    }
+
+    /**
+     * Merges consecutive segments into one, walking their sorted entries
+     * together.
+     *
+     * @param run The segments, oldest first.
+     * @return The merged segment.
+     */
+    static Segment merge(Segment[] run)
+    {
+      long base = run[0].base;
+      int messages = 0;
+      int total = 0;
+      for (Segment segment : run)
+      {
+        messages += segment.messages;
+        total += segment.postings.length;
+      }
+      int[] all = new int[total];
+      ArrayList<String> entries = new ArrayList<String>();
+      int[] starts = new int[16];
+      int[] next = new int[run.length];
+      int written = 0;
+      while (true)
+      {
+        String entry = null;
+        for (int s = 0; s < run.length; s++)
+        {
+          if (next[s] < run[s].entries.length
+            && (entry == null || run[s].entries[next[s]].compareTo(entry) < 0))
+            entry = run[s].entries[next[s]];
+        }
+        if (entry == null)
+          break;
+        if (entries.size() == starts.length)
+          starts = Arrays.copyOf(starts, starts.length * 2);
+        starts[entries.size()] = written;
+        entries.add(entry);
+        for (int s = 0; s < run.length; s++)
+        {
+          Segment segment = run[s];
+          int i = next[s];
+          if (i < segment.entries.length && segment.entries[i].equals(entry))
+          {
+            int shift = (int)(segment.base - base);
+            for (int p = segment.starts[i]; p < segment.starts[i + 1]; p++)
+              all[written++] = segment.postings[p] + shift;
+            next[s]++;
+          }
+        }
+      }
+      starts = Arrays.copyOf(starts, entries.size() + 1);
+      starts[entries.size()] = written;
+      return new Segment(base, messages, entries.toArray(new String[0]), starts, all);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.BitSet;
+
+/**
+ * Which of one cluster node's relay messages have been seen, by sequence
+ * number, so that a message reaching a node over several links is handled
+ * and forwarded only once.
+ * <p>
+ * Messages from a node arrive mostly in order, but those taking a longer
+ * way round may be overtaken, so the window remembers the last WIDTH
+ * sequence numbers as bits in a ring rather than only the highest. A
+ * message further behind than that counts as seen. Each start of a node is
+ * a new epoch, whose numbers start again from 1 and replace the old ones.
+ */
+final class SequenceWindow
+{
+  //Class variables *************************************************
+
+  /**
+   * How many sequence numbers behind the highest are remembered.
+   */
+  static final int WIDTH = 4096;
+
+  //Instance variables **********************************************
+
+  /**
+   * The epoch of the node whose numbers are remembered.
+   */
+  private long epoch;
+
+  /**
+   * The highest sequence number seen, 0 before the first.
+   */
+  private long highest;
+
+  /**
+   * Bit seq % WIDTH is set if seq has been seen, for the WIDTH numbers up
+   * to highest.
+   */
+  private final BitSet seen = new BitSet(WIDTH);
+
+  //Constructors ****************************************************
+
+  /**
+   * @param epoch The epoch of the node's first message.
+   */
+  SequenceWindow(long epoch)
+  {
+    this.epoch = epoch;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Records a message, unless it was seen before.
+   *
+   * @param epoch The epoch the message was sent in.
+   * @param seq Its sequence number, from 1.
+   * @return true if it is new and is to be handled, false if it is a
+   *         duplicate, too old to tell, or from an earlier epoch.
+   */
+  synchronized boolean accept(long epoch, long seq)
+  {
+    if (epoch < this.epoch || seq < 1)
+      return false;
+    if (epoch > this.epoch)
+    {
+      this.epoch = epoch; //The node restarted
+      highest = 0;
+      seen.clear();
+    }
+    if (seq > highest)
+    {
+      if (seq - highest >= WIDTH)
+        seen.clear();
+      else
+      {
+        for (long skipped = highest + 1; skipped < seq; skipped++)
+          seen.clear((int)(skipped % WIDTH));
+      }
+      highest = seq;
+      seen.set((int)(seq % WIDTH));
+      return true;
+    }
+    if (highest - seq >= WIDTH)
+      return false;
+    int bit = (int)(seq % WIDTH);
+    if (seen.get(bit))
+      return false;
+    seen.set(bit);
+    return true;
+  }
+
+  /**
+   * @return The epoch of the node's latest start seen.
+   */
+  synchronized long epoch()
+  {
+    return epoch;
+  }
+}
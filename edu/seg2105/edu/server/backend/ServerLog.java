@@ -0,0 +1,408 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous log for the server. Logging a message only stores its
+ * level, template and arguments in a preallocated ring; a background
+ * writer thread formats the entries and writes them out in batches. A
+ * connection thread therefore never formats a string, waits on the
+ * console's lock or does I/O to log, and a message below the log's level
+ * costs one volatile read.
+ * <p>
+ * Templates mark where the arguments go with {}, as in
+ * log(LogLevel.INFO, "{} has logged on.", loginID). The arguments are
+ * formatted on the writer thread, so they should not change once logged.
+ * <p>
+ * When the writer falls so far behind that the ring is full, new entries
+ * are dropped and counted rather than making the logging thread wait, and
+ * the writer reports how many were lost.
+ */
+public final class ServerLog implements Closeable
+{
+  //Class variables *************************************************
+
+  /**
+   * The number of entries the ring holds. A power of two.
+   */
+  static final int CAPACITY = 8192;
+
+  /**
+   * The longest the idle writer sleeps before checking the ring again.
+   */
+  private static final long IDLE_NANOS = 100000000;
+
+  /**
+   * The most characters the writer formats before writing them out.
+   */
+  private static final int BATCH_CHARS = 16 * 1024;
+
+  /**
+   * How long close() waits for the writer to write what is left.
+   */
+  private static final long CLOSE_WAIT_MILLIS = 1000;
+
+  /**
+   * The format of each entry's time.
+   */
+  private static final DateTimeFormatter TIME_FORMAT =
+    DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+  //Instance variables **********************************************
+
+  /**
+   * The lowest level recorded.
+   */
+  private volatile LogLevel level;
+
+  /**
+   * Where entries are written.
+   */
+  private final Appendable out;
+
+  /**
+   * The entries, reused round the ring.
+   */
+  private final Entry[] ring = new Entry[CAPACITY];
+
+  /**
+   * The sequence number the next entry will take.
+   */
+  private final AtomicLong head = new AtomicLong();
+
+  /**
+   * The sequence number of the next entry to write. Only the writer
+   * advances it, once an entry's slot may be reused.
+   */
+  private volatile long tail;
+
+  /**
+   * The number of entries dropped because the ring was full.
+   */
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * Whether the writer thread has been started.
+   */
+  private final AtomicBoolean writerStarted = new AtomicBoolean();
+
+  /**
+   * The writer thread, null until started.
+   */
+  private volatile Thread writer;
+
+  /**
+   * Set while the writer sleeps, so that whoever logs next wakes it.
+   */
+  private volatile boolean sleeping;
+
+  /**
+   * Set once the log is closed.
+   */
+  private volatile boolean closed;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a log that writes to the console.
+   *
+   * @param level The lowest level to record.
+   */
+  public ServerLog(LogLevel level)
+  {
+    this(level, System.out);
+  }
+
+  /**
+   * Creates a log that appends to a file.
+   *
+   * @param level The lowest level to record.
+   * @param file The file, created if it does not exist.
+   * @exception IOException If the file cannot be opened.
+   */
+  public ServerLog(LogLevel level, Path file) throws IOException
+  {
+    this(level, Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+      StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE));
+  }
+
+  private ServerLog(LogLevel level, Appendable out)
+  {
+    this.level = level;
+    this.out = out;
+    for (int i = 0; i < CAPACITY; i++)
+      ring[i] = new Entry(i - CAPACITY);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The lowest level recorded.
+   */
+  public LogLevel getLevel()
+  {
+    return level;
+  }
+
+  /**
+   * Changes the lowest level recorded. Takes effect at once for every
+   * thread.
+   *
+   * @param level The new level.
+   */
+  public void setLevel(LogLevel level)
+  {
+    this.level = level;
+  }
+
+  /**
+   * @param level A level.
+   * @return true if entries of the level are recorded.
+   */
+  public boolean isEnabled(LogLevel level)
+  {
+    return level.compareTo(this.level) >= 0 && level != LogLevel.OFF;
+  }
+
+  /**
+   * @return The number of entries dropped because the writer was behind.
+   */
+  public long getDropped()
+  {
+    return dropped.sum();
+  }
+
+  /**
+   * Logs a message.
+   *
+   * @param level The message's level.
+   * @param message The message.
+   */
+  public void log(LogLevel level, String message)
+  {
+    log(level, message, null, null);
+  }
+
+  /**
+   * Logs a message with one argument.
+   *
+   * @param level The message's level.
+   * @param template The message, with {} where the argument goes.
+   * @param arg The argument.
+   */
+  public void log(LogLevel level, String template, Object arg)
+  {
+    log(level, template, arg, null);
+  }
+
+  /**
+   * Logs a message with two arguments.
+   *
+   * @param level The message's level.
+   * @param template The message, with {} where each argument goes.
+   * @param arg1 The first argument.
+   * @param arg2 The second argument.
+   */
+  public void log(LogLevel level, String template, Object arg1, Object arg2)
+  {
+    if (!isEnabled(level) || closed)
+      return;
+    long sequence;
+    do
+    {
+      sequence = head.get();
+      if (sequence - tail >= CAPACITY)
+      {
+        dropped.increment();
+        return;
+      }
+    }
+    while (!head.compareAndSet(sequence, sequence + 1));
+
+    Entry entry = ring[(int)sequence & (CAPACITY - 1)];
+    entry.time = System.currentTimeMillis();
+    entry.level = level;
+    entry.template = template;
+    entry.arg1 = arg1;
+    entry.arg2 = arg2;
+    entry.sequence = sequence; //Publishes the entry to the writer
+
+    if (!writerStarted.get() && writerStarted.compareAndSet(false, true))
+    {
+      Thread thread = new Thread(this::write, "Server log writer");
+      thread.setDaemon(true);
+      writer = thread;
+      thread.start();
+    }
+    else if (sleeping)
+    {
+      sleeping = false;
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Writes what has been logged, then stops recording. A file is closed.
+   */
+  public void close()
+  {
+    closed = true;
+    Thread thread = writer;
+    if (thread != null)
+    {
+      LockSupport.unpark(thread);
+      try
+      {
+        thread.join(CLOSE_WAIT_MILLIS);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    else
+      closeOutput();
+  }
+
+  /**
+   * Runs on the writer thread: formats entries as they are published and
+   * writes them out in batches, flushing whenever it has caught up, until
+   * the log is closed and everything logged has been written.
+   */
+  private void write()
+  {
+    StringBuilder batch = new StringBuilder(BATCH_CHARS + 256);
+    long reportedDropped = 0;
+    while (true)
+    {
+      long next = tail;
+      Entry entry = ring[(int)next & (CAPACITY - 1)];
+      if (entry.sequence == next)
+      {
+        format(batch, entry.time, entry.level, entry.template, entry.arg1, entry.arg2);
+        entry.template = null;
+        entry.arg1 = null;
+        entry.arg2 = null;
+        tail = next + 1; //Frees the slot
+        if (batch.length() >= BATCH_CHARS)
+          writeBatch(batch);
+        continue;
+      }
+
+      long lost = dropped.sum();
+      if (lost > reportedDropped)
+      {
+        format(batch, System.currentTimeMillis(), LogLevel.WARN,
+          "{} log entries dropped: the writer fell behind.", lost - reportedDropped, null);
+        reportedDropped = lost;
+      }
+      if (batch.length() > 0)
+      {
+        writeBatch(batch);
+        flush();
+      }
+      if (closed && head.get() == next)
+        break;
+
+      sleeping = true;
+      if (ring[(int)next & (CAPACITY - 1)].sequence != next && !closed)
+        LockSupport.parkNanos(this, IDLE_NANOS);
+      sleeping = false;
+    }
+    closeOutput();
+  }
+
+  /**
+   * Formats one entry onto the end of a batch.
+   */
+  private static void format(StringBuilder batch, long time, LogLevel level,
+    String template, Object arg1, Object arg2)
+  {
+    TIME_FORMAT.formatTo(Instant.ofEpochMilli(time), batch);
+    batch.append(' ').append(level);
+    for (int i = level.name().length(); i < 6; i++)
+      batch.append(' ');
+    int start = 0;
+    int args = 0;
+    int mark;
+    while (args < 2 && (mark = template.indexOf("{}", start)) >= 0)
+    {
+      batch.append(template, start, mark).append(args++ == 0 ? arg1 : arg2);
+      start = mark + 2;
+    }
+    batch.append(template, start, template.length()).append(System.lineSeparator());
+  }
+
+  /**
+   * Writes out and empties a batch of formatted lines. The batch goes out
+   * in one call, so lines are never split by the console's other output.
+   */
+  private void writeBatch(StringBuilder batch)
+  {
+    try
+    {
+      out.append(batch);
+    }
+    catch (IOException e) {} //Nowhere left to report it
+    batch.setLength(0);
+  }
+
+  private void flush()
+  {
+    try
+    {
+      if (out instanceof Flushable)
+        ((Flushable)out).flush();
+    }
+    catch (IOException e) {}
+  }
+
+  /**
+   * Closes a log file. The console is left open.
+   */
+  private void closeOutput()
+  {
+    try
+    {
+      if (out instanceof Writer)
+        ((Writer)out).close();
+      else
+        flush();
+    }
+    catch (IOException e) {}
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * One slot of the ring.
+   */
+  private static final class Entry
+  {
+    /**
+     * The sequence number of the entry in the slot, written last so that
+     * the writer sees a complete entry.
+     */
+    volatile long sequence;
+
+    long time;
+    LogLevel level;
+    String template;
+    Object arg1;
+    Object arg2;
+
+    Entry(long sequence)
+    {
+      this.sequence = sequence;
+    }
+  }
+}
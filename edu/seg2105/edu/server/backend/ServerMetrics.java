@@ -0,0 +1,319 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the server does: messages and bytes in and out, and how long
+ * it takes to handle each kind of operation, and each command clients send,
+ * in a latency histogram per kind. Recording only adds to striped counters
+ * and histogram buckets, so it never takes a lock or makes connection
+ * threads contend, and only allocates for a command's first use.
+ * <p>
+ * The figures can be shown as a summary, on the server console with #stats,
+ * or written out in the Prometheus text format for a collector to scrape.
+ * Byte counts cover the nio and virtual transports only; OCSF does not
+ * expose its sockets.
+ */
+public final class ServerMetrics
+{
+  //Class variables *************************************************
+
+  /**
+   * The percentiles reported for each operation.
+   */
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  /**
+   * The kinds of operation timed, besides the commands clients send.
+   */
+  public enum Operation
+  {
+    CHAT, REFUSED, BROADCAST, SERVER_COMMAND, CONNECT, DISCONNECT;
+
+    /**
+     * @return The name of the operation as a Prometheus label value.
+     */
+    String label()
+    {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  //Instance variables **********************************************
+
+  private final LongAdder messagesIn = new LongAdder();
+  private final LongAdder messagesOut = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+
+  /**
+   * The messages from clients sending faster than their rate limits.
+   */
+  private final LongAdder overLimit = new LongAdder();
+
+  /**
+   * The connections that ended in an error rather than being closed.
+   */
+  private final LongAdder connectionErrors = new LongAdder();
+
+  /**
+   * The connections closed because the client stopped answering.
+   */
+  private final LongAdder timedOut = new LongAdder();
+
+  /**
+   * The latencies of each operation, indexed by its ordinal.
+   */
+  private final LatencyHistogram[] latencies =
+    new LatencyHistogram[Operation.values().length];
+
+  /**
+   * The latencies of each command clients have sent, by name. Only the
+   * names of registered commands are recorded, so there are few.
+   */
+  private final ConcurrentHashMap<String, LatencyHistogram> commands =
+    new ConcurrentHashMap<String, LatencyHistogram>();
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates metrics with everything at zero.
+   */
+  public ServerMetrics()
+  {
+    for (int i = 0; i < latencies.length; i++)
+      latencies[i] = new LatencyHistogram();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Counts a message received from a client.
+   */
+  void messageIn()
+  {
+    messagesIn.increment();
+  }
+
+  /**
+   * Counts a message queued for a client.
+   */
+  void messageOut()
+  {
+    messagesOut.increment();
+  }
+
+  /**
+   * Counts bytes read from a client's socket.
+   *
+   * @param bytes The number of bytes.
+   */
+  void bytesIn(long bytes)
+  {
+    bytesIn.add(bytes);
+  }
+
+  /**
+   * Counts bytes written to a client's socket.
+   *
+   * @param bytes The number of bytes.
+   */
+  void bytesOut(long bytes)
+  {
+    bytesOut.add(bytes);
+  }
+
+  /**
+   * Counts a message over its sender's rate limit.
+   */
+  void overLimit()
+  {
+    overLimit.increment();
+  }
+
+  /**
+   * Counts a connection that ended in an error.
+   */
+  void connectionError()
+  {
+    connectionErrors.increment();
+  }
+
+  /**
+   * Counts a connection closed because its client stopped answering.
+   */
+  void timedOut()
+  {
+    timedOut.increment();
+  }
+
+  /**
+   * Records how long an operation took.
+   *
+   * @param operation The kind of operation.
+   * @param startNanos The value of System.nanoTime() when it started.
+   */
+  void record(Operation operation, long startNanos)
+  {
+    latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Records how long a command from a client took.
+   *
+   * @param name The name of a registered command.
+   * @param startNanos The value of System.nanoTime() when it started.
+   */
+  void recordCommand(String name, long startNanos)
+  {
+    LatencyHistogram histogram = commands.get(name);
+    if (histogram == null)
+      histogram = commands.computeIfAbsent(name, n -> new LatencyHistogram());
+    histogram.record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Sums up the metrics, a line at a time.
+   *
+   * @param connected The number of clients connected.
+   * @param loggedIn The number of clients logged in.
+   * @return The lines of the summary.
+   */
+  public List<String> summary(int connected, int loggedIn)
+  {
+    List<String> lines = new ArrayList<String>();
+    lines.add("Clients: " + connected + " connected, " + loggedIn + " logged in, "
+      + connectionErrors.sum() + " connection errors, " + timedOut.sum() + " timed out.");
+    lines.add("Messages: " + messagesIn.sum() + " in, " + messagesOut.sum() + " out, "
+      + overLimit.sum() + " over rate limits.");
+    lines.add("Bytes: " + bytesIn.sum() + " in, " + bytesOut.sum() + " out.");
+    for (Map.Entry<String, LatencyHistogram> timed : histograms().entrySet())
+    {
+      LatencyHistogram histogram = timed.getValue();
+      long count = histogram.count();
+      if (count == 0)
+        continue;
+      StringBuilder line = new StringBuilder(timed.getKey()).append(": ")
+        .append(count).append(" in ").append(micros(histogram.sum())).append(" us");
+      for (double percentile : PERCENTILES)
+        line.append(", p").append(format(percentile)).append(' ')
+          .append(micros(histogram.percentile(percentile)));
+      line.append(", max ").append(micros(histogram.max())).append(" us");
+      lines.add(line.toString());
+    }
+    return lines;
+  }
+
+  /**
+   * Writes the metrics to a file in the Prometheus text exposition format.
+   * The file is replaced all at once, so a collector never reads half of it.
+   *
+   * @param file The file.
+   * @param connected The number of clients connected.
+   * @param loggedIn The number of clients logged in.
+   * @exception IOException If the file cannot be written.
+   */
+  public void writePrometheus(Path file, int connected, int loggedIn) throws IOException
+  {
+    StringBuilder text = new StringBuilder(8192);
+    gauge(text, "chat_connected_clients", "Clients connected.", connected);
+    gauge(text, "chat_logged_in_clients", "Clients logged in.", loggedIn);
+    counter(text, "chat_messages_received_total", "Messages received from clients.", messagesIn.sum());
+    counter(text, "chat_messages_sent_total", "Messages queued for clients.", messagesOut.sum());
+    counter(text, "chat_messages_over_limit_total", "Messages over their sender's rate limit.", overLimit.sum());
+    counter(text, "chat_received_bytes_total", "Bytes read from clients.", bytesIn.sum());
+    counter(text, "chat_sent_bytes_total", "Bytes written to clients.", bytesOut.sum());
+    counter(text, "chat_connection_errors_total", "Connections ended by an error.", connectionErrors.sum());
+    counter(text, "chat_connections_timed_out_total", "Connections closed because the client stopped answering.",
+      timedOut.sum());
+
+    String name = "chat_operation_seconds";
+    text.append("# HELP ").append(name).append(" Time taken to handle each kind of operation.\n");
+    text.append("# TYPE ").append(name).append(" summary\n");
+    for (Map.Entry<String, LatencyHistogram> timed : histograms().entrySet())
+    {
+      LatencyHistogram histogram = timed.getValue();
+      String label = "operation=\"" + timed.getKey() + "\"";
+      for (double percentile : PERCENTILES)
+        text.append(name).append('{').append(label).append(",quantile=\"")
+          .append(BigDecimal.valueOf(percentile).movePointLeft(2).stripTrailingZeros().toPlainString())
+          .append("\"} ")
+          .append(seconds(histogram.percentile(percentile))).append('\n');
+      text.append(name).append("_sum{").append(label).append("} ")
+        .append(seconds(histogram.sum())).append('\n');
+      text.append(name).append("_count{").append(label).append("} ")
+        .append(histogram.count()).append('\n');
+    }
+
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.write(temporary, text.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Returns every histogram by the name it is reported under: the commands
+   * in alphabetical order, then the other operations.
+   */
+  private Map<String, LatencyHistogram> histograms()
+  {
+    Map<String, LatencyHistogram> histograms =
+      new LinkedHashMap<String, LatencyHistogram>(new TreeMap<String, LatencyHistogram>(commands));
+    for (Operation operation : Operation.values())
+      histograms.put(operation.label(), latencies[operation.ordinal()]);
+    return histograms;
+  }
+
+  //Class methods ***************************************************
+
+  private static void gauge(StringBuilder text, String name, String help, long value)
+  {
+    metric(text, name, "gauge", help, value);
+  }
+
+  private static void counter(StringBuilder text, String name, String help, long value)
+  {
+    metric(text, name, "counter", help, value);
+  }
+
+  private static void metric(StringBuilder text, String name, String type, String help, long value)
+  {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  /**
+   * Formats nanoseconds as microseconds, to a tenth.
+   */
+  private static String micros(long nanos)
+  {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+  }
+
+  /**
+   * Formats nanoseconds as seconds.
+   */
+  private static String seconds(long nanos)
+  {
+    return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+  }
+
+  /**
+   * Formats a number without a needless fraction: 50 rather than 50.0.
+   */
+  private static String format(double number)
+  {
+    return number == Math.rint(number) ? Long.toString((long)number) : Double.toString(number);
+  }
+}
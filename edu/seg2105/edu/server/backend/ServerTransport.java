@@ -0,0 +1,50 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * The engine that accepts client sockets and carries messages for an
+ * EchoServer. It calls back into the server's clientConnected(...),
+ * handleMessageFromClient(...), clientDisconnected(...) and clientException(...)
+ * methods exactly as OCSF's AbstractServer does.
+ */
+public interface ServerTransport
+{
+  /**
+   * Starts listening for new clients on the server's port.
+   *
+   * @exception IOException If the port cannot be bound.
+   */
+  public abstract void listen() throws IOException;
+
+  /**
+   * Stops accepting new clients. Existing clients stay connected.
+   */
+  public abstract void stopListening();
+
+  /**
+   * Stops listening and disconnects every connected client.
+   *
+   * @exception IOException If an error occurs while closing.
+   */
+  public abstract void close() throws IOException;
+
+  /**
+   * @return true if the transport is accepting new clients.
+   */
+  public abstract boolean isListening();
+
+  /**
+   * @return The number of currently connected clients.
+   */
+  public abstract int getNumberOfClients();
+
+  /**
+   * Returns the clients connected when the method is called. Clients that
+   * connect or disconnect afterwards do not affect the returned collection.
+   *
+   * @return The connected clients.
+   */
+  public abstract Collection<ClientConnection> getClientConnections();
+}
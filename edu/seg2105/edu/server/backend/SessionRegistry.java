@@ -0,0 +1,151 @@
+package edu.seg2105.edu.server.backend;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The resumable sessions of the server, by token. A token is 128 random
+ * bits, so it can only be presented by the client it was issued to.
+ * Parked sessions are kept for a window, then dropped the next time a
+ * session is parked or taken up: a parked session holds no connection,
+ * only its recent messages, so nothing needs to expire it sooner.
+ */
+final class SessionRegistry
+{
+  //Class variables *************************************************
+
+  /**
+   * The source of tokens.
+   */
+  private static final SecureRandom random = new SecureRandom();
+
+  //Instance variables **********************************************
+
+  /**
+   * The sessions, by their current token.
+   */
+  private final ConcurrentHashMap<String, ResumableSession> sessions =
+    new ConcurrentHashMap<String, ResumableSession>();
+
+  /**
+   * How long a parked session is kept, in nanoseconds.
+   */
+  private volatile long windowNanos;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param windowSeconds How long a parked session is kept.
+   */
+  SessionRegistry(long windowSeconds)
+  {
+    setWindow(windowSeconds);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @param windowSeconds How long a parked session is kept.
+   */
+  void setWindow(long windowSeconds)
+  {
+    windowNanos = windowSeconds * 1000000000L;
+  }
+
+  /**
+   * @return How long a parked session is kept, in seconds.
+   */
+  long getWindowSeconds()
+  {
+    return windowNanos / 1000000000L;
+  }
+
+  /**
+   * Starts a session. It is not found by its token until attached.
+   *
+   * @param loginID The user.
+   * @param capacity How many of the last messages sent are kept.
+   * @return The session.
+   */
+  ResumableSession open(String loginID, int capacity)
+  {
+    return new ResumableSession(loginID, newToken(), capacity);
+  }
+
+  /**
+   * Registers a session under a new token.
+   *
+   * @param session The session.
+   * @param previousToken The token it was registered under, or null.
+   * @return The new token, to attach the session with.
+   */
+  String renew(ResumableSession session, String previousToken)
+  {
+    if (previousToken != null)
+      sessions.remove(previousToken, session);
+    String token = newToken();
+    sessions.put(token, session);
+    return token;
+  }
+
+  /**
+   * Finds the session a token takes up, if it belongs to the user and has
+   * not expired. It may still be on a connection that the server has not
+   * yet found to be dead.
+   *
+   * @param token The token presented.
+   * @param loginID The user presenting it.
+   * @return The session, or null.
+   */
+  ResumableSession lookup(String token, String loginID)
+  {
+    long now = System.nanoTime();
+    sweep(now);
+    ResumableSession session = sessions.get(token);
+    if (session == null || !session.loginID.equals(loginID) || session.isExpired(now, windowNanos))
+      return null;
+    return session;
+  }
+
+  /**
+   * Forgets a session, which can then no longer be taken up.
+   *
+   * @param session The session.
+   */
+  void remove(ResumableSession session)
+  {
+    sessions.remove(session.getToken(), session);
+  }
+
+  /**
+   * Drops the parked sessions that have expired.
+   *
+   * @param now The value of System.nanoTime().
+   */
+  void sweep(long now)
+  {
+    long window = windowNanos;
+    sessions.values().removeIf(session -> session.isExpired(now, window));
+  }
+
+  /**
+   * @return true if no client has a session, on a connection or parked.
+   */
+  boolean isEmpty()
+  {
+    return sessions.isEmpty();
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * @return A new random token.
+   */
+  private static String newToken()
+  {
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+}
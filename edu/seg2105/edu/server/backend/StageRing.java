@@ -0,0 +1,306 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One worker thread of a MessagePipeline stage and the ring of tasks it
+ * runs, in the order they were offered.
+ * <p>
+ * The ring is a preallocated array of slots indexed by ever-increasing
+ * sequence numbers, as in the Disruptor: a producer claims the next
+ * sequence with a compare-and-set on the tail, then publishes its task in
+ * the slot; the worker takes slots in sequence, clearing each and moving
+ * the head on. No lock is taken on either side. A producer finding the
+ * ring full waits for the worker to make room, which is the stage's
+ * backpressure; a worker finding it empty parks until a producer wakes it.
+ * <p>
+ * A producer that must not wait, being itself a worker of the pipeline
+ * that could be the one to make room, puts its task in the ring's overflow
+ * queue instead, which the worker runs once the ring is empty. While the
+ * overflow holds tasks, every later one joins it or waits for it to
+ * empty, so the ring's tasks still run in the order they were offered, and
+ * only by its worker.
+ */
+final class StageRing implements Runnable
+{
+  //Class variables *************************************************
+
+  /**
+   * How long a producer facing a full ring, or a worker facing a slot
+   * claimed but not yet published, waits before looking again.
+   */
+  private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  /**
+   * Left in a slot by a producer that took its task back because the worker
+   * had stopped.
+   */
+  private static final Runnable TAKEN_BACK = () -> {};
+
+  //Instance variables **********************************************
+
+  /**
+   * The slots, by sequence modulo their number. Null when free.
+   */
+  private final AtomicReferenceArray<Runnable> slots;
+
+  /**
+   * The number of slots less one, a power of two less one.
+   */
+  private final int mask;
+
+  /**
+   * The next sequence to claim, and the next to run.
+   */
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head;
+
+  /**
+   * Tasks offered when the ring was full by producers that may not wait,
+   * and after it was closed, run when the ring is empty.
+   */
+  private final ConcurrentLinkedQueue<Runnable> overflow = new ConcurrentLinkedQueue<Runnable>();
+
+  /**
+   * Set while the worker is parked, or about to be, for want of tasks.
+   */
+  private volatile boolean sleeping;
+
+  /**
+   * Set once no more tasks are to be offered. The worker stops when it has
+   * run the ones already offered.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Set once the worker has stopped, having run every task it was given.
+   */
+  private volatile boolean stopped;
+
+  /**
+   * The worker thread.
+   */
+  private final Thread thread;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a ring and its worker. It does not run until start() is called.
+   *
+   * @param name The name of the worker thread.
+   * @param capacity The most tasks waiting, rounded up to a power of two.
+   */
+  StageRing(String name, int capacity)
+  {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    slots = new AtomicReferenceArray<Runnable>(size);
+    mask = size - 1;
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts the worker thread.
+   */
+  void start()
+  {
+    thread.start();
+  }
+
+  /**
+   * @return true if the calling thread is this ring's worker.
+   */
+  boolean inWorker()
+  {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Adds a task to the ring, after every task offered before. If the ring
+   * is full, or its overflow holds tasks, a caller that may wait waits for
+   * room; one that may not, or any caller once the ring is closed, adds the
+   * task to the overflow.
+   *
+   * @param task The task.
+   * @param mayWait false if the caller must not wait, as when it is itself
+   *        a worker of the pipeline, which could be the one to make room.
+   * @return true if the task will be run by the worker, false if the
+   *         worker has stopped.
+   */
+  boolean offer(Runnable task, boolean mayWait)
+  {
+    long sequence;
+    while (true)
+    {
+      if (stopped)
+        return false;
+      if (closed || (!mayWait && !overflow.isEmpty()))
+        return overflow(task);
+      sequence = tail.get();
+      if (sequence - head > mask || !overflow.isEmpty())
+      {
+        if (!mayWait)
+          return overflow(task);
+        LockSupport.parkNanos(WAIT_NANOS);
+      }
+      else if (tail.compareAndSet(sequence, sequence + 1))
+        break;
+    }
+    int index = (int)(sequence & mask);
+    slots.lazySet(index, task);
+    if (stopped && slots.compareAndSet(index, task, TAKEN_BACK))
+      return false; //The worker stopped before it could take the task
+    wake();
+    return true;
+  }
+
+  /**
+   * Adds a task to the overflow, unless the worker stops first.
+   *
+   * @return true if the worker will run the task.
+   */
+  private boolean overflow(Runnable task)
+  {
+    overflow.add(task);
+    if (stopped && overflow.remove(task))
+      return false; //The worker stopped before it could take the task
+    wake();
+    return true;
+  }
+
+  /**
+   * Unparks the worker if it is waiting for tasks.
+   */
+  private void wake()
+  {
+    if (sleeping)
+    {
+      sleeping = false;
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * @return The number of tasks waiting.
+   */
+  int depth()
+  {
+    return (int)Math.max(0, tail.get() - head) + overflow.size();
+  }
+
+  /**
+   * Stops taking tasks. The worker runs those already offered, then stops.
+   */
+  void close()
+  {
+    closed = true;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Waits for the worker to stop.
+   *
+   * @param millis The longest wait.
+   * @exception InterruptedException If interrupted while waiting.
+   */
+  void join(long millis) throws InterruptedException
+  {
+    thread.join(millis);
+  }
+
+  /**
+   * Runs the tasks in sequence, the ring's first and then the overflow's,
+   * until the ring is closed and both are empty.
+   */
+  public void run()
+  {
+    long next = head;
+    try
+    {
+      while (true)
+      {
+        int index = (int)(next & mask);
+        Runnable task = slots.get(index);
+        if (task == null)
+        {
+          if (tail.get() > next)
+          {
+            Thread.onSpinWait(); //Claimed, and about to be published
+            continue;
+          }
+          if ((task = overflow.poll()) != null)
+          {
+            runTask(task);
+            continue;
+          }
+          if (closed)
+            break;
+          sleeping = true;
+          if (tail.get() == next && overflow.isEmpty() && !closed)
+            LockSupport.parkNanos(this, WAIT_NANOS * 20);
+          sleeping = false;
+          continue;
+        }
+        slots.lazySet(index, null);
+        head = ++next;
+        runTask(task);
+      }
+    }
+    finally
+    {
+      stopped = true; //Producers stop waiting, and run their tasks themselves
+      while (true)
+      {
+        //What was offered as the worker stopped, unless its producer took it back
+        Runnable task;
+        if (tail.get() > next)
+        {
+          int index = (int)(next & mask);
+          task = slots.get(index);
+          if (task == null)
+          {
+            Thread.onSpinWait();
+            continue;
+          }
+          head = ++next;
+          if (slots.compareAndSet(index, task, null))
+            runTask(task);
+          else
+            slots.set(index, null); //Taken back
+        }
+        else if ((task = overflow.poll()) != null)
+          runTask(task);
+        else
+          break;
+      }
+    }
+  }
+
+  /**
+   * Runs a task, reporting rather than letting through what it throws,
+   * errors included, so that the stage goes on.
+   *
+   * @param task The task.
+   */
+  private void runTask(Runnable task)
+  {
+    try
+    {
+      task.run();
+    }
+    catch (Throwable e)
+    {
+      try
+      {
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+      }
+      catch (Throwable ignored) {} //As when the report itself runs out of memory
+    }
+  }
+}
@@ -0,0 +1,566 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.client.common.WireFormat;
+import edu.seg2105.client.common.WriteBatching;
+
+/**
+ * A blocking transport that works like OCSF's, with one thread reading from
+ * each client, except that the threads come from a ThreadFactory. Given
+ * virtual threads, an idle client costs a few kilobytes instead of a
+ * platform thread stack, while reads stay plain blocking reads.
+ * <p>
+ * Clients may speak OCSF's object stream or negotiate the framed protocol.
+ * Each client also has a writer thread draining its outbound queue, so
+ * that sending to a slow client never blocks the sender.
+ * <p>
+ * When the server has an SSLContext, each accepted socket is layered under
+ * an SSLSocket in server mode. Its handshake runs on the client's reading
+ * thread at the first read, so the listener never waits on it.
+ */
+public class ThreadPerClientTransport implements ServerTransport
+{
+  //Class variables *************************************************
+
+  /**
+   * The maximum queue length for incoming connection requests.
+   */
+  private static final int BACKLOG = 1024;
+
+  /**
+   * The size of each writer's buffer when not batching.
+   */
+  private static final int WRITE_BUFFER_SIZE = 8192;
+
+  //Instance variables **********************************************
+
+  /**
+   * The server whose hooks are called for connection events and messages.
+   */
+  final EchoServer server;
+
+  /**
+   * Creates the thread reading from each client.
+   */
+  private final ThreadFactory clientThreads;
+
+  /**
+   * Every open connection.
+   */
+  private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The socket accepting new clients, null when not listening.
+   */
+  private volatile ServerSocket serverSocket;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a transport for a server. Nothing is started until listen().
+   *
+   * @param server The server to run.
+   * @param clientThreads The factory for the thread serving each client.
+   */
+  public ThreadPerClientTransport(EchoServer server, ThreadFactory clientThreads)
+  {
+    this.server = server;
+    this.clientThreads = clientThreads;
+  }
+
+  //Instance methods ************************************************
+
+  public synchronized void listen() throws IOException
+  {
+    if (isListening())
+      return;
+    ServerSocket socket = new ServerSocket(server.getPort(), BACKLOG);
+    serverSocket = socket;
+    new Thread(() -> accept(socket), "Connection listener").start();
+  }
+
+  public synchronized void stopListening()
+  {
+    ServerSocket socket = serverSocket;
+    serverSocket = null;
+    if (socket != null)
+    {
+      try
+      {
+        socket.close(); //Wakes the listener, which then reports serverStopped()
+      }
+      catch (IOException e) {}
+    }
+  }
+
+  public void close() throws IOException
+  {
+    stopListening();
+    for (Connection connection : connections.toArray(new Connection[0]))
+    {
+      try
+      {
+        connection.close();
+      }
+      catch (Exception ex) {}
+    }
+  }
+
+  public boolean isListening()
+  {
+    return serverSocket != null;
+  }
+
+  public int getNumberOfClients()
+  {
+    return connections.size();
+  }
+
+  public Collection<ClientConnection> getClientConnections()
+  {
+    ArrayList<ClientConnection> clients = new ArrayList<ClientConnection>(connections.size());
+    for (Connection connection : connections)
+    {
+      if (connection.isReady())
+        clients.add(connection);
+    }
+    return clients;
+  }
+
+  /**
+   * Runs on the listener thread: accepts clients until the server socket
+   * is closed, starting a thread for each.
+   *
+   * @param socket The listening socket.
+   */
+  private void accept(ServerSocket socket)
+  {
+    server.serverStarted();
+    try
+    {
+      while (true)
+      {
+        Socket accepted = socket.accept();
+        accepted.setKeepAlive(true); //Finds the legacy clients that vanish, which are never pinged
+        Connection connection;
+        try
+        {
+          connection = new Connection(secure(accepted));
+        }
+        catch (IOException e)
+        {
+          server.serverUI.display("Could not start TLS with a client: " + e.getMessage());
+          continue;
+        }
+        connections.add(connection);
+        clientThreads.newThread(connection).start();
+        server.expectNegotiation(connection, () -> connection.codec != null);
+      }
+    }
+    catch (IOException e)
+    {
+      if (!socket.isClosed())
+      {
+        server.serverUI.display("An error occured while accepting clients: " + e.getMessage());
+        stopListening();
+      }
+    }
+    server.serverStopped();
+  }
+
+  /**
+   * Layers TLS over an accepted socket if the server has an SSLContext.
+   *
+   * @param socket The accepted socket.
+   * @return The socket to use for the client.
+   * @exception IOException If the TLS socket cannot be created.
+   */
+  private Socket secure(Socket socket) throws IOException
+  {
+    SSLContext context = server.getTlsContext();
+    if (context == null)
+      return socket;
+    try
+    {
+      SSLSocket tls = (SSLSocket)context.getSocketFactory().createSocket(socket, null, true);
+      tls.setUseClientMode(false);
+      return tls;
+    }
+    catch (IOException e)
+    {
+      socket.close();
+      throw e;
+    }
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A client served by its own thread. The streams are opened on that
+   * thread, so a client that never sends its stream header cannot hold up
+   * the listener.
+   */
+  private class Connection implements ClientConnection, Runnable
+  {
+    /**
+     * The socket to the client.
+     */
+    private final Socket socket;
+
+    /**
+     * The address of the client, kept so it is still known after closing.
+     */
+    private final InetAddress address;
+
+    /**
+     * Information saved about the client, such as its login id.
+     */
+    private final ConcurrentHashMap<String, Object> savedInfo =
+      new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Encoded messages waiting for the writer thread.
+     */
+    private final OutboundQueue<ByteBuffer> outbound = server.newOutboundQueue();
+
+    /**
+     * Encodes messages in the client's format, null until the format is known.
+     */
+    private volatile MessageCodec codec;
+
+    /**
+     * Bytes of the object stream received but not yet decoded, kept by the
+     * reading thread.
+     */
+    private ByteBuffer inbound = ByteBuffer.allocate(256);
+
+    /**
+     * The thread writing to the client, null until the format is known.
+     */
+    private volatile Thread writer;
+
+    /**
+     * Whether the connection has been closed.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    Connection(Socket socket)
+    {
+      this.socket = socket;
+      this.address = socket.getInetAddress();
+    }
+
+    public void sendToClient(Object msg) throws IOException
+    {
+      MessageCodec encoder = codec;
+      if (closed.get() || encoder == null)
+        throw new SocketException("socket does not exist");
+      enqueue(encoder.encode(msg));
+      server.metrics.messageOut();
+    }
+
+    /**
+     * Queues the message's shared encoding, which the writer sends as is.
+     */
+    public void sendEncoded(EncodedMessage msg) throws IOException
+    {
+      MessageCodec encoder = codec;
+      if (closed.get() || encoder == null)
+        throw new SocketException("socket does not exist");
+      enqueue(msg.encoded(encoder.getWireFormat()));
+      server.metrics.messageOut();
+    }
+
+    /**
+     * Closes the connection once the writer has sent what is queued, or
+     * after a short wait if the client is not reading. A pipeline worker
+     * leaves the wait to the server's reaper thread.
+     */
+    public void close() throws IOException
+    {
+      outbound.shutdown();
+      Thread thread = writer;
+      if (thread == null || thread == Thread.currentThread())
+      {
+        if (closeSocket())
+          server.clientDisconnected(this);
+        return;
+      }
+      server.runMayWait(() -> {
+        try
+        {
+          thread.join(OutboundQueue.CLOSE_LINGER_MILLIS);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+        if (closeSocket())
+          server.clientDisconnected(this);
+      });
+    }
+
+    /**
+     * @return true once the client's format is known and it can take messages.
+     */
+    boolean isReady()
+    {
+      return codec != null && !closed.get();
+    }
+
+    public int getQueueDepth()
+    {
+      return outbound.depth();
+    }
+
+    public int getPeakQueueDepth()
+    {
+      return outbound.peakDepth();
+    }
+
+    public long getDroppedMessages()
+    {
+      return outbound.dropped();
+    }
+
+    public WireFormat getWireFormat()
+    {
+      MessageCodec current = codec;
+      return current == null ? null : current.getWireFormat();
+    }
+
+    public InetAddress getInetAddress()
+    {
+      return address;
+    }
+
+    public void setInfo(String infoType, Object info)
+    {
+      if (info == null)
+        savedInfo.remove(infoType);
+      else
+        savedInfo.put(infoType, info);
+    }
+
+    public Object getInfo(String infoType)
+    {
+      return savedInfo.get(infoType);
+    }
+
+    public String toString()
+    {
+      return address.getHostName() + " (" + address.getHostAddress() + ")";
+    }
+
+    /**
+     * Reads messages from the client until the connection ends.
+     */
+    public void run()
+    {
+      try
+      {
+        DataInputStream input = new DataInputStream
+          (new BufferedInputStream(new CountingInputStream(socket.getInputStream())));
+        byte[] first = new byte[FramedCodec.DETECT_LENGTH];
+        input.mark(first.length);
+        input.readFully(first, 0, first.length - 1);
+        //Every client expects the server's stream header, and a legacy one
+        //sends nothing more until it has it
+        OutputStream out = socket.getOutputStream();
+        new ObjectOutputStream(out).flush();
+        input.readFully(first, first.length - 1, 1);
+        input.reset();
+
+        boolean framed = false;
+        if (FramedCodec.detect(first) == WireFormat.FRAMED)
+        {
+          byte[] hello = new byte[Frame.hello().length];
+          input.readFully(hello);
+          WireFormat format = Frame.formatOf(hello);
+          if (format == null)
+            throw new ProtocolException("Unsupported protocol version");
+          out.write(Frame.preamble(format));
+          codec = new FramedCodec(format);
+          framed = true;
+        }
+        else
+          codec = new ObjectStreamCodec();
+        writer = clientThreads.newThread(() -> write(out));
+        writer.start();
+        server.clientConnected(this);
+        while (true)
+        {
+          Object msg = framed ? Frame.read(input).toText() : readObject(input);
+          server.handleMessageFromClient(msg, this);
+        }
+      }
+      catch (Exception exception)
+      {
+        if (closeSocket())
+          server.clientException(this, exception);
+      }
+    }
+
+    /**
+     * Reads the next message of the object stream. It is decoded by the
+     * codec, which only takes Strings of up to Frame.MAX_LENGTH bytes,
+     * rather than by an ObjectInputStream, which would build any class the
+     * client names.
+     *
+     * @param input The stream from the client.
+     * @return The message.
+     * @exception IOException If the stream ends or cannot be decoded.
+     */
+    private Object readObject(InputStream input) throws IOException
+    {
+      while (true)
+      {
+        inbound.flip();
+        Object msg = codec.decode(inbound);
+        inbound.compact();
+        if (msg != null)
+          return msg;
+        if (!inbound.hasRemaining())
+        {
+          //The codec refuses longer strings before this grows past its bound
+          ByteBuffer larger = ByteBuffer.allocate(inbound.capacity() * 2);
+          inbound.flip();
+          larger.put(inbound);
+          inbound = larger;
+        }
+        int read = input.read(inbound.array(), inbound.position(), inbound.remaining());
+        if (read < 0)
+          throw new EOFException();
+        inbound.position(inbound.position() + read);
+      }
+    }
+
+    /**
+     * Runs on the writer thread: writes queued messages until the
+     * connection closes. Messages already waiting are written together,
+     * and under a batching window the writer also waits for more before
+     * flushing.
+     *
+     * @param socketOutput The socket's stream.
+     */
+    private void write(OutputStream socketOutput)
+    {
+      try
+      {
+        BufferedOutputStream out = new BufferedOutputStream(socketOutput,
+          Math.max(WRITE_BUFFER_SIZE, server.getWriteBatching().getMaxBytes()));
+        int unflushed = 0;
+        long deadline = 0;
+        ByteBuffer bytes = outbound.take();
+        while (bytes != null)
+        {
+          WriteBatching batching = server.getWriteBatching();
+          if (unflushed == 0)
+            deadline = System.nanoTime() + batching.getMaxDelayNanos();
+          unflushed += bytes.remaining();
+          server.metrics.bytesOut(bytes.remaining());
+          out.write(bytes.array(), bytes.arrayOffset() + bytes.position(),
+            bytes.remaining());
+          if (!batching.isImmediate() && unflushed < batching.getMaxBytes())
+            bytes = outbound.poll(deadline - System.nanoTime());
+          else
+            bytes = outbound.poll();
+          if (bytes == null)
+          {
+            out.flush();
+            unflushed = 0;
+            bytes = outbound.take();
+          }
+        }
+        out.flush(); //Anything left once the connection is shutting down
+      }
+      catch (Exception exception)
+      {
+        if (closeSocket())
+          server.clientException(this, exception);
+      }
+    }
+
+    /**
+     * Queues an encoded message for the writer. Pipeline workers never
+     * wait for room, since every client of their stage would wait with
+     * them.
+     *
+     * @param bytes The encoded message.
+     * @exception IOException If the connection is closed, or was closed
+     *            because the client fell too far behind.
+     */
+    private void enqueue(ByteBuffer bytes) throws IOException
+    {
+      if (!outbound.offer(bytes, server.mayWait()))
+      {
+        IOException exception = new SocketException(closed.get()
+          ? "socket does not exist" : "Client is not reading: outbound queue full");
+        if (closeSocket())
+          server.clientException(this, exception);
+        throw exception;
+      }
+    }
+
+    /**
+     * Closes the socket the first time it is called.
+     *
+     * @return true if this call closed the connection.
+     */
+    private boolean closeSocket()
+    {
+      if (!closed.compareAndSet(false, true))
+        return false;
+      outbound.close();
+      connections.remove(this);
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e) {}
+      return true;
+    }
+  }
+
+  /**
+   * A client's socket input, counting the bytes read for the server's
+   * metrics. Reads are buffered above it, so it counts once per read from
+   * the socket rather than once per byte.
+   */
+  private class CountingInputStream extends FilterInputStream
+  {
+    CountingInputStream(InputStream in)
+    {
+      super(in);
+    }
+
+    public int read() throws IOException
+    {
+      int b = super.read();
+      if (b >= 0)
+        server.metrics.bytesIn(1);
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int read = in.read(b, off, len);
+      if (read > 0)
+        server.metrics.bytesIn(read);
+      return read;
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS over a non-blocking socket, driven by an SSLEngine on the event loop
+ * that owns the connection. NioConnection reads and writes plaintext
+ * through it instead of through the socket, so TLS adds no thread per
+ * connection: the handshake, including the engine's delegated tasks, runs
+ * on the loop between reads and writes.
+ * <p>
+ * Engines come from the server's SSLContext, whose session cache lets a
+ * client that reconnects resume its session with an abbreviated handshake,
+ * which keeps a storm of reconnections cheap.
+ * <p>
+ * The loop reads while other threads may close the connection, so every
+ * method holds the channel's monitor.
+ */
+final class TlsChannel
+{
+  //Class variables *************************************************
+
+  /**
+   * What is wrapped when there is only handshake data to send.
+   */
+  private static final ByteBuffer[] NOTHING = {ByteBuffer.allocate(0)};
+
+  //Instance variables **********************************************
+
+  /**
+   * The socket to the client.
+   */
+  private final SocketChannel channel;
+
+  /**
+   * Encrypts and decrypts, and runs the handshake.
+   */
+  private final SSLEngine engine;
+
+  /**
+   * Encrypted bytes received and not yet unwrapped, ready to be filled.
+   */
+  private ByteBuffer netIn;
+
+  /**
+   * Encrypted bytes wrapped and not yet written, ready to be read.
+   */
+  private ByteBuffer netOut;
+
+  //Constructors ****************************************************
+
+  /**
+   * Starts the server's side of the handshake, which goes on as the
+   * client's bytes arrive.
+   *
+   * @param channel The accepted socket.
+   * @param context Where the engine, and so the certificate and the
+   *        session cache, come from.
+   * @exception SSLException If the handshake cannot be started.
+   */
+  TlsChannel(SocketChannel channel, SSLContext context) throws SSLException
+  {
+    this.channel = channel;
+    this.engine = context.createSSLEngine();
+    engine.setUseClientMode(false);
+    int packetSize = engine.getSession().getPacketBufferSize();
+    netIn = ByteBuffer.allocate(packetSize);
+    netOut = ByteBuffer.allocate(packetSize);
+    netOut.flip();
+    engine.beginHandshake();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Reads what the socket has and decrypts as much of it as fits. Anything
+   * the handshake needs to send in reply is wrapped, to be written by the
+   * next flush().
+   *
+   * @param dst Where the plaintext goes, with room for at least one record.
+   * @return The number of plaintext bytes put in dst.
+   * @exception IOException If the socket fails, the client sends bytes that
+   *            are not TLS, or the client has closed the connection.
+   */
+  synchronized int read(ByteBuffer dst) throws IOException
+  {
+    int read = channel.read(netIn);
+    int start = dst.position();
+    boolean partial = false;
+    netIn.flip();
+    try
+    {
+      while (netIn.hasRemaining())
+      {
+        SSLEngineResult result = engine.unwrap(netIn, dst);
+        handshake();
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+          throw new EOFException("Connection closed by client");
+        partial = result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW;
+        if (result.getStatus() != SSLEngineResult.Status.OK)
+          break; //A partial record, or dst is full: the rest is for later
+        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+          break;
+      }
+    }
+    finally
+    {
+      netIn.compact();
+    }
+    if (partial && !netIn.hasRemaining())
+      netIn = enlarge(netIn); //A record larger than the buffer
+    if (read < 0 && dst.position() == start)
+      throw new EOFException("Connection closed by client");
+    return dst.position() - start;
+  }
+
+  /**
+   * Encrypts plaintext and writes it, as far as the socket takes it. Once
+   * the encrypted bytes waiting are written, each call encrypts at most
+   * one buffer's worth more.
+   *
+   * @param srcs The plaintext.
+   * @param offset The first buffer to write.
+   * @param length The number of buffers.
+   * @return The number of plaintext bytes taken, which may be more than
+   *         the socket took: the rest waits to be written by flush().
+   * @exception IOException If the socket fails or the connection is closed.
+   */
+  synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+  {
+    long taken = 0;
+    while (flush())
+    {
+      SSLEngineResult result = wrap(srcs, offset, length);
+      taken += result.bytesConsumed();
+      handshake();
+      if (result.getStatus() != SSLEngineResult.Status.OK || result.bytesProduced() == 0)
+        break; //Still handshaking, or nothing left to send
+    }
+    return taken;
+  }
+
+  /**
+   * Writes the encrypted bytes waiting, as far as the socket takes them.
+   *
+   * @return true if none are left.
+   * @exception IOException If the socket fails.
+   */
+  synchronized boolean flush() throws IOException
+  {
+    while (netOut.hasRemaining())
+    {
+      if (channel.write(netOut) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return true until the handshake is done, while plaintext cannot be
+   *         written and waits for the client's next handshake messages.
+   */
+  synchronized boolean isHandshaking()
+  {
+    HandshakeStatus status = engine.getHandshakeStatus();
+    return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+  }
+
+  /**
+   * Sends the client a close_notify, if the socket takes it at once.
+   */
+  synchronized void close()
+  {
+    engine.closeOutbound();
+    try
+    {
+      if (flush())
+        wrap(NOTHING, 0, 1);
+      flush();
+    }
+    catch (IOException e) {} //Best effort: the socket is closed next
+  }
+
+  /**
+   * Runs what the handshake needs done before more can be read: the
+   * engine's delegated tasks, here on the loop's thread, and the handshake
+   * messages to send, which are wrapped into netOut.
+   *
+   * @exception IOException If the handshake fails.
+   */
+  private void handshake() throws IOException
+  {
+    while (true)
+    {
+      HandshakeStatus status = engine.getHandshakeStatus();
+      if (status == HandshakeStatus.NEED_TASK)
+      {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+          task.run();
+      }
+      else if (status == HandshakeStatus.NEED_WRAP)
+      {
+        if (!flush())
+          return; //The socket is full; the loop writes the rest later
+        SSLEngineResult result = wrap(NOTHING, 0, 1);
+        if (result.getStatus() != SSLEngineResult.Status.OK)
+          return;
+      }
+      else
+        return;
+    }
+  }
+
+  /**
+   * Wraps plaintext, or handshake data, into netOut after what is waiting.
+   *
+   * @return The engine's result.
+   * @exception SSLException If the engine fails.
+   */
+  private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException
+  {
+    netOut.compact();
+    try
+    {
+      SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+      if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0)
+      {
+        netOut = enlarge(netOut); //Larger records than the session first said
+        result = engine.wrap(srcs, offset, length, netOut);
+      }
+      return result;
+    }
+    finally
+    {
+      netOut.flip();
+    }
+  }
+
+  /**
+   * Returns a buffer with room for the session's largest record, holding
+   * what the given one holds.
+   *
+   * @param buffer A buffer ready to be filled.
+   * @return The larger buffer, ready to be filled.
+   */
+  private ByteBuffer enlarge(ByteBuffer buffer)
+  {
+    int size = Math.max(buffer.capacity() * 2, engine.getSession().getPacketBufferSize());
+    ByteBuffer larger = ByteBuffer.allocate(size);
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+}
@@ -0,0 +1,23 @@
+package edu.seg2105.edu.server.backend;
+
+/**
+ * The engines EchoServer can run its client connections on.
+ */
+public enum TransportMode
+{
+  /**
+   * OCSF's AbstractServer: one ConnectionToClient thread per client.
+   */
+  OCSF,
+
+  /**
+   * A small fixed pool of java.nio Selector event loops shared by all clients.
+   */
+  NIO,
+
+  /**
+   * One blocking reader per client like OCSF, but on a virtual thread where
+   * the JVM supports them (Java 21 and later).
+   */
+  VIRTUAL
+}
@@ -2,10 +2,22 @@ package edu.seg2105.edu.server.ui;
 
 import edu.seg2105.client.common.*;
 import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.LogLevel;
+import edu.seg2105.edu.server.backend.MessageJournal;
+import edu.seg2105.edu.server.backend.OfflineInbox;
+import edu.seg2105.edu.server.backend.OverflowPolicy;
+import edu.seg2105.edu.server.backend.ServerLog;
+import edu.seg2105.edu.server.backend.TransportMode;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
+import javax.net.ssl.SSLContext;
+
 public class ServerConsole implements ChatIF{
 	
 	//Class variables *************************************************
@@ -35,14 +47,39 @@ public class ServerConsole implements ChatIF{
 	   * @param port The port to connect on.
 	   */
 	public ServerConsole(int port) {
+		this(port, new ServerOptions());
+	}
+	
+	  /**
+	   * Constructs an instance of the ServerConsole UI.
+	   *
+	   * @param port The port to connect on.
+	   * @param options How to run the server: its transport, queues, log,
+	   *        persistence, security and cluster.
+	   */
+	public ServerConsole(int port, ServerOptions options) {
 		try {
-			server=new EchoServer(port, this);
-			server.listen();
+			server=new EchoServer(port, this, options.getTransport());
+			server.setTlsContext(options.getTls());
+			if (options.getLog() != null)
+				server.setLog(options.getLog());
+			server.setJournal(options.getJournal());
+			server.setOfflineInbox(options.getInbox());
+			server.setOutboundQueue(EchoServer.DEFAULT_OUTBOUND_CAPACITY, options.getOverflow());
+			server.setWriteBatching(options.getBatching());
+			server.getTransport().listen();
 		}catch(IOException e) {
 			System.out.println("Error: Can't listen to new connections!"
 	                + " Terminating server.");
 	      System.exit(1);
 		}
+		if (options.getClusterName() != null) {
+			try {
+				server.joinCluster(options.getClusterName(), options.getClusterPort(), options.getPeers());
+			}catch(IOException e) {
+				System.out.println("Can't open the cluster port: "+e.getMessage()+". Running alone.");
+			}
+		}
 		fromConsole=new Scanner(System.in);
 	}
 	
@@ -77,19 +114,148 @@ public class ServerConsole implements ChatIF{
 	
 	//Class methods ***************************************************
 
+	/**
+	   * This method is responsible for the creation of the Server UI.
+	   *
+	   * @param args Flags, each followed by its value but for --tls:
+	   *        --port, 5555 by default;
+	   *        --transport: ocsf (default), nio or virtual;
+	   *        --overflow: disconnect (default), drop-oldest or block;
+	   *        --batching: immediate (default) or batch;
+	   *        --log: the file to log to, or console (default);
+	   *        --journal: the directory to keep chat history in, which nothing
+	   *        is written to disk without;
+	   *        --inboxes: the directory to keep private messages to users who
+	   *        are away in, without which they are refused;
+	   *        --tls to accept clients over TLS with the key in the
+	   *        javax.net.ssl.keyStore system property, which needs the nio or
+	   *        virtual transport;
+	   *        --cluster: to run in a cluster, this server's name and cluster
+	   *        port, as name@port;
+	   *        --peer: the cluster port of a server to link to, as host:port,
+	   *        once for each.
+	   */
 	public static void main(String[] args) {
-		int port = 0; //Port to listen on
+		int port = DEFAULT_PORT; //Port to listen on
+		ServerOptions options = new ServerOptions();
+		String history = null; //Nothing is written to disk unless asked for
+		String inboxes = null;
+		boolean tls = false;
+		String cluster = null;
+		List<String> peers = new ArrayList<String>();
 
-	    try
-	    {
-	      port = Integer.parseInt(args[0]); //Get port from command line
+		for (int i = 0; i < args.length; i++) {
+			String flag = args[i].toLowerCase();
+			if (flag.equals("--tls")) {
+				tls = true;
+				continue;
+			}
+			if (!flag.startsWith("--") || i + 1 >= args.length) {
+				System.out.println("Unknown option "+args[i]+" ignored.");
+				continue;
+			}
+			String value = args[++i];
+			switch (flag) {
+				case "--port":
+					try {
+						port = Integer.parseInt(value);
+					}catch(NumberFormatException e) {
+						System.out.println(value+" is not a port. Using "+port+".");
+					}
+					break;
+				case "--transport":
+					try {
+						options.setTransport(TransportMode.valueOf(value.toUpperCase()));
+					}catch(IllegalArgumentException e) {
+						System.out.println(value+" is not a transport. Using "+options.getTransport()+".");
+					}
+					break;
+				case "--overflow":
+					try {
+						options.setOverflow(OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_')));
+					}catch(IllegalArgumentException e) {
+						System.out.println(value+" is not an overflow policy. Using "+options.getOverflow()+".");
+					}
+					break;
+				case "--batching":
+					if (value.equalsIgnoreCase("batch"))
+						options.setBatching(WriteBatching.DEFAULT_WINDOW);
+					else if (!value.equalsIgnoreCase("immediate"))
+						System.out.println(value+" is not a batching mode. Using "+options.getBatching()+".");
+					break;
+				case "--log":
+					if (!value.equalsIgnoreCase("console")) {
+						try {
+							options.setLog(new ServerLog(LogLevel.TRACE, Paths.get(value)));
+						}catch(IOException e) {
+							System.out.println("Can't open "+value+" to log to. Logging to the console.");
+						}
+					}
+					break;
+				case "--journal":
+					history = value;
+					break;
+				case "--inboxes":
+					inboxes = value;
+					break;
+				case "--cluster":
+					cluster = value;
+					break;
+				case "--peer":
+					peers.add(value);
+					break;
+				default:
+					System.out.println("Unknown option "+args[i-1]+" ignored.");
+					i--; //Its value may be a flag
+			}
+		}
+	    
+	    if (history != null) {
+	    	try {
+	    		options.setJournal(new MessageJournal(Paths.get(history)));
+	    	}catch(IOException e) {
+	    		System.out.println("Can't open the journal in "+history+": "+e.getMessage()+". Keeping no history.");
+	    	}
+	    }
+	    
+	    if (inboxes != null) {
+	    	try {
+	    		options.setInbox(new OfflineInbox(Paths.get(inboxes), OfflineInbox.DEFAULT_CACHED_INBOXES));
+	    	}catch(IOException e) {
+	    		System.out.println("Can't keep inboxes in "+inboxes+": "+e.getMessage()+". Messages to users who are away will be refused.");
+	    	}
 	    }
-	    catch(Throwable t)
-	    {
-	      port = DEFAULT_PORT; //Set port to 5555
+	    
+	    if (tls) {
+	    	try {
+	    		options.setTls(SSLContext.getDefault());
+	    	}catch(java.security.NoSuchAlgorithmException e) {
+	    		System.out.println("TLS is not available: "+e.getMessage()+". Terminating server.");
+	    		System.exit(1);
+	    	}
+	    	if (options.getTransport() == TransportMode.OCSF) {
+	    		options.setTransport(TransportMode.NIO);
+	    		System.out.println("The ocsf transport does not support TLS. Using "+options.getTransport()+".");
+	    	}
+	    }
+	    
+	    if (cluster != null) {
+	    	int at = cluster.lastIndexOf('@');
+	    	try {
+	    		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+	    		for (String peer : peers) {
+	    			int colon = peer.lastIndexOf(':');
+	    			addresses.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon+1))));
+	    		}
+	    		options.setCluster(cluster.substring(0, at), Integer.parseInt(cluster.substring(at+1)), addresses);
+	    	}catch(RuntimeException e) {
+	    		System.out.println("Use --cluster name@port for this server and --peer host:port for each peer. Running alone.");
+	    	}
 	    }
+	    else if (!peers.isEmpty())
+	    	System.out.println("--peer needs --cluster. Running alone.");
 	    
-	    ServerConsole sc=new ServerConsole(port); //Starts listening for connections
+	    ServerConsole sc=new ServerConsole(port, options); //Starts listening for connections
 	    sc.accept(); //Wait for console data from the server
 	}
 }
@@ -0,0 +1,200 @@
+package edu.seg2105.edu.server.ui;
+
+import edu.seg2105.client.common.WriteBatching;
+import edu.seg2105.edu.server.backend.MessageJournal;
+import edu.seg2105.edu.server.backend.OfflineInbox;
+import edu.seg2105.edu.server.backend.OverflowPolicy;
+import edu.seg2105.edu.server.backend.ServerLog;
+import edu.seg2105.edu.server.backend.TransportMode;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * How a ServerConsole runs its server. Each setter returns the options, so
+ * that they can be chained:
+ * <pre>
+ * new ServerConsole(5555, new ServerOptions().setTransport(TransportMode.NIO).setTls(context));
+ * </pre>
+ * The defaults are those of the original server: the ocsf transport,
+ * disconnecting clients that fall behind, writing every message at once,
+ * logging to the console, in plaintext, alone and keeping nothing.
+ */
+public final class ServerOptions {
+
+	//Instance variables **********************************************
+
+	/**
+	  * The engine the server runs client connections on.
+	  */
+	private TransportMode transport=TransportMode.OCSF;
+
+	/**
+	  * What to do with a client whose outbound queue fills.
+	  */
+	private OverflowPolicy overflow=OverflowPolicy.DISCONNECT;
+
+	/**
+	  * How long messages to a client may be held back to be written together.
+	  */
+	private WriteBatching batching=WriteBatching.IMMEDIATE;
+
+	/**
+	  * Where the server logs, or null for the console.
+	  */
+	private ServerLog log;
+
+	/**
+	  * Where chat messages are kept, or null to keep nothing.
+	  */
+	private MessageJournal journal;
+
+	/**
+	  * Where private messages to users who are away are kept, or null to
+	  * refuse them.
+	  */
+	private OfflineInbox inbox;
+
+	/**
+	  * The context clients connect over TLS with, or null for plaintext.
+	  */
+	private SSLContext tls;
+
+	/**
+	  * This server's name and cluster port, null and 0 to run alone, and the
+	  * cluster ports of the servers to link to.
+	  */
+	private String clusterName;
+	private int clusterPort;
+	private final List<InetSocketAddress> peers=new ArrayList<InetSocketAddress>();
+
+	//Instance methods ************************************************
+
+	/**
+	   * @param transport The engine the server runs client connections on.
+	   * @return These options.
+	   */
+	public ServerOptions setTransport(TransportMode transport) {
+		this.transport=transport;
+		return this;
+	}
+
+	/**
+	   * @param overflow What to do with a client whose outbound queue fills.
+	   * @return These options.
+	   */
+	public ServerOptions setOverflow(OverflowPolicy overflow) {
+		this.overflow=overflow;
+		return this;
+	}
+
+	/**
+	   * @param batching How long messages to a client may be held back to be
+	   *        written together.
+	   * @return These options.
+	   */
+	public ServerOptions setBatching(WriteBatching batching) {
+		this.batching=batching;
+		return this;
+	}
+
+	/**
+	   * @param log Where the server logs, or null for the console.
+	   * @return These options.
+	   */
+	public ServerOptions setLog(ServerLog log) {
+		this.log=log;
+		return this;
+	}
+
+	/**
+	   * @param journal Where chat messages are kept, or null to keep nothing.
+	   * @return These options.
+	   */
+	public ServerOptions setJournal(MessageJournal journal) {
+		this.journal=journal;
+		return this;
+	}
+
+	/**
+	   * @param inbox Where private messages to users who are away are kept,
+	   *        or null to refuse them.
+	   * @return These options.
+	   */
+	public ServerOptions setInbox(OfflineInbox inbox) {
+		this.inbox=inbox;
+		return this;
+	}
+
+	/**
+	   * @param tls The context clients connect over TLS with, or null for
+	   *        plaintext. Not supported by the ocsf transport.
+	   * @return These options.
+	   */
+	public ServerOptions setTls(SSLContext tls) {
+		this.tls=tls;
+		return this;
+	}
+
+	/**
+	   * Runs the server in a cluster.
+	   *
+	   * @param name This server's name in the cluster.
+	   * @param port The port the other servers link to.
+	   * @param peers The cluster ports of the servers to link to.
+	   * @return These options.
+	   */
+	public ServerOptions setCluster(String name, int port, List<InetSocketAddress> peers) {
+		this.clusterName=name;
+		this.clusterPort=port;
+		this.peers.clear();
+		this.peers.addAll(peers);
+		return this;
+	}
+
+	public TransportMode getTransport() {
+		return transport;
+	}
+
+	public OverflowPolicy getOverflow() {
+		return overflow;
+	}
+
+	public WriteBatching getBatching() {
+		return batching;
+	}
+
+	public ServerLog getLog() {
+		return log;
+	}
+
+	public MessageJournal getJournal() {
+		return journal;
+	}
+
+	public OfflineInbox getInbox() {
+		return inbox;
+	}
+
+	public SSLContext getTls() {
+		return tls;
+	}
+
+	/**
+	   * @return This server's name in the cluster, or null if it runs alone.
+	   */
+	public String getClusterName() {
+		return clusterName;
+	}
+
+	public int getClusterPort() {
+		return clusterPort;
+	}
+
+	public List<InetSocketAddress> getPeers() {
+		return new ArrayList<InetSocketAddress>(peers);
+	}
+}
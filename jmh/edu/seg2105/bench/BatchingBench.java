@@ -0,0 +1,234 @@
+package edu.seg2105.bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.Arrays;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.backend.ClientOptions;
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.client.common.WireFormat;
+import edu.seg2105.client.common.WriteBatching;
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.FloodAction;
+import edu.seg2105.edu.server.backend.OverflowPolicy;
+import edu.seg2105.edu.server.backend.TransportMode;
+
+/**
+ * Replays a burst of chat messages and counts the write system calls it
+ * takes, with and without write batching. The count comes from the
+ * syscw field of /proc/self/io, so the benchmark needs Linux.
+ * <p>
+ * The client side has ChatClient send the burst to a server that only
+ * reads. The server side has one client send the burst in a single write
+ * and counts the server's writes echoing every message back to it.
+ * <p>
+ * Usage: java edu.seg2105.bench.BatchingBench [messages] [port]
+ */
+public class BatchingBench
+{
+  //Class variables *************************************************
+
+  /**
+   * The text of every message, of a typical chat line's length.
+   */
+  private static final String TEXT;
+  static
+  {
+    char[] text = new char[60];
+    Arrays.fill(text, 'x');
+    TEXT = new String(text);
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args[0] The number of messages in the burst, 100000 by default.
+   * @param args[1] The first port to use, 5555 by default.
+   */
+  public static void main(String[] args) throws Exception
+  {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 5555;
+
+    PrintStream report = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream())); //Silence the server
+    WriteBatching[] modes = {WriteBatching.IMMEDIATE, WriteBatching.DEFAULT_WINDOW};
+
+    report.println("Client to server, " + messages + " messages:");
+    for (WireFormat format : WireFormat.values())
+    {
+      for (WriteBatching batching : modes)
+      {
+        report.println(clientBurst(messages, port++, format, batching));
+      }
+    }
+
+    report.println("Server to client, " + messages + " messages:");
+    for (TransportMode mode : TransportMode.values())
+    {
+      for (WriteBatching batching : modes)
+      {
+        if (mode == TransportMode.OCSF && !batching.isImmediate())
+          continue; //OCSF writes each message itself
+        report.println(serverBurst(messages, port++, mode, batching));
+      }
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Has a ChatClient send a burst to a server that only reads.
+   *
+   * @return The line to report.
+   */
+  private static String clientBurst(int messages, int port, WireFormat format,
+    WriteBatching batching) throws Exception
+  {
+    long expected = format != WireFormat.LEGACY
+      ? Frame.hello().length + (long)messages * Frame.fromClientText(TEXT).encode().remaining()
+      : 4 + (long)messages * (TEXT.length() + 4);
+    try (ServerSocket server = new ServerSocket(port))
+    {
+      Sink sink = new Sink(server, expected);
+      sink.start();
+      ChatClient client = new ChatClient("bench", "localhost", port, message -> {},
+        new ClientOptions().setFormat(format).setBatching(batching));
+      long writes = writeCalls();
+      long start = System.nanoTime();
+      for (int i = 0; i < messages; i++)
+        client.sendToServer(TEXT);
+      sink.join();
+      long elapsed = System.nanoTime() - start;
+      writes = writeCalls() - writes;
+      client.disconnectFromServer();
+      return line(format + " client", batching, writes, elapsed, messages);
+    }
+  }
+
+  /**
+   * Has one client send a burst in a single write, and counts the server's
+   * writes echoing the messages back.
+   *
+   * @return The line to report.
+   */
+  private static String serverBurst(int messages, int port, TransportMode mode,
+    WriteBatching batching) throws Exception
+  {
+    EchoServer server = new EchoServer(port, message -> {}, mode);
+    server.setOutboundQueue(messages + 1, OverflowPolicy.BLOCK);
+    server.setWriteBatching(batching);
+    server.setRateLimits(null, null, FloodAction.THROTTLE); //The burst is the point
+    server.getTransport().listen();
+    Thread.sleep(200);
+
+    ByteArrayOutputStream burst = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(burst);
+    output.writeObject("#login bench");
+    for (int i = 0; i < messages; i++)
+    {
+      output.writeObject(TEXT);
+      output.reset();
+    }
+    output.flush();
+    String echo = "bench> " + TEXT;
+
+    try (Socket socket = new Socket("localhost", port))
+    {
+      Sink sink = new Sink(socket, 4 + (long)messages * (echo.length() + 4));
+      sink.start();
+      long writes = writeCalls();
+      long start = System.nanoTime();
+      socket.getOutputStream().write(burst.toByteArray());
+      sink.join();
+      long elapsed = System.nanoTime() - start;
+      writes = writeCalls() - writes;
+      server.getTransport().close();
+      return line(mode + " server", batching, writes, elapsed, messages);
+    }
+  }
+
+  /**
+   * Formats one result.
+   */
+  private static String line(String side, WriteBatching batching, long writes,
+    long elapsed, int messages)
+  {
+    return String.format("  %-17s %-32s %7d writes (%.3f per message) in %5d ms",
+      side, batching, writes, writes / (double)messages, elapsed / 1000000);
+  }
+
+  /**
+   * Returns the number of write system calls the process has made.
+   */
+  private static long writeCalls() throws IOException
+  {
+    for (String line : Files.readAllLines(Paths.get("/proc/self/io")))
+    {
+      if (line.startsWith("syscw:"))
+        return Long.parseLong(line.substring(6).trim());
+    }
+    throw new IOException("No write count in /proc/self/io");
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * Reads and discards a known number of bytes from one socket. Given a
+   * server socket, it accepts the connection and answers the stream header
+   * and protocol hello first, as the chat server would.
+   */
+  private static class Sink extends Thread
+  {
+    private final ServerSocket server;
+    private Socket socket;
+    private final long expected;
+
+    Sink(ServerSocket server, long expected)
+    {
+      this.server = server;
+      this.expected = expected;
+    }
+
+    Sink(Socket socket, long expected)
+    {
+      this.server = null;
+      this.socket = socket;
+      this.expected = expected;
+    }
+
+    public void run()
+    {
+      try
+      {
+        InputStream in;
+        long received = 0;
+        if (server != null)
+        {
+          socket = server.accept();
+          in = socket.getInputStream();
+          OutputStream out = socket.getOutputStream();
+          out.write(new byte[] {(byte)0xac, (byte)0xed, 0x00, 0x05});
+          byte[] first = new byte[5];
+          new DataInputStream(in).readFully(first);
+          received = first.length;
+          if (first[4] == Frame.preamble()[0])
+            out.write(Frame.preamble());
+        }
+        else
+          in = socket.getInputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while (received < expected && (read = in.read(buffer)) > 0)
+          received += read;
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,242 @@
+package edu.seg2105.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.edu.server.backend.ClientConnection;
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.LogLevel;
+import edu.seg2105.edu.server.backend.ServerTransport;
+import edu.seg2105.edu.server.backend.TransportMode;
+
+/**
+ * Measures what one broadcast costs the sending thread as the number of
+ * recipients grows, on the non-blocking transport. It compares encoding the
+ * message separately for every recipient, as sendToAllClients(...) used to,
+ * with EchoServer's encode-once fan-out.
+ * <p>
+ * Half of the clients speak the object stream and half the framed protocol,
+ * so both encodings are exercised. Each call sends BATCH broadcasts, and
+ * before the next a single thread, which reads and discards everything the
+ * server sends, waits untimed for all of it to arrive, so queued output
+ * does not pile up between calls.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark
+{
+  //Class variables *************************************************
+
+  /**
+   * The broadcasts sent per call, between waits for the clients to catch up.
+   */
+  static final int BATCH = 50;
+
+  /**
+   * The message broadcast, of a typical chat line's length.
+   */
+  static final String MESSAGE;
+  static
+  {
+    char[] text = new char[100];
+    Arrays.fill(text, 'x');
+    MESSAGE = "SERVER MSG> " + new String(text);
+  }
+
+  //Instance variables **********************************************
+
+  @Param({"10", "100", "1000", "5000"})
+  int recipients;
+
+  private EchoServer server;
+  private ServerTransport transport;
+  private Drain drain;
+  private final ArrayList<SocketChannel> sockets = new ArrayList<SocketChannel>();
+
+  /**
+   * The bytes every recipient together is sent per broadcast.
+   */
+  private long perBroadcast;
+
+  //Setup ***********************************************************
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    int port;
+    try (ServerSocket probe = new ServerSocket(0))
+    {
+      port = probe.getLocalPort();
+    }
+    server = new EchoServer(port, message -> {}, TransportMode.NIO);
+    server.getLog().setLevel(LogLevel.INFO);
+    transport = server.getTransport();
+    transport.listen();
+    drain = new Drain();
+    drain.start();
+    connect(port);
+    while (transport.getClientConnections().size() < recipients)
+      Thread.sleep(10);
+    drain.await();
+
+    int legacy = (recipients + 1) / 2;
+    perBroadcast = legacy * (MESSAGE.length() + 4)
+      + (recipients - legacy) * Frame.fromServerText(MESSAGE).encode().remaining();
+  }
+
+  @Setup(Level.Invocation)
+  public void awaitDrain() throws InterruptedException
+  {
+    drain.await();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException
+  {
+    for (SocketChannel socket : sockets)
+      socket.close();
+    transport.close();
+    drain.interrupt();
+  }
+
+  //Benchmarks ******************************************************
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void encodePerRecipient() throws IOException
+  {
+    for (int i = 0; i < BATCH; i++)
+    {
+      for (ClientConnection client : transport.getClientConnections())
+        client.sendToClient(MESSAGE);
+    }
+    drain.expect(perBroadcast * BATCH);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void encodeOnce()
+  {
+    for (int i = 0; i < BATCH; i++)
+      server.sendToAllClients(MESSAGE);
+    drain.expect(perBroadcast * BATCH);
+  }
+
+  /**
+   * Opens sockets until there are as many as recipients, alternating
+   * formats.
+   */
+  private void connect(int port) throws IOException
+  {
+    while (sockets.size() < recipients)
+    {
+      SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port));
+      if (sockets.size() % 2 == 0)
+      {
+        //The header, then a TC_RESET so that the server sees the format
+        socket.write(ByteBuffer.wrap(new byte[] {(byte)0xac, (byte)0xed, 0x00, 0x05, 0x79}));
+        drain.expect(4);
+      }
+      else
+      {
+        socket.write(ByteBuffer.wrap(Frame.hello()));
+        drain.expect(4 + Frame.preamble().length);
+      }
+      sockets.add(socket);
+      drain.add(socket);
+    }
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * Reads and discards everything sent to the benchmark's clients, counting
+   * the bytes so the benchmark can wait for them.
+   */
+  static class Drain extends Thread
+  {
+    private final Selector selector;
+    private final ArrayList<SocketChannel> pending = new ArrayList<SocketChannel>();
+    private final AtomicLong expected = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+
+    Drain() throws IOException
+    {
+      super("Broadcast drain");
+      setDaemon(true);
+      selector = Selector.open();
+    }
+
+    void add(SocketChannel socket)
+    {
+      synchronized (pending)
+      {
+        pending.add(socket);
+      }
+      selector.wakeup();
+    }
+
+    void expect(long bytes)
+    {
+      expected.addAndGet(bytes);
+    }
+
+    /**
+     * Waits until every byte expected so far has been received.
+     */
+    void await() throws InterruptedException
+    {
+      while (received.get() < expected.get())
+        Thread.sleep(1);
+    }
+
+    public void run()
+    {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+      try
+      {
+        while (!isInterrupted())
+        {
+          synchronized (pending)
+          {
+            for (SocketChannel socket : pending)
+            {
+              socket.configureBlocking(false);
+              socket.register(selector, SelectionKey.OP_READ);
+            }
+            pending.clear();
+          }
+          selector.select();
+          for (SelectionKey key : selector.selectedKeys())
+          {
+            buffer.clear();
+            int read = ((SocketChannel)key.channel()).read(buffer);
+            if (read < 0)
+              key.cancel();
+            else
+              received.addAndGet(read);
+          }
+          selector.selectedKeys().clear();
+        }
+      }
+      catch (IOException | ClosedSelectorException e) {}
+    }
+  }
+}
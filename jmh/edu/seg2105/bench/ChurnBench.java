@@ -0,0 +1,252 @@
+package edu.seg2105.bench;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.ServerTransport;
+import edu.seg2105.edu.server.backend.TransportMode;
+
+/**
+ * Stresses the server's connection bookkeeping with a reconnect storm.
+ * Short-lived clients connect, log in and disconnect at a target rate while
+ * resident clients stay connected and another thread broadcasts to everyone
+ * every millisecond. It reports the rate reached, how long each broadcast
+ * took while connections churned under it, and how many churned clients the
+ * server had not forgotten once the storm was over, which should be none.
+ * <p>
+ * The churned clients close their sockets first, so on Linux the loopback
+ * ports they leave in TIME_WAIT are only reused if net.ipv4.tcp_tw_reuse
+ * allows it, as it does by default.
+ * <p>
+ * Usage: java edu.seg2105.bench.ChurnBench [connections per second] [seconds] [port] [mode]
+ */
+public class ChurnBench
+{
+  //Class variables *************************************************
+
+  /**
+   * The threads opening short-lived connections.
+   */
+  private static final int CHURNERS = 32;
+
+  /**
+   * The clients connected for the whole run.
+   */
+  private static final int RESIDENTS = 100;
+
+  /**
+   * The pause between broadcasts, in microseconds.
+   */
+  private static final long BROADCAST_INTERVAL_MICROS = 1000;
+
+  /**
+   * How long to wait for the server to forget the churned clients.
+   */
+  private static final long SETTLE_MILLIS = 10000;
+
+  //Class methods ***************************************************
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args[0] The connections to open per second, 10000 by default.
+   * @param args[1] How many seconds to churn for, 5 by default.
+   * @param args[2] The first port to use, 5555 by default.
+   * @param args[3] The transport to stress. All are run if omitted.
+   */
+  public static void main(String[] args) throws Exception
+  {
+    int rate = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int port = args.length > 2 ? Integer.parseInt(args[2]) : 5555;
+    TransportMode[] modes = args.length > 3
+      ? new TransportMode[] {TransportMode.valueOf(args[3].toUpperCase())}
+      : TransportMode.values();
+
+    PrintStream report = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream())); //Silence the server
+    report.println("Churning " + rate + " connections a second for " + seconds
+      + " s under " + RESIDENTS + " resident clients:");
+    for (TransportMode mode : modes)
+      report.println(churn(mode, rate, seconds, port++));
+    System.exit(0);
+  }
+
+  /**
+   * Runs one reconnect storm against a fresh server.
+   *
+   * @return The line to report.
+   */
+  private static String churn(TransportMode mode, int rate, int seconds, int port)
+    throws Exception
+  {
+    EchoServer server = new EchoServer(port, message -> {}, mode);
+    server.setBacklog(4096);
+    ServerTransport transport = server.getTransport();
+    transport.listen();
+    Thread.sleep(200);
+    InetSocketAddress address = new InetSocketAddress("localhost", port);
+
+    ArrayList<Socket> residents = new ArrayList<Socket>(RESIDENTS);
+    for (int i = 0; i < RESIDENTS; i++)
+    {
+      Socket socket = new Socket();
+      socket.connect(address);
+      socket.getOutputStream().write(login("resident" + i));
+      new Discard(socket).start();
+      residents.add(socket);
+    }
+    while (transport.getNumberOfClients() < RESIDENTS)
+      Thread.sleep(10);
+
+    Broadcaster broadcaster = new Broadcaster(server, transport);
+    broadcaster.start();
+
+    long total = (long)rate * seconds;
+    long interval = 1000000000L / rate;
+    AtomicLong next = new AtomicLong();
+    AtomicInteger failures = new AtomicInteger();
+    long start = System.nanoTime();
+    Thread[] churners = new Thread[CHURNERS];
+    for (int t = 0; t < CHURNERS; t++)
+    {
+      churners[t] = new Thread(() -> {
+        long i;
+        while ((i = next.getAndIncrement()) < total)
+        {
+          long wait = start + i * interval - System.nanoTime();
+          if (wait > 0)
+            LockSupport.parkNanos(wait);
+          try (Socket socket = new Socket())
+          {
+            socket.connect(address);
+            socket.getOutputStream().write(login("churn" + i));
+          }
+          catch (IOException e)
+          {
+            if (failures.incrementAndGet() == 1)
+              System.err.println("  First failure: " + e);
+          }
+        }
+      });
+      churners[t].start();
+    }
+    for (Thread churner : churners)
+      churner.join();
+    long elapsed = System.nanoTime() - start;
+    broadcaster.finish();
+
+    long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+    while (transport.getNumberOfClients() > RESIDENTS && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    int lingering = transport.getNumberOfClients() - RESIDENTS;
+
+    for (Socket socket : residents)
+      socket.close();
+    transport.close();
+
+    return String.format("  %-8s %6.0f connections/s (%d failed), %d clients at peak;"
+      + " %d broadcasts: p50 %d us, p99 %d us, max %d us; %d not forgotten",
+      mode, total * 1e9 / elapsed, failures.get(), broadcaster.peakClients,
+      broadcaster.count, broadcaster.percentile(50), broadcaster.percentile(99),
+      broadcaster.percentile(100), lingering);
+  }
+
+  /**
+   * Returns what a client sends to connect and log in: the object stream
+   * header and a #login command.
+   */
+  private static byte[] login(String loginID) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    output.writeObject("#login " + loginID);
+    output.flush();
+    return bytes.toByteArray();
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * Broadcasts to every client until finished, timing each broadcast.
+   */
+  private static class Broadcaster extends Thread
+  {
+    private final EchoServer server;
+    private final ServerTransport transport;
+    private volatile boolean finished;
+    private long[] times = new long[1024];
+    int count;
+    int peakClients;
+
+    Broadcaster(EchoServer server, ServerTransport transport)
+    {
+      this.server = server;
+      this.transport = transport;
+    }
+
+    public void run()
+    {
+      while (!finished)
+      {
+        long start = System.nanoTime();
+        server.sendToAllClients("SERVER MSG> churn");
+        if (count == times.length)
+          times = Arrays.copyOf(times, count * 2);
+        times[count++] = System.nanoTime() - start;
+        peakClients = Math.max(peakClients, transport.getNumberOfClients());
+        LockSupport.parkNanos(BROADCAST_INTERVAL_MICROS * 1000);
+      }
+    }
+
+    void finish() throws InterruptedException
+    {
+      finished = true;
+      join();
+      Arrays.sort(times, 0, count);
+    }
+
+    /**
+     * Returns a percentile of the broadcast times, in microseconds.
+     */
+    long percentile(int percent)
+    {
+      if (count == 0)
+        return 0;
+      int index = (int)Math.min(count - 1, (long)count * percent / 100);
+      return times[index] / 1000;
+    }
+  }
+
+  /**
+   * Reads and discards everything sent to one resident client.
+   */
+  private static class Discard extends Thread
+  {
+    private final Socket socket;
+
+    Discard(Socket socket)
+    {
+      this.socket = socket;
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      try
+      {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[64 * 1024];
+        while (in.read(buffer) > 0);
+      }
+      catch (IOException e) {}
+    }
+  }
+}
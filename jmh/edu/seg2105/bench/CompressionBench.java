@@ -0,0 +1,200 @@
+package edu.seg2105.bench;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * Weighs the bytes compression saves against the CPU time it costs, on a
+ * recorded chat corpus: a text file with one message per line, such as the
+ * lines of a server log or an exported history.
+ * <p>
+ * Three workloads are measured, each framed without and with compression:
+ * <ul>
+ * <li>lines: every message sent on its own, as chat is. Most lines are
+ *   shorter than Frame.COMPRESS_THRESHOLD and are sent as they are.</li>
+ * <li>replays: runs of messages sent as one, as EchoServer sends history
+ *   and resume replays to a client that asked for compression.</li>
+ * <li>fanout: a replay-sized message broadcast to many clients, encoded
+ *   once for all of them, as EncodedMessage does, or once for each.</li>
+ * </ul>
+ * For each it reports the bytes sent, their ratio to the uncompressed
+ * frames, and the time to encode and decode a message.
+ * <p>
+ * Usage: java edu.seg2105.bench.CompressionBench &lt;corpus file&gt;
+ * [replay length] [recipients]
+ */
+public class CompressionBench
+{
+  //Class variables *************************************************
+
+  /**
+   * How long each measurement runs, after a warm-up as long.
+   */
+  private static final long MEASURE_NANOS = 2000000000L;
+
+  /**
+   * Where encoded bytes go, so that the work is not optimized away.
+   */
+  static volatile Object sink;
+
+  //Class methods ***************************************************
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args[0] The corpus, one message per line, in UTF-8.
+   * @param args[1] The messages in a replay, 50 by default.
+   * @param args[2] The recipients of a broadcast, 100 by default.
+   */
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 1)
+    {
+      System.out.println("Usage: java edu.seg2105.bench.CompressionBench <corpus file> [replay length] [recipients]");
+      return;
+    }
+    List<String> lines = new ArrayList<String>();
+    for (String line : Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8))
+    {
+      if (!line.isEmpty())
+        lines.add(line);
+    }
+    int replayLength = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int recipients = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+    List<String> replays = new ArrayList<String>();
+    for (int i = 0; i < lines.size(); i += replayLength)
+      replays.add(String.join("\n", lines.subList(i, Math.min(i + replayLength, lines.size()))));
+
+    int over = 0;
+    for (String line : lines)
+    {
+      if (line.getBytes(StandardCharsets.UTF_8).length >= Frame.COMPRESS_THRESHOLD)
+        over++;
+    }
+    System.out.printf("Corpus: %d messages, %d of them of %d bytes or more; replays of %d.%n",
+      lines.size(), over, Frame.COMPRESS_THRESHOLD, replayLength);
+    System.out.printf("%-22s %12s %7s %14s %14s%n", "Benchmark", "bytes", "ratio",
+      "encode ns/msg", "decode ns/msg");
+
+    long plain = report("lines.framed", lines, WireFormat.FRAMED, 0);
+    report("lines.compressed", lines, WireFormat.COMPRESSED, plain);
+    plain = report("replays.framed", replays, WireFormat.FRAMED, 0);
+    report("replays.compressed", replays, WireFormat.COMPRESSED, plain);
+
+    System.out.printf("Broadcasting each replay to %d recipients, ns per broadcast:%n", recipients);
+    System.out.printf("%-22s %12.0f%n", "fanout.framed",
+      fanout(replays, WireFormat.FRAMED, 1));
+    System.out.printf("%-22s %12.0f%n", "fanout.compressed.once",
+      fanout(replays, WireFormat.COMPRESSED, 1));
+    System.out.printf("%-22s %12.0f%n", "fanout.compressed.each",
+      fanout(replays, WireFormat.COMPRESSED, recipients));
+  }
+
+  /**
+   * Encodes and decodes every message in a format, and reports it.
+   *
+   * @param name The name of the benchmark.
+   * @param messages The messages.
+   * @param format The format to encode them in.
+   * @param plainBytes The bytes of the uncompressed frames, or 0 if these
+   *        are they.
+   * @return The bytes of the frames.
+   */
+  private static long report(String name, List<String> messages, WireFormat format,
+    long plainBytes) throws IOException
+  {
+    List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+    long bytes = 0;
+    for (String message : messages)
+    {
+      ByteBuffer frame = Frame.fromServerText(message).encode(format);
+      bytes += frame.remaining();
+      frames.add(frame);
+    }
+    for (int i = 0; i < messages.size(); i++)
+    {
+      if (!Frame.decode(frames.get(i).duplicate()).toText().equals(messages.get(i)))
+        throw new IllegalStateException("Message " + i + " did not survive " + name);
+    }
+
+    double encode = nanosPerMessage(messages.size(), () -> {
+      for (String message : messages)
+        sink = Frame.fromServerText(message).encode(format);
+    });
+    double decode = nanosPerMessage(messages.size(), () -> {
+      for (ByteBuffer frame : frames)
+        sink = Frame.decode(frame.duplicate());
+    });
+    System.out.printf("%-22s %12d %7.3f %14.1f %14.1f%n", name, bytes,
+      plainBytes == 0 ? 1.0 : (double)bytes / plainBytes, encode, decode);
+    return bytes;
+  }
+
+  /**
+   * Times broadcasting each message, encoding it a number of times.
+   *
+   * @param messages The messages.
+   * @param format The format to encode them in.
+   * @param encodings How many times each is encoded: 1 when the encoding
+   *        is shared, the number of recipients otherwise.
+   * @return The time per broadcast, in nanoseconds.
+   */
+  private static double fanout(List<String> messages, WireFormat format, int encodings)
+    throws IOException
+  {
+    return nanosPerMessage(messages.size(), () -> {
+      for (String message : messages)
+      {
+        Frame frame = Frame.fromServerText(message);
+        for (int i = 0; i < encodings; i++)
+          sink = frame.encode(format);
+      }
+    });
+  }
+
+  /**
+   * Runs a pass over the messages again and again, first to warm up and
+   * then to measure it.
+   *
+   * @param count The messages in a pass.
+   * @param pass The pass.
+   * @return The time per message, in nanoseconds.
+   */
+  private static double nanosPerMessage(int count, Pass pass) throws IOException
+  {
+    double result = 0;
+    for (int round = 0; round < 2; round++)
+    {
+      long start = System.nanoTime();
+      long passes = 0;
+      long now;
+      do
+      {
+        pass.run();
+        passes++;
+      }
+      while ((now = System.nanoTime()) - start < MEASURE_NANOS);
+      result = (double)(now - start) / (passes * count);
+    }
+    return result;
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * One pass over the messages.
+   */
+  private interface Pass
+  {
+    void run() throws IOException;
+  }
+}
@@ -0,0 +1,139 @@
+package edu.seg2105.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+
+import edu.seg2105.client.common.VirtualThreads;
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.ServerTransport;
+import edu.seg2105.edu.server.backend.TransportMode;
+
+/**
+ * Measures what idle connections cost a local EchoServer under each
+ * transport. It opens the given number of sockets that send only the
+ * object stream header, waits until the server has accepted them all, and
+ * reports the threads, heap and resident memory they added.
+ * <p>
+ * Every mode is measured in a fresh JVM so the figures do not mix.
+ * Operating system limits on open files may need raising for large counts.
+ * <p>
+ * Usage: java edu.seg2105.bench.ConnectionCountBench [connections] [port] [mode]
+ */
+public class ConnectionCountBench
+{
+  //Class methods ***************************************************
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args[0] The number of connections, 5000 by default.
+   * @param args[1] The port to listen on, 5555 by default.
+   * @param args[2] The transport to measure. All are compared if omitted.
+   */
+  public static void main(String[] args) throws Exception
+  {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 5555;
+    if (args.length > 2)
+    {
+      measure(TransportMode.valueOf(args[2].toUpperCase()), connections, port);
+      return;
+    }
+
+    System.out.println("Virtual threads available: " + VirtualThreads.isAvailable());
+    for (TransportMode mode : TransportMode.values())
+    {
+      String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+      Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        ConnectionCountBench.class.getName(), "" + connections, "" + port, mode.name())
+        .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+      child.waitFor();
+    }
+  }
+
+  /**
+   * Measures one mode in this JVM.
+   */
+  private static void measure(TransportMode mode, int connections, int port)
+    throws Exception
+  {
+    PrintStream report = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream())); //Silence the server
+
+    EchoServer server = new EchoServer(port, message -> {}, mode);
+    server.setBacklog(connections); //OCSF's default of 10 would only measure SYN retries
+    ServerTransport transport = server.getTransport();
+    transport.listen();
+
+    Snapshot before = Snapshot.take();
+    long start = System.nanoTime();
+    ArrayList<SocketChannel> sockets = new ArrayList<SocketChannel>(connections);
+    ByteBuffer header = ByteBuffer.wrap(new byte[] {(byte)0xac, (byte)0xed, 0x00, 0x05});
+    for (int i = 0; i < connections; i++)
+    {
+      SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port));
+      socket.write(header.duplicate());
+      sockets.add(socket);
+    }
+    while (transport.getNumberOfClients() < connections)
+      Thread.sleep(10);
+    long elapsed = System.nanoTime() - start;
+    Snapshot after = Snapshot.take();
+
+    report.printf("%-8s %6d connections in %5d ms: +%d threads, +%d KB heap, +%d KB resident"
+      + " (%.1f KB resident per connection)%n", mode, connections, elapsed / 1000000,
+      after.threads - before.threads, (after.heap - before.heap) / 1024,
+      (after.resident - before.resident) / 1024,
+      (after.resident - before.resident) / 1024.0 / connections);
+
+    for (SocketChannel socket : sockets)
+      socket.close();
+    transport.close();
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * The process's resource use at one point in time.
+   */
+  private static class Snapshot
+  {
+    int threads;
+    long heap;
+    long resident;
+
+    static Snapshot take() throws InterruptedException
+    {
+      System.gc();
+      Thread.sleep(200);
+      Snapshot snapshot = new Snapshot();
+      snapshot.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+      Runtime runtime = Runtime.getRuntime();
+      snapshot.heap = runtime.totalMemory() - runtime.freeMemory();
+      snapshot.resident = residentBytes();
+      return snapshot;
+    }
+
+    /**
+     * Reads the resident set size from /proc, or 0 where there is none.
+     */
+    private static long residentBytes()
+    {
+      try
+      {
+        for (String line : Files.readAllLines(Paths.get("/proc/self/status")))
+        {
+          if (line.startsWith("VmRSS:"))
+            return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+        }
+      }
+      catch (IOException | NumberFormatException e) {}
+      return 0;
+    }
+  }
+}
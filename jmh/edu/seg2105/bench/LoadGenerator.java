@@ -0,0 +1,263 @@
+package edu.seg2105.bench;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.backend.ClientOptions;
+import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.client.common.WireFormat;
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.FloodAction;
+import edu.seg2105.edu.server.backend.LogLevel;
+import edu.seg2105.edu.server.backend.ServerTransport;
+import edu.seg2105.edu.server.backend.TransportMode;
+
+/**
+ * Puts a chat server under load from real clients and measures how long
+ * messages take to arrive. It starts an EchoServer and the given number
+ * of ChatClients on loopback, in channels of ROOM_SIZE, and has them send
+ * chat lines at a steady total rate, each client in turn. Every line
+ * carries the time it was sent, and every member of the sender's channel,
+ * the sender included, records how long it took to reach them, from the
+ * client's send to its display.
+ * <p>
+ * The rate is held whatever the latency, so a server that falls behind
+ * shows it in the latencies rather than by slowing the senders. The first
+ * WARMUP_SECONDS are sent but not measured.
+ * <p>
+ * Usage: java edu.seg2105.bench.LoadGenerator [clients] [messages per second]
+ * [seconds] [port] [transport] [framed]
+ */
+public class LoadGenerator
+{
+  //Class variables *************************************************
+
+  /**
+   * The members of each channel.
+   */
+  private static final int ROOM_SIZE = 10;
+
+  /**
+   * How long messages are sent before measuring starts.
+   */
+  private static final int WARMUP_SECONDS = 2;
+
+  /**
+   * How long to wait for the last messages to arrive.
+   */
+  private static final long SETTLE_MILLIS = 10000;
+
+  /**
+   * What starts the time in a measured message, and in a warm-up one.
+   */
+  private static final String MEASURED = "t=";
+  private static final String WARMUP = "w=";
+
+  //Class methods ***************************************************
+
+  /**
+   * Runs the load.
+   *
+   * @param args[0] The number of clients, 100 by default.
+   * @param args[1] The messages sent per second by all the clients
+   *        together, 2000 by default.
+   * @param args[2] How many seconds to measure for, 10 by default.
+   * @param args[3] The port to listen on, 5555 by default.
+   * @param args[4] The server's transport, nio by default.
+   * @param args[5] framed to have the clients speak the framed protocol.
+   */
+  public static void main(String[] args) throws Exception
+  {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int rate = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    int port = args.length > 3 ? Integer.parseInt(args[3]) : 5555;
+    TransportMode mode = args.length > 4
+      ? TransportMode.valueOf(args[4].toUpperCase()) : TransportMode.NIO;
+    WireFormat format = args.length > 5 && args[5].equals("framed") ? WireFormat.FRAMED
+      : args.length > 5 && args[5].equals("compress") ? WireFormat.COMPRESSED : WireFormat.LEGACY;
+
+    PrintStream report = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream())); //Silence the server
+
+    EchoServer server = new EchoServer(port, message -> {}, mode);
+    server.getLog().setLevel(LogLevel.INFO);
+    server.setRateLimits(null, null, FloodAction.THROTTLE); //Every client shares loopback's address
+    ServerTransport transport = server.getTransport();
+    transport.listen();
+    Thread.sleep(200);
+
+    Probe[] probes = new Probe[count];
+    LoadClient[] clients = new LoadClient[count];
+    for (int i = 0; i < count; i++)
+    {
+      probes[i] = new Probe();
+      clients[i] = new LoadClient("load" + i, port, probes[i], format, "room" + i / ROOM_SIZE);
+    }
+    while (transport.getNumberOfClients() < count)
+      Thread.sleep(10);
+    Thread.sleep(500); //Until every client has joined its channel
+
+    report.println("Sending " + rate + " messages a second from " + count + " " + format
+      + " clients to a " + mode + " server, in channels of " + ROOM_SIZE + ", for "
+      + seconds + " s:");
+    send(clients, rate, WARMUP_SECONDS, WARMUP, new AtomicLong());
+    AtomicLong expected = new AtomicLong();
+    long start = System.nanoTime();
+    long sent = send(clients, rate, seconds, MEASURED, expected);
+    long elapsed = System.nanoTime() - start;
+
+    long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+    while (delivered(probes) < expected.get() && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+
+    long delivered = delivered(probes);
+    long[] latencies = new long[(int)delivered];
+    int filled = 0;
+    for (Probe probe : probes)
+      filled = probe.copyTo(latencies, filled);
+    Arrays.sort(latencies, 0, filled);
+    report.printf("  sent %.0f messages/s, delivered %.0f messages/s, %d not delivered%n",
+      sent * 1e9 / elapsed, delivered * 1e9 / elapsed, expected.get() - delivered);
+    int lost = 0;
+    for (LoadClient client : clients)
+      lost += client.lost ? 1 : 0;
+    if (lost > 0)
+      report.println("  " + lost + " clients lost their connection");
+    report.printf("  latency p50 %d us, p99 %d us, p99.9 %d us, max %d us%n",
+      percentile(latencies, filled, 50), percentile(latencies, filled, 99),
+      percentile(latencies, filled, 99.9), percentile(latencies, filled, 100));
+
+    for (LoadClient client : clients)
+      client.disconnectFromServer();
+    transport.close();
+    System.exit(0);
+  }
+
+  /**
+   * Sends messages at a steady rate, from each client in turn.
+   *
+   * @param marker What the time in each message starts with.
+   * @param expected Counts the deliveries the messages should make.
+   * @return The number of messages sent.
+   */
+  private static long send(LoadClient[] clients, int rate, int seconds, String marker,
+    AtomicLong expected)
+  {
+    long total = (long)rate * seconds;
+    long interval = 1000000000L / rate;
+    long start = System.nanoTime();
+    for (long i = 0; i < total; i++)
+    {
+      long wait = start + i * interval - System.nanoTime();
+      if (wait > 0)
+        LockSupport.parkNanos(wait);
+      int sender = (int)(i % clients.length);
+      int room = sender / ROOM_SIZE;
+      expected.addAndGet(Math.min(ROOM_SIZE, clients.length - room * ROOM_SIZE));
+      clients[sender].handleMessageFromClientUI(marker + System.nanoTime());
+    }
+    return total;
+  }
+
+  private static long delivered(Probe[] probes)
+  {
+    long delivered = 0;
+    for (Probe probe : probes)
+      delivered += probe.count;
+    return delivered;
+  }
+
+  /**
+   * Returns a percentile of sorted latencies, in microseconds.
+   */
+  private static long percentile(long[] latencies, int count, double percent)
+  {
+    if (count == 0)
+      return 0;
+    int index = (int)Math.min(count - 1, Math.ceil(count * percent / 100) - 1);
+    return latencies[Math.max(0, index)] / 1000;
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A client that joins its channel as soon as it has logged in, and
+   * records losing its connection rather than ending the program, as
+   * ChatClient does.
+   */
+  private static class LoadClient extends ChatClient
+  {
+    private volatile String channel;
+    volatile boolean lost;
+
+    LoadClient(String loginID, int port, ChatIF display, WireFormat format, String channel)
+      throws IOException
+    {
+      super(loginID, "localhost", port, display, new ClientOptions().setFormat(format));
+      this.channel = channel;
+    }
+
+    /**
+     * Logs in and joins the channel. Both are sent from the thread that
+     * calls connectionEstablished(), since AbstractClient's object stream
+     * cannot be written by two threads at once.
+     */
+    protected void connectionEstablished()
+    {
+      super.connectionEstablished();
+      while (channel == null)
+        Thread.onSpinWait(); //The constructor connects before it sets the channel
+      handleMessageFromClientUI("#join " + channel);
+    }
+
+    public void quit()
+    {
+      lost = true;
+      try
+      {
+        disconnectFromServer();
+      }
+      catch (IOException e) {}
+    }
+  }
+
+  /**
+   * The display of one client, recording how long each measured message
+   * took to arrive. It is only called on the client's reader thread.
+   */
+  private static class Probe implements ChatIF
+  {
+    private long[] latencies = new long[1024];
+    volatile int count;
+
+    public void display(String message)
+    {
+      long now = System.nanoTime();
+      int mark = message.lastIndexOf(MEASURED);
+      if (mark < 0)
+        return;
+      long latency = now - Long.parseLong(message.substring(mark + MEASURED.length()));
+      int n = count;
+      if (n == latencies.length)
+        latencies = Arrays.copyOf(latencies, n * 2);
+      latencies[n] = latency;
+      count = n + 1;
+    }
+
+    /**
+     * Copies the latencies recorded into an array.
+     *
+     * @return The index after the last one copied.
+     */
+    int copyTo(long[] all, int from)
+    {
+      int n = Math.min(count, all.length - from);
+      System.arraycopy(latencies, 0, all, from, n);
+      return from + n;
+    }
+  }
+}
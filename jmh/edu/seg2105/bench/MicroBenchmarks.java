@@ -0,0 +1,285 @@
+package edu.seg2105.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.common.WireFormat;
+import edu.seg2105.edu.server.backend.ClientConnection;
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.EncodedMessage;
+import edu.seg2105.edu.server.backend.FloodAction;
+import edu.seg2105.edu.server.backend.LogLevel;
+import edu.seg2105.edu.server.backend.TransportMode;
+
+/**
+ * Microbenchmarks of the chat stack's hot paths, in JMH's average-time
+ * mode:
+ * <ul>
+ * <li>dispatch*: EchoServer.handleMessageFromClient(...) for a chat line, a
+ *     private message, a channel change and #channels, from clients that
+ *     drop what they are sent, so no socket is involved.</li>
+ * <li>broadcast: fanning a message out to a channel of 10, 100 and 1000
+ *     such clients. They do not encode it; BroadcastBenchmark measures
+ *     broadcasts over real sockets.</li>
+ * <li>client*: ChatClient.handleMessageFromClientUI(...) parsing what the
+ *     user typed, with the send to the server skipped.</li>
+ * </ul>
+ * The server logs at the INFO level, so received messages are not traced,
+ * and has no rate limits.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class MicroBenchmarks
+{
+  //Class variables *************************************************
+
+  /**
+   * Where the messages the clients drop go, so that they count as used.
+   */
+  static volatile Object sink;
+
+  //Benchmarks ******************************************************
+
+  @Benchmark
+  public void dispatchChat(Dispatch state)
+  {
+    state.server.handleMessageFromClient("hello everyone", state.alice);
+  }
+
+  @Benchmark
+  public void dispatchMsg(Dispatch state)
+  {
+    state.server.handleMessageFromClient("#msg bob hello bob", state.alice);
+  }
+
+  @Benchmark
+  public void dispatchJoin(Dispatch state)
+  {
+    state.server.handleMessageFromClient((state.joins++ & 1) == 0 ? "#join dev" : "#leave",
+      state.bob);
+  }
+
+  @Benchmark
+  public void dispatchChannels(Dispatch state)
+  {
+    state.server.handleMessageFromClient("#channels", state.alice);
+  }
+
+  @Benchmark
+  public void broadcast(Fanout state)
+  {
+    state.server.sendToChannel(state.channel, "SERVER MSG> hello");
+  }
+
+  @Benchmark
+  public void clientChat(Client state)
+  {
+    state.client.handleMessageFromClientUI("hello everyone");
+  }
+
+  @Benchmark
+  public void clientJoin(Client state)
+  {
+    state.client.handleMessageFromClientUI("#join dev");
+  }
+
+  @Benchmark
+  public void clientMsg(Client state)
+  {
+    state.client.handleMessageFromClientUI("#msg bob hello bob");
+  }
+
+  @Benchmark
+  public void clientGetport(Client state)
+  {
+    state.client.handleMessageFromClientUI("#getport");
+  }
+
+  //States **********************************************************
+
+  /**
+   * A server with two logged-in clients among ten.
+   */
+  @State(Scope.Benchmark)
+  public static class Dispatch
+  {
+    BenchServer server;
+    Discarding alice;
+    Discarding bob;
+    long joins;
+
+    @Setup
+    public void setUp()
+    {
+      server = new BenchServer();
+      alice = server.connect();
+      bob = server.connect();
+      server.handleMessageFromClient("#login alice", alice);
+      server.handleMessageFromClient("#login bob", bob);
+      for (int i = 0; i < 8; i++)
+        server.connect();
+    }
+  }
+
+  /**
+   * A server with a channel of the given number of members.
+   */
+  @State(Scope.Benchmark)
+  public static class Fanout
+  {
+    @Param({"10", "100", "1000"})
+    int members;
+
+    BenchServer server;
+    String channel;
+
+    @Setup
+    public void setUp()
+    {
+      server = new BenchServer();
+      channel = "fanout" + members;
+      for (int i = 0; i < members; i++)
+        server.handleMessageFromClient("#join " + channel, server.connect());
+    }
+  }
+
+  /**
+   * A client connected to a server on a free loopback port.
+   */
+  @State(Scope.Benchmark)
+  public static class Client
+  {
+    EchoServer peer;
+    BenchClient client;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+      int port;
+      try (ServerSocket probe = new ServerSocket(0))
+      {
+        port = probe.getLocalPort();
+      }
+      peer = new EchoServer(port, message -> {}, TransportMode.NIO);
+      peer.getLog().setLevel(LogLevel.INFO);
+      peer.getTransport().listen();
+      client = new BenchClient(port);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+      client.disconnectFromServer();
+      peer.getTransport().close();
+    }
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A server whose clients are connected directly rather than by socket.
+   */
+  static class BenchServer extends EchoServer
+  {
+    BenchServer()
+    {
+      super(0, message -> {}, TransportMode.NIO);
+      getLog().setLevel(LogLevel.INFO);
+      setRateLimits(null, null, FloodAction.THROTTLE);
+      setPipeline(0, 0); //Times the handling itself, not the hand-off to a route thread
+    }
+
+    /**
+     * Connects a new client, as the transport does when one is accepted.
+     *
+     * @return The client.
+     */
+    Discarding connect()
+    {
+      Discarding client = new Discarding();
+      clientConnected(client);
+      return client;
+    }
+  }
+
+  /**
+   * A client connection that takes the messages it is sent and drops them.
+   */
+  static class Discarding implements ClientConnection
+  {
+    private final HashMap<String, Object> info = new HashMap<String, Object>();
+
+    public void sendToClient(Object msg)
+    {
+      sink = msg;
+    }
+
+    public void sendEncoded(EncodedMessage msg)
+    {
+      sink = msg;
+    }
+
+    public void close() {}
+
+    public InetAddress getInetAddress()
+    {
+      return InetAddress.getLoopbackAddress();
+    }
+
+    public synchronized void setInfo(String infoType, Object value)
+    {
+      info.put(infoType, value);
+    }
+
+    public synchronized Object getInfo(String infoType)
+    {
+      return info.get(infoType);
+    }
+
+    public int getQueueDepth()
+    {
+      return 0;
+    }
+
+    public int getPeakQueueDepth()
+    {
+      return 0;
+    }
+
+    public long getDroppedMessages()
+    {
+      return 0;
+    }
+
+    public WireFormat getWireFormat()
+    {
+      return WireFormat.LEGACY;
+    }
+  }
+
+  /**
+   * A client that drops what it would send to the server rather than
+   * sending it, so that only the parsing of what the user typed is timed.
+   */
+  static class BenchClient extends ChatClient
+  {
+    BenchClient(int port) throws IOException
+    {
+      super("bencher", "localhost", port, message -> sink = message);
+    }
+
+    public void sendToServer(Object msg)
+    {
+      sink = msg;
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import edu.seg2105.client.common.Frame;
+
+/**
+ * Connects and disconnects clients in quick succession from many threads,
+ * while the server broadcasts to all of them, and checks that once they
+ * have gone the server has forgotten every one: its connections, logins
+ * and channels.
+ * <p>
+ * The clients vary in how far they get: some close at once, some log in
+ * and close, and some join a channel and wait to see their own message
+ * there before closing. Closing clients make the server's writes to them
+ * fail, so connections are also closed by the threads sending to them,
+ * while their last messages are still being read.
+ */
+class ChurnTest
+{
+  /**
+   * The threads opening connections, and the connections each opens.
+   */
+  private static final int CHURNERS = 16;
+  private static final int CONNECTIONS = 100;
+
+  /**
+   * How long to wait for something the server should do at once.
+   */
+  private static final long WAIT_SECONDS = 20;
+
+  private EchoServer server;
+
+  @AfterEach
+  void stop() throws IOException
+  {
+    if (server != null)
+      server.getTransport().close();
+  }
+
+  @ParameterizedTest
+  @EnumSource(TransportMode.class)
+  void churnedClientsAreForgotten(TransportMode mode) throws Exception
+  {
+    int port;
+    try (ServerSocket probe = new ServerSocket(0))
+    {
+      port = probe.getLocalPort();
+    }
+    server = new EchoServer(port, message -> {}, mode);
+    server.setLog(new ServerLog(LogLevel.OFF));
+    server.setRateLimits(null, null, FloodAction.THROTTLE);
+    server.setBacklog(1024);
+    server.getTransport().listen();
+    InetSocketAddress address = new InetSocketAddress("localhost", port);
+    boolean framed = mode != TransportMode.OCSF;
+
+    AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    AtomicInteger next = new AtomicInteger();
+    Thread[] churners = new Thread[CHURNERS];
+    for (int t = 0; t < CHURNERS; t++)
+    {
+      churners[t] = new Thread(() -> {
+        int i;
+        while ((i = next.getAndIncrement()) < CHURNERS * CONNECTIONS && failure.get() == null)
+        {
+          try
+          {
+            churn(address, i, framed && i % 2 == 1, mode != TransportMode.OCSF);
+          }
+          catch (Throwable e)
+          {
+            failure.compareAndSet(null, new AssertionError("Client " + i, e));
+          }
+        }
+      });
+      churners[t].start();
+    }
+    AtomicBoolean churning = new AtomicBoolean(true);
+    Thread broadcaster = new Thread(() -> {
+      while (churning.get())
+      {
+        server.sendToAllClients("SERVER MSG> churn");
+        try
+        {
+          Thread.sleep(1);
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+      }
+    });
+    broadcaster.start();
+    for (Thread churner : churners)
+      churner.join();
+    churning.set(false);
+    broadcaster.join();
+    if (failure.get() != null)
+      throw new AssertionError(failure.get());
+
+    awaitZero(() -> server.getTransport().getNumberOfClients(), "clients connected");
+    awaitZero(() -> server.logins.size(), "users logged in");
+    awaitZero(() -> server.channels.size(), "channels with members");
+    assertTrue(server.getTransport().getClientConnections().isEmpty());
+  }
+
+  /**
+   * Connects one client and takes it as far as its number says.
+   *
+   * @param framed Whether the client speaks the framed protocol rather
+   *        than the object stream.
+   * @param silent Whether the client may leave without a word. OCSF stops
+   *        listening when one does, as it reads the stream header on its
+   *        accepting thread, so such clients are left out of its run.
+   */
+  private static void churn(InetSocketAddress address, int i, boolean framed, boolean silent)
+    throws IOException
+  {
+    try (Socket socket = new Socket())
+    {
+      socket.connect(address);
+      if (i % 3 == 0 && silent)
+        return; //Gone before saying which format it speaks
+      String channel = "churn" + i % 7;
+      String[] commands = i % 3 != 2
+        ? new String[] {"#login user" + i}
+        : new String[] {"#login user" + i, "#join " + channel, "hello from " + i};
+      socket.getOutputStream().write(framed ? framed(commands) : objects(commands));
+      if (i % 3 != 2)
+        return;
+
+      //Waits to see its own message in the channel, skipping broadcasts
+      socket.setSoTimeout((int)TimeUnit.SECONDS.toMillis(WAIT_SECONDS));
+      String expected = "[" + channel + "] user" + i + "> hello from " + i;
+      String seen = new String(readUntil(socket.getInputStream(), expected),
+        StandardCharsets.UTF_8);
+      assertTrue(seen.contains(expected), "Never shown: " + expected);
+    }
+  }
+
+  /**
+   * Reads until the text has arrived, or the server closes.
+   *
+   * @return Everything read.
+   */
+  private static byte[] readUntil(InputStream in, String text) throws IOException
+  {
+    ByteArrayOutputStream read = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while (!read.toString(StandardCharsets.UTF_8).contains(text)
+      && (n = in.read(buffer)) > 0)
+      read.write(buffer, 0, n);
+    return read.toByteArray();
+  }
+
+  /**
+   * @return The object stream header, then each command as a String.
+   */
+  private static byte[] objects(String[] commands) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    for (String command : commands)
+      output.writeObject(command);
+    output.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @return The framed protocol's hello, then each command in a frame.
+   */
+  private static byte[] framed(String[] commands) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(Frame.hello());
+    for (String command : commands)
+    {
+      ByteBuffer frame = Frame.fromClientText(command).encode();
+      bytes.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void awaitZero(IntSupplier count, String what) throws InterruptedException
+  {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+    while (count.getAsInt() > 0 && System.nanoTime() < deadline)
+      Thread.sleep(10);
+    assertEquals(0, count.getAsInt(), what);
+  }
+}
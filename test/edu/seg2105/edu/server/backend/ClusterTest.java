@@ -0,0 +1,340 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import edu.seg2105.client.backend.ChatClient;
+
+/**
+ * Runs three servers, a, b and c, as one cluster on the loopback, linked as
+ * a chain, where b passes on what a and c send each other, or as a full
+ * mesh, where every message reaches a node over two ways.
+ */
+class ClusterTest
+{
+  /**
+   * How long to wait for something the cluster should do at once.
+   */
+  private static final long WAIT_SECONDS = 10;
+
+  /**
+   * How long to wait for a duplicate that should never come.
+   */
+  private static final long GRACE_MILLIS = 300;
+
+  private static final String[] NAMES = {"a", "b", "c"};
+
+  /**
+   * How the nodes are linked: which nodes each one dials.
+   */
+  enum Topology
+  {
+    CHAIN(new int[][] {{1}, {0, 2}, {1}}),
+    MESH(new int[][] {{1, 2}, {0, 2}, {0, 1}});
+
+    final int[][] peers;
+
+    Topology(int[][] peers)
+    {
+      this.peers = peers;
+    }
+  }
+
+  private final EchoServer[] servers = new EchoServer[NAMES.length];
+  private final int[] clusterPorts = new int[NAMES.length];
+  private final List<Client> clients = Collections.synchronizedList(new ArrayList<Client>());
+
+  /**
+   * A client showing what it receives in a queue, that only disconnects
+   * when it would quit, so that losing its server does not end the JVM.
+   */
+  private static class Client extends ChatClient
+  {
+    final BlockingQueue<String> shown;
+
+    Client(String loginID, int port, BlockingQueue<String> shown) throws IOException
+    {
+      super(loginID, "localhost", port, shown::add);
+      this.shown = shown;
+    }
+
+    @Override
+    public void quit()
+    {
+      try
+      {
+        disconnectFromServer();
+      }
+      catch (IOException e) {}
+    }
+
+    /**
+     * Waits for a message, skipping others.
+     */
+    void await(String message) throws InterruptedException
+    {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+      String next;
+      do
+      {
+        next = shown.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        assertNotNull(next, "Never shown: " + message);
+      }
+      while (!next.equals(message));
+    }
+  }
+
+  /**
+   * Starts the servers, which have not yet joined the cluster.
+   */
+  private void start() throws IOException
+  {
+    for (int i = 0; i < NAMES.length; i++)
+    {
+      servers[i] = new EchoServer(freePort(), message -> {}, TransportMode.NIO);
+      servers[i].setLog(new ServerLog(LogLevel.OFF));
+      servers[i].getTransport().listen();
+      clusterPorts[i] = freePort();
+    }
+  }
+
+  /**
+   * Has every server join the cluster, and waits for all the links to open.
+   */
+  private void link(Topology topology) throws Exception
+  {
+    for (int i = 0; i < NAMES.length; i++)
+    {
+      List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+      for (int peer : topology.peers[i])
+        peers.add(new InetSocketAddress("localhost", clusterPorts[peer]));
+      servers[i].joinCluster(NAMES[i], clusterPorts[i], peers);
+    }
+    for (int i = 0; i < NAMES.length; i++)
+    {
+      int count = topology.peers[i].length;
+      String linked = "linked to " + count + " of " + count + " peers, linked from " + count + ",";
+      EchoServer server = servers[i];
+      await(() -> console(server, "#cluster").get(0).contains(linked), NAMES[i] + " " + linked);
+    }
+  }
+
+  /**
+   * Connects a client, and waits for it to be logged in.
+   */
+  private Client connect(String loginID, int node) throws Exception
+  {
+    Client client = new Client(loginID, servers[node].getPort(), new LinkedBlockingQueue<String>());
+    clients.add(client);
+    awaitUser(node, loginID + " in lobby, from 127.0.0.1");
+    return client;
+  }
+
+  /**
+   * Waits for a user to be known to every node: logged in on one, and
+   * logged in there as far as the others know.
+   */
+  private void awaitEverywhere(String loginID, int node) throws InterruptedException
+  {
+    for (int i = 0; i < NAMES.length; i++)
+    {
+      if (i != node)
+        awaitUser(i, loginID + " on " + NAMES[node]);
+    }
+  }
+
+  private void awaitUser(int node, String line) throws InterruptedException
+  {
+    EchoServer server = servers[node];
+    await(() -> console(server, "#who").contains(line), NAMES[node] + " shows " + line);
+  }
+
+  /**
+   * Runs a command at a server's console.
+   *
+   * @return The lines it showed.
+   */
+  private static List<String> console(EchoServer server, String command)
+  {
+    List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+    try
+    {
+      assertTrue(server.consoleCommands.execute(command, lines::add));
+    }
+    catch (IOException e)
+    {
+      fail(e);
+    }
+    return lines;
+  }
+
+  private static void await(BooleanSupplier condition, String what) throws InterruptedException
+  {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+    while (!condition.getAsBoolean())
+    {
+      if (System.nanoTime() > deadline)
+        fail("Timed out waiting until " + what);
+      Thread.sleep(10);
+    }
+  }
+
+  private static int freePort() throws IOException
+  {
+    try (ServerSocket probe = new ServerSocket(0))
+    {
+      return probe.getLocalPort();
+    }
+  }
+
+  /**
+   * Drains what a client has been shown, once nothing more is on its way.
+   */
+  private static List<String> settle(Client client) throws InterruptedException
+  {
+    Thread.sleep(GRACE_MILLIS);
+    List<String> shown = new ArrayList<String>();
+    client.shown.drainTo(shown);
+    return shown;
+  }
+
+  @AfterEach
+  void stop() throws IOException
+  {
+    for (Client client : clients)
+      client.quit();
+    for (EchoServer server : servers)
+    {
+      if (server != null)
+      {
+        server.leaveCluster();
+        server.getTransport().close();
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(Topology.class)
+  void chatReachesEveryClientExactlyOnce(Topology topology) throws Exception
+  {
+    start();
+    link(topology);
+    Client alice = connect("alice", 0);
+    Client bob = connect("bob", 1);
+    Client carol = connect("carol", 2);
+    awaitEverywhere("alice", 0);
+    awaitEverywhere("carol", 2);
+
+    int messages = 20;
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < messages; i++)
+    {
+      alice.handleMessageFromClientUI("from a " + i);
+      carol.handleMessageFromClientUI("from c " + i);
+      expected.add("alice> from a " + i);
+      expected.add("carol> from c " + i);
+    }
+    Collections.sort(expected);
+    for (Client client : new Client[] {alice, bob, carol})
+    {
+      List<String> shown = new ArrayList<String>();
+      for (int i = 0; i < 2 * messages; i++)
+      {
+        String next = client.shown.poll(WAIT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(next, "Only shown " + shown);
+        shown.add(next);
+      }
+      shown.addAll(settle(client));
+      //A copy taking the longer way round may overtake the next message
+      Collections.sort(shown);
+      assertEquals(expected, shown);
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(Topology.class)
+  void privateMessageReachesRemoteUserOnly(Topology topology) throws Exception
+  {
+    start();
+    link(topology);
+    Client alice = connect("alice", 0);
+    Client bob = connect("bob", 1);
+    Client carol = connect("carol", 2);
+    awaitEverywhere("carol", 2);
+
+    alice.handleMessageFromClientUI("#msg carol psst");
+    carol.await("alice (to carol)> psst");
+    alice.await("alice (to carol)> psst");
+    assertEquals(Collections.emptyList(), settle(carol));
+    assertEquals(Collections.emptyList(), settle(alice));
+    assertEquals(Collections.emptyList(), settle(bob));
+  }
+
+  @ParameterizedTest
+  @EnumSource(Topology.class)
+  void loginInUseOnAnotherNodeIsRefused(Topology topology) throws Exception
+  {
+    start();
+    link(topology);
+    connect("alice", 0);
+    awaitEverywhere("alice", 0);
+
+    Client again = new Client("alice", servers[2].getPort(), new LinkedBlockingQueue<String>());
+    clients.add(again);
+    again.await("Error: alice is already logged in. Terminating the connection.");
+    await(() -> !again.isConnectedToServer(), "the second alice is disconnected");
+    assertFalse(console(servers[2], "#who").contains("alice in lobby, from 127.0.0.1"));
+  }
+
+  @ParameterizedTest
+  @EnumSource(Topology.class)
+  void nodeWhoseNameSortsFirstKeepsUserLoggedInTwice(Topology topology) throws Exception
+  {
+    start();
+    Client first = connect("alice", 0);
+    Client second = connect("alice", 2);
+    link(topology); //Each node announces its users to its peers as they link
+
+    second.await("Error: alice is already logged in. Terminating the connection.");
+    await(() -> !second.isConnectedToServer(), "alice is disconnected from c");
+    awaitEverywhere("alice", 0);
+    assertTrue(first.isConnectedToServer());
+    Thread.sleep(GRACE_MILLIS); //For c's logout to go round
+    for (int i = 1; i < NAMES.length; i++)
+      assertTrue(console(servers[i], "#who").contains("alice on a"), NAMES[i] + " forgot alice");
+    assertFalse(settle(first).contains("Error: alice is already logged in. Terminating the connection."));
+  }
+
+  @ParameterizedTest
+  @EnumSource(Topology.class)
+  void loginsAreForgottenWhenLinkDrops(Topology topology) throws Exception
+  {
+    start();
+    link(topology);
+    connect("alice", 0);
+    awaitEverywhere("alice", 0);
+
+    servers[0].leaveCluster();
+    for (int i = 1; i < NAMES.length; i++)
+    {
+      EchoServer server = servers[i];
+      await(() -> !console(server, "#who").contains("alice on a"), NAMES[i] + " forgets alice");
+    }
+    Client elsewhere = connect("alice", 2);
+    assertTrue(elsewhere.isConnectedToServer());
+  }
+}
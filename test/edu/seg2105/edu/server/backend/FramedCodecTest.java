@@ -0,0 +1,134 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * Checks that frames come back as they were encoded, from a buffer or a
+ * stream, compressed or not, whether the bytes arrive at once or one at a
+ * time, and that lengths a frame cannot have are refused.
+ */
+class FramedCodecTest
+{
+  /**
+   * Client messages of each kind, and one long enough to be compressed.
+   */
+  private static final List<String> MESSAGES = Arrays.asList("#login alice",
+    "#join lobby", "hello", "café € 😀", "", "#search " + "ab".repeat(5000));
+
+  /**
+   * @return The client's hello, then each message in a frame.
+   */
+  private static byte[] written(WireFormat format) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(Frame.hello(format));
+    for (String msg : MESSAGES)
+      Frame.fromClientText(msg).writeTo(bytes, format);
+    return bytes.toByteArray();
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = WireFormat.class, names = {"FRAMED", "COMPRESSED"})
+  void decodesWhatWasEncoded(WireFormat format) throws Exception
+  {
+    byte[] bytes = written(format);
+    for (int piece : new int[] {1, 2, 3, 7, bytes.length})
+    {
+      FramedCodec codec = new FramedCodec(format);
+      ByteBuffer inbound = ByteBuffer.allocate(bytes.length);
+      List<Object> decoded = new ArrayList<Object>();
+      for (int i = 0; i < bytes.length; i += piece)
+      {
+        inbound.put(bytes, i, Math.min(piece, bytes.length - i));
+        inbound.flip();
+        Object msg;
+        while ((msg = codec.decode(inbound)) != null)
+          decoded.add(msg);
+        inbound.compact();
+      }
+      assertEquals(new ArrayList<Object>(MESSAGES), decoded, "In pieces of " + piece);
+      assertEquals(0, inbound.position(), "Bytes left undecoded");
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = WireFormat.class, names = {"FRAMED", "COMPRESSED"})
+  void readsWhatWasEncoded(WireFormat format) throws Exception
+  {
+    byte[] bytes = written(format);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    in.skipNBytes(Frame.hello().length);
+    for (String msg : MESSAGES)
+      assertEquals(msg, Frame.read(in).toText());
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  void serverMessagesKeepTheirPrefix() throws Exception
+  {
+    FramedCodec codec = new FramedCodec(WireFormat.COMPRESSED);
+    for (String msg : new String[] {"SERVER MSG> hi", "bob> hi", "SERVER MSG> " + "z".repeat(1000)})
+    {
+      ByteBuffer encoded = codec.encode(msg);
+      assertEquals(msg, Frame.decode(encoded).toText());
+      assertFalse(encoded.hasRemaining());
+    }
+  }
+
+  @Test
+  void refusesLengthsAFrameCannotHave() throws Exception
+  {
+    for (int length : new int[] {0, Frame.MAX_LENGTH + 1, Integer.MAX_VALUE})
+    {
+      ByteBuffer header = ByteBuffer.allocate(5);
+      Frame.putVarint(header, length);
+      header.flip();
+      assertThrows(ProtocolException.class, () -> Frame.decode(header.duplicate()), "Length " + length);
+      byte[] bytes = Arrays.copyOf(header.array(), header.limit());
+      assertThrows(ProtocolException.class,
+        () -> Frame.read(new DataInputStream(new ByteArrayInputStream(bytes))), "Length " + length);
+    }
+
+    //A varint running past four bytes
+    byte[] endless = {(byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 1};
+    assertThrows(ProtocolException.class, () -> Frame.decode(ByteBuffer.wrap(endless)));
+  }
+
+  @Test
+  void refusesAnotherVersionOfTheHello() throws Exception
+  {
+    ByteBuffer in = ByteBuffer.wrap(Frame.hello(WireFormat.COMPRESSED));
+    assertThrows(ProtocolException.class, () -> new FramedCodec(WireFormat.FRAMED).decode(in));
+  }
+
+  @Test
+  void detectsEachFormatFromItsFirstBytes() throws Exception
+  {
+    assertEquals(WireFormat.FRAMED, FramedCodec.detect(Frame.hello()));
+    assertEquals(WireFormat.FRAMED, FramedCodec.detect(Frame.hello(WireFormat.COMPRESSED)));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    output.writeObject("#login alice");
+    output.flush();
+    assertEquals(WireFormat.LEGACY, FramedCodec.detect(bytes.toByteArray()));
+  }
+}
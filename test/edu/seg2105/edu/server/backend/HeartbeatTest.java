@@ -0,0 +1,88 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.backend.ClientOptions;
+import edu.seg2105.client.common.Frame;
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * Checks that the server only pings the clients that answer, so that a
+ * quiet client of the original object stream is never disconnected.
+ */
+class HeartbeatTest
+{
+  private EchoServer server;
+  private ChatClient client;
+
+  private void start(TransportMode mode) throws IOException
+  {
+    int port;
+    try (ServerSocket probe = new ServerSocket(0))
+    {
+      port = probe.getLocalPort();
+    }
+    server = new EchoServer(port, message -> {}, mode);
+    server.setLog(new ServerLog(LogLevel.OFF));
+    server.setHeartbeat(1, 1);
+    server.getTransport().listen();
+  }
+
+  @AfterEach
+  void stop() throws IOException
+  {
+    if (client != null && client.isConnectedToServer())
+      client.disconnectFromServer();
+    if (server != null)
+      server.getTransport().close();
+  }
+
+  @ParameterizedTest
+  @EnumSource(TransportMode.class)
+  void quietLegacyClientIsNeitherPingedNorDropped(TransportMode mode) throws Exception
+  {
+    start(mode);
+    BlockingQueue<String> shown = new LinkedBlockingQueue<String>();
+    client = new ChatClient("alice", "localhost", server.getPort(), shown::add);
+    assertNull(shown.poll(3, TimeUnit.SECONDS), "The client was shown a message");
+    assertTrue(client.isConnectedToServer());
+    assertEquals(1, server.getTransport().getNumberOfClients());
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = TransportMode.class, names = {"NIO", "VIRTUAL"})
+  void framedClientIsPingedAndDroppedOnlyIfSilent(TransportMode mode) throws Exception
+  {
+    start(mode);
+    BlockingQueue<String> shown = new LinkedBlockingQueue<String>();
+    client = new ChatClient("alice", "localhost", server.getPort(), shown::add,
+      new ClientOptions().setFormat(WireFormat.FRAMED));
+
+    //Speaks the framed protocol, then never answers
+    try (Socket silent = new Socket("localhost", server.getPort()))
+    {
+      silent.setSoTimeout(10000);
+      silent.getOutputStream().write(Frame.hello());
+      InputStream in = silent.getInputStream();
+      long start = System.nanoTime();
+      while (in.read() >= 0); //Up to the server closing
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+    assertTrue(client.isConnectedToServer(), "The answering client was dropped");
+    assertEquals(1, server.getTransport().getNumberOfClients());
+    assertTrue(shown.isEmpty(), "The client was shown " + shown);
+  }
+}
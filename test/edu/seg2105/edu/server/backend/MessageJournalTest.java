@@ -0,0 +1,100 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that what the journal keeps survives a restart, however long the
+ * messages around it.
+ */
+class MessageJournalTest
+{
+  @TempDir
+  Path directory;
+
+  /**
+   * Returns a message of the given length in bytes, in ASCII.
+   */
+  private static String text(int length)
+  {
+    char[] text = new char[length];
+    Arrays.fill(text, 'x');
+    return new String(text);
+  }
+
+  @Test
+  void messageOverTheLimitIsRefusedAndLaterOnesSurviveRestart() throws Exception
+  {
+    String longest = text(MessageJournal.MAX_BODY_BYTES - 10 - "lobby".length());
+    String tooLong = text(MessageJournal.MAX_BODY_BYTES + 1);
+    MessageJournal journal = new MessageJournal(directory);
+    assertTrue(journal.append("lobby", "before"));
+    assertTrue(journal.append("lobby", longest));
+    assertFalse(journal.append("lobby", tooLong));
+    assertTrue(journal.append("lobby", "after"));
+    journal.close();
+
+    MessageJournal reopened = new MessageJournal(directory);
+    try
+    {
+      assertEquals(3, reopened.end());
+      List<String> history = reopened.history("lobby", 10);
+      assertEquals(Arrays.asList("before", longest, "after"), history);
+      assertTrue(reopened.append("lobby", "later"));
+    }
+    finally
+    {
+      reopened.close();
+    }
+    MessageJournal again = new MessageJournal(directory);
+    try
+    {
+      assertEquals(Arrays.asList("after", "later"), again.history("lobby", 2));
+    }
+    finally
+    {
+      again.close();
+    }
+  }
+
+  @Test
+  void multibyteTextIsMeasuredInBytes()
+  {
+    String euros = "€".repeat(MessageJournal.MAX_BODY_BYTES / 3);
+    assertFalse(MessageJournal.fits("lobby", euros));
+    assertTrue(MessageJournal.fits("lobby", euros.substring(10)));
+  }
+
+  @Test
+  void readsFollowTheActiveSegmentAsItGrows() throws Exception
+  {
+    MessageJournal journal = new MessageJournal(directory);
+    try
+    {
+      for (int i = 0; i < 200; i++)
+      {
+        assertTrue(journal.append("lobby", "message " + i));
+        if (i % 50 == 49)
+        {
+          long end = journal.end();
+          long deadline = System.nanoTime() + 5_000_000_000L;
+          List<String> found;
+          do
+            found = journal.since("lobby", end - 1, 1);
+          while (found.isEmpty() && System.nanoTime() < deadline);
+          assertEquals(List.of("message " + i), found);
+        }
+      }
+    }
+    finally
+    {
+      journal.close();
+    }
+  }
+}
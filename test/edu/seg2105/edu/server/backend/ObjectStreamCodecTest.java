@@ -0,0 +1,152 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import edu.seg2105.client.common.Frame;
+
+/**
+ * Checks that the codec reads what an ObjectOutputStream writes, whether
+ * the bytes arrive at once or one at a time, that an ObjectInputStream
+ * reads what it writes, and that it refuses anything but Strings of a
+ * bounded length.
+ */
+class ObjectStreamCodecTest
+{
+  /**
+   * Long enough to be written as TC_LONGSTRING.
+   */
+  private static final String LONG = "x".repeat(70000);
+
+  /**
+   * Takes one, two and three bytes per char in modified UTF-8, and a NUL.
+   */
+  private static final String ACCENTED = "café € \u0000 end";
+
+  /**
+   * @return The bytes an ObjectOutputStream writes for the messages, with
+   *         no reset between them so that repeats become TC_REFERENCE,
+   *         then a reset and the first message again.
+   */
+  private static byte[] written(List<String> messages) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    for (String msg : messages)
+      output.writeObject(msg);
+    output.reset();
+    output.writeObject(messages.get(0));
+    output.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes everything in the bytes, handing them to the codec in pieces of
+   * at most a given size, as a transport would.
+   */
+  private static List<Object> decode(byte[] bytes, int piece) throws IOException
+  {
+    ObjectStreamCodec codec = new ObjectStreamCodec();
+    ByteBuffer inbound = ByteBuffer.allocate(bytes.length);
+    List<Object> decoded = new ArrayList<Object>();
+    for (int i = 0; i < bytes.length; i += piece)
+    {
+      inbound.put(bytes, i, Math.min(piece, bytes.length - i));
+      inbound.flip();
+      Object msg;
+      while ((msg = codec.decode(inbound)) != null)
+        decoded.add(msg);
+      inbound.compact();
+    }
+    assertEquals(0, inbound.position(), "Bytes left undecoded");
+    return decoded;
+  }
+
+  private static List<Object> expected(List<String> messages)
+  {
+    List<Object> expected = new ArrayList<Object>(messages);
+    expected.add(messages.get(0));
+    return expected;
+  }
+
+  @Test
+  void decodesStringsLongStringsAndReferences() throws Exception
+  {
+    List<String> messages = Arrays.asList("hello", LONG, ACCENTED, "hello", LONG, "");
+    assertEquals(expected(messages), decode(written(messages), Integer.MAX_VALUE));
+  }
+
+  @Test
+  void decodesTheSameWhenSplit() throws Exception
+  {
+    List<String> messages = Arrays.asList("hello", ACCENTED, "hello", LONG, LONG);
+    byte[] bytes = written(messages);
+    for (int piece : new int[] {1, 2, 3, 7, 4096})
+      assertEquals(expected(messages), decode(bytes, piece), "In pieces of " + piece);
+  }
+
+  @Test
+  void encodesWhatObjectInputStreamReads() throws Exception
+  {
+    List<String> messages = Arrays.asList("hello", LONG, ACCENTED, "hello");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(ObjectStreamCodec.header().array());
+    ObjectStreamCodec codec = new ObjectStreamCodec();
+    for (String msg : messages)
+    {
+      ByteBuffer encoded = codec.encode(msg);
+      bytes.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+    }
+    byte[] encoded = bytes.toByteArray();
+
+    ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(encoded));
+    for (String msg : messages)
+      assertEquals(msg, input.readObject());
+    assertEquals(new ArrayList<Object>(messages), decode(encoded, 5));
+  }
+
+  @Test
+  void refusesOversizeLengthsBeforeTheirBytes() throws Exception
+  {
+    for (long length : new long[] {Frame.MAX_LENGTH + 1L, Long.MAX_VALUE, -1})
+    {
+      ByteBuffer in = ByteBuffer.allocate(13);
+      in.put(ObjectStreamCodec.header());
+      in.put((byte)0x7C); //TC_LONGSTRING
+      in.putLong(length);
+      in.flip();
+      assertThrows(StreamCorruptedException.class,
+        () -> new ObjectStreamCodec().decode(in), "Length " + length);
+    }
+  }
+
+  @Test
+  void refusesOtherObjectsAndUnknownHandles() throws Exception
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    output.writeObject(Integer.valueOf(42));
+    output.flush();
+    assertThrows(StreamCorruptedException.class,
+      () -> new ObjectStreamCodec().decode(ByteBuffer.wrap(bytes.toByteArray())));
+
+    ByteBuffer in = ByteBuffer.allocate(9);
+    in.put(ObjectStreamCodec.header());
+    in.put((byte)0x71); //TC_REFERENCE, to a handle never assigned
+    in.putInt(0x7e0000);
+    in.flip();
+    assertThrows(StreamCorruptedException.class, () -> new ObjectStreamCodec().decode(in));
+  }
+}
@@ -0,0 +1,93 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Fills a client's outbound queue under each overflow policy, and checks
+ * that it never holds more than its bound.
+ */
+class OutboundQueueTest
+{
+  private static final int CAPACITY = 3;
+
+  /**
+   * Returns a queue holding a control item and then messages up to its
+   * capacity.
+   */
+  private static OutboundQueue<String> full(OverflowPolicy policy)
+  {
+    OutboundQueue<String> queue = new OutboundQueue<String>(CAPACITY, policy);
+    queue.offerControl("header");
+    for (int i = 0; i < CAPACITY; i++)
+      assertTrue(queue.offer("m" + i, false));
+    assertEquals(CAPACITY, queue.depth());
+    return queue;
+  }
+
+  @Test
+  void dropOldestMakesRoomAndKeepsControlItems()
+  {
+    OutboundQueue<String> queue = full(OverflowPolicy.DROP_OLDEST);
+    assertTrue(queue.offer("m3", false));
+    assertTrue(queue.offer("m4", true));
+    assertEquals(CAPACITY, queue.depth());
+    assertEquals(2, queue.dropped());
+    assertEquals("header", queue.poll());
+    assertEquals("m2", queue.poll());
+    assertEquals("m3", queue.poll());
+    assertEquals("m4", queue.poll());
+    assertNull(queue.poll());
+  }
+
+  @Test
+  void disconnectRefusesWhenFull()
+  {
+    OutboundQueue<String> queue = full(OverflowPolicy.DISCONNECT);
+    assertFalse(queue.offer("m3", false));
+    assertFalse(queue.offer("m3", true));
+    assertEquals(CAPACITY, queue.depth());
+    assertEquals(CAPACITY, queue.peakDepth());
+  }
+
+  @Test
+  void blockRefusesAtOnceWhenTheCallerMustNotWait()
+  {
+    OutboundQueue<String> queue = full(OverflowPolicy.BLOCK);
+    long start = System.nanoTime();
+    for (int i = 0; i < 100; i++)
+      assertFalse(queue.offer("more", false));
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(OutboundQueue.BLOCK_TIMEOUT_MILLIS));
+    assertEquals(CAPACITY, queue.depth());
+    assertEquals(CAPACITY, queue.peakDepth());
+  }
+
+  @Test
+  void blockWaitsForRoom() throws Exception
+  {
+    OutboundQueue<String> queue = full(OverflowPolicy.BLOCK);
+    CompletableFuture<Boolean> offered = CompletableFuture.supplyAsync(() -> queue.offer("m3", true));
+    Thread.sleep(100);
+    assertFalse(offered.isDone());
+    assertEquals("header", queue.poll());
+    assertFalse(offered.isDone(), "Taking a control item made room");
+    assertEquals("m0", queue.poll());
+    assertTrue(offered.get(OutboundQueue.BLOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertEquals(CAPACITY, queue.depth());
+  }
+
+  @Test
+  void blockGivesUpOnceTheQueueCloses() throws Exception
+  {
+    OutboundQueue<String> queue = full(OverflowPolicy.BLOCK);
+    CompletableFuture<Boolean> offered = CompletableFuture.supplyAsync(() -> queue.offer("m3", true));
+    Thread.sleep(100);
+    queue.close();
+    assertFalse(offered.get(OutboundQueue.BLOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertEquals(0, queue.depth());
+  }
+}
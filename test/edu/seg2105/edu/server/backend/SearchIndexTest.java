@@ -0,0 +1,160 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that #search finds what a scan of the whole journal finds: the
+ * newest messages holding every word asked for, sent to the channel or to
+ * everyone. Enough messages are written for the index to freeze its
+ * buffer into segments and merge them, so that searches cross the
+ * buffer, a frozen segment and a merged one.
+ */
+class SearchIndexTest
+{
+  /**
+   * Enough messages to freeze MERGE_FACTOR segments, which are merged, and
+   * one more, with some left in the buffer.
+   */
+  private static final int MESSAGES =
+    (SearchIndex.MERGE_FACTOR + 1) * SearchIndex.BUFFER_MESSAGES + 1000;
+
+  /**
+   * The channels written to, besides MessageJournal.EVERYONE.
+   */
+  private static final String[] CHANNELS = {"lobby", "games", "work"};
+
+  private static final String[] WORDS = {"apple", "banana", "cherry", "delta",
+    "echo", "foxtrot", "golf", "hotel", "india", "juliet", "kilo", "lima"};
+
+  /**
+   * How long to wait for the index to catch up.
+   */
+  private static final long WAIT_SECONDS = 60;
+
+  @TempDir
+  Path directory;
+
+  /**
+   * Returns message i: a few common words in mixed case and punctuation,
+   * a word that only the first messages have, and one that every few
+   * thousand messages have, so that searches reach back to the oldest
+   * segments.
+   */
+  private static String text(int i, Random random)
+  {
+    StringBuilder text = new StringBuilder("m" + i + ":");
+    for (int w = 0; w < 3; w++)
+    {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      text.append(w == 1 ? " " + word.toUpperCase() + "!" : " " + word);
+    }
+    if (i < 500)
+      text.append(" ancient");
+    if (i % 5000 == 7)
+      text.append(" rare, Rare");
+    return text.toString();
+  }
+
+  /**
+   * Finds what search(...) should by walking every message in the journal.
+   *
+   * @param messages The journal's messages, oldest first.
+   */
+  private static List<String> scan(List<Sent> messages, String channel, String query, int count)
+  {
+    Set<String> wanted = new HashSet<String>();
+    SearchIndex.words(query, wanted);
+    ArrayDeque<String> found = new ArrayDeque<String>();
+    for (int i = messages.size() - 1; i >= 0 && found.size() < count && !wanted.isEmpty(); i--)
+    {
+      Sent sent = messages.get(i);
+      if ((sent.channel.equals(channel) || sent.channel.equals(MessageJournal.EVERYONE))
+        && sent.words.containsAll(wanted))
+        found.addFirst(sent.text);
+    }
+    return new ArrayList<String>(found);
+  }
+
+  private static void await(BooleanSupplier condition, String what) throws InterruptedException
+  {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+    while (!condition.getAsBoolean() && System.nanoTime() < deadline)
+      Thread.sleep(10);
+    assertTrue(condition.getAsBoolean(), what);
+  }
+
+  @Test
+  void searchFindsWhatAScanFinds() throws Exception
+  {
+    MessageJournal journal = new MessageJournal(directory, 4 * 1024 * 1024);
+    try
+    {
+      Random random = new Random(2105);
+      for (int i = 0; i < MESSAGES; i++)
+      {
+        int channel = random.nextInt(CHANNELS.length + 1);
+        assertTrue(journal.append(channel == CHANNELS.length
+          ? MessageJournal.EVERYONE : CHANNELS[channel], text(i, random)));
+      }
+      SearchIndex index = journal.getIndex();
+      await(() -> index.getIndexed() == MESSAGES, "Not all messages were indexed");
+      await(() -> index.getSegmentCount() == 2, "The frozen segments were not merged");
+
+      List<Sent> messages = new ArrayList<Sent>();
+      journal.scan(0, (offset, channel, text) -> messages.add(new Sent(channel, text)));
+      assertEquals(MESSAGES, messages.size());
+
+      String[] queries = {"apple", "BANANA cherry", "delta, echo; foxtrot", "ancient",
+        "rare", "rare apple", "ancient rare", "m12", "nowhere", "apple nowhere", "lobby"};
+      for (String channel : new String[] {"lobby", "games", "work", "quiet"})
+      {
+        for (String query : queries)
+        {
+          for (int count : new int[] {1, 50, 1000})
+          {
+            assertEquals(scan(messages, channel, query, count),
+              journal.search(channel, query, count),
+              "#search " + query + " in " + channel + ", " + count + " at most");
+          }
+        }
+      }
+      assertTrue(journal.search("lobby", "ancient", 1000).size() > 100,
+        "Too few old messages found to reach the merged segment");
+      assertTrue(journal.search("lobby", " ,;! ", 50).isEmpty());
+    }
+    finally
+    {
+      journal.close();
+    }
+  }
+
+  /**
+   * A message read back from the journal, with its words.
+   */
+  private static final class Sent
+  {
+    final String channel;
+    final String text;
+    final Set<String> words = new HashSet<String>();
+
+    Sent(String channel, String text)
+    {
+      this.channel = channel;
+      this.text = text;
+      SearchIndex.words(text, words);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a stage's ring runs its tasks once each, in the order they
+ * were offered, on its worker alone, whether they fit in the ring or spill
+ * into its overflow, and up to the moment it is closed.
+ */
+class StageRingTest
+{
+  /**
+   * How long to wait for something the worker should do at once.
+   */
+  private static final long WAIT_SECONDS = 10;
+
+  private StageRing ring;
+
+  /**
+   * What the worker ran, in order. Only the worker adds to it.
+   */
+  private final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+
+  /**
+   * Held by the first task until released, so that the worker runs
+   * nothing else meanwhile.
+   */
+  private final CountDownLatch blocking = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private void start(int capacity)
+  {
+    ring = new StageRing("Test stage", capacity);
+    ring.start();
+  }
+
+  /**
+   * Offers a task that holds the worker until release is counted down, and
+   * waits for the worker to be running it.
+   */
+  private void block() throws InterruptedException
+  {
+    assertTrue(ring.offer(() -> {
+      blocking.countDown();
+      try
+      {
+        release.await();
+      }
+      catch (InterruptedException e) {}
+    }, true));
+    assertTrue(blocking.await(WAIT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  /**
+   * A task recording that it ran, as a negative number if not on the
+   * worker, since what it throws would not reach the test.
+   */
+  private Runnable record(int value)
+  {
+    return () -> ran.add(ring.inWorker() ? value : -1 - value);
+  }
+
+  private void stop() throws InterruptedException
+  {
+    ring.close();
+    ring.join(TimeUnit.SECONDS.toMillis(WAIT_SECONDS));
+  }
+
+  private static List<Integer> upTo(int count)
+  {
+    List<Integer> values = new ArrayList<Integer>();
+    for (int i = 0; i < count; i++)
+      values.add(i);
+    return values;
+  }
+
+  @AfterEach
+  void close() throws InterruptedException
+  {
+    release.countDown();
+    if (ring != null)
+      stop();
+  }
+
+  @Test
+  void tasksOfEachProducerRunInOrder() throws Exception
+  {
+    start(16);
+    int producers = 4;
+    int tasks = 20000;
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++)
+    {
+      int producer = p;
+      threads[p] = new Thread(() -> {
+        for (int i = 0; i < tasks; i++)
+          assertTrue(ring.offer(record(producer * tasks + i), true));
+      });
+      threads[p].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    stop();
+
+    assertEquals(producers * tasks, ran.size());
+    int[] last = new int[producers];
+    Arrays.fill(last, -1);
+    for (int value : ran)
+    {
+      int producer = value / tasks;
+      assertTrue(value % tasks > last[producer], "Out of order: " + value);
+      last[producer] = value % tasks;
+    }
+  }
+
+  @Test
+  void overflowKeepsTheOrderOfTheRing() throws Exception
+  {
+    start(4);
+    block();
+    int tasks = 10;
+    for (int i = 0; i < tasks; i++)
+      assertTrue(ring.offer(record(i), false)); //The ring holds 4, the overflow the rest
+    assertEquals(tasks, ring.depth());
+
+    //A producer that may wait waits for the overflow to empty
+    AtomicBoolean offered = new AtomicBoolean();
+    Thread late = new Thread(() -> offered.set(ring.offer(record(tasks), true)));
+    late.start();
+    late.join(200);
+    assertTrue(late.isAlive(), "Offered past the overflow");
+
+    release.countDown();
+    late.join(TimeUnit.SECONDS.toMillis(WAIT_SECONDS));
+    assertTrue(offered.get());
+    stop();
+    assertEquals(upTo(tasks + 1), ran);
+  }
+
+  @Test
+  void closeRunsEverythingAlreadyOffered() throws Exception
+  {
+    start(8);
+    block();
+    int tasks = 20;
+    for (int i = 0; i < tasks; i++)
+      assertTrue(ring.offer(record(i), false));
+    ring.close();
+    assertTrue(ring.offer(record(tasks), true), "Refused while closing");
+
+    release.countDown();
+    ring.join(TimeUnit.SECONDS.toMillis(WAIT_SECONDS));
+    assertEquals(upTo(tasks + 1), ran);
+    assertFalse(ring.offer(record(tasks + 1), true), "Still running once closed and drained");
+  }
+
+  @Test
+  void offerAfterStopIsRefused() throws Exception
+  {
+    start(4);
+    stop();
+    assertFalse(ring.offer(record(0), true));
+    assertFalse(ring.offer(record(1), false));
+    assertEquals(0, ring.depth());
+    assertTrue(ran.isEmpty());
+  }
+}
@@ -0,0 +1,201 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.backend.ClientOptions;
+import edu.seg2105.client.common.WireFormat;
+
+/**
+ * Checks that clients reach a server over TLS on the loopback, with a
+ * self-signed certificate made by keytool for the test, and that a client
+ * speaking plaintext to it gets nowhere.
+ */
+class TlsTest
+{
+  private static final char[] PASSWORD = "changeit".toCharArray();
+
+  /**
+   * How long to wait for something the server should do at once.
+   */
+  private static final long WAIT_SECONDS = 10;
+
+  @TempDir
+  static Path directory;
+
+  /**
+   * The server's context, with the certificate and its key, and the
+   * clients', trusting that certificate alone.
+   */
+  private static SSLContext serverTls;
+  private static SSLContext clientTls;
+
+  private EchoServer server;
+  private ChatClient client;
+
+  /**
+   * Makes the keystore with keytool, as the README has it, and the
+   * contexts from it.
+   */
+  @BeforeAll
+  static void makeCertificate() throws Exception
+  {
+    Path keystore = directory.resolve("chat.p12");
+    Process keytool = new ProcessBuilder(
+      Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+      "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1",
+      "-dname", "CN=localhost", "-ext", "san=dns:localhost", "-storetype", "PKCS12",
+      "-keystore", keystore.toString(), "-storepass", new String(PASSWORD),
+      "-validity", "1").redirectErrorStream(true).start();
+    String output = new String(keytool.getInputStream().readAllBytes());
+    assertTrue(keytool.waitFor(60, TimeUnit.SECONDS), "keytool did not finish");
+    assertEquals(0, keytool.exitValue(), output);
+
+    KeyStore keys = KeyStore.getInstance(keystore.toFile(), PASSWORD);
+    KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(keys, PASSWORD);
+    serverTls = SSLContext.getInstance("TLS");
+    serverTls.init(keyManagers.getKeyManagers(), null, null);
+
+    KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+    trusted.load(null, null);
+    trusted.setCertificateEntry("chat", keys.getCertificate("chat"));
+    TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagers.init(trusted);
+    clientTls = SSLContext.getInstance("TLS");
+    clientTls.init(null, trustManagers.getTrustManagers(), null);
+  }
+
+  /**
+   * Starts a server over TLS on a free port.
+   */
+  private void start(TransportMode mode) throws IOException
+  {
+    int port;
+    try (ServerSocket probe = new ServerSocket(0))
+    {
+      port = probe.getLocalPort();
+    }
+    server = new EchoServer(port, message -> {}, mode);
+    server.setLog(new ServerLog(LogLevel.OFF));
+    server.setTlsContext(serverTls);
+    server.getTransport().listen();
+  }
+
+  /**
+   * Disconnects the client before the server closes, since a client that
+   * loses its server quits, ending the JVM.
+   */
+  @AfterEach
+  void stop() throws IOException
+  {
+    if (client != null && client.isConnectedToServer())
+      client.disconnectFromServer();
+    if (server != null)
+      server.getTransport().close();
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = TransportMode.class, names = {"NIO", "VIRTUAL"})
+  void messageMakesTheRoundTrip(TransportMode mode) throws Exception
+  {
+    start(mode);
+    for (WireFormat format : new WireFormat[] {WireFormat.LEGACY, WireFormat.FRAMED})
+    {
+      BlockingQueue<String> shown = new LinkedBlockingQueue<String>();
+      client = new ChatClient("alice", "localhost", server.getPort(), shown::add,
+        new ClientOptions().setFormat(format).setTls(clientTls));
+      awaitLogin("alice");
+      client.handleMessageFromClientUI("hello over " + format);
+      assertEquals("alice> hello over " + format, shown.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+      client.disconnectFromServer();
+      awaitNoClients();
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = TransportMode.class, names = {"NIO", "VIRTUAL"})
+  void plaintextClientIsRejected(TransportMode mode) throws Exception
+  {
+    start(mode);
+    //The object stream header reads as the start of a long SSLv2 hello, so
+    //the server waits for the rest until the heartbeat gives up on it
+    server.setHeartbeat(1, 1);
+    BlockingQueue<String> shown = new LinkedBlockingQueue<String>();
+    assertThrows(IOException.class, () -> client = new ChatClient("mallory", "localhost",
+      server.getPort(), shown::add, new ClientOptions().setFormat(WireFormat.FRAMED)));
+    assertTrue(shown.isEmpty(), "The client was shown " + shown);
+
+    //Nothing the server sends back can be read as the chat protocol
+    try (Socket socket = new Socket("localhost", server.getPort()))
+    {
+      socket.setSoTimeout((int)TimeUnit.SECONDS.toMillis(WAIT_SECONDS));
+      socket.getOutputStream().write(new byte[] {(byte)0xac, (byte)0xed, 0x00, 0x05, 0x79});
+      InputStream in = socket.getInputStream();
+      int first;
+      try
+      {
+        first = in.read();
+        while (first >= 0 && in.read() >= 0); //Up to the server closing
+      }
+      catch (SocketException e)
+      {
+        first = -1; //Reset rather than closed
+      }
+      assertTrue(first == -1 || first == 0x15, "Not a TLS alert: " + first);
+    }
+    awaitNoClients();
+  }
+
+  /**
+   * Waits for the server to have logged a client in, which the client does
+   * on its reader thread as it connects.
+   */
+  private void awaitLogin(String loginID) throws InterruptedException
+  {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+    while (System.nanoTime() < deadline)
+    {
+      for (ClientConnection connection : server.getTransport().getClientConnections())
+      {
+        if (loginID.equals(connection.getInfo(EchoServer.loginKey)))
+          return;
+      }
+      Thread.sleep(10);
+    }
+    fail(loginID + " was never logged in");
+  }
+
+  /**
+   * Waits for the server to let go of every connection.
+   */
+  private void awaitNoClients() throws InterruptedException
+  {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+    while (server.getTransport().getNumberOfClients() > 0 && System.nanoTime() < deadline)
+      Thread.sleep(10);
+    assertEquals(0, server.getTransport().getNumberOfClients());
+  }
+}